@@ -0,0 +1,51 @@
+package com.codeforces.commons.cache;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creation and first use of {@link InmemoryCache} instances built by {@link InmemoryCache#newInstance()}
+ * and by Guice interceptors. Is in the package of the caches to reach the package-private proxied factory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InmemoryCacheConstructionBenchmark {
+    private static final String SECTION = "benchmark";
+    private static final int KEY_COUNT = 10;
+
+    private final String[] keys = new String[KEY_COUNT];
+    private final byte[] value = new byte[1024];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int keyIndex = 0; keyIndex < KEY_COUNT; ++keyIndex) {
+            keys[keyIndex] = "key" + keyIndex;
+        }
+    }
+
+    @Benchmark
+    public byte[] newInstance() {
+        return use(InmemoryCache.<String, byte[]>newInstance());
+    }
+
+    @Benchmark
+    public byte[] newProxiedInstance() {
+        return use(InmemoryCache.<String, byte[]>newProxiedInstance());
+    }
+
+    private byte[] use(Cache<String, byte[]> cache) {
+        try {
+            for (String key : keys) {
+                cache.put(SECTION, key, value);
+            }
+            return cache.get(SECTION, keys[KEY_COUNT - 1]);
+        } finally {
+            cache.close();
+        }
+    }
+}
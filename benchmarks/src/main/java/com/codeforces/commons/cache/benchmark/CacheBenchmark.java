@@ -0,0 +1,116 @@
+package com.codeforces.commons.cache.benchmark;
+
+import com.codeforces.commons.cache.Cache;
+import com.codeforces.commons.io.FileUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of mixed reads and writes of a single section. The count of threads
+ * is set by the {@code -t} option of JMH, allocation rate is reported by the {@code gc} profiler.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+    private static final String SECTION = "benchmark";
+    private static final int OPERATION_SEQUENCE_LENGTH = 1 << 16;
+
+    @Param({"INMEMORY_CACHE", "CONCURRENT_INMEMORY_CACHE", "INMEMORY_BYTE_CACHE", "FILE_SYSTEM_BYTE_CACHE",
+            "COMPRESSING_FILE_SYSTEM_BYTE_CACHE", "ASYNCHRONOUS_BYTE_CACHE", "LOCAL_AND_REMOTE_BYTE_CACHE"})
+    public CacheType cacheType;
+
+    @Param({"100", "10000"})
+    public int valueLength;
+
+    @Param({"10000"})
+    public int keyCount;
+
+    @Param({"UNIFORM", "ZIPFIAN"})
+    public KeyDistribution keyDistribution;
+
+    @Param({"0.0", "0.1", "0.5"})
+    public double writeFraction;
+
+    private File directory;
+    private Cache<String, byte[]> cache;
+    private String[] keys;
+    private byte[] value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = FileUtil.createTemporaryDirectory("cache-benchmark");
+        cache = cacheType.newCache(directory);
+
+        keys = new String[keyCount];
+        for (int keyIndex = 0; keyIndex < keyCount; ++keyIndex) {
+            keys[keyIndex] = "key" + keyIndex;
+        }
+
+        // Half of the value repeats, so compressing caches do real work.
+        value = new byte[valueLength];
+        new Random(valueLength).nextBytes(value);
+        System.arraycopy(value, 0, value, valueLength / 2, valueLength / 2);
+
+        for (String key : keys) {
+            cache.put(SECTION, key, value);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        cache.close();
+        FileUtil.deleteTotally(directory);
+    }
+
+    @Benchmark
+    public byte[] operation(Workload workload) {
+        int operationIndex = workload.nextOperationIndex();
+        String key = keys[workload.keyIndexes[operationIndex]];
+
+        if (workload.writes[operationIndex]) {
+            cache.put(SECTION, key, value);
+            return value;
+        } else {
+            return cache.get(SECTION, key);
+        }
+    }
+
+    /**
+     * Sequence of operations of a single thread, generated before the measurement and repeated cyclically.
+     */
+    @State(Scope.Thread)
+    public static class Workload {
+        private int[] keyIndexes;
+        private boolean[] writes;
+        private int operationIndex;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheBenchmark benchmark) {
+            Random random = new Random(ThreadLocalRandom.current().nextLong());
+
+            keyIndexes = benchmark.keyDistribution.newKeyIndexes(
+                    benchmark.keyCount, OPERATION_SEQUENCE_LENGTH, random
+            );
+
+            writes = new boolean[OPERATION_SEQUENCE_LENGTH];
+            for (int i = 0; i < OPERATION_SEQUENCE_LENGTH; ++i) {
+                writes[i] = random.nextDouble() < benchmark.writeFraction;
+            }
+        }
+
+        private int nextOperationIndex() {
+            int index = operationIndex;
+            operationIndex = (index + 1) & (OPERATION_SEQUENCE_LENGTH - 1);
+            return index;
+        }
+    }
+}
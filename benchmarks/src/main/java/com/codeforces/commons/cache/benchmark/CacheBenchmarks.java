@@ -0,0 +1,30 @@
+package com.codeforces.commons.cache.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs cache benchmarks with the {@code gc} profiler, so both throughput and allocation rate are reported.
+ * Accepts the usual JMH options, for example {@code -t 8 -p cacheType=INMEMORY_CACHE -p keyDistribution=ZIPFIAN}.
+ */
+public final class CacheBenchmarks {
+    private CacheBenchmarks() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+
+        OptionsBuilder optionsBuilder = new OptionsBuilder();
+        optionsBuilder.parent(commandLineOptions).addProfiler(GCProfiler.class);
+        if (commandLineOptions.getIncludes().isEmpty()) {
+            optionsBuilder.include(CacheBenchmark.class.getSimpleName());
+        }
+
+        new Runner(optionsBuilder.build()).run();
+    }
+}
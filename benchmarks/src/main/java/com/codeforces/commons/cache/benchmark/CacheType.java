@@ -0,0 +1,84 @@
+package com.codeforces.commons.cache.benchmark;
+
+import com.codeforces.commons.cache.Cache;
+import com.codeforces.commons.cache.ConcurrentInmemoryCache;
+import com.codeforces.commons.cache.FileSystemByteCache;
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.cache.InmemoryCache;
+import com.codeforces.commons.cache.util.Caches;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+
+/**
+ * Caches and decorators under benchmark. File system caches store values in the given directory.
+ */
+public enum CacheType {
+    INMEMORY_CACHE {
+        @Nonnull
+        @Override
+        Cache<String, byte[]> newCache(@Nonnull File directory) {
+            return InmemoryCache.<String, byte[]>newInstance();
+        }
+    },
+
+    CONCURRENT_INMEMORY_CACHE {
+        @Nonnull
+        @Override
+        Cache<String, byte[]> newCache(@Nonnull File directory) {
+            return ConcurrentInmemoryCache.<String, byte[]>newInstance();
+        }
+    },
+
+    INMEMORY_BYTE_CACHE {
+        @Nonnull
+        @Override
+        Cache<String, byte[]> newCache(@Nonnull File directory) {
+            return new InmemoryByteCache();
+        }
+    },
+
+    FILE_SYSTEM_BYTE_CACHE {
+        @Nonnull
+        @Override
+        Cache<String, byte[]> newCache(@Nonnull File directory) {
+            return new FileSystemByteCache(directory, false);
+        }
+    },
+
+    COMPRESSING_FILE_SYSTEM_BYTE_CACHE {
+        @Nonnull
+        @Override
+        Cache<String, byte[]> newCache(@Nonnull File directory) {
+            return new FileSystemByteCache(directory, true);
+        }
+    },
+
+    /**
+     * {@code AsynchronousByteCache} over {@code FileSystemByteCache}.
+     */
+    ASYNCHRONOUS_BYTE_CACHE {
+        @Nonnull
+        @Override
+        Cache<String, byte[]> newCache(@Nonnull File directory) {
+            return Caches.newAsynchronousByteCache(new FileSystemByteCache(directory, false));
+        }
+    },
+
+    /**
+     * {@code LocalAndRemoteByteCache} with {@code InmemoryByteCache} as local cache
+     * and {@code FileSystemByteCache} as remote cache.
+     */
+    LOCAL_AND_REMOTE_BYTE_CACHE {
+        @Nonnull
+        @Override
+        Cache<String, byte[]> newCache(@Nonnull File directory) {
+            return Caches.newLocalAndRemoteByteCache(
+                    new InmemoryByteCache(), new FileSystemByteCache(directory, false)
+            );
+        }
+    };
+
+    @Nonnull
+    abstract Cache<String, byte[]> newCache(@Nonnull File directory);
+}
@@ -0,0 +1,49 @@
+package com.codeforces.commons.cache.benchmark;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.cache.util.Caches;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures throughput of concurrent increments of a single counter, either written by compare-and-set
+ * on each increment or accumulated in memory by {@code CountingByteCache}. The count of threads
+ * is set by the {@code -t} option of JMH.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CounterBenchmark {
+    private static final String SECTION = "benchmark";
+    private static final String KEY = "counter";
+
+    @Param({"false", "true"})
+    public boolean counting;
+
+    @Param({"50"})
+    public long flushIntervalMillis;
+
+    private ByteCache cache;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cache = counting
+                ? Caches.newCountingByteCache(new InmemoryByteCache(), flushIntervalMillis)
+                : new InmemoryByteCache();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    public long incrementAndGet() {
+        return cache.incrementAndGet(SECTION, KEY, 1L, Long.MAX_VALUE);
+    }
+}
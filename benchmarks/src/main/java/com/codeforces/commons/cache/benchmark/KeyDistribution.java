@@ -0,0 +1,61 @@
+package com.codeforces.commons.cache.benchmark;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Distributions of accessed keys. Key indexes are generated before the measurement,
+ * so the random number generator doesn't affect the results.
+ */
+public enum KeyDistribution {
+    /**
+     * All keys are accessed with the same probability.
+     */
+    UNIFORM {
+        @Nonnull
+        @Override
+        int[] newKeyIndexes(int keyCount, int length, @Nonnull Random random) {
+            int[] keyIndexes = new int[length];
+            for (int i = 0; i < length; ++i) {
+                keyIndexes[i] = random.nextInt(keyCount);
+            }
+            return keyIndexes;
+        }
+    },
+
+    /**
+     * Probability to access the key of rank {@code r} is proportional to {@code 1 / r^0.99},
+     * so a small set of hot keys receives most of accesses.
+     */
+    ZIPFIAN {
+        private static final double SKEW = 0.99D;
+
+        @Nonnull
+        @Override
+        int[] newKeyIndexes(int keyCount, int length, @Nonnull Random random) {
+            double[] cumulativeWeights = new double[keyCount];
+            double totalWeight = 0.0D;
+            for (int rank = 1; rank <= keyCount; ++rank) {
+                totalWeight += 1.0D / Math.pow(rank, SKEW);
+                cumulativeWeights[rank - 1] = totalWeight;
+            }
+
+            int[] keyIndexes = new int[length];
+            for (int i = 0; i < length; ++i) {
+                int keyIndex = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * totalWeight);
+                keyIndexes[i] = Math.min(keyIndex < 0 ? -keyIndex - 1 : keyIndex, keyCount - 1);
+            }
+            return keyIndexes;
+        }
+    };
+
+    /**
+     * @param keyCount count of keys
+     * @param length   count of indexes to generate
+     * @param random   random number generator
+     * @return indexes of accessed keys in range {@code [0, keyCount)}
+     */
+    @Nonnull
+    abstract int[] newKeyIndexes(int keyCount, int length, @Nonnull Random random);
+}
@@ -0,0 +1,99 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lossy striped buffer of element accesses. Recording threads never block: an access is dropped
+ * if the stripe of the current thread is full. The buffer is drained by a single thread at a time,
+ * which should be guaranteed by the caller.
+ */
+final class AccessBuffer<E> {
+    private static final int STRIPE_COUNT = ceilingPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+    private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+
+    private static final int STRIPE_SIZE = 32;
+    private static final int STRIPE_SIZE_MASK = STRIPE_SIZE - 1;
+
+    private static final int DRAIN_THRESHOLD = STRIPE_SIZE / 2;
+
+    private final Stripe<E>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    AccessBuffer() {
+        stripes = new Stripe[STRIPE_COUNT];
+        for (int stripeIndex = 0; stripeIndex < STRIPE_COUNT; ++stripeIndex) {
+            stripes[stripeIndex] = new Stripe<>();
+        }
+    }
+
+    /**
+     * Records access to the element.
+     *
+     * @param element accessed element
+     * @return {@code true} iff the buffer should be drained
+     */
+    boolean record(@Nonnull E element) {
+        Stripe<E> stripe = stripes[getStripeIndex()];
+
+        long writeCount = stripe.writeCount.get();
+        long pendingCount = writeCount - stripe.readCount;
+
+        if (pendingCount >= STRIPE_SIZE) {
+            return true;
+        }
+
+        if (stripe.writeCount.compareAndSet(writeCount, writeCount + 1L)) {
+            stripe.elements.lazySet((int) (writeCount & STRIPE_SIZE_MASK), element);
+        }
+
+        return pendingCount + 1L >= DRAIN_THRESHOLD;
+    }
+
+    /**
+     * Passes recorded elements to the visitor and clears the buffer.
+     * Must not be called concurrently.
+     */
+    void drain(@Nonnull Visitor<E> visitor) {
+        for (int stripeIndex = 0; stripeIndex < STRIPE_COUNT; ++stripeIndex) {
+            Stripe<E> stripe = stripes[stripeIndex];
+
+            long readCount = stripe.readCount;
+            long writeCount = stripe.writeCount.get();
+
+            for (; readCount < writeCount; ++readCount) {
+                int elementIndex = (int) (readCount & STRIPE_SIZE_MASK);
+                E element = stripe.elements.get(elementIndex);
+                if (element == null) {
+                    break;
+                }
+
+                stripe.elements.lazySet(elementIndex, null);
+                visitor.visit(element);
+            }
+
+            stripe.readCount = readCount;
+        }
+    }
+
+    private static int getStripeIndex() {
+        long threadId = Thread.currentThread().getId();
+        int hash = (int) (threadId ^ threadId >>> 32) * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & STRIPE_MASK;
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    interface Visitor<E> {
+        void visit(@Nonnull E element);
+    }
+
+    private static final class Stripe<E> {
+        private final AtomicLong writeCount = new AtomicLong();
+        private final AtomicReferenceArray<E> elements = new AtomicReferenceArray<>(STRIPE_SIZE);
+        private volatile long readCount;
+    }
+}
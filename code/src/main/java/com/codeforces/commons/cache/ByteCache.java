@@ -2,9 +2,18 @@ package com.codeforces.commons.cache;
 
 import com.codeforces.commons.text.StringUtil;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.Collection;
 
 /**
  * @author Maxim Shipko (sladethe@gmail.com)
@@ -19,6 +28,12 @@ import java.nio.charset.Charset;
 public abstract class ByteCache extends Cache<String, byte[]> {
     private static final Charset STRING_ENCODING = Charset.forName("UTF-8");
 
+    /**
+     * Expected version of {@link #compareAndSet(String, String, long, byte[], long) compareAndSet(...)}
+     * meaning that the storage has no value for the key. Is never returned as a version of a value.
+     */
+    public static final long NO_VERSION = 0L;
+
     protected ByteCache() {
     }
 
@@ -137,6 +152,91 @@ public abstract class ByteCache extends Cache<String, byte[]> {
         putIfAbsent(section, key, value == null ? null : value.getBytes(STRING_ENCODING), lifetimeMillis);
     }
 
+    /**
+     * Puts value of the specified length read from the stream into the storage using given section and key.
+     * Replaces old value if exists. The stream is not closed.
+     * <p/>
+     * Default implementation reads the whole value into memory. Storages of large values should
+     * override this method to store the value by chunks.
+     *
+     * @param section     storage section
+     * @param key         storage key (unique for each section)
+     * @param inputStream stream to read value from
+     * @param length      value length
+     * @throws IllegalArgumentException if stream is {@code null} or length is negative
+     * @throws IOException              if the stream can't be read or ends before {@code length} bytes are read
+     */
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        put(section, key, inputStream, length, Long.MAX_VALUE);
+    }
+
+    /**
+     * Puts value of the specified length read from the stream into the storage using given section and key.
+     * Replaces old value if exists. The stream is not closed.
+     * Value will be considered outdated
+     * ({@code {@link #openStream(String, String) ByteCache.openStream(section, key)}} will return {@code null})
+     * after {@code lifetimeMillis}.
+     * <p/>
+     * Default implementation reads the whole value into memory. Storages of large values should
+     * override this method to store the value by chunks.
+     *
+     * @param section        storage section
+     * @param key            storage key (unique for each section)
+     * @param inputStream    stream to read value from
+     * @param length         value length
+     * @param lifetimeMillis value lifetime
+     * @throws IllegalArgumentException if stream is {@code null} or length is negative
+     * @throws IOException              if the stream can't be read or ends before {@code length} bytes are read
+     */
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        put(section, key, readValue(inputStream, length), lifetimeMillis);
+    }
+
+    /**
+     * Opens stream to read value from the storage. The consistency of the value is checked when the stream
+     * is read to the end: {@link IOException} is thrown instead of reaching the end of a broken value.
+     * <p/>
+     * Default implementation reads the whole value into memory.
+     *
+     * @param section storage section
+     * @param key     storage key (unique for each section)
+     * @return stream of value iff it's presented in the storage, otherwise returns {@code null};
+     * the caller is responsible for closing the stream
+     */
+    @Nullable
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        byte[] value = get(section, key);
+        return value == null ? null : new ByteArrayInputStream(value);
+    }
+
+    /**
+     * Writes value from the storage to the channel. The storage may skip the consistency check of the value
+     * if it is able to transfer the value without copying.
+     * <p/>
+     * Default implementation reads the whole value into memory.
+     *
+     * @param section storage section
+     * @param key     storage key (unique for each section)
+     * @param channel channel to write value to
+     * @return count of written bytes iff value is presented in the storage, otherwise returns {@code -1}
+     * @throws IOException if the value can't be written to the channel
+     */
+    public long transferTo(@Nonnull String section, @Nonnull String key, @Nonnull WritableByteChannel channel)
+            throws IOException {
+        byte[] value = get(section, key);
+        if (value == null) {
+            return -1L;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(value);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return value.length;
+    }
+
     /**
      * Extracts value from the storage and checks it for consistency.
      *
@@ -163,6 +263,162 @@ public abstract class ByteCache extends Cache<String, byte[]> {
         return bytes == null ? null : new String(bytes, STRING_ENCODING);
     }
 
+    /**
+     * Extracts value from the storage along with its version. The version is derived from the SHA-1 hash
+     * of the value, so equal values have equal versions in all storages, and a version changes iff the value
+     * changes.
+     * <p/>
+     * Default implementation throws {@link UnsupportedOperationException}.
+     *
+     * @param section storage section
+     * @param key     storage key (unique for each section)
+     * @return value with its version iff it's presented in the storage and is consistent,
+     * otherwise returns {@code null}
+     * @throws UnsupportedOperationException if the storage doesn't support versioned values
+     */
+    @Nullable
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support versioned values.");
+    }
+
+    /**
+     * Puts value into the storage iff the version of the stored value is {@code expectedVersion}.
+     * Allows to update values by optimistic read-modify-write loops instead of external locks:
+     * get the value by {@link #getWithVersion(String, String)}, compute the new value and retry from the start
+     * if this method returns {@code false}.
+     * <p/>
+     * Default implementation throws {@link UnsupportedOperationException}.
+     *
+     * @param section         storage section
+     * @param key             storage key (unique for each section)
+     * @param expectedVersion version of the value to replace or {@link #NO_VERSION} to store the value
+     *                        only if the storage has no value for the key
+     * @param newValue        value to store
+     * @param lifetimeMillis  value lifetime or {@link Long#MAX_VALUE} if the value should not expire
+     * @return {@code true} iff the value has been stored
+     * @throws IllegalArgumentException      if value is {@code null} or lifetime is not positive
+     * @throws UnsupportedOperationException if the storage doesn't support versioned values
+     */
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't support versioned values.");
+    }
+
+    /**
+     * Adds {@code delta} to the counter and returns its new value. Absent counter is considered zero.
+     * Counters are stored as decimal strings, so they can be read by {@link #getString(String, String)},
+     * and strings stored by {@link #putString(String, String, String)} can be incremented.
+     * The lifetime is counted from the last update of the counter; to count by fixed time windows,
+     * include the number of the window into the key.
+     * <p/>
+     * Default implementation updates the value by {@link #getWithVersion(String, String)}
+     * and {@link #compareAndSet(String, String, long, byte[], long)} retrying on conflicts,
+     * so each increment costs a write. Wrap the cache
+     * by {@link com.codeforces.commons.cache.util.Caches#newCountingByteCache(ByteCache, long)}
+     * to accumulate increments in memory and write them in batches.
+     *
+     * @param section        storage section
+     * @param key            storage key (unique for each section)
+     * @param delta          value to add, may be negative
+     * @param lifetimeMillis counter lifetime or {@link Long#MAX_VALUE} if the counter should not expire
+     * @return value of the counter after the increment
+     * @throws IllegalArgumentException      if lifetime is not positive
+     * @throws IllegalStateException         if the stored value is not a counter
+     * @throws UnsupportedOperationException if the storage doesn't support versioned values
+     */
+    public long incrementAndGet(@Nonnull String section, @Nonnull String key, long delta, long lifetimeMillis) {
+        while (true) {
+            VersionedValue versionedValue = getWithVersion(section, key);
+            long value = versionedValue == null ? 0L : parseCounter(section, key, versionedValue.getValue());
+            long version = versionedValue == null ? NO_VERSION : versionedValue.getVersion();
+
+            if (compareAndSet(section, key, version, toCounterBytes(value + delta), lifetimeMillis)) {
+                return value + delta;
+            }
+        }
+    }
+
+    /**
+     * @param section storage section
+     * @param key     storage key (unique for each section)
+     * @return value of the counter or {@code 0} if the storage has no value for the key
+     * @throws IllegalStateException if the stored value is not a counter
+     * @see #incrementAndGet(String, String, long, long)
+     */
+    public long getCounter(@Nonnull String section, @Nonnull String key) {
+        byte[] value = get(section, key);
+        return value == null ? 0L : parseCounter(section, key, value);
+    }
+
+    private static byte[] toCounterBytes(long value) {
+        return Long.toString(value).getBytes(STRING_ENCODING);
+    }
+
+    private static long parseCounter(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        try {
+            return Long.parseLong(new String(value, STRING_ENCODING));
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException(String.format(
+                    "Value (section='%s', key='%s') is not a counter.", section, key
+            ), e);
+        }
+    }
+
+    /**
+     * @param value value to get version of
+     * @return version of the value
+     */
+    protected static long getVersion(@Nonnull byte[] value) {
+        return getVersionByHash(DigestUtils.sha1(value));
+    }
+
+    /**
+     * @param sha1 SHA-1 hash of the value
+     * @return version of the value
+     */
+    protected static long getVersionByHash(@Nonnull byte[] sha1) {
+        long version = 0L;
+        for (int i = 0; i < Long.SIZE / Byte.SIZE; ++i) {
+            version = (version << Byte.SIZE) | (sha1[i] & 0xFFL);
+        }
+        return version == NO_VERSION ? 1L : version;
+    }
+
+    protected static void ensureVersionedValue(@Nonnull byte[] newValue, long lifetimeMillis) {
+        if (newValue == null) {
+            throw new IllegalArgumentException("Argument 'newValue' is 'null'.");
+        }
+
+        if (lifetimeMillis <= 0L) {
+            throw new IllegalArgumentException("Argument 'lifetimeMillis' should be positive.");
+        }
+    }
+
+    /**
+     * Reads exactly {@code length} bytes from the stream.
+     */
+    protected static byte[] readValue(@Nonnull InputStream inputStream, long length) throws IOException {
+        ensureValueStream(inputStream, length);
+
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Can't read value of length " + length + " into memory.");
+        }
+
+        byte[] value = new byte[(int) length];
+        IOUtils.readFully(inputStream, value);
+        return value;
+    }
+
+    protected static void ensureValueStream(@Nonnull InputStream inputStream, long length) {
+        if (inputStream == null) {
+            throw new IllegalArgumentException("Argument 'inputStream' is 'null'.");
+        }
+
+        if (length < 0L) {
+            throw new IllegalArgumentException("Argument 'length' should be non-negative.");
+        }
+    }
+
     private static boolean isValidChar(char c) {
         return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z'
                 || c == '0' || c >= '1' && c <= '9'
@@ -186,6 +442,14 @@ public abstract class ByteCache extends Cache<String, byte[]> {
         }
     }
 
+    protected static void ensureCacheKeyNames(@Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        for (String key : keys) {
+            ensureCacheKeyName(key);
+        }
+    }
+
     protected static void ensureCacheKeyName(@Nonnull String key) {
         if (StringUtil.isEmpty(key)) {
             throw new IllegalArgumentException("Argument 'key' can't be 'null' or empty.");
@@ -3,6 +3,10 @@ package com.codeforces.commons.cache;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -19,6 +23,8 @@ public abstract class Cache<K, V> implements Closeable {
 
     private final long index;
 
+    private volatile InflightLoads<K, V> inflightLoads;
+
     protected Cache() {
         this.index = cacheIndex.incrementAndGet();
     }
@@ -107,6 +113,254 @@ public abstract class Cache<K, V> implements Closeable {
     @Nullable
     public abstract V get(@Nonnull String section, @Nonnull K key);
 
+    /**
+     * Returns the value from the storage using given section and key. If there is no value,
+     * loads it using {@code loader} and puts into the storage.
+     * At most one load per section and key is in progress in this cache instance:
+     * concurrent callers wait for it and get its result. If loading fails, the exception is thrown to all
+     * waiting callers and is not remembered, so the next call loads again.
+     *
+     * @param section storage section
+     * @param key     storage key (unique for each section)
+     * @param loader  loader of the missing value, may return {@code null} if there is no value
+     * @return stored or loaded value, or {@code null} if there is no value
+     * @throws IllegalArgumentException if loader is {@code null}
+     */
+    @Nullable
+    public V get(@Nonnull String section, @Nonnull K key, @Nonnull Loader<V> loader) {
+        return getOrLoad(section, key, loader, false, 0L);
+    }
+
+    /**
+     * Returns the value from the storage using given section and key. If there is no value,
+     * loads it using {@code loader} and puts into the storage for {@code lifetimeMillis}.
+     * At most one load per section and key is in progress in this cache instance:
+     * concurrent callers wait for it and get its result. If loading fails, the exception is thrown to all
+     * waiting callers and is not remembered, so the next call loads again.
+     * <p/>
+     * If the storage has a {@link #getRefreshAheadPolicy() refresh-ahead policy}, the value is reloaded
+     * in background before its expiration and the stale value may be returned during the grace period.
+     *
+     * @param section        storage section
+     * @param key            storage key (unique for each section)
+     * @param loader         loader of the missing value, may return {@code null} if there is no value
+     * @param lifetimeMillis lifetime of loaded value
+     * @return stored or loaded value, or {@code null} if there is no value
+     * @throws IllegalArgumentException if loader is {@code null}
+     */
+    @Nullable
+    public V get(@Nonnull String section, @Nonnull K key, @Nonnull Loader<V> loader, long lifetimeMillis) {
+        return getOrLoad(section, key, loader, true, lifetimeMillis);
+    }
+
+    @Nullable
+    private V getOrLoad(
+            @Nonnull String section, @Nonnull K key, @Nonnull Loader<V> loader,
+            boolean hasLifetime, long lifetimeMillis) {
+        if (loader == null) {
+            throw new IllegalArgumentException("Argument 'loader' is 'null'.");
+        }
+
+        RefreshAheadPolicy refreshAheadPolicy = hasLifetime ? getRefreshAheadPolicy() : null;
+
+        if (refreshAheadPolicy == null) {
+            V value = get(section, key);
+            if (value != null) {
+                return value;
+            }
+        } else {
+            StoredValue<V> storedValue = getStoredValue(section, key);
+            if (storedValue != null) {
+                long currentTimeMillis = System.currentTimeMillis();
+                long expirationTimeMillis = storedValue.getExpirationTimeMillis();
+
+                if (currentTimeMillis <= expirationTimeMillis && !refreshAheadPolicy.isRefreshNeeded(
+                        expirationTimeMillis, lifetimeMillis, currentTimeMillis)) {
+                    return storedValue.getValue();
+                }
+
+                if (currentTimeMillis <= expirationTimeMillis
+                        || refreshAheadPolicy.isInGracePeriod(expirationTimeMillis, currentTimeMillis)) {
+                    getInflightLoads().refresh(this, refreshAheadPolicy, section, key, loader, lifetimeMillis);
+                    return storedValue.getValue();
+                }
+            }
+        }
+
+        return getInflightLoads().load(this, section, key, loader, hasLifetime, lifetimeMillis);
+    }
+
+    @Nonnull
+    private InflightLoads<K, V> getInflightLoads() {
+        InflightLoads<K, V> loads = inflightLoads;
+        if (loads == null) {
+            synchronized (this) {
+                loads = inflightLoads;
+                if (loads == null) {
+                    loads = new InflightLoads<>();
+                    inflightLoads = loads;
+                }
+            }
+        }
+        return loads;
+    }
+
+    /**
+     * Storages supporting refresh-ahead override this method together with {@link #getStoredValue(String, Object)}.
+     *
+     * @return refresh-ahead policy of values read by {@link #get(String, Object, Loader, long)}
+     * or {@code null} if values are not refreshed ahead
+     */
+    @Nullable
+    protected RefreshAheadPolicy getRefreshAheadPolicy() {
+        return null;
+    }
+
+    /**
+     * Returns the value with its expiration time. Unlike {@link #get(String, Object)}, returns values
+     * which have expired not earlier than the grace period of the refresh-ahead policy ago.
+     *
+     * @param section storage section
+     * @param key     storage key (unique for each section)
+     * @return stored value or {@code null} if there is no value
+     */
+    @Nullable
+    protected StoredValue<V> getStoredValue(@Nonnull String section, @Nonnull K key) {
+        V value = get(section, key);
+        return value == null ? null : new StoredValue<>(value, StoredValue.NO_EXPIRATION);
+    }
+
+    /**
+     * Passes all actual values of the storage to the visitor. Iteration is weakly consistent: values stored
+     * or removed concurrently may be either visited or not. Storages supporting snapshots override this method.
+     *
+     * @param visitor visitor of values
+     * @throws IOException                   if the visitor has failed
+     * @throws UnsupportedOperationException if the storage can't enumerate its values
+     */
+    protected void visitStoredValues(@Nonnull StoredValueVisitor<K, V> visitor) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't enumerate stored values.");
+    }
+
+    /**
+     * Puts the value returned by the loader into the storage. Default implementation replaces old value if exists.
+     * Storages override this method not to replace values stored concurrently with loading.
+     *
+     * @param section        storage section
+     * @param key            storage key (unique for each section)
+     * @param value          loaded value
+     * @param hasLifetime    {@code true} iff value should be stored for {@code lifetimeMillis}
+     * @param lifetimeMillis value lifetime
+     * @return value associated with the key after the operation
+     */
+    @Nonnull
+    protected V putLoadedValue(
+            @Nonnull String section, @Nonnull K key, @Nonnull V value, boolean hasLifetime, long lifetimeMillis) {
+        if (hasLifetime) {
+            put(section, key, value, lifetimeMillis);
+        } else {
+            put(section, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Atomically puts the value into the storage iff the stored value is {@code expectedValue}.
+     * Heap storages compare values by reference, storages keeping copies of values compare them by contents.
+     * Storages supporting {@link ByteCache#compareAndSet(String, String, long, byte[], long)} override this method.
+     *
+     * @param section        storage section
+     * @param key            storage key (unique for each section)
+     * @param expectedValue  value to replace or {@code null} to store the value only if there is no actual value
+     * @param newValue       value to store
+     * @param hasLifetime    {@code true} iff value should be stored for {@code lifetimeMillis}
+     * @param lifetimeMillis value lifetime
+     * @return {@code true} iff the value has been stored
+     * @throws UnsupportedOperationException if the storage can't replace values atomically
+     */
+    protected boolean replace(@Nonnull String section, @Nonnull K key, @Nullable V expectedValue,
+                              @Nonnull V newValue, boolean hasLifetime, long lifetimeMillis) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " can't replace values atomically.");
+    }
+
+    /**
+     * Returns values of the given keys from the specified section of the storage.
+     * Storages override this method to fetch values in a batch; default implementation gets them one by one.
+     *
+     * @param section storage section
+     * @param keys    storage keys (unique for each section)
+     * @return values by keys in the iteration order of keys; keys without values are omitted
+     * @throws IllegalArgumentException if keys are {@code null}
+     */
+    @Nonnull
+    public Map<K, V> getAll(@Nonnull String section, @Nonnull Collection<K> keys) {
+        ensureKeys(keys);
+
+        Map<K, V> valueByKey = newValueByKeyMap(keys.size());
+        for (K key : keys) {
+            V value = get(section, key);
+            if (value != null) {
+                valueByKey.put(key, value);
+            }
+        }
+        return valueByKey;
+    }
+
+    /**
+     * Puts values into the specified section of the storage. Replaces old values if exist.
+     * Storages override this method to store values in a batch; default implementation puts them one by one.
+     *
+     * @param section    storage section
+     * @param valueByKey values to store by storage keys
+     * @throws IllegalArgumentException if values are {@code null} or any value is {@code null}
+     */
+    public void putAll(@Nonnull String section, @Nonnull Map<K, V> valueByKey) {
+        ensureValueByKey(valueByKey);
+
+        for (Map.Entry<K, V> entry : valueByKey.entrySet()) {
+            put(section, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Puts values into the specified section of the storage. Replaces old values if exist.
+     * Values will be considered outdated after {@code lifetimeMillis}.
+     * Storages override this method to store values in a batch; default implementation puts them one by one.
+     *
+     * @param section        storage section
+     * @param valueByKey     values to store by storage keys
+     * @param lifetimeMillis lifetime of values
+     * @throws IllegalArgumentException if values are {@code null} or any value is {@code null}
+     */
+    public void putAll(@Nonnull String section, @Nonnull Map<K, V> valueByKey, long lifetimeMillis) {
+        ensureValueByKey(valueByKey);
+
+        for (Map.Entry<K, V> entry : valueByKey.entrySet()) {
+            put(section, entry.getKey(), entry.getValue(), lifetimeMillis);
+        }
+    }
+
+    /**
+     * Removes values of the given keys from the specified section of the storage.
+     * Storages override this method to remove values in a batch; default implementation removes them one by one.
+     *
+     * @param section storage section
+     * @param keys    storage keys (unique for each section)
+     * @return count of removed values
+     * @throws IllegalArgumentException if keys are {@code null}
+     */
+    public int removeAll(@Nonnull String section, @Nonnull Collection<K> keys) {
+        ensureKeys(keys);
+
+        int removedCount = 0;
+        for (K key : keys) {
+            if (remove(section, key)) {
+                ++removedCount;
+            }
+        }
+        return removedCount;
+    }
+
     /**
      * Removes value from the storage using given section and key.
      *
@@ -129,6 +383,46 @@ public abstract class Cache<K, V> implements Closeable {
      */
     public abstract void clear();
 
+    /**
+     * Registers listener to be notified of values leaving the storage with the causes of removals.
+     * Listeners are notified asynchronously, see {@link RemovalListener}.
+     * Default implementation throws {@link UnsupportedOperationException}.
+     * <p/>
+     * Removals are reported by in-memory caches (including off-heap ones) and by decorators forwarding
+     * listeners to such caches. Persistent caches ({@link FileSystemByteCache}, {@link SegmentLogByteCache},
+     * {@link GridFsByteCache}) don't report removals, since their values may expire or be deleted
+     * by other processes sharing the storage.
+     *
+     * @param listener listener to register
+     * @throws IllegalArgumentException      if listener is {@code null}
+     * @throws UnsupportedOperationException if the storage doesn't report removals
+     */
+    public void addRemovalListener(@Nonnull RemovalListener<K, V> listener) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't report removals.");
+    }
+
+    /**
+     * Unregisters listener. Notifications of earlier removals may still be delivered to it.
+     * Default implementation throws {@link UnsupportedOperationException}.
+     *
+     * @param listener listener to unregister
+     * @throws IllegalArgumentException      if listener is {@code null}
+     * @throws UnsupportedOperationException if the storage doesn't report removals
+     */
+    public void removeRemovalListener(@Nonnull RemovalListener<K, V> listener) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " doesn't report removals.");
+    }
+
+    /**
+     * Returns count of removal notifications which have been dropped because listeners haven't kept up
+     * with removals, see {@link RemovalListener}. Default implementation returns {@code 0}.
+     *
+     * @return count of dropped removal notifications since the creation of the cache
+     */
+    public long getDroppedRemovalNotificationCount() {
+        return 0L;
+    }
+
     /**
      * Closes this cache and releases any resources associated with it.
      * If the cache is already closed then invoking this method has no effect.
@@ -136,9 +430,71 @@ public abstract class Cache<K, V> implements Closeable {
     @Override
     public abstract void close();
 
+    protected static void ensureKeys(@Nonnull Collection<?> keys) {
+        if (keys == null) {
+            throw new IllegalArgumentException("Argument 'keys' is 'null'.");
+        }
+    }
+
+    protected static void ensureValueByKey(@Nonnull Map<?, ?> valueByKey) {
+        if (valueByKey == null) {
+            throw new IllegalArgumentException("Argument 'valueByKey' is 'null'.");
+        }
+    }
+
+    @Nonnull
+    protected static <K, V> Map<K, V> newValueByKeyMap(int keyCount) {
+        return new LinkedHashMap<>(Math.max(16, (int) (keyCount / 0.75F) + 1));
+    }
+
     @Override
     protected final void finalize() throws Throwable {
         close();
         super.finalize();
     }
+
+    /**
+     * Value returned by {@link #getStoredValue(String, Object)} or passed to {@link StoredValueVisitor}.
+     */
+    protected static final class StoredValue<V> {
+        /**
+         * Expiration time of permanent values.
+         */
+        public static final long NO_EXPIRATION = Long.MAX_VALUE;
+
+        private final V value;
+        private final long expirationTimeMillis;
+
+        public StoredValue(@Nonnull V value, long expirationTimeMillis) {
+            this.value = value;
+            this.expirationTimeMillis = expirationTimeMillis;
+        }
+
+        @Nonnull
+        public V getValue() {
+            return value;
+        }
+
+        public long getExpirationTimeMillis() {
+            return expirationTimeMillis;
+        }
+    }
+
+    /**
+     * Receives values enumerated by {@link #visitStoredValues(StoredValueVisitor)}.
+     */
+    protected interface StoredValueVisitor<K, V> {
+        void visit(@Nonnull String section, @Nonnull K key, @Nonnull StoredValue<V> storedValue) throws IOException;
+    }
+
+    /**
+     * Loads values missing in the storage. See {@link #get(String, Object, Loader, long)}.
+     */
+    public interface Loader<V> {
+        /**
+         * @return loaded value or {@code null} if there is no value
+         */
+        @Nullable
+        V load();
+    }
 }
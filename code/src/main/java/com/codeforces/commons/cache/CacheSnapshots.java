@@ -0,0 +1,338 @@
+package com.codeforces.commons.cache;
+
+import com.codeforces.commons.io.FileUtil;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Writes values of in-memory caches to snapshot files and loads them back.
+ * <p/>
+ * Snapshot layout: magic (int), version (int), snapshot time (long), then section records (type, section)
+ * each followed by value records of the section (type, key, expiration time, value length, value),
+ * then zero byte. Expiration times are absolute, so values which expire before the snapshot is loaded are skipped.
+ */
+final class CacheSnapshots {
+    private static final Logger logger = Logger.getLogger(CacheSnapshots.class);
+
+    private static final int SNAPSHOT_MAGIC = 0x43534E50;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte SECTION_RECORD_TYPE = 1;
+    private static final byte VALUE_RECORD_TYPE = 2;
+
+    private static final String TEMP_FILE_EXT = ".tmp";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int MAXIMAL_BATCH_VALUE_COUNT = 1000;
+    private static final int MAXIMAL_BATCH_BYTE_COUNT = 1 << 22;
+
+    private static final AtomicLong loadIndex = new AtomicLong();
+
+    private CacheSnapshots() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Writes actual values of the cache to the temporary file and atomically replaces the snapshot file with it.
+     *
+     * @return count of written values
+     */
+    static long write(@Nonnull Cache<String, byte[]> cache, @Nonnull File file) throws IOException {
+        FileUtil.ensureParentDirectoryExists(file);
+        File tempFile = new File(file.getPath() + TEMP_FILE_EXT);
+
+        final AtomicLong valueCount = new AtomicLong();
+
+        try (FileOutputStream fileOutputStream = new FileOutputStream(tempFile)) {
+            final DataOutputStream outputStream = new DataOutputStream(
+                    new BufferedOutputStream(fileOutputStream, BUFFER_SIZE)
+            );
+
+            outputStream.writeInt(SNAPSHOT_MAGIC);
+            outputStream.writeInt(SNAPSHOT_VERSION);
+            outputStream.writeLong(System.currentTimeMillis());
+
+            cache.visitStoredValues(new Cache.StoredValueVisitor<String, byte[]>() {
+                private String previousSection;
+
+                @Override
+                public void visit(@Nonnull String section, @Nonnull String key,
+                                  @Nonnull Cache.StoredValue<byte[]> storedValue) throws IOException {
+                    if (!section.equals(previousSection)) {
+                        outputStream.writeByte(SECTION_RECORD_TYPE);
+                        outputStream.writeUTF(section);
+                        previousSection = section;
+                    }
+
+                    byte[] value = storedValue.getValue();
+                    outputStream.writeByte(VALUE_RECORD_TYPE);
+                    outputStream.writeUTF(key);
+                    outputStream.writeLong(storedValue.getExpirationTimeMillis());
+                    outputStream.writeInt(value.length);
+                    outputStream.write(value);
+                    valueCount.incrementAndGet();
+                }
+            });
+
+            outputStream.writeByte(0);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }
+
+        FileUtil.renameFile(tempFile, file, true);
+        return valueCount.get();
+    }
+
+    /**
+     * Streams the snapshot file and stores its values in the cache by {@code threadCount} threads.
+     * Values are stored unless the cache already has values of the same keys.
+     * Values which have expired are skipped. If the snapshot is corrupted, the values read
+     * before the corrupted record remain in the cache.
+     *
+     * @return count of actual values read from the snapshot, including values of keys already present
+     * @throws IOException if the file can't be read or is not a valid snapshot
+     */
+    static long read(@Nonnull final Cache<String, byte[]> cache, @Nonnull File file, int threadCount)
+            throws IOException {
+        final AtomicLong valueCount = new AtomicLong();
+        final AtomicReference<RuntimeException> exception = new AtomicReference<>();
+
+        final long index = loadIndex.incrementAndGet();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threadCount),
+                new ThreadFactory() {
+                    private final AtomicLong threadIndex = new AtomicLong();
+
+                    @Nonnull
+                    @Override
+                    public Thread newThread(@Nonnull Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        thread.setName(CacheSnapshots.class.getSimpleName() + '-' + index
+                                + "#LoadThread-" + threadIndex.incrementAndGet());
+                        return thread;
+                    }
+                },
+                // The reader stores the batch itself while all threads are busy, so memory usage is bounded.
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+
+        try (DataInputStream inputStream = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+            if (inputStream.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("File '" + file + "' is not a cache snapshot.");
+            }
+
+            int version = inputStream.readInt();
+            if (version != SNAPSHOT_VERSION) {
+                throw new IOException("Unsupported version " + version + " of cache snapshot '" + file + "'.");
+            }
+
+            inputStream.readLong();
+
+            String section = null;
+            Batch batch = null;
+            byte type;
+
+            while ((type = inputStream.readByte()) != 0) {
+                if (type == SECTION_RECORD_TYPE) {
+                    if (batch != null) {
+                        executor.execute(batch.newLoadTask(cache, valueCount, exception));
+                        batch = null;
+                    }
+                    section = inputStream.readUTF();
+                } else if (type == VALUE_RECORD_TYPE && section != null) {
+                    String key = inputStream.readUTF();
+                    long expirationTimeMillis = inputStream.readLong();
+                    int length = inputStream.readInt();
+                    if (length < 0) {
+                        throw new IOException("Illegal value length " + length + " in cache snapshot '" + file + "'.");
+                    }
+
+                    byte[] value = new byte[length];
+                    inputStream.readFully(value);
+
+                    if (expirationTimeMillis <= System.currentTimeMillis()) {
+                        continue;
+                    }
+
+                    if (batch == null) {
+                        batch = new Batch(section);
+                    }
+                    batch.add(key, value, expirationTimeMillis);
+
+                    if (batch.isFull()) {
+                        executor.execute(batch.newLoadTask(cache, valueCount, exception));
+                        batch = null;
+                    }
+                } else {
+                    throw new IOException("Illegal record type " + type + " in cache snapshot '" + file + "'.");
+                }
+            }
+
+            if (batch != null) {
+                executor.execute(batch.newLoadTask(cache, valueCount, exception));
+            }
+        } finally {
+            executor.shutdown();
+            awaitTermination(executor);
+        }
+
+        if (exception.get() != null) {
+            throw exception.get();
+        }
+
+        return valueCount.get();
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                if (executor.awaitTermination(1L, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (InterruptedException ignored) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Batch {
+        private final String section;
+        private final List<String> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+        private final List<Long> expirationTimes = new ArrayList<>();
+        private long byteCount;
+
+        private Batch(String section) {
+            this.section = section;
+        }
+
+        private void add(String key, byte[] value, long expirationTimeMillis) {
+            keys.add(key);
+            values.add(value);
+            expirationTimes.add(expirationTimeMillis);
+            byteCount += value.length;
+        }
+
+        private boolean isFull() {
+            return keys.size() >= MAXIMAL_BATCH_VALUE_COUNT || byteCount >= MAXIMAL_BATCH_BYTE_COUNT;
+        }
+
+        private Runnable newLoadTask(final Cache<String, byte[]> cache, final AtomicLong valueCount,
+                                     final AtomicReference<RuntimeException> exception) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0, count = keys.size(); i < count; ++i) {
+                            long expirationTimeMillis = expirationTimes.get(i);
+                            if (expirationTimeMillis == Cache.StoredValue.NO_EXPIRATION) {
+                                cache.putIfAbsent(section, keys.get(i), values.get(i));
+                                valueCount.incrementAndGet();
+                                continue;
+                            }
+
+                            long lifetimeMillis = expirationTimeMillis - System.currentTimeMillis();
+                            if (lifetimeMillis > 0L) {
+                                cache.putIfAbsent(section, keys.get(i), values.get(i), lifetimeMillis);
+                                valueCount.incrementAndGet();
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        logger.error("Can't load values of section '" + section + "' from cache snapshot.", e);
+                        exception.compareAndSet(null, e);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Writes snapshots periodically. References the engine of the cache only, so an unclosed cache
+     * can be finalized.
+     */
+    static final class PeriodicWriter implements Runnable {
+        private final Cache<String, byte[]> cache;
+        private final File file;
+        private final long intervalMillis;
+        private final Thread thread;
+
+        private volatile boolean stopped;
+
+        PeriodicWriter(@Nonnull String name, @Nonnull Cache<String, byte[]> cache, @Nonnull File file,
+                       long intervalMillis) {
+            this.cache = cache;
+            this.file = file;
+            this.intervalMillis = intervalMillis;
+
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            if (intervalMillis > 0L) {
+                thread.start();
+            }
+        }
+
+        /**
+         * Stops periodic snapshots and writes the final one.
+         */
+        void stop() {
+            stopped = true;
+
+            if (intervalMillis > 0L) {
+                thread.interrupt();
+                try {
+                    thread.join();
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            writeQuietly();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+
+                if (!stopped) {
+                    writeQuietly();
+                }
+            }
+        }
+
+        private void writeQuietly() {
+            try {
+                long startTimeMillis = System.currentTimeMillis();
+                long valueCount = write(cache, file);
+                logger.info(String.format(
+                        "Written %d values to cache snapshot '%s' in %d ms.",
+                        valueCount, file, System.currentTimeMillis() - startTimeMillis
+                ));
+            } catch (IOException | RuntimeException e) {
+                logger.error("Can't write cache snapshot '" + file + "'.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,911 @@
+package com.codeforces.commons.cache;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-memory cache engine built on concurrent per-section maps.
+ * Unlike {@link InmemoryCache} it uses neither method interception nor section/cache read-write locks:
+ * readers never block and writers contend only on the lock stripe of the concurrent map holding the key.
+ * <p/>
+ * Bounded instances limit the total weight of entries in the cache and/or in each section.
+ * Entries are evicted according to the segmented LRU policy. Accesses and writes are recorded into buffers
+ * and are applied to the policy in batches by a thread which has acquired the eviction lock,
+ * so {@code get} and {@code put} never wait for the eviction lock.
+ */
+public class ConcurrentInmemoryCache<K, V> extends Cache<K, V> {
+    private static final Logger logger = Logger.getLogger(ConcurrentInmemoryCache.class);
+
+    public static final long UNLIMITED_WEIGHT = Long.MAX_VALUE;
+
+    static final int DEFAULT_CONCURRENCY_LEVEL = 4 * Runtime.getRuntime().availableProcessors();
+    private static final long EXPIRATION_TICK_MILLIS = 10L;
+
+    /**
+     * Is shared by all instances. Schedules keys rather than entries, so entries removed, replaced or evicted
+     * before their expiration are not retained by the wheel.
+     */
+    private static final TimingWheel<ExpirationInfo<?>> expirationWheel = newExpirationWheel();
+
+    private final int concurrencyLevel;
+    private final long maximumSectionWeight;
+    @Nullable
+    private final Weigher<? super V> weigher;
+    private final boolean bounded;
+    @Nullable
+    private final RemovalHandler<K, V> removalHandler;
+    private final RemovalNotifier<K, V> removalNotifier = new RemovalNotifier<>();
+
+    private final ConcurrentMap<String, CacheSection<K, V>> cacheSectionByName;
+
+    /**
+     * Policy of the whole cache or {@code null} if the total weight is unlimited.
+     * Guarded by {@code evictionLock}.
+     */
+    @Nullable
+    private final SegmentedLruPolicy<CacheEntry<K, V>> evictionPolicy;
+    private final Lock evictionLock = new ReentrantLock();
+    private final Queue<CacheEntry<K, V>> addedCacheEntries = new ConcurrentLinkedQueue<>();
+    private final Queue<CacheEntry<K, V>> removedCacheEntries = new ConcurrentLinkedQueue<>();
+    private final AccessBuffer<CacheEntry<K, V>> accessBuffer;
+
+    private final AccessBuffer.Visitor<CacheEntry<K, V>> accessVisitor = new AccessBuffer.Visitor<CacheEntry<K, V>>() {
+        @Override
+        public void visit(@Nonnull CacheEntry<K, V> cacheEntry) {
+            if (cacheEntry.removed) {
+                return;
+            }
+
+            if (evictionPolicy != null) {
+                evictionPolicy.onAccess(cacheEntry.globalNode);
+            }
+
+            SegmentedLruPolicy<CacheEntry<K, V>> sectionEvictionPolicy = cacheEntry.section.evictionPolicy;
+            if (sectionEvictionPolicy != null) {
+                sectionEvictionPolicy.onAccess(cacheEntry.sectionNode);
+            }
+        }
+    };
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Is referenced by expiration infos of the shared wheel, so scheduled expirations don't keep the cache alive.
+     */
+    private final WeakReference<ConcurrentInmemoryCache<K, V>> reference = new WeakReference<>(this);
+
+    public static <K, V> ConcurrentInmemoryCache<K, V> newInstance() {
+        return newInstance(DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param concurrencyLevel estimated number of concurrently updating threads per section
+     * @return new cache instance
+     */
+    public static <K, V> ConcurrentInmemoryCache<K, V> newInstance(int concurrencyLevel) {
+        return newBoundedInstance(concurrencyLevel, UNLIMITED_WEIGHT, UNLIMITED_WEIGHT, null);
+    }
+
+    /**
+     * Creates cache which evicts entries when the total weight of entries in the cache
+     * or in any section exceeds the specified limit.
+     *
+     * @param maximumWeight        maximal total weight of entries or {@link #UNLIMITED_WEIGHT}
+     * @param maximumSectionWeight maximal total weight of entries in each section or {@link #UNLIMITED_WEIGHT}
+     * @param weigher              calculates weights of values or {@code null} to limit count of entries
+     * @return new cache instance
+     */
+    public static <K, V> ConcurrentInmemoryCache<K, V> newBoundedInstance(
+            long maximumWeight, long maximumSectionWeight, @Nullable Weigher<? super V> weigher) {
+        return newBoundedInstance(DEFAULT_CONCURRENCY_LEVEL, maximumWeight, maximumSectionWeight, weigher);
+    }
+
+    /**
+     * Creates cache which evicts entries when the total weight of entries in the cache
+     * or in any section exceeds the specified limit.
+     *
+     * @param concurrencyLevel     estimated number of concurrently updating threads per section
+     * @param maximumWeight        maximal total weight of entries or {@link #UNLIMITED_WEIGHT}
+     * @param maximumSectionWeight maximal total weight of entries in each section or {@link #UNLIMITED_WEIGHT}
+     * @param weigher              calculates weights of values or {@code null} to limit count of entries
+     * @return new cache instance
+     */
+    public static <K, V> ConcurrentInmemoryCache<K, V> newBoundedInstance(
+            int concurrencyLevel, long maximumWeight, long maximumSectionWeight,
+            @Nullable Weigher<? super V> weigher) {
+        return newBoundedInstance(concurrencyLevel, maximumWeight, maximumSectionWeight, weigher, null);
+    }
+
+    /**
+     * @param removalHandler is notified of every value leaving the cache or {@code null}
+     * @see #newBoundedInstance(int, long, long, Weigher)
+     */
+    static <K, V> ConcurrentInmemoryCache<K, V> newBoundedInstance(
+            int concurrencyLevel, long maximumWeight, long maximumSectionWeight,
+            @Nullable Weigher<? super V> weigher, @Nullable RemovalHandler<K, V> removalHandler) {
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("Argument 'concurrencyLevel' should be positive.");
+        }
+
+        if (maximumWeight < 1L) {
+            throw new IllegalArgumentException("Argument 'maximumWeight' should be positive.");
+        }
+
+        if (maximumSectionWeight < 1L) {
+            throw new IllegalArgumentException("Argument 'maximumSectionWeight' should be positive.");
+        }
+
+        return new ConcurrentInmemoryCache<>(
+                concurrencyLevel, maximumWeight, maximumSectionWeight, weigher, removalHandler
+        );
+    }
+
+    private ConcurrentInmemoryCache(
+            int concurrencyLevel, long maximumWeight, long maximumSectionWeight,
+            @Nullable Weigher<? super V> weigher, @Nullable RemovalHandler<K, V> removalHandler) {
+        this.concurrencyLevel = concurrencyLevel;
+        this.maximumSectionWeight = maximumSectionWeight;
+        this.weigher = weigher;
+        this.bounded = maximumWeight != UNLIMITED_WEIGHT || maximumSectionWeight != UNLIMITED_WEIGHT;
+        this.removalHandler = removalHandler;
+        this.cacheSectionByName = new ConcurrentHashMap<>(16, 0.75f, concurrencyLevel);
+        this.evictionPolicy = maximumWeight == UNLIMITED_WEIGHT
+                ? null : new SegmentedLruPolicy<CacheEntry<K, V>>(maximumWeight);
+        this.accessBuffer = bounded ? new AccessBuffer<CacheEntry<K, V>>() : null;
+    }
+
+    @Override
+    public final boolean validate() {
+        return !closed.get();
+    }
+
+    @Override
+    public boolean contains(@Nonnull String section, @Nonnull K key) {
+        return get(section, key) != null;
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull K key, @Nonnull V value) {
+        CacheSection<K, V> cacheSection = ensureAndReturnCacheSection(section, key);
+        CacheEntry<K, V> cacheEntry = newCacheEntry(cacheSection, key, value, -1L);
+        afterWrite(cacheEntry, cacheSection.cacheEntryByKey.put(key, cacheEntry));
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull K key, @Nonnull V value, long lifetimeMillis) {
+        CacheSection<K, V> cacheSection = ensureAndReturnCacheSection(section, key);
+        CacheEntry<K, V> cacheEntry = newCacheEntry(cacheSection, key, value, getExpirationTimeMillis(lifetimeMillis));
+        afterWrite(cacheEntry, cacheSection.cacheEntryByKey.put(key, cacheEntry));
+        scheduleRemoval(cacheEntry);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull K key, @Nonnull V value) {
+        CacheSection<K, V> cacheSection = ensureAndReturnCacheSection(section, key);
+        internalPutIfAbsent(newCacheEntry(cacheSection, key, value, -1L));
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull K key, @Nonnull V value, long lifetimeMillis) {
+        tryPutIfAbsent(section, key, value, lifetimeMillis);
+    }
+
+    /**
+     * Same as {@link #putIfAbsent(String, Object, Object, long)}, but reports the result.
+     *
+     * @return {@code true} iff given value has been stored
+     */
+    boolean tryPutIfAbsent(@Nonnull String section, @Nonnull K key, @Nonnull V value, long lifetimeMillis) {
+        CacheSection<K, V> cacheSection = ensureAndReturnCacheSection(section, key);
+        CacheEntry<K, V> cacheEntry = newCacheEntry(cacheSection, key, value, getExpirationTimeMillis(lifetimeMillis));
+        if (internalPutIfAbsent(cacheEntry)) {
+            scheduleRemoval(cacheEntry);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Expired entries which are not yet removed by the background thread are considered absent.
+     *
+     * @return {@code true} iff given entry has been stored
+     */
+    private boolean internalPutIfAbsent(CacheEntry<K, V> cacheEntry) {
+        ConcurrentMap<K, CacheEntry<K, V>> cacheEntryByKey = cacheEntry.section.cacheEntryByKey;
+
+        while (true) {
+            CacheEntry<K, V> existingCacheEntry = cacheEntryByKey.putIfAbsent(cacheEntry.key, cacheEntry);
+            if (existingCacheEntry == null) {
+                afterWrite(cacheEntry, null);
+                return true;
+            }
+
+            if (!existingCacheEntry.isExpired(System.currentTimeMillis())) {
+                return false;
+            }
+
+            if (cacheEntryByKey.replace(cacheEntry.key, existingCacheEntry, cacheEntry)) {
+                afterWrite(cacheEntry, existingCacheEntry);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Expired entries which are not yet removed by the background thread are considered absent.
+     */
+    @Override
+    protected boolean replace(@Nonnull String section, @Nonnull K key, @Nullable V expectedValue,
+                              @Nonnull V newValue, boolean hasLifetime, long lifetimeMillis) {
+        CacheSection<K, V> cacheSection = ensureAndReturnCacheSection(section, key);
+        CacheEntry<K, V> cacheEntry = newCacheEntry(
+                cacheSection, key, newValue, hasLifetime ? getExpirationTimeMillis(lifetimeMillis) : -1L
+        );
+
+        if (expectedValue == null) {
+            if (!internalPutIfAbsent(cacheEntry)) {
+                return false;
+            }
+        } else {
+            CacheEntry<K, V> existingCacheEntry = cacheSection.cacheEntryByKey.get(key);
+            if (existingCacheEntry == null || existingCacheEntry.value != expectedValue
+                    || existingCacheEntry.isExpired(System.currentTimeMillis())
+                    || !cacheSection.cacheEntryByKey.replace(key, existingCacheEntry, cacheEntry)) {
+                return false;
+            }
+            afterWrite(cacheEntry, existingCacheEntry);
+        }
+
+        scheduleRemoval(cacheEntry);
+        return true;
+    }
+
+    @Override
+    public V get(@Nonnull String section, @Nonnull K key) {
+        CacheSection<K, V> cacheSection = getCacheSection(section, key);
+        if (cacheSection == null) {
+            return null;
+        }
+
+        CacheEntry<K, V> cacheEntry = cacheSection.cacheEntryByKey.get(key);
+        if (cacheEntry == null || cacheEntry.isExpired(System.currentTimeMillis())) {
+            return null;
+        } else {
+            afterRead(cacheEntry);
+            return cacheEntry.value;
+        }
+    }
+
+    /**
+     * Looks the section up once and applies recorded accesses to the eviction policies once per batch.
+     */
+    @Nonnull
+    @Override
+    public Map<K, V> getAll(@Nonnull String section, @Nonnull Collection<K> keys) {
+        ensureSection(section);
+        ensureKeys(keys);
+
+        Map<K, V> valueByKey = newValueByKeyMap(keys.size());
+        CacheSection<K, V> cacheSection = cacheSectionByName.get(section);
+        long currentTimeMillis = System.currentTimeMillis();
+        boolean drainNeeded = false;
+
+        for (K key : keys) {
+            ensureKey(key);
+
+            CacheEntry<K, V> cacheEntry = cacheSection == null ? null : cacheSection.cacheEntryByKey.get(key);
+            if (cacheEntry != null && !cacheEntry.isExpired(currentTimeMillis)) {
+                valueByKey.put(key, cacheEntry.value);
+                drainNeeded |= bounded && accessBuffer.record(cacheEntry);
+            }
+        }
+
+        if (drainNeeded && evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        return valueByKey;
+    }
+
+    /**
+     * Looks the section up once and applies the writes to the eviction policies once per batch,
+     * so a bounded cache may exceed its limit by the batch until the batch is stored.
+     */
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<K, V> valueByKey) {
+        internalPutAll(section, valueByKey, -1L);
+    }
+
+    /**
+     * Looks the section up once and applies the writes to the eviction policies once per batch,
+     * so a bounded cache may exceed its limit by the batch until the batch is stored.
+     */
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<K, V> valueByKey, long lifetimeMillis) {
+        internalPutAll(section, valueByKey, getExpirationTimeMillis(lifetimeMillis));
+    }
+
+    private void internalPutAll(String section, Map<K, V> valueByKey, long expirationTimeMillis) {
+        ensureSection(section);
+        ensureValueByKey(valueByKey);
+
+        for (Map.Entry<K, V> entry : valueByKey.entrySet()) {
+            ensureKey(entry.getKey());
+            if (entry.getValue() == null) {
+                throw new IllegalArgumentException("Argument 'valueByKey' contains 'null' value.");
+            }
+        }
+
+        if (valueByKey.isEmpty()) {
+            return;
+        }
+
+        CacheSection<K, V> cacheSection = ensureAndReturnCacheSection(section);
+
+        for (Map.Entry<K, V> entry : valueByKey.entrySet()) {
+            CacheEntry<K, V> cacheEntry = newCacheEntry(
+                    cacheSection, entry.getKey(), entry.getValue(), expirationTimeMillis
+            );
+            CacheEntry<K, V> replacedCacheEntry = cacheSection.cacheEntryByKey.put(entry.getKey(), cacheEntry);
+
+            if (replacedCacheEntry != null) {
+                onRemoval(replacedCacheEntry, RemovalCause.REPLACED);
+            }
+
+            if (bounded) {
+                addedCacheEntries.add(cacheEntry);
+            }
+
+            scheduleRemoval(cacheEntry);
+        }
+
+        if (bounded) {
+            drainWriteBuffers();
+        }
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<K> keys) {
+        ensureSection(section);
+        ensureKeys(keys);
+
+        CacheSection<K, V> cacheSection = cacheSectionByName.get(section);
+        int removedCount = 0;
+
+        for (K key : keys) {
+            ensureKey(key);
+
+            CacheEntry<K, V> cacheEntry = cacheSection == null ? null : cacheSection.cacheEntryByKey.remove(key);
+            if (cacheEntry != null) {
+                onRemoval(cacheEntry, RemovalCause.EXPLICIT);
+                ++removedCount;
+            }
+        }
+
+        if (bounded && removedCount > 0) {
+            drainWriteBuffers();
+        }
+
+        return removedCount;
+    }
+
+    @Override
+    public boolean remove(@Nonnull String section, @Nonnull K key) {
+        CacheSection<K, V> cacheSection = getCacheSection(section, key);
+        if (cacheSection == null) {
+            return false;
+        }
+
+        CacheEntry<K, V> cacheEntry = cacheSection.cacheEntryByKey.remove(key);
+        if (cacheEntry == null) {
+            return false;
+        } else {
+            afterRemoval(cacheEntry, RemovalCause.EXPLICIT);
+            return true;
+        }
+    }
+
+    @Override
+    protected void visitStoredValues(@Nonnull StoredValueVisitor<K, V> visitor) throws IOException {
+        for (Map.Entry<String, CacheSection<K, V>> sectionEntry : cacheSectionByName.entrySet()) {
+            for (CacheEntry<K, V> cacheEntry : sectionEntry.getValue().cacheEntryByKey.values()) {
+                if (!cacheEntry.isExpired(System.currentTimeMillis())) {
+                    visitor.visit(sectionEntry.getKey(), cacheEntry.key, new StoredValue<>(
+                            cacheEntry.value, cacheEntry.expirationTimeMillis == -1L
+                            ? StoredValue.NO_EXPIRATION
+                            : cacheEntry.expirationTimeMillis
+                    ));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void clearSection(@Nonnull String section) {
+        ensureSection(section);
+
+        CacheSection<K, V> cacheSection = cacheSectionByName.get(section);
+        if (cacheSection != null) {
+            clearCacheSection(cacheSection);
+        }
+    }
+
+    /**
+     * Sections are not removed from the cache but cleared one by one,
+     * so concurrent writers never store values into a detached section.
+     */
+    @Override
+    public void clear() {
+        for (CacheSection<K, V> cacheSection : cacheSectionByName.values()) {
+            clearCacheSection(cacheSection);
+        }
+    }
+
+    private void clearCacheSection(CacheSection<K, V> cacheSection) {
+        ConcurrentMap<K, CacheEntry<K, V>> cacheEntryByKey = cacheSection.cacheEntryByKey;
+
+        if (bounded || removalHandler != null || removalNotifier.isActive()) {
+            for (Map.Entry<K, CacheEntry<K, V>> entry : cacheEntryByKey.entrySet()) {
+                if (cacheEntryByKey.remove(entry.getKey(), entry.getValue())) {
+                    afterRemoval(entry.getValue(), RemovalCause.CLEARED);
+                }
+            }
+        } else {
+            cacheEntryByKey.clear();
+        }
+    }
+
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<K, V> listener) {
+        removalNotifier.addListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<K, V> listener) {
+        removalNotifier.removeListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return removalNotifier.getDroppedNotificationCount();
+    }
+
+    /**
+     * Stops removal of expired entries. The shared expiration wheel references caches weakly,
+     * so unclosed caches are garbage collected as well.
+     */
+    @Override
+    public void close() {
+        closed.set(true);
+    }
+
+    /**
+     * Evicts the least valuable entries of the bounded cache until their total weight reaches the given value.
+     * Is used to free resources held by values when they are needed before the weight limit is reached.
+     *
+     * @param weight weight to evict
+     * @return {@code true} iff at least one entry has been evicted
+     */
+    boolean evictWeight(long weight) {
+        if (evictionPolicy == null) {
+            return false;
+        }
+
+        evictionLock.lock();
+        try {
+            drainBuffers();
+
+            boolean evicted = false;
+            long evictedWeight = 0L;
+            SegmentedLruPolicy.Node<CacheEntry<K, V>> victim;
+
+            while (evictedWeight < weight && (victim = evictionPolicy.getVictim()) != null) {
+                evictedWeight += victim.getWeight();
+                evict(victim.getElement());
+                evicted = true;
+            }
+
+            return evicted;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Nullable
+    private CacheSection<K, V> getCacheSection(String section, K key) {
+        ensureSection(section);
+        ensureKey(key);
+        return cacheSectionByName.get(section);
+    }
+
+    private CacheSection<K, V> ensureAndReturnCacheSection(String section, K key) {
+        CacheSection<K, V> cacheSection = getCacheSection(section, key);
+        return cacheSection == null ? ensureAndReturnCacheSection(section) : cacheSection;
+    }
+
+    private CacheSection<K, V> ensureAndReturnCacheSection(String section) {
+        CacheSection<K, V> cacheSection = cacheSectionByName.get(section);
+        if (cacheSection == null) {
+            cacheSection = new CacheSection<>(section, new ConcurrentHashMap<K, CacheEntry<K, V>>(
+                    16, 0.75f, concurrencyLevel
+            ), maximumSectionWeight == UNLIMITED_WEIGHT
+                    ? null : new SegmentedLruPolicy<CacheEntry<K, V>>(maximumSectionWeight));
+            CacheSection<K, V> existingCacheSection = cacheSectionByName.putIfAbsent(section, cacheSection);
+            if (existingCacheSection != null) {
+                cacheSection = existingCacheSection;
+            }
+        }
+
+        return cacheSection;
+    }
+
+    private CacheEntry<K, V> newCacheEntry(CacheSection<K, V> cacheSection, K key, V value, long expirationTimeMillis) {
+        if (value == null) {
+            throw new IllegalArgumentException("Argument 'value' is 'null'.");
+        }
+
+        if (!bounded) {
+            return new CacheEntry<>(cacheSection, key, value, expirationTimeMillis, 0L, false);
+        }
+
+        long weight = weigher == null ? 1L : weigher.getWeight(value);
+        if (weight < 0L) {
+            throw new IllegalArgumentException("Weight of value is negative.");
+        }
+
+        return new CacheEntry<>(cacheSection, key, value, expirationTimeMillis, weight, evictionPolicy != null);
+    }
+
+    private static void ensureSection(String section) {
+        if (section == null) {
+            throw new IllegalArgumentException("Argument 'section' is 'null'.");
+        }
+    }
+
+    private static <K> void ensureKey(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Argument 'key' is 'null'.");
+        }
+    }
+
+    /**
+     * @return expiration time or {@code -1} if the entry never expires
+     */
+    private static long getExpirationTimeMillis(long lifetimeMillis) {
+        long currentTimeMillis = System.currentTimeMillis();
+        return currentTimeMillis + lifetimeMillis < currentTimeMillis ? -1L : currentTimeMillis + lifetimeMillis;
+    }
+
+    private void scheduleRemoval(CacheEntry<K, V> cacheEntry) {
+        if (cacheEntry.expirationTimeMillis != -1L) {
+            expirationWheel.schedule(new ExpirationInfo<>(
+                    reference, cacheEntry.section.name, cacheEntry.key, cacheEntry.expirationTimeMillis
+            ), cacheEntry.expirationTimeMillis);
+        }
+    }
+
+    private static TimingWheel<ExpirationInfo<?>> newExpirationWheel() {
+        TimingWheel<ExpirationInfo<?>> wheel = new TimingWheel<>(
+                ConcurrentInmemoryCache.class.getSimpleName() + "#ExpirationThread", EXPIRATION_TICK_MILLIS,
+                new TimingWheel.Handler<ExpirationInfo<?>>() {
+                    @Override
+                    public void handle(@Nonnull List<ExpirationInfo<?>> expirationInfos) {
+                        Map<ConcurrentInmemoryCache<?, ?>, List<ExpirationInfo<?>>> expirationInfosByCache
+                                = new IdentityHashMap<>();
+
+                        for (ExpirationInfo<?> expirationInfo : expirationInfos) {
+                            ConcurrentInmemoryCache<?, ?> cache = expirationInfo.cacheReference.get();
+                            if (cache == null || cache.closed.get()) {
+                                continue;
+                            }
+
+                            List<ExpirationInfo<?>> cacheExpirationInfos = expirationInfosByCache.get(cache);
+                            if (cacheExpirationInfos == null) {
+                                cacheExpirationInfos = new ArrayList<>();
+                                expirationInfosByCache.put(cache, cacheExpirationInfos);
+                            }
+                            cacheExpirationInfos.add(expirationInfo);
+                        }
+
+                        for (Map.Entry<ConcurrentInmemoryCache<?, ?>, List<ExpirationInfo<?>>> cacheEntry
+                                : expirationInfosByCache.entrySet()) {
+                            try {
+                                cacheEntry.getKey().removeExpiredCacheEntries(cacheEntry.getValue());
+                            } catch (RuntimeException e) {
+                                logger.error("Can't remove expired entries of " + cacheEntry.getKey() + '.', e);
+                            }
+                        }
+                    }
+                }
+        );
+        wheel.start();
+        return wheel;
+    }
+
+    /**
+     * An expiration info removes the current entry of its key only if the entry expires at the scheduled time.
+     */
+    @SuppressWarnings("unchecked")
+    private void removeExpiredCacheEntries(List<ExpirationInfo<?>> expirationInfos) {
+        boolean removed = false;
+
+        for (ExpirationInfo<?> expirationInfo : expirationInfos) {
+            CacheSection<K, V> cacheSection = cacheSectionByName.get(expirationInfo.section);
+            if (cacheSection == null) {
+                continue;
+            }
+
+            K key = (K) expirationInfo.key;
+            CacheEntry<K, V> cacheEntry = cacheSection.cacheEntryByKey.get(key);
+
+            if (cacheEntry != null && cacheEntry.expirationTimeMillis == expirationInfo.expirationTimeMillis
+                    && cacheSection.cacheEntryByKey.remove(key, cacheEntry)) {
+                onRemoval(cacheEntry, RemovalCause.EXPIRED);
+                removed = true;
+            }
+        }
+
+        if (removed && bounded) {
+            drainWriteBuffers();
+        }
+    }
+
+    private void afterRead(CacheEntry<K, V> cacheEntry) {
+        if (bounded && accessBuffer.record(cacheEntry) && evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void afterWrite(CacheEntry<K, V> cacheEntry, @Nullable CacheEntry<K, V> replacedCacheEntry) {
+        if (replacedCacheEntry != null) {
+            onRemoval(replacedCacheEntry, RemovalCause.REPLACED);
+        }
+
+        if (bounded) {
+            addedCacheEntries.add(cacheEntry);
+            drainWriteBuffers();
+        }
+    }
+
+    private void afterRemoval(CacheEntry<K, V> cacheEntry, RemovalCause cause) {
+        onRemoval(cacheEntry, cause);
+
+        if (bounded) {
+            drainWriteBuffers();
+        }
+    }
+
+    /**
+     * Should be called exactly once for each entry removed from its section by the current thread.
+     */
+    private void onRemoval(CacheEntry<K, V> cacheEntry, RemovalCause cause) {
+        if (bounded) {
+            cacheEntry.removed = true;
+            removedCacheEntries.add(cacheEntry);
+        }
+
+        notifyOfRemoval(cacheEntry, cause);
+    }
+
+    /**
+     * Explicitly removed or replaced entries which have expired before are reported as expired.
+     */
+    private void notifyOfRemoval(CacheEntry<K, V> cacheEntry, RemovalCause cause) {
+        if (removalHandler == null && !removalNotifier.isActive()) {
+            return;
+        }
+
+        if ((cause == RemovalCause.EXPLICIT || cause == RemovalCause.REPLACED)
+                && cacheEntry.isExpired(System.currentTimeMillis())) {
+            cause = RemovalCause.EXPIRED;
+        }
+
+        if (removalHandler != null) {
+            try {
+                removalHandler.onRemoval(cacheEntry.section.name, cacheEntry.key, cacheEntry.value, cause);
+            } catch (RuntimeException e) {
+                logger.error("Got unexpected exception while handling removal of cache entry.", e);
+            }
+        }
+
+        removalNotifier.notify(cacheEntry.section.name, cacheEntry.key, cacheEntry.value, cause);
+    }
+
+    /**
+     * Drains buffers if the eviction lock is free. The thread holding the lock re-checks write buffers
+     * after the lock is released, so a write is never left unapplied.
+     */
+    private void drainWriteBuffers() {
+        do {
+            if (!evictionLock.tryLock()) {
+                return;
+            }
+
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        } while (!removedCacheEntries.isEmpty() || !addedCacheEntries.isEmpty());
+    }
+
+    /**
+     * Applies buffered writes and accesses to the eviction policies and evicts entries if needed.
+     * Should be called under eviction lock.
+     */
+    private void drainBuffers() {
+        CacheEntry<K, V> cacheEntry;
+
+        while ((cacheEntry = removedCacheEntries.poll()) != null) {
+            unlink(cacheEntry);
+        }
+
+        while ((cacheEntry = addedCacheEntries.poll()) != null) {
+            if (!cacheEntry.removed) {
+                link(cacheEntry);
+            }
+        }
+
+        accessBuffer.drain(accessVisitor);
+
+        if (evictionPolicy != null) {
+            while (evictionPolicy.isOverflowed()) {
+                evict(evictionPolicy.getVictim().getElement());
+            }
+        }
+    }
+
+    private void link(CacheEntry<K, V> cacheEntry) {
+        if (evictionPolicy != null) {
+            evictionPolicy.add(cacheEntry.globalNode);
+        }
+
+        SegmentedLruPolicy<CacheEntry<K, V>> sectionEvictionPolicy = cacheEntry.section.evictionPolicy;
+        if (sectionEvictionPolicy != null) {
+            sectionEvictionPolicy.add(cacheEntry.sectionNode);
+
+            while (sectionEvictionPolicy.isOverflowed()) {
+                evict(sectionEvictionPolicy.getVictim().getElement());
+            }
+        }
+    }
+
+    private void unlink(CacheEntry<K, V> cacheEntry) {
+        if (evictionPolicy != null) {
+            evictionPolicy.remove(cacheEntry.globalNode);
+        }
+
+        SegmentedLruPolicy<CacheEntry<K, V>> sectionEvictionPolicy = cacheEntry.section.evictionPolicy;
+        if (sectionEvictionPolicy != null) {
+            sectionEvictionPolicy.remove(cacheEntry.sectionNode);
+        }
+    }
+
+    private void evict(CacheEntry<K, V> cacheEntry) {
+        boolean removed = cacheEntry.section.cacheEntryByKey.remove(cacheEntry.key, cacheEntry);
+        cacheEntry.removed = true;
+        unlink(cacheEntry);
+
+        if (removed) {
+            notifyOfRemoval(cacheEntry, RemovalCause.EVICTED);
+        }
+    }
+
+    /**
+     * Calculates weights of values stored in bounded caches.
+     */
+    public interface Weigher<V> {
+        /**
+         * @param value cached value
+         * @return non-negative weight of the value
+         */
+        long getWeight(@Nonnull V value);
+    }
+
+    /**
+     * Is notified of each value leaving the cache: removed, replaced, expired, evicted or cleared.
+     * Is called synchronously by the thread which has removed the value.
+     */
+    interface RemovalHandler<K, V> {
+        void onRemoval(@Nonnull String section, @Nonnull K key, @Nonnull V value, @Nonnull RemovalCause cause);
+    }
+
+    private static final class CacheSection<K, V> {
+        private final String name;
+        private final ConcurrentMap<K, CacheEntry<K, V>> cacheEntryByKey;
+
+        /**
+         * Policy of the section or {@code null} if the section weight is unlimited.
+         * Guarded by eviction lock of the cache.
+         */
+        @Nullable
+        private final SegmentedLruPolicy<CacheEntry<K, V>> evictionPolicy;
+
+        private CacheSection(
+                String name, ConcurrentMap<K, CacheEntry<K, V>> cacheEntryByKey,
+                @Nullable SegmentedLruPolicy<CacheEntry<K, V>> evictionPolicy) {
+            this.name = name;
+            this.cacheEntryByKey = cacheEntryByKey;
+            this.evictionPolicy = evictionPolicy;
+        }
+    }
+
+    /**
+     * References the section by name, so the wheel retains neither the cache nor values of the section.
+     */
+    private static final class ExpirationInfo<K> {
+        private final WeakReference<? extends ConcurrentInmemoryCache<K, ?>> cacheReference;
+        private final String section;
+        private final K key;
+        private final long expirationTimeMillis;
+
+        private ExpirationInfo(WeakReference<? extends ConcurrentInmemoryCache<K, ?>> cacheReference,
+                               String section, K key, long expirationTimeMillis) {
+            this.cacheReference = cacheReference;
+            this.section = section;
+            this.key = key;
+            this.expirationTimeMillis = expirationTimeMillis;
+        }
+    }
+
+    private static final class CacheEntry<K, V> {
+        private final CacheSection<K, V> section;
+        private final K key;
+        private final V value;
+
+        /**
+         * Expiration time in milliseconds or {@code -1} if entry is permanent.
+         */
+        private final long expirationTimeMillis;
+
+        /**
+         * Nodes of the cache and section eviction policies or {@code null} if the corresponding policy is absent.
+         */
+        @Nullable
+        private final SegmentedLruPolicy.Node<CacheEntry<K, V>> globalNode;
+        @Nullable
+        private final SegmentedLruPolicy.Node<CacheEntry<K, V>> sectionNode;
+
+        /**
+         * Is set when entry is removed from its section, so buffered policy updates of the entry can be skipped.
+         */
+        private volatile boolean removed;
+
+        private CacheEntry(@Nonnull CacheSection<K, V> section, @Nonnull K key, @Nonnull V value,
+                           long expirationTimeMillis, long weight, boolean globalPolicy) {
+            this.section = section;
+            this.key = key;
+            this.value = value;
+            this.expirationTimeMillis = expirationTimeMillis;
+            this.globalNode = globalPolicy ? new SegmentedLruPolicy.Node<>(this, weight) : null;
+            this.sectionNode = section.evictionPolicy == null ? null : new SegmentedLruPolicy.Node<>(this, weight);
+        }
+
+        public boolean isExpired(long currentTimeMillis) {
+            return expirationTimeMillis != -1L && expirationTimeMillis < currentTimeMillis;
+        }
+    }
+}
@@ -1,29 +1,69 @@
 package com.codeforces.commons.cache;
 
 import com.codeforces.commons.io.FileUtil;
+import com.codeforces.commons.io.IoUtil;
 import com.codeforces.commons.text.StringUtil;
 import com.codeforces.commons.compress.ZipUtil;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import static com.codeforces.commons.compress.ZipUtil.MAXIMAL_COMPRESSION_LEVEL;
 
 /**
+ * Stores each value in a separate file. Every file starts with an uncompressed header containing the expiration
+ * time of the value, so the background sweeper is able to remove expired values without reading whole files.
+ * The sweeper is started only by constructors configuring it; otherwise expired values are removed when read.
+ * <p/>
+ * Values are written and read by chunks, so large values may be stored using
+ * {@link #put(String, String, InputStream, long, long)} and read using {@link #openStream(String, String)}
+ * without materializing them in memory. Uncompressed values are transferred by
+ * {@link #transferTo(String, String, WritableByteChannel)} without copying.
+ * <p/>
+ * The cache may be limited by the total length of storage files. The limit is soft: it is checked by the sweeper,
+ * which evicts the least recently used values (by modification time of the files, updated on reads) until
+ * the total length drops below {@link #EVICTION_TARGET_RATIO} of the limit.
+ * <p/>
+ * Versions of values are read from the hashes stored at the ends of the files.
+ * {@link #compareAndSet(String, String, long, byte[], long)} is atomic with respect to other modifications
+ * made by this cache instance; the storage directory should not be modified by other instances or processes
+ * concurrently with it.
+ *
  * @author Maxim Shipko (sladethe@gmail.com)
  *         Date: 14.02.11
  */
 public class FileSystemByteCache extends ByteCache {
     private static final Logger logger = Logger.getLogger(FileSystemByteCache.class);
 
+    public static final long DEFAULT_SWEEP_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10L);
+    public static final int DEFAULT_MAXIMAL_SWEPT_FILE_COUNT_PER_SECOND = 1000;
+    public static final long UNLIMITED_BYTE_COUNT = Long.MAX_VALUE;
+
+    /**
+     * Share of the byte count limit to evict the cache down to, so the eviction is not triggered by each put.
+     */
+    public static final double EVICTION_TARGET_RATIO = 0.9D;
+
     private static final int GROUP_DIR_NAME_LENGTH = 3;
     private static final String TEMP_DIR_NAME = ".tmp";
 
@@ -31,21 +71,149 @@ public class FileSystemByteCache extends ByteCache {
     private static final int BYTES_PER_INTEGER = Integer.SIZE / Byte.SIZE;
     private static final int BYTES_PER_LONG = Long.SIZE / Byte.SIZE;
 
+    /**
+     * Header: magic (int), format version (byte), flags (byte), expiration time (long), value length (long).
+     * The header is followed by the value (deflated if compressed) and by the SHA-1 hash of the value.
+     * <p/>
+     * Files of the legacy format have no header and start with a hash length or a zlib stream.
+     */
+    private static final int HEADER_MAGIC = 0x31435346;
+    private static final byte FORMAT_VERSION = 2;
+    private static final byte COMPRESSED_FLAG = 1;
+    private static final int HEADER_LENGTH = BYTES_PER_INTEGER + 2 + 2 * BYTES_PER_LONG;
+    private static final int VERSION_OFFSET = BYTES_PER_INTEGER;
+    private static final int FLAGS_OFFSET = VERSION_OFFSET + 1;
+    private static final int EXPIRATION_TIME_OFFSET = FLAGS_OFFSET + 1;
+    private static final int VALUE_LENGTH_OFFSET = EXPIRATION_TIME_OFFSET + BYTES_PER_LONG;
+    private static final int HASH_LENGTH = 20;
+
+    private static final int STREAM_BUFFER_LENGTH = 64 * 1024;
+
+    private static final int BATCH_THREAD_COUNT = 2 * Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Reads and writes files of batches in parallel. Is shared by all caches.
+     */
+    private static final ExecutorService batchExecutor = newBatchExecutor();
+
+    /**
+     * Reads update modification time of a file not more often to save I/O. The precision is enough for LRU.
+     */
+    private static final long ACCESS_TIME_UPDATE_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1L);
+
+    private static final int FILE_LOCK_COUNT = 64;
+
     private final File directory;
     private final File tempDirectory;
     private final boolean useCompression;
+    private final long maximalByteCount;
+
+    /**
+     * Approximate total length of storage files. Recalculated by each sweep and adjusted by puts and removals.
+     */
+    private final AtomicLong byteCount = new AtomicLong();
+
+    /**
+     * Striped locks held while a storage file is replaced or deleted, so that compare-and-set and the sweeper
+     * don't interleave with other modifications of the same value.
+     */
+    private final Lock[] fileLocks = newFileLocks();
 
+    @Nullable
+    private final RefreshAheadPolicy refreshAheadPolicy;
+
+    @Nullable
+    private final Sweeper sweeper;
+
+    /**
+     * Creates unlimited cache without the background sweeper.
+     */
     public FileSystemByteCache(File directory, boolean useCompression) {
         this(directory, useCompression, true);
     }
 
+    /**
+     * Creates unlimited cache without the background sweeper.
+     */
     public FileSystemByteCache(File directory, boolean useCompression, boolean validateOnCreate) {
+        this(
+                directory, useCompression, validateOnCreate, DEFAULT_SWEEP_INTERVAL_MILLIS, UNLIMITED_BYTE_COUNT,
+                DEFAULT_MAXIMAL_SWEPT_FILE_COUNT_PER_SECOND, null, false
+        );
+    }
+
+    /**
+     * @param directory                      root directory of the cache
+     * @param useCompression                 {@code true} to compress stored values
+     * @param validateOnCreate               {@code true} to create cache directories immediately
+     * @param sweepIntervalMillis            delay between passes of the background sweeper
+     * @param maximalByteCount               soft limit of total length of storage files
+     *                                       or {@link #UNLIMITED_BYTE_COUNT}
+     * @param maximalSweptFileCountPerSecond throttling of the sweeper, so it doesn't starve foreground I/O
+     */
+    public FileSystemByteCache(File directory, boolean useCompression, boolean validateOnCreate,
+                               long sweepIntervalMillis, long maximalByteCount, int maximalSweptFileCountPerSecond) {
+        this(
+                directory, useCompression, validateOnCreate, sweepIntervalMillis, maximalByteCount,
+                maximalSweptFileCountPerSecond, null
+        );
+    }
+
+    /**
+     * @param directory                      root directory of the cache
+     * @param useCompression                 {@code true} to compress stored values
+     * @param validateOnCreate               {@code true} to create cache directories immediately
+     * @param sweepIntervalMillis            delay between passes of the background sweeper
+     * @param maximalByteCount               soft limit of total length of storage files
+     *                                       or {@link #UNLIMITED_BYTE_COUNT}
+     * @param maximalSweptFileCountPerSecond throttling of the sweeper, so it doesn't starve foreground I/O
+     * @param refreshAheadPolicy             refresh-ahead policy of values read by
+     *                                       {@link #get(String, Object, Loader, long)} or {@code null};
+     *                                       expired files are kept during the grace period of the policy
+     */
+    public FileSystemByteCache(File directory, boolean useCompression, boolean validateOnCreate,
+                               long sweepIntervalMillis, long maximalByteCount, int maximalSweptFileCountPerSecond,
+                               @Nullable RefreshAheadPolicy refreshAheadPolicy) {
+        this(
+                directory, useCompression, validateOnCreate, sweepIntervalMillis, maximalByteCount,
+                maximalSweptFileCountPerSecond, refreshAheadPolicy, true
+        );
+    }
+
+    private FileSystemByteCache(File directory, boolean useCompression, boolean validateOnCreate,
+                                long sweepIntervalMillis, long maximalByteCount, int maximalSweptFileCountPerSecond,
+                                @Nullable RefreshAheadPolicy refreshAheadPolicy, boolean sweeping) {
+        if (sweepIntervalMillis <= 0L) {
+            throw new IllegalArgumentException("Argument 'sweepIntervalMillis' should be positive.");
+        }
+
+        if (maximalByteCount <= 0L) {
+            throw new IllegalArgumentException("Argument 'maximalByteCount' should be positive.");
+        }
+
+        if (maximalSweptFileCountPerSecond <= 0) {
+            throw new IllegalArgumentException("Argument 'maximalSweptFileCountPerSecond' should be positive.");
+        }
+
         this.directory = directory;
         this.tempDirectory = new File(directory, TEMP_DIR_NAME);
         this.useCompression = useCompression;
+        this.maximalByteCount = maximalByteCount;
+        this.refreshAheadPolicy = refreshAheadPolicy;
         if (validateOnCreate && !validate()) {
             throw new IllegalArgumentException("Can't validate cache.");
         }
+
+        if (sweeping) {
+            this.sweeper = new Sweeper(
+                    FileSystemByteCache.class.getSimpleName() + '-' + getIndex() + "#SweeperThread",
+                    directory, useCompression, sweepIntervalMillis, maximalByteCount, maximalSweptFileCountPerSecond,
+                    refreshAheadPolicy == null ? 0L : refreshAheadPolicy.getGracePeriodMillis(), byteCount, fileLocks
+            );
+            this.sweeper.start();
+        } else {
+            this.sweeper = null;
+        }
     }
 
     @Override
@@ -85,6 +253,18 @@ public class FileSystemByteCache extends ByteCache {
         internalPut(section, key, value, lifetimeMillis, false);
     }
 
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        internalPut(section, key, inputStream, length, Long.MAX_VALUE, true);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        internalPut(section, key, inputStream, length, lifetimeMillis, true);
+    }
+
     private void internalPut(String section, String key, byte[] value, long lifetimeMillis, boolean overwrite) {
         if (value == null) {
             throw new IllegalArgumentException(String.format(
@@ -92,6 +272,20 @@ public class FileSystemByteCache extends ByteCache {
             ));
         }
 
+        try {
+            internalPut(section, key, new ByteArrayInputStream(value), value.length, lifetimeMillis, overwrite);
+        } catch (IOException e) {
+            logger.error(String.format(
+                    "Got I/O-exception while storing value (section='%s', key='%s') in directory " + tempDirectory + '.',
+                    section, key
+            ), e);
+        }
+    }
+
+    private void internalPut(String section, String key, InputStream inputStream, long length, long lifetimeMillis,
+                             boolean overwrite) throws IOException {
+        ensureValueStream(inputStream, length);
+
         if (lifetimeMillis < 1) {
             throw new IllegalArgumentException(String.format(
                     "Argument 'lifetimeMillis' must be a positive long integer (section='%s', key='%s').", section, key
@@ -105,14 +299,15 @@ public class FileSystemByteCache extends ByteCache {
         File tempFile = null;
         try {
             tempFile = File.createTempFile("cache-", null, tempDirectory);
-            writeValueToFile(tempFile, value, lifetimeMillis);
+            writeValueToFile(tempFile, inputStream, length, lifetimeMillis);
             File storageFile = getValueLocation(section, key);
-            FileUtil.renameFile(tempFile, storageFile, overwrite);
-        } catch (IOException e) {
-            logger.error(String.format(
-                    "Got I/O-exception while storing value (section='%s', key='%s') in directory " + tempDirectory + '.',
-                    section, key
-            ), e);
+            Lock fileLock = getFileLock(storageFile);
+            fileLock.lock();
+            try {
+                replaceFile(tempFile, storageFile, overwrite);
+            } finally {
+                fileLock.unlock();
+            }
         } finally {
             if (tempFile != null && tempFile.isFile()) {
                 FileUtil.deleteTotallyAsync(tempFile);
@@ -120,11 +315,19 @@ public class FileSystemByteCache extends ByteCache {
         }
     }
 
-    private void writeValueToFile(File file, byte[] value, long lifetimeMillis) throws IOException {
-        FileUtil.writeFile(file, packValue(value, lifetimeMillis));
+    /**
+     * Should be called under the lock of the storage file.
+     */
+    private void replaceFile(File tempFile, File storageFile, boolean overwrite) throws IOException {
+        long previousLength = isLimited() ? storageFile.length() : 0L;
+        FileUtil.renameFile(tempFile, storageFile, overwrite);
+        if (isLimited()) {
+            onByteCountChange(storageFile.length() - previousLength);
+        }
     }
 
-    private byte[] packValue(byte[] valueBytes, long lifetimeMillis) {
+    private void writeValueToFile(File file, InputStream inputStream, long length, long lifetimeMillis)
+            throws IOException {
         long expirationTimeMillis;
         if (lifetimeMillis == Long.MAX_VALUE) {
             expirationTimeMillis = Long.MAX_VALUE;
@@ -137,20 +340,57 @@ public class FileSystemByteCache extends ByteCache {
             }
         }
 
-        byte[] hashBytes = calculateHash(valueBytes);
-
-        ByteBuffer byteBuffer = ByteBuffer
-                .allocate(BYTES_PER_INTEGER + hashBytes.length + BYTES_PER_LONG + valueBytes.length)
-                .order(CACHE_BYTE_ORDER);
-
-        byte[] bytes = byteBuffer
-                .putInt(hashBytes.length)
-                .put(hashBytes)
+        byte[] headerBytes = ByteBuffer
+                .allocate(HEADER_LENGTH)
+                .order(CACHE_BYTE_ORDER)
+                .putInt(HEADER_MAGIC)
+                .put(FORMAT_VERSION)
+                .put(useCompression ? COMPRESSED_FLAG : 0)
                 .putLong(expirationTimeMillis)
-                .put(valueBytes)
+                .putLong(length)
                 .array();
 
-        return useCompression ? ZipUtil.compress(bytes, MAXIMAL_COMPRESSION_LEVEL) : bytes;
+        MessageDigest digest = DigestUtils.getSha1Digest();
+
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(headerBytes);
+
+            if (useCompression) {
+                Deflater deflater = new Deflater(MAXIMAL_COMPRESSION_LEVEL);
+                try {
+                    DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(
+                            outputStream, deflater, STREAM_BUFFER_LENGTH
+                    );
+                    copyValue(inputStream, deflaterOutputStream, digest, length);
+                    deflaterOutputStream.finish();
+                } finally {
+                    deflater.end();
+                }
+            } else {
+                copyValue(inputStream, outputStream, digest, length);
+            }
+
+            outputStream.write(digest.digest());
+        }
+    }
+
+    private static void copyValue(InputStream inputStream, OutputStream outputStream, MessageDigest digest,
+                                  long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.max(Math.min(length, STREAM_BUFFER_LENGTH), 1L)];
+        long remainingLength = length;
+
+        while (remainingLength > 0L) {
+            int readByteCount = inputStream.read(buffer, 0, (int) Math.min(remainingLength, buffer.length));
+            if (readByteCount == -1) {
+                throw new EOFException(String.format(
+                        "Value stream has ended after %d bytes of %d.", length - remainingLength, length
+                ));
+            }
+
+            digest.update(buffer, 0, readByteCount);
+            outputStream.write(buffer, 0, readByteCount);
+            remainingLength -= readByteCount;
+        }
     }
 
     @Nullable
@@ -164,9 +404,13 @@ public class FileSystemByteCache extends ByteCache {
         File storageFile = getValueLocation(section, key);
         if (storageFile.isFile()) {
             try {
-                return readValueFromFile(storageFile);
-            } catch (LifetimeExpiredException ignored) {
-                remove(section, key);
+                byte[] value = readValueFromFile(storageFile, true);
+                if (isLimited()) {
+                    updateAccessTime(storageFile);
+                }
+                return value;
+            } catch (LifetimeExpiredException e) {
+                removeExpired(section, key, e.expirationTimeMillis);
                 return null;
             } catch (IOException e) {
                 logger.error(String.format(
@@ -180,11 +424,443 @@ public class FileSystemByteCache extends ByteCache {
         }
     }
 
-    private byte[] readValueFromFile(File file) throws IOException, LifetimeExpiredException {
-        return extractValue(FileUtil.getBytes(file));
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        byte[] value = internalGet(section, key);
+        return value == null ? null : new VersionedValue(value, getVersion(value));
+    }
+
+    /**
+     * Writes the new value to a temporary file, then checks the version and renames the file
+     * under the lock of the storage file.
+     */
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        ensureVersionedValue(newValue, lifetimeMillis);
+        File storageFile = getValueLocation(section, key);
+
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("cache-", null, tempDirectory);
+            writeValueToFile(tempFile, new ByteArrayInputStream(newValue), newValue.length, lifetimeMillis);
+
+            Lock fileLock = getFileLock(storageFile);
+            fileLock.lock();
+            try {
+                if (readVersion(storageFile) != expectedVersion) {
+                    return false;
+                }
+
+                replaceFile(tempFile, storageFile, true);
+                return true;
+            } finally {
+                fileLock.unlock();
+            }
+        } catch (IOException e) {
+            logger.error(String.format(
+                    "Got I/O-exception while replacing value (section='%s', key='%s').", section, key
+            ), e);
+            return false;
+        } finally {
+            if (tempFile != null && tempFile.isFile()) {
+                FileUtil.deleteTotallyAsync(tempFile);
+            }
+        }
+    }
+
+    /**
+     * Reads the hash at the end of the file without reading the value. Values of the legacy format are read.
+     *
+     * @return version of the value or {@link #NO_VERSION} if there is no actual value
+     */
+    private long readVersion(File storageFile) throws IOException {
+        try (FileInputStream fileInputStream = new FileInputStream(storageFile)) {
+            FileChannel fileChannel = fileInputStream.getChannel();
+            ByteBuffer header = readHeader(fileChannel);
+
+            if (header != null) {
+                if (System.currentTimeMillis() > header.getLong(EXPIRATION_TIME_OFFSET)) {
+                    return NO_VERSION;
+                }
+
+                ByteBuffer hash = ByteBuffer.allocate(HASH_LENGTH);
+                readFully(fileChannel, hash, Math.max(fileChannel.size() - HASH_LENGTH, HEADER_LENGTH));
+                if (hash.hasRemaining()) {
+                    throw new IOException("Can't read hash of the value.");
+                }
+
+                return getVersionByHash(hash.array());
+            }
+        } catch (FileNotFoundException ignored) {
+            return NO_VERSION;
+        }
+
+        try {
+            return getVersion(readValueFromFile(storageFile, true));
+        } catch (LifetimeExpiredException ignored) {
+            return NO_VERSION;
+        }
+    }
+
+    @Nullable
+    @Override
+    protected RefreshAheadPolicy getRefreshAheadPolicy() {
+        return refreshAheadPolicy;
+    }
+
+    @Nullable
+    @Override
+    protected StoredValue<byte[]> getStoredValue(@Nonnull String section, @Nonnull String key) {
+        if (refreshAheadPolicy == null) {
+            return super.getStoredValue(section, key);
+        }
+
+        File storageFile = getValueLocation(section, key);
+        if (!storageFile.isFile()) {
+            return null;
+        }
+
+        try {
+            long expirationTimeMillis = readExpirationTimeMillis(storageFile, useCompression);
+            long currentTimeMillis = System.currentTimeMillis();
+
+            if (currentTimeMillis > expirationTimeMillis
+                    && !refreshAheadPolicy.isInGracePeriod(expirationTimeMillis, currentTimeMillis)) {
+                remove(section, key);
+                return null;
+            }
+
+            byte[] value = readValueFromFile(storageFile, false);
+            if (isLimited()) {
+                updateAccessTime(storageFile);
+            }
+            return new StoredValue<>(value, expirationTimeMillis);
+        } catch (FileNotFoundException ignored) {
+            return null;
+        } catch (IOException | LifetimeExpiredException e) {
+            logger.error(String.format(
+                    "Got exception while reading value (section='%s', key='%s').", section, key
+            ), e);
+            remove(section, key);
+            return null;
+        }
+    }
+
+    /**
+     * Reads files of the batch in parallel.
+     */
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull final String section, @Nonnull Collection<String> keys) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyNames(keys);
+
+        if (keys.size() <= 1) {
+            return super.getAll(section, keys);
+        }
+
+        List<Callable<byte[]>> tasks = new ArrayList<>(keys.size());
+        for (final String key : keys) {
+            tasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return internalGet(section, key);
+                }
+            });
+        }
+
+        List<byte[]> values = executeBatch(tasks);
+        Map<String, byte[]> valueByKey = newValueByKeyMap(keys.size());
+        Iterator<byte[]> valueIterator = values.iterator();
+
+        for (String key : keys) {
+            byte[] value = valueIterator.next();
+            if (value != null) {
+                valueByKey.put(key, value);
+            }
+        }
+
+        return valueByKey;
+    }
+
+    /**
+     * Writes files of the batch in parallel.
+     */
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        putAll(section, valueByKey, Long.MAX_VALUE);
+    }
+
+    /**
+     * Writes files of the batch in parallel.
+     */
+    @Override
+    public void putAll(@Nonnull final String section, @Nonnull Map<String, byte[]> valueByKey,
+                       final long lifetimeMillis) {
+        ensureCacheSectionName(section);
+        ensureValueByKey(valueByKey);
+        ensureCacheKeyNames(valueByKey.keySet());
+
+        List<Callable<Void>> tasks = new ArrayList<>(valueByKey.size());
+        for (final Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    internalPut(section, entry.getKey(), entry.getValue(), lifetimeMillis, true);
+                    return null;
+                }
+            });
+        }
+
+        executeBatch(tasks);
+    }
+
+    /**
+     * Executes tasks of the batch in parallel. If the current thread is interrupted, the remaining tasks
+     * are cancelled and their results are {@code null}.
+     *
+     * @return results of the tasks in the same order
+     */
+    private static <T> List<T> executeBatch(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        List<Future<T>> futures;
+
+        try {
+            futures = batchExecutor.invokeAll(tasks);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+            return Collections.nCopies(tasks.size(), null);
+        }
+
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (CancellationException | InterruptedException ignored) {
+                results.add(null);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException("Got unexpected exception while executing batch.", e.getCause());
+            }
+        }
+
+        return results;
+    }
+
+    private static ExecutorService newBatchExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                BATCH_THREAD_COUNT, BATCH_THREAD_COUNT, 1L, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicLong threadIndex = new AtomicLong();
+
+                    @Nonnull
+                    @Override
+                    public Thread newThread(@Nonnull Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        thread.setName(FileSystemByteCache.class.getSimpleName()
+                                + "#BatchThread-" + threadIndex.incrementAndGet());
+                        return thread;
+                    }
+                }
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Nullable
+    @Override
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        File storageFile = getValueLocation(section, key);
+        if (storageFile.isFile()) {
+            try {
+                InputStream inputStream = openStoredValue(storageFile, true);
+                if (isLimited()) {
+                    updateAccessTime(storageFile);
+                }
+                return inputStream;
+            } catch (LifetimeExpiredException e) {
+                removeExpired(section, key, e.expirationTimeMillis);
+                return null;
+            } catch (IOException e) {
+                logger.error(String.format(
+                        "Got I/O-exception while opening value (section='%s', key='%s').", section, key
+                ), e);
+                remove(section, key);
+                return null;
+            }
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Transfers uncompressed values of the current format using {@link FileChannel#transferTo(long, long,
+     * WritableByteChannel)} without the hash check. Other values are copied from {@link #openStream(String, String)}.
+     */
+    @Override
+    public long transferTo(@Nonnull String section, @Nonnull String key, @Nonnull WritableByteChannel channel)
+            throws IOException {
+        File storageFile = getValueLocation(section, key);
+
+        try (FileInputStream fileInputStream = new FileInputStream(storageFile)) {
+            FileChannel fileChannel = fileInputStream.getChannel();
+            ByteBuffer header = readHeader(fileChannel);
+
+            if (header != null && (header.get(FLAGS_OFFSET) & COMPRESSED_FLAG) == 0
+                    && System.currentTimeMillis() <= header.getLong(EXPIRATION_TIME_OFFSET)) {
+                long valueLength = header.getLong(VALUE_LENGTH_OFFSET);
+
+                if (fileChannel.size() == HEADER_LENGTH + valueLength + HASH_LENGTH) {
+                    long position = HEADER_LENGTH;
+                    long endPosition = HEADER_LENGTH + valueLength;
+
+                    while (position < endPosition) {
+                        position += fileChannel.transferTo(position, endPosition - position, channel);
+                    }
+
+                    if (isLimited()) {
+                        updateAccessTime(storageFile);
+                    }
+                    return valueLength;
+                }
+            }
+        } catch (FileNotFoundException ignored) {
+            return -1L;
+        }
+
+        InputStream inputStream = openStream(section, key);
+        if (inputStream == null) {
+            return -1L;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_LENGTH);
+            long transferredByteCount = 0L;
+            int readByteCount;
+
+            while ((readByteCount = inputStream.read(buffer.array())) != -1) {
+                buffer.limit(readByteCount);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+                transferredByteCount += readByteCount;
+            }
+
+            return transferredByteCount;
+        } finally {
+            IoUtil.closeQuietly(inputStream);
+        }
     }
 
-    private byte[] extractValue(byte[] storageBytes) throws IOException, LifetimeExpiredException {
+    private byte[] readValueFromFile(File file, boolean checkExpiration) throws IOException, LifetimeExpiredException {
+        try (StoredValueInputStream inputStream = openStoredValue(file, checkExpiration)) {
+            if (inputStream.length > Integer.MAX_VALUE) {
+                throw new IOException("Value of length " + inputStream.length + " can't be read into memory.");
+            }
+
+            byte[] value = new byte[(int) inputStream.length];
+            IOUtils.readFully(inputStream, value);
+
+            // Reaching the end of the stream verifies the hash.
+            if (inputStream.read() != -1) {
+                throw new IOException("Value is longer than " + inputStream.length + " bytes.");
+            }
+
+            return value;
+        }
+    }
+
+    /**
+     * Opens the stored value reading it by chunks. Values of the legacy format are read into memory.
+     */
+    private StoredValueInputStream openStoredValue(File file, boolean checkExpiration)
+            throws IOException, LifetimeExpiredException {
+        FileInputStream fileInputStream = new FileInputStream(file);
+
+        try {
+            FileChannel fileChannel = fileInputStream.getChannel();
+            ByteBuffer header = readHeader(fileChannel);
+
+            if (header == null) {
+                fileInputStream.close();
+                byte[] value = extractValue(FileUtil.getBytes(file), checkExpiration);
+                return new StoredValueInputStream(new ByteArrayInputStream(value), value.length);
+            }
+
+            if (checkExpiration) {
+                ensureNotExpired(header.getLong(EXPIRATION_TIME_OFFSET));
+            }
+
+            boolean compressed = (header.get(FLAGS_OFFSET) & COMPRESSED_FLAG) != 0;
+            long valueLength = header.getLong(VALUE_LENGTH_OFFSET);
+            long bodyLength = fileChannel.size() - HEADER_LENGTH - HASH_LENGTH;
+
+            if (valueLength < 0L || bodyLength < 0L || !compressed && bodyLength != valueLength) {
+                throw new IOException("Storage file is truncated or corrupted.");
+            }
+
+            ByteBuffer hash = ByteBuffer.allocate(HASH_LENGTH);
+            readFully(fileChannel, hash, HEADER_LENGTH + bodyLength);
+            if (hash.hasRemaining()) {
+                throw new IOException("Can't read hash of the value.");
+            }
+
+            fileChannel.position(HEADER_LENGTH);
+            InputStream inputStream = new BoundedInputStream(fileInputStream, bodyLength);
+
+            if (compressed) {
+                final Inflater inflater = new Inflater();
+                inputStream = new InflaterInputStream(inputStream, inflater, STREAM_BUFFER_LENGTH) {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            }
+
+            return new StoredValueInputStream(new HashVerifyingInputStream(
+                    inputStream, DigestUtils.getSha1Digest(), hash.array(), valueLength
+            ), valueLength);
+        } catch (IOException | LifetimeExpiredException | RuntimeException e) {
+            IoUtil.closeQuietly(fileInputStream);
+            throw e;
+        }
+    }
+
+    /**
+     * @return header of the current format or {@code null} if the file has another format
+     */
+    @Nullable
+    private static ByteBuffer readHeader(FileChannel fileChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(CACHE_BYTE_ORDER);
+        readFully(fileChannel, header, 0L);
+
+        return !header.hasRemaining() && header.getInt(0) == HEADER_MAGIC
+                && header.get(VERSION_OFFSET) == FORMAT_VERSION ? header : null;
+    }
+
+    private static void readFully(FileChannel fileChannel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining() && fileChannel.read(buffer, position + buffer.position()) != -1) {
+            // No operations.
+        }
+    }
+
+    private byte[] extractValue(byte[] storageBytes, boolean checkExpiration)
+            throws IOException, LifetimeExpiredException {
+        if (hasHeader(storageBytes)) {
+            throw new IOException("Can't extract value: unsupported format version "
+                    + storageBytes[VERSION_OFFSET] + '.');
+        }
+
         try {
             byte[] bytes = useCompression ? ZipUtil.decompress(storageBytes) : storageBytes;
             ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(CACHE_BYTE_ORDER);
@@ -193,8 +869,8 @@ public class FileSystemByteCache extends ByteCache {
             byteBuffer.get(hashBytes);
 
             long expirationTimeMillis = byteBuffer.getLong();
-            if (System.currentTimeMillis() > expirationTimeMillis) {
-                throw new LifetimeExpiredException("Value lifetime has expired.");
+            if (checkExpiration) {
+                ensureNotExpired(expirationTimeMillis);
             }
 
             byte[] valueBytes = new byte[bytes.length - BYTES_PER_INTEGER - hashBytes.length - BYTES_PER_LONG];
@@ -212,18 +888,107 @@ public class FileSystemByteCache extends ByteCache {
         }
     }
 
+    private static boolean hasHeader(byte[] storageBytes) {
+        return storageBytes.length >= HEADER_LENGTH
+                && ByteBuffer.wrap(storageBytes).order(CACHE_BYTE_ORDER).getInt(0) == HEADER_MAGIC;
+    }
+
+    private static void ensureNotExpired(long expirationTimeMillis) throws LifetimeExpiredException {
+        if (System.currentTimeMillis() > expirationTimeMillis) {
+            throw new LifetimeExpiredException("Value lifetime has expired.", expirationTimeMillis);
+        }
+    }
+
+    /**
+     * Removes the expired value unless it should be kept during the grace period of the refresh-ahead policy.
+     */
+    private void removeExpired(String section, String key, long expirationTimeMillis) {
+        if (refreshAheadPolicy == null
+                || !refreshAheadPolicy.isInGracePeriod(expirationTimeMillis, System.currentTimeMillis())) {
+            remove(section, key);
+        }
+    }
+
+    /**
+     * Reads expiration time of a value reading only the beginning of the storage file.
+     */
+    private static long readExpirationTimeMillis(File file, boolean useCompression) throws IOException {
+        byte[] headerBytes = new byte[HEADER_LENGTH];
+        int headerLength;
+
+        try (InputStream inputStream = new FileInputStream(file)) {
+            headerLength = readFully(inputStream, headerBytes);
+        }
+
+        if (headerLength == HEADER_LENGTH && hasHeader(headerBytes)) {
+            return ByteBuffer.wrap(headerBytes).order(CACHE_BYTE_ORDER).getLong(EXPIRATION_TIME_OFFSET);
+        }
+
+        // Legacy format: expiration time follows the hash and may be compressed along with the rest of the file.
+        try (DataInputStream inputStream = new DataInputStream(useCompression
+                ? new InflaterInputStream(new FileInputStream(file))
+                : new BufferedInputStream(new FileInputStream(file), HEADER_LENGTH))) {
+            int hashLength = Integer.reverseBytes(inputStream.readInt());
+            if (hashLength < 0 || inputStream.skipBytes(hashLength) != hashLength) {
+                throw new IOException("Can't read hash of the value.");
+            }
+            return Long.reverseBytes(inputStream.readLong());
+        }
+    }
+
+    private static int readFully(InputStream inputStream, byte[] bytes) throws IOException {
+        int offset = 0;
+        int readByteCount;
+
+        while (offset < bytes.length && (readByteCount = inputStream.read(bytes, offset, bytes.length - offset)) >= 0) {
+            offset += readByteCount;
+        }
+
+        return offset;
+    }
+
+    private static void updateAccessTime(File file) {
+        long currentTimeMillis = System.currentTimeMillis();
+        long lastModifiedMillis = file.lastModified();
+
+        if (lastModifiedMillis != 0L && currentTimeMillis - lastModifiedMillis >= ACCESS_TIME_UPDATE_INTERVAL_MILLIS
+                && !file.setLastModified(currentTimeMillis)) {
+            logger.debug("Can't update modification time of the file '" + file + "'.");
+        }
+    }
+
+    private boolean isLimited() {
+        return maximalByteCount != UNLIMITED_BYTE_COUNT;
+    }
+
+    private void onByteCountChange(long delta) {
+        if (byteCount.addAndGet(delta) > maximalByteCount && sweeper != null) {
+            sweeper.wakeUp();
+        }
+    }
+
     @Override
     public boolean remove(@Nonnull String section, @Nonnull String key) {
         if (contains(section, key)) {
             File storageFile = getValueLocation(section, key);
-            if (storageFile.delete()) {
-                return true;
-            } else {
-                logger.error(String.format(
-                        "Can't remove storage file (path='%s', section='%s', key='%s').",
-                        storageFile.getPath(), section, key
-                ));
-                return false;
+            Lock fileLock = getFileLock(storageFile);
+            fileLock.lock();
+            try {
+                long length = isLimited() ? storageFile.length() : 0L;
+                if (storageFile.delete()) {
+                    if (isLimited()) {
+                        byteCount.addAndGet(-length);
+                    }
+                    return true;
+                } else {
+                    logger.error(String.format(
+                            "Can't remove storage file (path='%s', section='%s', key='%s').",
+                            storageFile.getPath(), section, key
+                    ));
+                    return false;
+                }
+            } finally {
+                fileLock.unlock();
             }
         } else {
             return false;
@@ -260,12 +1025,30 @@ public class FileSystemByteCache extends ByteCache {
 
     @Override
     public void close() {
-        // No operations.
+        if (sweeper != null) {
+            sweeper.stop();
+        }
     }
 
     @Override
     public String toString() {
-        return StringUtil.toString(this, false, "directory", "useCompression");
+        return StringUtil.toString(this, false, "directory", "useCompression", "maximalByteCount");
+    }
+
+    private Lock getFileLock(File storageFile) {
+        return getFileLock(fileLocks, storageFile);
+    }
+
+    private static Lock getFileLock(Lock[] fileLocks, File storageFile) {
+        return fileLocks[storageFile.hashCode() & (FILE_LOCK_COUNT - 1)];
+    }
+
+    private static Lock[] newFileLocks() {
+        Lock[] locks = new Lock[FILE_LOCK_COUNT];
+        for (int i = 0; i < FILE_LOCK_COUNT; ++i) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
     }
 
     @SuppressWarnings("StringBufferReplaceableByString")
@@ -283,9 +1066,281 @@ public class FileSystemByteCache extends ByteCache {
         return new File(directory, section);
     }
 
+    /**
+     * Stream of the stored value with the known length.
+     */
+    private static final class StoredValueInputStream extends FilterInputStream {
+        private final long length;
+
+        private StoredValueInputStream(InputStream inputStream, long length) {
+            super(inputStream);
+            this.length = length;
+        }
+    }
+
     private static final class LifetimeExpiredException extends Exception {
-        private LifetimeExpiredException(String message) {
+        private final long expirationTimeMillis;
+
+        private LifetimeExpiredException(String message, long expirationTimeMillis) {
             super(message);
+            this.expirationTimeMillis = expirationTimeMillis;
+        }
+    }
+
+    /**
+     * Background thread removing expired values and evicting the least recently used values if the cache
+     * exceeds its limit. Doesn't reference the cache itself, so an unclosed cache can be finalized.
+     */
+    private static final class Sweeper implements Runnable {
+        private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1L);
+        private static final long MINIMAL_THROTTLING_SLEEP_MILLIS = 10L;
+        private static final int MAXIMAL_EVICTION_CANDIDATE_COUNT = 10000;
+
+        private static final Comparator<EvictionCandidate> LEAST_RECENTLY_USED_FIRST
+                = new Comparator<EvictionCandidate>() {
+            @Override
+            public int compare(EvictionCandidate candidateA, EvictionCandidate candidateB) {
+                return Long.compare(candidateA.lastModifiedMillis, candidateB.lastModifiedMillis);
+            }
+        };
+
+        private final File directory;
+        private final boolean useCompression;
+        private final long sweepIntervalMillis;
+        private final long maximalByteCount;
+        private final int maximalSweptFileCountPerSecond;
+        private final long gracePeriodMillis;
+        private final AtomicLong byteCount;
+        private final Lock[] fileLocks;
+        private final Thread thread;
+
+        private final Object monitor = new Object();
+        private boolean wakeUpRequested;
+        private volatile boolean stopped;
+
+        private long passStartNanos;
+        private long passFileCount;
+
+        private Sweeper(String name, File directory, boolean useCompression, long sweepIntervalMillis,
+                        long maximalByteCount, int maximalSweptFileCountPerSecond, long gracePeriodMillis,
+                        AtomicLong byteCount, Lock[] fileLocks) {
+            this.directory = directory;
+            this.useCompression = useCompression;
+            this.sweepIntervalMillis = sweepIntervalMillis;
+            this.maximalByteCount = maximalByteCount;
+            this.maximalSweptFileCountPerSecond = maximalSweptFileCountPerSecond;
+            this.gracePeriodMillis = gracePeriodMillis;
+            this.byteCount = byteCount;
+            this.fileLocks = fileLocks;
+
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void stop() {
+            stopped = true;
+            thread.interrupt();
+        }
+
+        private void wakeUp() {
+            synchronized (monitor) {
+                if (!wakeUpRequested) {
+                    wakeUpRequested = true;
+                    monitor.notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            // The limited cache needs to know its actual size as soon as possible.
+            long delayMillis = maximalByteCount == UNLIMITED_BYTE_COUNT ? sweepIntervalMillis : 0L;
+
+            while (awaitPass(delayMillis)) {
+                try {
+                    sweep();
+                } catch (InterruptedException ignored) {
+                    return;
+                } catch (RuntimeException e) {
+                    logger.error("Got unexpected exception while sweeping cache in directory '" + directory + "'.", e);
+                }
+
+                delayMillis = sweepIntervalMillis;
+            }
+        }
+
+        /**
+         * @return {@code false} iff the sweeper has been stopped
+         */
+        private boolean awaitPass(long delayMillis) {
+            synchronized (monitor) {
+                long currentTimeMillis = System.currentTimeMillis();
+                long passTimeMillis = delayMillis >= Long.MAX_VALUE - currentTimeMillis
+                        ? Long.MAX_VALUE
+                        : currentTimeMillis + delayMillis;
+
+                try {
+                    while (!stopped && !wakeUpRequested) {
+                        long remainingMillis = passTimeMillis - System.currentTimeMillis();
+                        if (remainingMillis <= 0L) {
+                            break;
+                        }
+                        monitor.wait(remainingMillis);
+                    }
+                } catch (InterruptedException ignored) {
+                    return false;
+                }
+
+                wakeUpRequested = false;
+                return !stopped;
+            }
+        }
+
+        private void sweep() throws InterruptedException {
+            passStartNanos = System.nanoTime();
+            passFileCount = 0L;
+
+            long totalLength = 0L;
+            PriorityQueue<EvictionCandidate> candidates = maximalByteCount == UNLIMITED_BYTE_COUNT
+                    ? null
+                    : new PriorityQueue<>(16, Collections.reverseOrder(LEAST_RECENTLY_USED_FIRST));
+
+            for (File sectionDirectory : listFiles(directory)) {
+                if (TEMP_DIR_NAME.equalsIgnoreCase(sectionDirectory.getName())) {
+                    continue;
+                }
+
+                for (File groupDirectory : listFiles(sectionDirectory)) {
+                    for (File file : listFiles(groupDirectory)) {
+                        throttle();
+
+                        long length = file.length();
+                        long lastModifiedMillis = file.lastModified();
+
+                        if (isExpired(file) && deleteIfExpired(file)) {
+                            continue;
+                        }
+
+                        totalLength += length;
+
+                        if (candidates != null && lastModifiedMillis != 0L) {
+                            candidates.add(new EvictionCandidate(file, lastModifiedMillis, length));
+                            if (candidates.size() > MAXIMAL_EVICTION_CANDIDATE_COUNT) {
+                                candidates.poll();
+                            }
+                        }
+                    }
+                }
+            }
+
+            byteCount.set(totalLength);
+
+            if (candidates != null && totalLength > maximalByteCount) {
+                evict(candidates);
+            }
+        }
+
+        /**
+         * Re-checks expiration under the file lock, since the value may have been overwritten concurrently.
+         *
+         * @return {@code true} iff the file is still expired
+         */
+        private boolean deleteIfExpired(File file) {
+            Lock fileLock = getFileLock(fileLocks, file);
+            fileLock.lock();
+            try {
+                if (!isExpired(file)) {
+                    return false;
+                }
+
+                if (!file.delete() && file.exists()) {
+                    logger.warn("Can't remove expired storage file '" + file + "'.");
+                }
+                return true;
+            } finally {
+                fileLock.unlock();
+            }
+        }
+
+        private boolean isExpired(File file) {
+            try {
+                long expirationTimeMillis = readExpirationTimeMillis(file, useCompression);
+                long currentTimeMillis = System.currentTimeMillis();
+                return currentTimeMillis > expirationTimeMillis
+                        && currentTimeMillis - expirationTimeMillis > gracePeriodMillis;
+            } catch (FileNotFoundException ignored) {
+                return false;
+            } catch (IOException e) {
+                // Broken files are removed by reads.
+                logger.debug("Can't read expiration time from storage file '" + file + "'.", e);
+                return false;
+            }
+        }
+
+        private void evict(PriorityQueue<EvictionCandidate> candidates) throws InterruptedException {
+            List<EvictionCandidate> sortedCandidates = new ArrayList<>(candidates);
+            Collections.sort(sortedCandidates, LEAST_RECENTLY_USED_FIRST);
+
+            long targetByteCount = (long) (maximalByteCount * EVICTION_TARGET_RATIO);
+
+            for (EvictionCandidate candidate : sortedCandidates) {
+                if (byteCount.get() <= targetByteCount) {
+                    break;
+                }
+
+                throttle();
+
+                Lock fileLock = getFileLock(fileLocks, candidate.file);
+                fileLock.lock();
+                try {
+                    // The value has been read or overwritten since the candidate was found.
+                    if (candidate.file.lastModified() != candidate.lastModifiedMillis) {
+                        continue;
+                    }
+
+                    if (candidate.file.delete()) {
+                        byteCount.addAndGet(-candidate.length);
+                    }
+                } finally {
+                    fileLock.unlock();
+                }
+            }
+        }
+
+        private void throttle() throws InterruptedException {
+            if (stopped) {
+                throw new InterruptedException();
+            }
+
+            ++passFileCount;
+            long sleepNanos = passFileCount * NANOS_PER_SECOND / maximalSweptFileCountPerSecond
+                    - (System.nanoTime() - passStartNanos);
+            long sleepMillis = TimeUnit.NANOSECONDS.toMillis(sleepNanos);
+
+            if (sleepMillis >= MINIMAL_THROTTLING_SLEEP_MILLIS) {
+                Thread.sleep(sleepMillis);
+            }
+        }
+
+        private static File[] listFiles(File directory) {
+            File[] files = directory.listFiles();
+            return files == null ? new File[0] : files;
+        }
+    }
+
+    private static final class EvictionCandidate {
+        private final File file;
+        private final long lastModifiedMillis;
+        private final long length;
+
+        private EvictionCandidate(File file, long lastModifiedMillis, long length) {
+            this.file = file;
+            this.lastModifiedMillis = lastModifiedMillis;
+            this.length = length;
         }
     }
 }
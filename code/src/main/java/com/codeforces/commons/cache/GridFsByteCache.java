@@ -6,18 +6,34 @@ import com.mongodb.*;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSInputFile;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.apache.log4j.Logger;
+import org.bson.types.ObjectId;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.UnknownHostException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
 
 public class GridFsByteCache extends ByteCache {
     private static final Logger logger = Logger.getLogger(GridFsByteCache.class);
     private static final String DBNAME = "gridfs_0";
 
+    /**
+     * Separates suffixes of temporary filenames. Is not allowed in section and key names,
+     * so temporary filenames never collide with filenames of values.
+     */
+    private static final char TEMPORARY_FILENAME_SEPARATOR = ':';
+
     private final String host;
     private final MongoClient mongoClient;
     private GridFS fs;
@@ -79,10 +95,14 @@ public class GridFsByteCache extends ByteCache {
     }
 
     private static DBObject newMetaData(@Nonnull byte[] value, long lifetimeMillis) {
+        return newMetaData(DigestUtils.sha1Hex(value), value.length, lifetimeMillis);
+    }
+
+    private static DBObject newMetaData(@Nonnull String sha1Hex, long size, long lifetimeMillis) {
         DBObject result = new BasicDBObject();
-        result.put("sha1", DigestUtils.sha1Hex(value));
+        result.put("sha1", sha1Hex);
         result.put("deadlineTime", lifetimeMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + lifetimeMillis);
-        result.put("size", value.length);
+        result.put("size", size);
         return result;
     }
 
@@ -95,6 +115,40 @@ public class GridFsByteCache extends ByteCache {
         file.save();
     }
 
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        put(section, key, inputStream, length, defaultLifetime);
+    }
+
+    /**
+     * Saves chunks while reading the stream and calculating its hash, then saves the file with metadata.
+     */
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        ensureValueStream(inputStream, length);
+
+        String filename = getFilename(section, key);
+        fs.remove(filename);
+
+        MessageDigest digest = DigestUtils.getSha1Digest();
+        GridFSInputFile file = fs.createFile(
+                new DigestInputStream(new BoundedInputStream(inputStream, length), digest), filename
+        );
+        file.saveChunks();
+
+        file.setMetaData(newMetaData(Hex.encodeHexString(digest.digest()), length, lifetimeMillis));
+        file.save();
+
+        if (file.getLength() != length) {
+            fs.remove(filename);
+            throw new EOFException(String.format(
+                    "Value stream has ended after %d bytes of %d.", file.getLength(), length
+            ));
+        }
+    }
+
     @Override
     public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
         if (!contains(section, key)) {
@@ -133,6 +187,216 @@ public class GridFsByteCache extends ByteCache {
         return null;
     }
 
+    /**
+     * Reads chunks of the file on demand and verifies the hash from metadata at the end of the stream.
+     */
+    @Nullable
+    @Override
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        GridFSDBFile file = fs.findOne(getFilename(section, key));
+
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            long deadlineTime = (Long) file.getMetaData().get("deadlineTime");
+
+            if (System.currentTimeMillis() <= deadlineTime) {
+                return new HashVerifyingInputStream(
+                        file.getInputStream(), DigestUtils.getSha1Digest(),
+                        Hex.decodeHex(((String) file.getMetaData().get("sha1")).toCharArray()), file.getLength()
+                );
+            }
+        } catch (DecoderException | RuntimeException e) {
+            logger.error("Can't execute openStream().", e);
+        }
+
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        GridFSDBFile file = fs.findOne(getFilename(section, key));
+
+        if (file == null) {
+            return null;
+        }
+
+        try {
+            long deadlineTime = (Long) file.getMetaData().get("deadlineTime");
+
+            if (System.currentTimeMillis() <= deadlineTime) {
+                ByteArrayOutputStream dataOutputStream = new ByteArrayOutputStream(NumberUtil.toInt(file.getLength()));
+                file.writeTo(dataOutputStream);
+                return new VersionedValue(dataOutputStream.toByteArray(), getVersion(file));
+            }
+        } catch (Exception e) {
+            logger.error("Can't execute getWithVersion().", e);
+        }
+
+        return null;
+    }
+
+    /**
+     * Saves the new value under a temporary filename, then claims the file of the expected version
+     * by a conditional update of its document and gives the new file the filename of the value.
+     * Files are never modified, so the identifier of the claimed file guarantees its version.
+     * <p/>
+     * Storing a value for an absent key ({@code expectedVersion} is {@link #NO_VERSION}) is not atomic,
+     * since filenames are not indexed uniquely.
+     */
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        ensureVersionedValue(newValue, lifetimeMillis);
+
+        String filename = getFilename(section, key);
+        DBCollection filesCollection = fs.getDB().getCollection(fs.getBucketName() + ".files");
+
+        GridFSDBFile currentFile = null;
+        if (expectedVersion == NO_VERSION) {
+            if (contains(section, key)) {
+                return false;
+            }
+        } else {
+            currentFile = fs.findOne(filename);
+            if (currentFile == null || getVersion(currentFile) != expectedVersion
+                    || System.currentTimeMillis() > (Long) currentFile.getMetaData().get("deadlineTime")) {
+                return false;
+            }
+        }
+
+        GridFSInputFile file = fs.createFile(newValue);
+        file.setFilename(filename + TEMPORARY_FILENAME_SEPARATOR + file.getId());
+        file.setMetaData(newMetaData(newValue, lifetimeMillis));
+        file.save();
+
+        if (currentFile != null) {
+            WriteResult claimResult = filesCollection.update(
+                    new BasicDBObject("_id", currentFile.getId()).append("filename", filename),
+                    new BasicDBObject("$set", new BasicDBObject(
+                            "filename", filename + TEMPORARY_FILENAME_SEPARATOR + "replaced"
+                    ))
+            );
+
+            if (claimResult.getN() != 1) {
+                fs.remove((ObjectId) file.getId());
+                return false;
+            }
+        }
+
+        filesCollection.update(
+                new BasicDBObject("_id", file.getId()),
+                new BasicDBObject("$set", new BasicDBObject("filename", filename))
+        );
+
+        if (currentFile != null) {
+            fs.remove((ObjectId) currentFile.getId());
+        }
+
+        return true;
+    }
+
+    private static long getVersion(@Nonnull GridFSDBFile file) {
+        try {
+            return getVersionByHash(Hex.decodeHex(((String) file.getMetaData().get("sha1")).toCharArray()));
+        } catch (DecoderException e) {
+            throw new IllegalStateException("Illegal hash of the file '" + file.getFilename() + "'.", e);
+        }
+    }
+
+    /**
+     * Finds files of the batch by a single query.
+     */
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        Map<String, byte[]> valueByFilename = new HashMap<>();
+        long currentTimeMillis = System.currentTimeMillis();
+
+        for (GridFSDBFile file : fs.find(newFilenamesQuery(section, keys))) {
+            try {
+                long deadlineTime = (Long) file.getMetaData().get("deadlineTime");
+
+                if (currentTimeMillis <= deadlineTime) {
+                    ByteArrayOutputStream dataOutputStream = new ByteArrayOutputStream(NumberUtil.toInt(file.getLength()));
+                    file.writeTo(dataOutputStream);
+                    valueByFilename.put(file.getFilename(), dataOutputStream.toByteArray());
+                }
+            } catch (Exception e) {
+                logger.error("Can't get getAll().", e);
+            }
+        }
+
+        Map<String, byte[]> valueByKey = newValueByKeyMap(keys.size());
+        for (String key : keys) {
+            byte[] value = valueByFilename.get(getFilename(section, key));
+            if (value != null) {
+                valueByKey.put(key, value);
+            }
+        }
+        return valueByKey;
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        putAll(section, valueByKey, defaultLifetime);
+    }
+
+    /**
+     * Removes old files of the batch by a single query.
+     */
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        ensureValueByKey(valueByKey);
+
+        if (valueByKey.isEmpty()) {
+            return;
+        }
+
+        fs.remove(newFilenamesQuery(section, valueByKey.keySet()));
+
+        for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            GridFSInputFile file = fs.createFile(entry.getValue());
+            file.setFilename(getFilename(section, entry.getKey()));
+            file.setMetaData(newMetaData(entry.getValue(), lifetimeMillis));
+            file.save();
+        }
+    }
+
+    /**
+     * Removes files of the batch by a single query.
+     */
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        DBObject query = newFilenamesQuery(section, keys);
+        Set<String> removedFilenames = new HashSet<>();
+        for (GridFSDBFile file : fs.find(query)) {
+            removedFilenames.add(file.getFilename());
+        }
+
+        fs.remove(query);
+        return removedFilenames.size();
+    }
+
+    private static DBObject newFilenamesQuery(@Nonnull String section, @Nonnull Collection<String> keys) {
+        List<String> filenames = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            filenames.add(getFilename(section, key));
+        }
+        return new BasicDBObject("filename", new BasicDBObject("$in", filenames));
+    }
+
     @Override
     public boolean remove(@Nonnull String section, @Nonnull String key) {
         if (contains(section, key)) {
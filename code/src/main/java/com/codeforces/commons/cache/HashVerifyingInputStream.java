@@ -0,0 +1,124 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Calculates hash of the read bytes and compares it with the expected one when the end of the stream is reached.
+ * Throws {@link IOException} instead of reporting the end of a broken stream.
+ */
+final class HashVerifyingInputStream extends FilterInputStream {
+    private static final int SKIP_BUFFER_LENGTH = 8192;
+
+    private final MessageDigest digest;
+    private final byte[] expectedHash;
+    private final long expectedLength;
+
+    private long readByteCount;
+    private boolean verified;
+
+    /**
+     * @param inputStream    stream to read
+     * @param digest         algorithm of the hash
+     * @param expectedHash   expected hash of the stream content
+     * @param expectedLength expected length of the stream content or {@code -1} if it is unknown
+     */
+    HashVerifyingInputStream(@Nonnull InputStream inputStream, @Nonnull MessageDigest digest,
+                             @Nonnull byte[] expectedHash, long expectedLength) {
+        super(inputStream);
+        this.digest = digest;
+        this.expectedHash = expectedHash.clone();
+        this.expectedLength = expectedLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            verify();
+        } else {
+            digest.update((byte) b);
+            onRead(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] bytes, int offset, int length) throws IOException {
+        int readByteCount = in.read(bytes, offset, length);
+        if (readByteCount == -1) {
+            verify();
+        } else {
+            digest.update(bytes, offset, readByteCount);
+            onRead(readByteCount);
+        }
+        return readByteCount;
+    }
+
+    /**
+     * Reads skipped bytes, since they should be hashed too.
+     */
+    @Override
+    public long skip(long count) throws IOException {
+        if (count <= 0L) {
+            return 0L;
+        }
+
+        byte[] buffer = new byte[(int) Math.min(count, SKIP_BUFFER_LENGTH)];
+        long skippedByteCount = 0L;
+
+        while (skippedByteCount < count) {
+            int readByteCount = read(buffer, 0, (int) Math.min(count - skippedByteCount, buffer.length));
+            if (readByteCount == -1) {
+                break;
+            }
+            skippedByteCount += readByteCount;
+        }
+
+        return skippedByteCount;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readLimit) {
+        // No operations.
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("Mark/reset is not supported.");
+    }
+
+    private void onRead(int count) throws IOException {
+        readByteCount += count;
+        if (expectedLength != -1L && readByteCount > expectedLength) {
+            throw new IOException("Stream is longer than expected " + expectedLength + " bytes.");
+        }
+    }
+
+    private void verify() throws IOException {
+        if (verified) {
+            return;
+        }
+
+        if (expectedLength != -1L && readByteCount != expectedLength) {
+            throw new IOException(String.format(
+                    "Stream is shorter than expected: %d bytes of %d.", readByteCount, expectedLength
+            ));
+        }
+
+        if (!Arrays.equals(expectedHash, digest.digest())) {
+            throw new IOException("Hash validation failed.");
+        }
+
+        verified = true;
+    }
+}
@@ -0,0 +1,179 @@
+package com.codeforces.commons.cache;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Registry of loads in progress of a single cache instance. Guarantees that at most one load per
+ * section and key is in progress: concurrent callers wait for it and get its result or its exception.
+ * Completed loads are removed from the registry, so failures are not remembered.
+ */
+final class InflightLoads<K, V> {
+    private static final Logger logger = Logger.getLogger(InflightLoads.class);
+
+    private final ConcurrentMap<LoadKey<K>, Load<V>> loadByKey = new ConcurrentHashMap<>();
+
+    @Nullable
+    V load(@Nonnull Cache<K, V> cache, @Nonnull String section, @Nonnull K key, @Nonnull Cache.Loader<V> loader,
+           boolean hasLifetime, long lifetimeMillis) {
+        LoadKey<K> loadKey = new LoadKey<>(section, key);
+        Load<V> load = new Load<>();
+
+        Load<V> existingLoad;
+        while ((existingLoad = loadByKey.putIfAbsent(loadKey, load)) != null) {
+            if (existingLoad.await()) {
+                return existingLoad.getValue();
+            }
+        }
+
+        try {
+            // The value could have been stored by a load, which completed after the caller's miss.
+            V value = cache.get(section, key);
+            if (value == null) {
+                value = loader.load();
+                if (value != null) {
+                    value = cache.putLoadedValue(section, key, value, hasLifetime, lifetimeMillis);
+                }
+            }
+
+            load.complete(value, null);
+            return value;
+        } catch (RuntimeException | Error e) {
+            load.complete(null, e);
+            throw e;
+        } finally {
+            loadByKey.remove(loadKey, load);
+        }
+    }
+
+    /**
+     * Starts reload of the value on the executor of the policy and stores the result for {@code lifetimeMillis}.
+     * Does nothing if a load of the value is already in progress or if the executor is busy.
+     */
+    void refresh(@Nonnull final Cache<K, V> cache, @Nonnull RefreshAheadPolicy policy, @Nonnull final String section,
+                 @Nonnull final K key, @Nonnull final Cache.Loader<V> loader, final long lifetimeMillis) {
+        final LoadKey<K> loadKey = new LoadKey<>(section, key);
+        final Load<V> load = new Load<>();
+
+        if (loadByKey.putIfAbsent(loadKey, load) != null) {
+            return;
+        }
+
+        boolean accepted = policy.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    V value = loader.load();
+                    if (value == null) {
+                        cache.remove(section, key);
+                    } else {
+                        cache.put(section, key, value, lifetimeMillis);
+                    }
+                    load.complete(value, null);
+                } catch (RuntimeException e) {
+                    logger.warn(String.format("Can't reload value (section='%s', key='%s').", section, key), e);
+                    load.complete(null, e);
+                } catch (Error e) {
+                    load.complete(null, e);
+                    throw e;
+                } finally {
+                    loadByKey.remove(loadKey, load);
+                }
+            }
+        });
+
+        if (!accepted) {
+            loadByKey.remove(loadKey, load);
+            load.abandon();
+        }
+    }
+
+    private static final class Load<V> {
+        private final CountDownLatch completionLatch = new CountDownLatch(1);
+
+        private boolean completed;
+        private V value;
+        private Throwable exception;
+
+        private void complete(@Nullable V value, @Nullable Throwable exception) {
+            this.completed = true;
+            this.value = value;
+            this.exception = exception;
+            completionLatch.countDown();
+        }
+
+        /**
+         * Wakes up waiting callers to start their own load.
+         */
+        private void abandon() {
+            completionLatch.countDown();
+        }
+
+        /**
+         * @return {@code false} iff the load has been abandoned
+         */
+        private boolean await() {
+            boolean interrupted = false;
+
+            while (true) {
+                try {
+                    completionLatch.await();
+                    break;
+                } catch (InterruptedException ignored) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            return completed;
+        }
+
+        @Nullable
+        private V getValue() {
+            if (exception instanceof RuntimeException) {
+                throw (RuntimeException) exception;
+            } else if (exception instanceof Error) {
+                throw (Error) exception;
+            } else {
+                return value;
+            }
+        }
+    }
+
+    private static final class LoadKey<K> {
+        private final String section;
+        private final K key;
+
+        private LoadKey(String section, K key) {
+            this.section = section;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            LoadKey<?> loadKey = (LoadKey<?>) o;
+            return section.equals(loadKey.section) && key.equals(loadKey.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * section.hashCode() + key.hashCode();
+        }
+    }
+}
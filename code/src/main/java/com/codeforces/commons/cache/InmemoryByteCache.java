@@ -1,13 +1,237 @@
 package com.codeforces.commons.cache;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
 
 /**
  * @author Maxim Shipko (sladethe@gmail.com)
  *         Date: 29.03.12
  */
 public class InmemoryByteCache extends ByteCache {
-    private final Cache<String, byte[]> internalCache = InmemoryCache.newInstance();
+    private static final ConcurrentInmemoryCache.Weigher<byte[]> BYTE_LENGTH_WEIGHER
+            = new ConcurrentInmemoryCache.Weigher<byte[]>() {
+        @Override
+        public long getWeight(@Nonnull byte[] value) {
+            return value.length;
+        }
+    };
+
+    private final Cache<String, byte[]> internalCache;
+
+    @Nullable
+    private CacheSnapshots.PeriodicWriter snapshotWriter;
+
+    /**
+     * Creates byte cache backed by {@link ConcurrentInmemoryCache}.
+     */
+    public InmemoryByteCache() {
+        this(ConcurrentInmemoryCache.<String, byte[]>newInstance());
+    }
+
+    /**
+     * @param internalCache in-memory cache engine to store values in
+     */
+    public InmemoryByteCache(@Nonnull Cache<String, byte[]> internalCache) {
+        if (internalCache == null) {
+            throw new IllegalArgumentException("Argument 'internalCache' is 'null'.");
+        }
+
+        this.internalCache = internalCache;
+    }
+
+    /**
+     * Creates byte cache which evicts values when the count of values in the cache or in any section
+     * exceeds the specified limit.
+     *
+     * @param maximumEntryCount        maximal count of values or {@link ConcurrentInmemoryCache#UNLIMITED_WEIGHT}
+     * @param maximumSectionEntryCount maximal count of values in each section
+     *                                 or {@link ConcurrentInmemoryCache#UNLIMITED_WEIGHT}
+     * @return new cache instance
+     */
+    public static InmemoryByteCache newCountBoundedInstance(long maximumEntryCount, long maximumSectionEntryCount) {
+        return new InmemoryByteCache(ConcurrentInmemoryCache.<String, byte[]>newBoundedInstance(
+                maximumEntryCount, maximumSectionEntryCount, null
+        ));
+    }
+
+    /**
+     * Creates byte cache which evicts values when the total length of values in the cache or in any section
+     * exceeds the specified limit.
+     *
+     * @param maximumByteCount        maximal total length of values or {@link ConcurrentInmemoryCache#UNLIMITED_WEIGHT}
+     * @param maximumSectionByteCount maximal total length of values in each section
+     *                                or {@link ConcurrentInmemoryCache#UNLIMITED_WEIGHT}
+     * @return new cache instance
+     */
+    public static InmemoryByteCache newSizeBoundedInstance(long maximumByteCount, long maximumSectionByteCount) {
+        return new InmemoryByteCache(ConcurrentInmemoryCache.<String, byte[]>newBoundedInstance(
+                maximumByteCount, maximumSectionByteCount, BYTE_LENGTH_WEIGHER
+        ));
+    }
+
+    /**
+     * Creates byte cache backed by {@link InmemoryCache} which limits each section by its own budget,
+     * so a section exceeding the budget evicts its own values only. Values are weighed by their lengths.
+     *
+     * @param defaultSectionBudget budget of sections absent in {@code budgetBySection}
+     * @param budgetBySection      budgets of particular sections
+     * @return new cache instance
+     * @see #getSectionUsages()
+     */
+    public static InmemoryByteCache newSectionBoundedInstance(
+            @Nonnull SectionBudget defaultSectionBudget, @Nonnull Map<String, SectionBudget> budgetBySection) {
+        return new InmemoryByteCache(InmemoryCache.<String, byte[]>newSectionBoundedInstance(
+                defaultSectionBudget, budgetBySection, BYTE_LENGTH_WEIGHER
+        ));
+    }
+
+    /**
+     * Creates byte cache backed by {@link InmemoryCache} which expires values of the specified sections
+     * after they have not been read for their lifetime.
+     *
+     * @param idleLifetimeMillisBySection idle lifetimes of values without explicit lifetime by section names
+     * @return new cache instance
+     * @see InmemoryCache#newAccessExpiringInstance(Map)
+     */
+    public static InmemoryByteCache newAccessExpiringInstance(@Nonnull Map<String, Long> idleLifetimeMillisBySection) {
+        return new InmemoryByteCache(InmemoryCache.<String, byte[]>newAccessExpiringInstance(
+                idleLifetimeMillisBySection
+        ));
+    }
+
+    /**
+     * Creates byte cache which stores values in direct memory outside of the Java heap, so large caches
+     * don't increase garbage collection pauses. Direct memory is allocated in slabs divided into chunks
+     * of the fixed size classes; only a compact index of values stays on the heap.
+     * Values are evicted when the total length of occupied chunks in the cache or in any section
+     * exceeds the specified limit.
+     *
+     * @param maximumByteCount        maximal amount of direct memory to reserve
+     * @param maximumSectionByteCount maximal total length of chunks occupied by each section
+     *                                or {@link ConcurrentInmemoryCache#UNLIMITED_WEIGHT}
+     * @return new cache instance
+     * @see #getOffHeapStatistics()
+     */
+    public static InmemoryByteCache newOffHeapInstance(long maximumByteCount, long maximumSectionByteCount) {
+        if (maximumByteCount < OffHeapSlabAllocator.DEFAULT_SLAB_LENGTH) {
+            throw new IllegalArgumentException("Argument 'maximumByteCount' should not be less than "
+                    + OffHeapSlabAllocator.DEFAULT_SLAB_LENGTH + '.');
+        }
+
+        if (maximumSectionByteCount < 1L) {
+            throw new IllegalArgumentException("Argument 'maximumSectionByteCount' should be positive.");
+        }
+
+        return new InmemoryByteCache(new OffHeapInmemoryCache(
+                ConcurrentInmemoryCache.DEFAULT_CONCURRENCY_LEVEL, maximumByteCount, maximumSectionByteCount,
+                OffHeapSlabAllocator.DEFAULT_SLAB_LENGTH
+        ));
+    }
+
+    /**
+     * @return direct memory usage statistics or {@code null} if the cache stores values on the heap
+     */
+    @Nullable
+    public OffHeapStatistics getOffHeapStatistics() {
+        return internalCache instanceof OffHeapInmemoryCache
+                ? ((OffHeapInmemoryCache) internalCache).getStatistics()
+                : null;
+    }
+
+    /**
+     * Writes all actual values with their expiration times to the snapshot file.
+     * The file is replaced atomically, so a concurrent failure leaves the previous snapshot intact.
+     *
+     * @param file snapshot file
+     * @return count of written values
+     * @throws IOException                   if the snapshot can't be written
+     * @throws UnsupportedOperationException if the internal cache can't enumerate its values
+     */
+    public long writeSnapshot(@Nonnull File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Argument 'file' is 'null'.");
+        }
+
+        return CacheSnapshots.write(internalCache, file);
+    }
+
+    /**
+     * Loads values from the snapshot file by as many threads as there are available processors.
+     *
+     * @param file snapshot file
+     * @return count of actual values read from the snapshot, including values of keys already present
+     * @throws IOException if the file can't be read or is not a valid snapshot
+     * @see #readSnapshot(File, int)
+     */
+    public long readSnapshot(@Nonnull File file) throws IOException {
+        return readSnapshot(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Loads values from the snapshot file. The file is read sequentially by the calling thread,
+     * and values are stored by {@code threadCount} threads in batches. Values which have expired since
+     * the snapshot was written are skipped, and values of keys already present in the cache are not replaced.
+     *
+     * @param file        snapshot file
+     * @param threadCount count of threads to store values
+     * @return count of actual values read from the snapshot, including values of keys already present
+     * @throws IOException if the file can't be read or is not a valid snapshot
+     */
+    public long readSnapshot(@Nonnull File file, int threadCount) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Argument 'file' is 'null'.");
+        }
+
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Argument 'threadCount' should be positive.");
+        }
+
+        return CacheSnapshots.read(internalCache, file, threadCount);
+    }
+
+    /**
+     * Makes the cache write snapshots to the file every {@code intervalMillis} and on {@link #close()}.
+     * Failures of background snapshots are logged.
+     *
+     * @param file           snapshot file
+     * @param intervalMillis delay between snapshots or {@code 0} to write the snapshot on close only
+     * @throws IllegalStateException if snapshots are already enabled
+     */
+    public synchronized void enableSnapshots(@Nonnull File file, long intervalMillis) {
+        if (file == null) {
+            throw new IllegalArgumentException("Argument 'file' is 'null'.");
+        }
+
+        if (intervalMillis < 0L) {
+            throw new IllegalArgumentException("Argument 'intervalMillis' should be non-negative.");
+        }
+
+        if (snapshotWriter != null) {
+            throw new IllegalStateException("Snapshots are already enabled.");
+        }
+
+        snapshotWriter = new CacheSnapshots.PeriodicWriter(
+                InmemoryByteCache.class.getSimpleName() + '-' + getIndex() + "#SnapshotThread",
+                internalCache, file, intervalMillis
+        );
+        snapshotWriter.start();
+    }
+
+    /**
+     * @return usage of sections or {@code null} if the cache is not backed by {@link InmemoryCache}
+     * @see InmemoryCache#getSectionUsages()
+     */
+    @Nullable
+    public SortedMap<String, SectionUsage> getSectionUsages() {
+        return internalCache instanceof InmemoryCache
+                ? ((InmemoryCache<String, byte[]>) internalCache).getSectionUsages()
+                : null;
+    }
 
     @Override
     public final boolean validate() {
@@ -56,6 +280,44 @@ public class InmemoryByteCache extends ByteCache {
         return internalCache.get(section, key);
     }
 
+    /**
+     * Calculates the version from the value, so the storage keeps no extra data for versions.
+     */
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        byte[] value = get(section, key);
+        return value == null ? null : new VersionedValue(value, getVersion(value));
+    }
+
+    /**
+     * Checks the version of the current value and atomically replaces exactly this value.
+     * Retries if the value is replaced concurrently between these steps.
+     *
+     * @throws IllegalStateException         if the internal cache can't allocate memory for the new value
+     * @throws UnsupportedOperationException if the internal cache can't replace values atomically
+     */
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+        ensureVersionedValue(newValue, lifetimeMillis);
+
+        boolean hasLifetime = lifetimeMillis != Long.MAX_VALUE;
+
+        while (true) {
+            byte[] value = internalCache.get(section, key);
+            if (value == null ? expectedVersion != NO_VERSION : getVersion(value) != expectedVersion) {
+                return false;
+            }
+
+            if (internalCache.replace(section, key, value, newValue, hasLifetime, lifetimeMillis)) {
+                return true;
+            }
+        }
+    }
+
     @Override
     public boolean remove(@Nonnull String section, @Nonnull String key) {
         ensureCacheSectionName(section);
@@ -63,6 +325,60 @@ public class InmemoryByteCache extends ByteCache {
         return internalCache.remove(section, key);
     }
 
+    @Nullable
+    @Override
+    protected RefreshAheadPolicy getRefreshAheadPolicy() {
+        return internalCache.getRefreshAheadPolicy();
+    }
+
+    @Nullable
+    @Override
+    protected StoredValue<byte[]> getStoredValue(@Nonnull String section, @Nonnull String key) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+        return internalCache.getStoredValue(section, key);
+    }
+
+    @Nonnull
+    @Override
+    protected byte[] putLoadedValue(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value,
+                                    boolean hasLifetime, long lifetimeMillis) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+        return internalCache.putLoadedValue(section, key, value, hasLifetime, lifetimeMillis);
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyNames(keys);
+        return internalCache.getAll(section, keys);
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        ensureCacheSectionName(section);
+        ensureValueByKey(valueByKey);
+        ensureCacheKeyNames(valueByKey.keySet());
+        internalCache.putAll(section, valueByKey);
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        ensureCacheSectionName(section);
+        ensureValueByKey(valueByKey);
+        ensureCacheKeyNames(valueByKey.keySet());
+        internalCache.putAll(section, valueByKey, lifetimeMillis);
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyNames(keys);
+        return internalCache.removeAll(section, keys);
+    }
+
     @Override
     public void clearSection(@Nonnull String section) {
         ensureCacheSectionName(section);
@@ -74,8 +390,38 @@ public class InmemoryByteCache extends ByteCache {
         internalCache.clear();
     }
 
+    /**
+     * Registers listener in the in-memory cache engine.
+     *
+     * @throws UnsupportedOperationException if the engine doesn't report removals
+     */
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        internalCache.addRemovalListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        internalCache.removeRemovalListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return internalCache.getDroppedRemovalNotificationCount();
+    }
+
     @Override
     public void close() {
+        CacheSnapshots.PeriodicWriter writer;
+        synchronized (this) {
+            writer = snapshotWriter;
+            snapshotWriter = null;
+        }
+
+        if (writer != null) {
+            writer.stop();
+        }
+
         internalCache.close();
     }
 }
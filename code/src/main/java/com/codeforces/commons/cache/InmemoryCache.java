@@ -2,7 +2,6 @@ package com.codeforces.commons.cache;
 
 import com.codeforces.commons.cache.annotations.*;
 import com.codeforces.commons.process.ReadWriteEvent;
-import com.codeforces.commons.process.ThreadUtil;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.matcher.Matchers;
@@ -11,7 +10,10 @@ import org.aopalliance.intercept.MethodInvocation;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.naming.ConfigurationException;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.annotation.Annotation;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -31,56 +33,136 @@ import java.util.concurrent.locks.Lock;
 public class InmemoryCache<K, V> extends Cache<K, V> {
     private static final Logger logger = Logger.getLogger(InmemoryCache.class);
 
+    private static final long EXPIRATION_TICK_MILLIS = 10L;
+
+    /**
+     * Expires entries of all caches by a single thread, which parks while there are no scheduled entries.
+     */
+    private static final TimingWheel<CacheEntryExpirationInfo<?>> expirationWheel = newExpirationWheel();
+
     private final ReadWriteEvent cacheEvent = new ReadWriteEvent();
     private final ConcurrentMap<String, ReadWriteEvent> eventBySection = new ConcurrentHashMap<>();
 
-    private final Map<String, Map<K, CacheEntry<V>>> cacheEntryByKeyBySection = new HashMap<>();
-    private final Map<String, Queue<CacheEntryExpirationInfo<K>>> cacheEntryExpirationInfosBySection = new HashMap<>();
+    private final Map<String, SectionEntries<K, V>> cacheEntryByKeyBySection = new HashMap<>();
 
-    private final AtomicBoolean stopBackgroundThreads = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
 
-    private final Thread cacheEntryRemovalThread = new Thread(new Runnable() {
-        @Override
-        public void run() {
-            while (!stopBackgroundThreads.get()) {
-                /*TODO Lock cacheWriteLock = cacheEvent.getWriteLock();
-                cacheWriteLock.lock();*/
-
-                try {
-                    if (hasExpirationInfos()) {
-                        CacheEntryExpirationInfo<K> expirationInfo = getFirstExpirationInfo();
-                        long currentTimeMillis = System.currentTimeMillis();
-
-                        if (currentTimeMillis < expirationInfo.getExpirationTimeMillis()) {
-                            //cacheEvent.await(expirationInfo.getExpirationTimeMillis() - currentTimeMillis);
-                            ThreadUtil.sleep(expirationInfo.getExpirationTimeMillis() - currentTimeMillis);
-                        } else {
-                            removeCacheEntryWithLifetimeIfNeeded(
-                                    expirationInfo.getSection(), expirationInfo.getKey(),
-                                    expirationInfo.getExpirationTimeMillis()
-                            );
-                        }
-                    } else {
-                        //cacheEvent.await(Long.MAX_VALUE);
-                        ThreadUtil.sleep(Long.MAX_VALUE);
-                    }
-                } catch (RuntimeException e) {
-                    logger.error(String.format(
-                            "Got unexpected exception while removing expired entries in '%s' #%d.",
-                            InmemoryCache.class, getIndex()
-                    ), e);
-                } finally {
-                    /*cacheWriteLock.unlock();*/
+    private final RemovalNotifier<K, V> removalNotifier = new RemovalNotifier<>();
+
+    /**
+     * Is referenced by expiration infos of the shared wheel, so scheduled expirations don't keep the cache alive.
+     */
+    private final WeakReference<InmemoryCache<K, V>> reference = new WeakReference<>(this);
+
+    @Nullable
+    private RefreshAheadPolicy refreshAheadPolicy;
+
+    private SectionBudget defaultSectionBudget = SectionBudget.UNLIMITED_BUDGET;
+    private Map<String, SectionBudget> budgetBySection = Collections.emptyMap();
+    @Nullable
+    private ConcurrentInmemoryCache.Weigher<? super V> weigher;
+    private Map<String, Long> idleLifetimeMillisBySection = Collections.emptyMap();
+
+    /**
+     * Creates cache which applies locks of the annotated methods by plain overrides, so construction
+     * neither creates an injector nor generates classes.
+     *
+     * @return new cache
+     */
+    public static <K, V> InmemoryCache<K, V> newInstance() {
+        return new LockingInmemoryCache<>();
+    }
+
+    /**
+     * Creates cache which applies locks of the annotated methods by Guice interceptors. Construction
+     * creates an injector and a proxy class, so it is much slower than {@link #newInstance()}.
+     * Is kept to compare construction costs in the benchmarks module.
+     *
+     * @return new cache
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> InmemoryCache<K, V> newProxiedInstance() {
+        return Guice.createInjector(new InMemoryCacheModule()).getInstance(InmemoryCache.class);
+    }
+
+    /**
+     * @param refreshAheadPolicy refresh-ahead policy of values read by {@link #get(String, Object, Loader, long)};
+     *                           expired values are kept in memory during the grace period of the policy
+     * @return new cache
+     */
+    public static <K, V> InmemoryCache<K, V> newInstance(@Nullable RefreshAheadPolicy refreshAheadPolicy) {
+        InmemoryCache<K, V> inmemoryCache = newInstance();
+        inmemoryCache.refreshAheadPolicy = refreshAheadPolicy;
+        return inmemoryCache;
+    }
+
+    /**
+     * Creates cache which limits each section by its own budget. A section exceeding its budget evicts
+     * its own values only: expired values and values not read since the previous eviction pass go first.
+     *
+     * @param defaultSectionBudget budget of sections absent in {@code budgetBySection}
+     * @param budgetBySection      budgets of particular sections
+     * @param weigher              weigher of values or {@code null} if byte counts of budgets are unlimited
+     * @return new cache
+     * @see #getSectionUsages()
+     */
+    public static <K, V> InmemoryCache<K, V> newSectionBoundedInstance(
+            @Nonnull SectionBudget defaultSectionBudget, @Nonnull Map<String, SectionBudget> budgetBySection,
+            @Nullable ConcurrentInmemoryCache.Weigher<? super V> weigher) {
+        if (defaultSectionBudget == null) {
+            throw new IllegalArgumentException("Argument 'defaultSectionBudget' is 'null'.");
+        }
+
+        if (budgetBySection == null) {
+            throw new IllegalArgumentException("Argument 'budgetBySection' is 'null'.");
+        }
+
+        if (weigher == null) {
+            List<SectionBudget> budgets = new ArrayList<>(budgetBySection.values());
+            budgets.add(defaultSectionBudget);
+
+            for (SectionBudget budget : budgets) {
+                if (budget.getMaximalByteCount() != SectionBudget.UNLIMITED) {
+                    throw new IllegalArgumentException("Argument 'weigher' is 'null' but byte count is limited.");
                 }
             }
         }
-    });
 
-    @SuppressWarnings("unchecked")
-    public static <K, V> InmemoryCache<K, V> newInstance() {
-        InmemoryCache inmemoryCache = Guice.createInjector(new InMemoryCacheModule()).getInstance(InmemoryCache.class);
-        inmemoryCache.cacheEntryRemovalThread.setDaemon(true);
-        inmemoryCache.cacheEntryRemovalThread.start();
+        InmemoryCache<K, V> inmemoryCache = newInstance();
+        inmemoryCache.defaultSectionBudget = defaultSectionBudget;
+        inmemoryCache.budgetBySection = new HashMap<>(budgetBySection);
+        inmemoryCache.weigher = weigher;
+        return inmemoryCache;
+    }
+
+    /**
+     * Creates cache which expires values of the specified sections after they have not been read
+     * for their lifetime. Each read of a value of such section extends its lifetime, and values put
+     * without lifetime get the idle lifetime of the section. Values of other sections expire at the time
+     * fixed by {@code put}.
+     * <p/>
+     * Reads update expiration time of the value under section read lock. The value is rescheduled for expiration
+     * once its scheduled time comes, so frequent reads don't add expiration tasks.
+     *
+     * @param idleLifetimeMillisBySection idle lifetimes of values without explicit lifetime by section names
+     * @return new cache
+     */
+    public static <K, V> InmemoryCache<K, V> newAccessExpiringInstance(
+            @Nonnull Map<String, Long> idleLifetimeMillisBySection) {
+        if (idleLifetimeMillisBySection == null) {
+            throw new IllegalArgumentException("Argument 'idleLifetimeMillisBySection' is 'null'.");
+        }
+
+        for (Map.Entry<String, Long> entry : idleLifetimeMillisBySection.entrySet()) {
+            if (entry.getValue() == null || entry.getValue() <= 0L) {
+                throw new IllegalArgumentException(
+                        "Idle lifetime of section '" + entry.getKey() + "' should be positive."
+                );
+            }
+        }
+
+        InmemoryCache<K, V> inmemoryCache = newInstance();
+        inmemoryCache.idleLifetimeMillisBySection = new HashMap<>(idleLifetimeMillisBySection);
         return inmemoryCache;
     }
 
@@ -92,7 +174,7 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
 
     @Override
     public final boolean validate() {
-        return !stopBackgroundThreads.get();
+        return !closed.get();
     }
 
     @CacheSectionRead
@@ -104,23 +186,21 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
     @CacheSectionWrite
     @Override
     public void put(@CacheSection @Nonnull String section, @Nonnull K key, @Nonnull V value) {
-        ensureAndReturnCacheSection(section).put(key, new CacheEntry<>(value));
+        putCacheEntryWithoutLifetime(section, key, value, ensureAndReturnCacheSection(section));
     }
 
     @Override
     public void put(
             @CacheSection @Nonnull String section, @Nonnull K key, @Nonnull V value, long lifetimeMillis) {
-        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
-        Queue<CacheEntryExpirationInfo<K>> expirationInfos = ensureAndReturnExpirationInfosSection(section);
-        addCacheEntryWithLifetime(section, key, value, lifetimeMillis, cacheEntryByKey, expirationInfos);
+        addCacheEntryWithLifetime(section, key, value, lifetimeMillis);
     }
 
     @CacheSectionWrite
     @Override
     public void putIfAbsent(@CacheSection @Nonnull String section, @Nonnull K key, @Nonnull V value) {
         Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
-        if (!cacheEntryByKey.containsKey(key)) {
-            cacheEntryByKey.put(key, new CacheEntry<>(value));
+        if (!isActual(cacheEntryByKey.get(key), System.currentTimeMillis())) {
+            putCacheEntryWithoutLifetime(section, key, value, cacheEntryByKey);
         }
     }
 
@@ -128,7 +208,7 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
     public void putIfAbsent(
             @CacheSection @Nonnull String section, @Nonnull K key, @Nonnull V value, long lifetimeMillis) {
         Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
-        if (!cacheEntryByKey.containsKey(key)) {
+        if (!isActual(cacheEntryByKey.get(key), System.currentTimeMillis())) {
             addCacheEntryWithLifetimeIfAbsent(section, key, value, lifetimeMillis, cacheEntryByKey);
         }
     }
@@ -137,12 +217,108 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
     @Override
     public V get(@CacheSection @Nonnull String section, @Nonnull K key) {
         CacheEntry<V> cacheEntry = ensureAndReturnCacheSection(section).get(key);
-        if (cacheEntry == null || cacheEntry.getExpirationTimeMillis() != -1
-                && cacheEntry.getExpirationTimeMillis() < System.currentTimeMillis()) {
+        long currentTimeMillis = System.currentTimeMillis();
+        if (isActual(cacheEntry, currentTimeMillis)) {
+            cacheEntry.markAccessed(currentTimeMillis);
+            return cacheEntry.getValue();
+        } else {
             return null;
+        }
+    }
+
+    @Nullable
+    @Override
+    protected RefreshAheadPolicy getRefreshAheadPolicy() {
+        return refreshAheadPolicy;
+    }
+
+    @CacheSectionRead
+    @Nullable
+    @Override
+    protected StoredValue<V> getStoredValue(@CacheSection @Nonnull String section, @Nonnull K key) {
+        CacheEntry<V> cacheEntry = ensureAndReturnCacheSection(section).get(key);
+        if (cacheEntry == null) {
+            return null;
+        }
+
+        cacheEntry.markReferenced();
+
+        if (cacheEntry.getExpirationTimeMillis() == -1) {
+            return new StoredValue<>(cacheEntry.getValue(), StoredValue.NO_EXPIRATION);
+        }
+
+        long currentTimeMillis = System.currentTimeMillis();
+        if (isActual(cacheEntry, currentTimeMillis)) {
+            cacheEntry.extendExpiration(currentTimeMillis);
+            return new StoredValue<>(cacheEntry.getValue(), cacheEntry.getExpirationTimeMillis());
+        } else if (refreshAheadPolicy != null
+                && refreshAheadPolicy.isInGracePeriod(cacheEntry.getExpirationTimeMillis(), currentTimeMillis)) {
+            return new StoredValue<>(cacheEntry.getValue(), cacheEntry.getExpirationTimeMillis());
         } else {
+            return null;
+        }
+    }
+
+    /**
+     * Stores loaded value unless a value has been stored concurrently with loading.
+     */
+    @CacheSectionWrite
+    @Nonnull
+    @Override
+    protected V putLoadedValue(@CacheSection @Nonnull String section, @Nonnull K key, @Nonnull V value,
+                               boolean hasLifetime, long lifetimeMillis) {
+        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
+
+        CacheEntry<V> cacheEntry = cacheEntryByKey.get(key);
+        if (isActual(cacheEntry, System.currentTimeMillis())) {
             return cacheEntry.getValue();
         }
+
+        if (hasLifetime) {
+            putCacheEntryWithLifetime(section, key, value, lifetimeMillis, cacheEntryByKey);
+        } else {
+            putCacheEntryWithoutLifetime(section, key, value, cacheEntryByKey);
+        }
+        return value;
+    }
+
+    @CacheSectionWrite
+    @Override
+    protected boolean replace(@CacheSection @Nonnull String section, @Nonnull K key, @Nullable V expectedValue,
+                              @Nonnull V newValue, boolean hasLifetime, long lifetimeMillis) {
+        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
+
+        CacheEntry<V> cacheEntry = cacheEntryByKey.get(key);
+        boolean matches = isActual(cacheEntry, System.currentTimeMillis())
+                ? expectedValue != null && cacheEntry.getValue() == expectedValue
+                : expectedValue == null;
+        if (!matches) {
+            return false;
+        }
+
+        if (hasLifetime) {
+            putCacheEntryWithLifetime(section, key, newValue, lifetimeMillis, cacheEntryByKey);
+        } else {
+            putCacheEntryWithoutLifetime(section, key, newValue, cacheEntryByKey);
+        }
+        return true;
+    }
+
+    /**
+     * Copies actual entries of one section at a time under the section lock and visits them without locks.
+     */
+    @Override
+    protected void visitStoredValues(@Nonnull StoredValueVisitor<K, V> visitor) throws IOException {
+        for (String section : getSectionNames()) {
+            for (Map.Entry<K, CacheEntry<V>> entry : getActualCacheEntries(section, System.currentTimeMillis())) {
+                CacheEntry<V> cacheEntry = entry.getValue();
+                visitor.visit(section, entry.getKey(), new StoredValue<>(
+                        cacheEntry.getValue(), cacheEntry.getExpirationTimeMillis() == -1
+                        ? StoredValue.NO_EXPIRATION
+                        : cacheEntry.getExpirationTimeMillis()
+                ));
+            }
+        }
     }
 
     @CacheSectionWrite
@@ -151,31 +327,108 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
         return ensureAndReturnCacheSection(section).remove(key) != null;
     }
 
+    @CacheSectionRead
+    @Nonnull
+    @Override
+    public Map<K, V> getAll(@CacheSection @Nonnull String section, @Nonnull Collection<K> keys) {
+        ensureKeys(keys);
+
+        Map<K, V> valueByKey = newValueByKeyMap(keys.size());
+        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
+        long currentTimeMillis = System.currentTimeMillis();
+
+        for (K key : keys) {
+            CacheEntry<V> cacheEntry = cacheEntryByKey.get(key);
+            if (isActual(cacheEntry, currentTimeMillis)) {
+                cacheEntry.markAccessed(currentTimeMillis);
+                valueByKey.put(key, cacheEntry.getValue());
+            }
+        }
+
+        return valueByKey;
+    }
+
+    @CacheSectionWrite
+    @Override
+    public void putAll(@CacheSection @Nonnull String section, @Nonnull Map<K, V> valueByKey) {
+        ensureValueByKey(valueByKey);
+
+        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
+        for (Map.Entry<K, V> entry : valueByKey.entrySet()) {
+            putCacheEntryWithoutLifetime(section, entry.getKey(), entry.getValue(), cacheEntryByKey);
+        }
+    }
+
+    @CacheSectionWrite
+    @Override
+    public void putAll(@CacheSection @Nonnull String section, @Nonnull Map<K, V> valueByKey, long lifetimeMillis) {
+        ensureValueByKey(valueByKey);
+
+        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
+        for (Map.Entry<K, V> entry : valueByKey.entrySet()) {
+            putCacheEntryWithLifetime(section, entry.getKey(), entry.getValue(), lifetimeMillis, cacheEntryByKey);
+        }
+    }
+
+    @CacheSectionWrite
+    @Override
+    public int removeAll(@CacheSection @Nonnull String section, @Nonnull Collection<K> keys) {
+        ensureKeys(keys);
+
+        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
+        int removedCount = 0;
+
+        for (K key : keys) {
+            if (cacheEntryByKey.remove(key) != null) {
+                ++removedCount;
+            }
+        }
+
+        return removedCount;
+    }
+
     @CacheSectionWrite
     @Override
     public void clearSection(@CacheSection @Nonnull String section) {
         ensureAndReturnCacheSection(section).clear();
-        ensureAndReturnExpirationInfosSection(section).clear();
     }
 
-    @CacheWrite
+    /**
+     * Detaches all sections at once and then reports their values as cleared, locking one section at a time.
+     */
     @Override
     public void clear() {
-        cacheEntryExpirationInfosBySection.clear();
-        cacheEntryByKeyBySection.clear();
+        Map<String, Map<K, CacheEntry<V>>> cacheEntryByKeyBySection = detachCacheSections();
+
+        if (removalNotifier.isActive()) {
+            for (Map.Entry<String, Map<K, CacheEntry<V>>> sectionEntry : cacheEntryByKeyBySection.entrySet()) {
+                clearDetachedCacheSection(sectionEntry.getKey(), sectionEntry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<K, V> listener) {
+        removalNotifier.addListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<K, V> listener) {
+        removalNotifier.removeListener(listener);
     }
 
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return removalNotifier.getDroppedNotificationCount();
+    }
+
+    /**
+     * Stops expiration of entries. Entries scheduled for expiration stay in the shared wheel until their time,
+     * but they don't reference the cache.
+     */
     @Override
     public void close() {
-        if (!stopBackgroundThreads.getAndSet(true)) {
-            /*cacheEvent.getWriteLock().lock();
-            try {
-                cacheEvent.signalAll();
-            } finally {
-                cacheEvent.getWriteLock().unlock();
-            }*/
-            cacheEntryRemovalThread.interrupt();
-        }
+        closed.set(true);
     }
 
     Map<K, CacheEntry<V>> ensureAndReturnCacheSection(@CacheSection String section) {
@@ -187,148 +440,239 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
         }
     }
 
+    @CacheWrite
+    Map<String, Map<K, CacheEntry<V>>> detachCacheSections() {
+        Map<String, Map<K, CacheEntry<V>>> cacheEntryByKeyBySection = new HashMap<>();
+        cacheEntryByKeyBySection.putAll(this.cacheEntryByKeyBySection);
+        this.cacheEntryByKeyBySection.clear();
+        return cacheEntryByKeyBySection;
+    }
+
+    /**
+     * Section lock is held, since writers which have looked the section up before it was detached
+     * may still modify it.
+     */
+    @CacheSectionWrite
+    void clearDetachedCacheSection(@CacheSection String section, Map<K, CacheEntry<V>> cacheEntryByKey) {
+        cacheEntryByKey.clear();
+    }
+
     @CacheRead
     Map<K, CacheEntry<V>> getCacheSection(@CacheSection String section) {
         return cacheEntryByKeyBySection.get(section);
     }
 
-    @CacheWrite
-    Map<K, CacheEntry<V>> createCacheSection(@CacheSection String section) {
-        Map<K, CacheEntry<V>> cacheEntryByKey = cacheEntryByKeyBySection.get(section);
-
-        if (cacheEntryByKey == null) {
-            cacheEntryByKey = new HashMap<>();
-            cacheEntryByKeyBySection.put(section, cacheEntryByKey);
+    /**
+     * Returns usage of sections. Counts are read without locking sections, so they may lag behind
+     * concurrent modifications.
+     *
+     * @return usage of each section by section names in lexicographical order
+     */
+    @CacheRead
+    @Nonnull
+    public SortedMap<String, SectionUsage> getSectionUsages() {
+        SortedMap<String, SectionUsage> usageBySection = new TreeMap<>();
+        for (Map.Entry<String, SectionEntries<K, V>> entry : cacheEntryByKeyBySection.entrySet()) {
+            usageBySection.put(entry.getKey(), entry.getValue().getUsage());
         }
+        return usageBySection;
+    }
 
-        return cacheEntryByKey;
+    @CacheRead
+    List<String> getSectionNames() {
+        return new ArrayList<>(cacheEntryByKeyBySection.keySet());
     }
 
-    Queue<CacheEntryExpirationInfo<K>> ensureAndReturnExpirationInfosSection(@CacheSection String section) {
-        Queue<CacheEntryExpirationInfo<K>> expirationInfos = getExpirationInfosBySection(section);
-        if (expirationInfos == null) {
-            return createExpirationInfosSection(section);
-        } else {
-            return expirationInfos;
+    @CacheSectionRead
+    List<Map.Entry<K, CacheEntry<V>>> getActualCacheEntries(@CacheSection String section, long currentTimeMillis) {
+        Map<K, CacheEntry<V>> cacheEntryByKey = getCacheSection(section);
+        if (cacheEntryByKey == null) {
+            return Collections.emptyList();
         }
-    }
 
-    @CacheRead
-    Queue<CacheEntryExpirationInfo<K>> getExpirationInfosBySection(@CacheSection String section) {
-        return cacheEntryExpirationInfosBySection.get(section);
+        List<Map.Entry<K, CacheEntry<V>>> entries = new ArrayList<>(cacheEntryByKey.size());
+        for (Map.Entry<K, CacheEntry<V>> entry : cacheEntryByKey.entrySet()) {
+            if (isActual(entry.getValue(), currentTimeMillis)) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+            }
+        }
+        return entries;
     }
 
     @CacheWrite
-    Queue<CacheEntryExpirationInfo<K>> createExpirationInfosSection(@CacheSection String section) {
-        Queue<CacheEntryExpirationInfo<K>> expirationInfos = cacheEntryExpirationInfosBySection.get(section);
+    Map<K, CacheEntry<V>> createCacheSection(@CacheSection String section) {
+        SectionEntries<K, V> cacheEntryByKey = cacheEntryByKeyBySection.get(section);
 
-        if (expirationInfos == null) {
-            expirationInfos = new PriorityQueue<>();
-            cacheEntryExpirationInfosBySection.put(section, expirationInfos);
+        if (cacheEntryByKey == null) {
+            SectionBudget budget = budgetBySection.get(section);
+            cacheEntryByKey = new SectionEntries<>(
+                    section, budget == null ? defaultSectionBudget : budget, weigher, removalNotifier
+            );
+            cacheEntryByKeyBySection.put(section, cacheEntryByKey);
         }
 
-        return expirationInfos;
+        return cacheEntryByKey;
     }
 
     @CacheSectionWrite
-    void addCacheEntryWithLifetime(
-            @CacheSection String section, K key, V value, long lifetimeMillis,
-            Map<K, CacheEntry<V>> valueByKey, Queue<CacheEntryExpirationInfo<K>> expirationInfos) {
-        long expirationTimeMillis = System.currentTimeMillis() + lifetimeMillis;
-
-        valueByKey.put(key, new CacheEntry<>(value, expirationTimeMillis));
-        expirationInfos.add(new CacheEntryExpirationInfo<>(section, key, expirationTimeMillis));
-
-        /*cacheEvent.getWriteLock().lock();
-        try {
-            cacheEvent.signalAll();
-        } finally {
-            cacheEvent.getWriteLock().unlock();
-        }*/
-        cacheEntryRemovalThread.interrupt();
+    void addCacheEntryWithLifetime(@CacheSection String section, K key, V value, long lifetimeMillis) {
+        putCacheEntryWithLifetime(section, key, value, lifetimeMillis, ensureAndReturnCacheSection(section));
     }
 
     @CacheSectionWrite
     void addCacheEntryWithLifetimeIfAbsent(
             @CacheSection String section, K key, V value, long lifetimeMillis, Map<K, CacheEntry<V>> cacheEntryByKey) {
-        if (!cacheEntryByKey.containsKey(key)) {
-            Queue<CacheEntryExpirationInfo<K>> expirationInfos = ensureAndReturnExpirationInfosSection(section);
-            long expirationTimeMillis = System.currentTimeMillis() + lifetimeMillis;
-
-            cacheEntryByKey.put(key, new CacheEntry<>(value, expirationTimeMillis));
-            expirationInfos.add(new CacheEntryExpirationInfo<>(section, key, expirationTimeMillis));
-
-            /*cacheEvent.getWriteLock().lock();
-            try {
-                cacheEvent.signalAll();
-            } finally {
-                cacheEvent.getWriteLock().unlock();
-            }*/
-            cacheEntryRemovalThread.interrupt();
+        if (!isActual(cacheEntryByKey.get(key), System.currentTimeMillis())) {
+            putCacheEntryWithLifetime(section, key, value, lifetimeMillis, cacheEntryByKey);
         }
     }
 
-    boolean hasExpirationInfos() {
-        String[] expirationInfoSections = getExpirationInfoSections();
-        int sectionsCount = expirationInfoSections.length;
+    /**
+     * Should be called under section write lock. Values of access expiring sections get the idle lifetime
+     * of the section.
+     */
+    private void putCacheEntryWithoutLifetime(String section, K key, V value, Map<K, CacheEntry<V>> cacheEntryByKey) {
+        Long idleLifetimeMillis = idleLifetimeMillisBySection.get(section);
+        if (idleLifetimeMillis == null) {
+            cacheEntryByKey.put(key, new CacheEntry<>(value));
+        } else {
+            putCacheEntryWithLifetime(section, key, value, idleLifetimeMillis, cacheEntryByKey);
+        }
+    }
 
-        for (int sectionIndex = 0; sectionIndex < sectionsCount; ++sectionIndex) {
-            if (hasExpirationInfosInSection(expirationInfoSections[sectionIndex])) {
-                return true;
-            }
+    /**
+     * Should be called under section write lock. Lifetime of a value of access expiring section
+     * is extended by reads. Values with lifetime exceeding the time range (like {@link Long#MAX_VALUE})
+     * never expire.
+     */
+    private void putCacheEntryWithLifetime(
+            String section, K key, V value, long lifetimeMillis, Map<K, CacheEntry<V>> cacheEntryByKey) {
+        long currentTimeMillis = System.currentTimeMillis();
+        if (currentTimeMillis + lifetimeMillis < currentTimeMillis) {
+            cacheEntryByKey.put(key, new CacheEntry<>(value));
+            return;
         }
 
-        return false;
+        long expirationTimeMillis = currentTimeMillis + lifetimeMillis;
+        long idleLifetimeMillis = idleLifetimeMillisBySection.containsKey(section) ? lifetimeMillis : 0L;
+
+        CacheEntry<V> cacheEntry = new CacheEntry<>(value, expirationTimeMillis, idleLifetimeMillis);
+        cacheEntryByKey.put(key, cacheEntry);
+        scheduleExpiration(section, key, cacheEntry);
     }
 
-    @CacheSectionRead
-    boolean hasExpirationInfosInSection(@CacheSection String section) {
-        return !ensureAndReturnExpirationInfosSection(section).isEmpty();
+    /**
+     * Should be called under section write lock.
+     */
+    private void scheduleExpiration(String section, K key, CacheEntry<V> cacheEntry) {
+        long expirationTimeMillis = cacheEntry.getExpirationTimeMillis();
+        cacheEntry.scheduledExpirationTimeMillis = expirationTimeMillis;
+
+        // Expired values are kept during the grace period to be returned while they are reloaded.
+        long gracePeriodMillis = refreshAheadPolicy == null ? 0L : refreshAheadPolicy.getGracePeriodMillis();
+        long removalTimeMillis = gracePeriodMillis >= Long.MAX_VALUE - expirationTimeMillis
+                ? Long.MAX_VALUE
+                : expirationTimeMillis + gracePeriodMillis;
+
+        expirationWheel.schedule(
+                new CacheEntryExpirationInfo<>(reference, section, key, expirationTimeMillis), removalTimeMillis
+        );
+    }
+
+    private static boolean isActual(@Nullable CacheEntry<?> cacheEntry, long currentTimeMillis) {
+        return cacheEntry != null && (cacheEntry.getExpirationTimeMillis() == -1
+                || cacheEntry.getExpirationTimeMillis() >= currentTimeMillis);
     }
 
-    CacheEntryExpirationInfo<K> getFirstExpirationInfo() {
-        CacheEntryExpirationInfo<K> firstExpirationInfo = null;
+    private static TimingWheel<CacheEntryExpirationInfo<?>> newExpirationWheel() {
+        TimingWheel<CacheEntryExpirationInfo<?>> wheel = new TimingWheel<>(
+                InmemoryCache.class.getSimpleName() + "#ExpirationThread", EXPIRATION_TICK_MILLIS,
+                new TimingWheel.Handler<CacheEntryExpirationInfo<?>>() {
+                    @Override
+                    public void handle(@Nonnull List<CacheEntryExpirationInfo<?>> expirationInfos) {
+                        Map<InmemoryCache<?, ?>, List<CacheEntryExpirationInfo<?>>> expirationInfosByCache
+                                = new IdentityHashMap<>();
+
+                        for (CacheEntryExpirationInfo<?> expirationInfo : expirationInfos) {
+                            InmemoryCache<?, ?> cache = expirationInfo.getCache();
+                            if (cache == null || cache.closed.get()) {
+                                continue;
+                            }
 
-        String[] expirationInfoSections = getExpirationInfoSections();
-        int sectionsCount = expirationInfoSections.length;
+                            List<CacheEntryExpirationInfo<?>> cacheExpirationInfos = expirationInfosByCache.get(cache);
+                            if (cacheExpirationInfos == null) {
+                                cacheExpirationInfos = new ArrayList<>();
+                                expirationInfosByCache.put(cache, cacheExpirationInfos);
+                            }
+                            cacheExpirationInfos.add(expirationInfo);
+                        }
 
-        for (int sectionIndex = 0; sectionIndex < sectionsCount; ++sectionIndex) {
-            String section = expirationInfoSections[sectionIndex];
-            CacheEntryExpirationInfo<K> expirationInfo = getFirstExpirationInfoInSection(section);
+                        for (Map.Entry<InmemoryCache<?, ?>, List<CacheEntryExpirationInfo<?>>> cacheEntry
+                                : expirationInfosByCache.entrySet()) {
+                            try {
+                                cacheEntry.getKey().removeExpiredCacheEntries(cacheEntry.getValue());
+                            } catch (RuntimeException e) {
+                                logger.error("Can't remove expired entries of " + cacheEntry.getKey() + '.', e);
+                            }
+                        }
+                    }
+                }
+        );
+        wheel.start();
+        return wheel;
+    }
 
-            if (firstExpirationInfo == null || expirationInfo != null
-                    && expirationInfo.getExpirationTimeMillis() < firstExpirationInfo.getExpirationTimeMillis()) {
-                firstExpirationInfo = expirationInfo;
+    @SuppressWarnings("unchecked")
+    private void removeExpiredCacheEntries(List<CacheEntryExpirationInfo<?>> expirationInfos) {
+        Map<String, List<CacheEntryExpirationInfo<K>>> expirationInfosBySection = new HashMap<>();
+
+        for (CacheEntryExpirationInfo<?> expirationInfo : expirationInfos) {
+            List<CacheEntryExpirationInfo<K>> sectionExpirationInfos
+                    = expirationInfosBySection.get(expirationInfo.getSection());
+            if (sectionExpirationInfos == null) {
+                sectionExpirationInfos = new ArrayList<>();
+                expirationInfosBySection.put(expirationInfo.getSection(), sectionExpirationInfos);
             }
+            sectionExpirationInfos.add((CacheEntryExpirationInfo<K>) expirationInfo);
         }
 
-        return firstExpirationInfo;
+        for (Map.Entry<String, List<CacheEntryExpirationInfo<K>>> sectionEntry
+                : expirationInfosBySection.entrySet()) {
+            removeCacheEntriesWithLifetimeIfNeeded(sectionEntry.getKey(), sectionEntry.getValue());
+        }
     }
 
-    @CacheSectionRead
-    CacheEntryExpirationInfo<K> getFirstExpirationInfoInSection(@CacheSection String section) {
-        return ensureAndReturnExpirationInfosSection(section).peek();
-    }
+    /**
+     * Removes expired entries of the section in a batch, acquiring section lock once per batch.
+     * Entries whose expiration has been extended by reads since they were scheduled are rescheduled.
+     */
+    @CacheSectionWrite
+    void removeCacheEntriesWithLifetimeIfNeeded(
+            @CacheSection String section, List<CacheEntryExpirationInfo<K>> expirationInfos) {
+        SectionEntries<K, V> cacheEntryByKey = (SectionEntries<K, V>) getCacheSection(section);
+        if (cacheEntryByKey == null) {
+            return;
+        }
 
+        for (CacheEntryExpirationInfo<K> expirationInfo : expirationInfos) {
+            CacheEntry<V> cacheEntry = cacheEntryByKey.get(expirationInfo.getKey());
+            if (cacheEntry == null || cacheEntry.getExpirationTimeMillis() == -1) {
+                continue;
+            }
 
-    @CacheRead
-    String[] getExpirationInfoSections() {
-        Set<String> sections = cacheEntryExpirationInfosBySection.keySet();
-        return sections.toArray(new String[sections.size()]);
+            if (cacheEntry.getExpirationTimeMillis() <= expirationInfo.getExpirationTimeMillis()) {
+                cacheEntryByKey.remove(expirationInfo.getKey(), RemovalCause.EXPIRED);
+            } else if (cacheEntry.scheduledExpirationTimeMillis == expirationInfo.getExpirationTimeMillis()) {
+                scheduleExpiration(section, expirationInfo.getKey(), cacheEntry);
+            }
+        }
     }
 
-    @CacheSectionWrite
-    void removeCacheEntryWithLifetimeIfNeeded(@CacheSection String section, K key, long expirationTimeMillis) {
-        Map<K, CacheEntry<V>> cacheEntryByKey = ensureAndReturnCacheSection(section);
-        CacheEntry<V> cacheEntry = cacheEntryByKey.get(key);
-        if (cacheEntry != null && cacheEntry.getExpirationTimeMillis() != -1
-                && cacheEntry.getExpirationTimeMillis() <= expirationTimeMillis) {
-            cacheEntryByKey.remove(key);
-        }
-        ensureAndReturnExpirationInfosSection(section).poll();
+    ReadWriteEvent getCacheEvent() {
+        return cacheEvent;
     }
 
-    private ReadWriteEvent getSectionEvent(@CacheSection String section) {
+    ReadWriteEvent getSectionEvent(@CacheSection String section) {
         ReadWriteEvent sectionEvent = eventBySection.get(section);
 
         if (sectionEvent == null) {
@@ -345,16 +689,39 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
 
         /**
          * Expiration time in milliseconds or {@code -1} if entry is permanent.
+         * Is extended by reads of entries with idle lifetime.
          */
-        private final long expirationTimeMillis;
+        private volatile long expirationTimeMillis;
+
+        /**
+         * Lifetime since the last read or {@code 0} if expiration time is fixed.
+         */
+        private final long idleLifetimeMillis;
+
+        /**
+         * Expiration time of the latest expiration info scheduled for the entry. Is accessed under section
+         * write lock only.
+         */
+        private long scheduledExpirationTimeMillis;
+
+        /**
+         * Weight assigned when the entry is added to its section.
+         */
+        private long weight;
+
+        /**
+         * Is set when the value is read, so the entry gets a second chance on eviction.
+         */
+        private volatile boolean referenced;
 
         private CacheEntry(@Nonnull V value) {
-            this(value, -1);
+            this(value, -1, 0L);
         }
 
-        private CacheEntry(@Nonnull V value, long expirationTimeMillis) {
+        private CacheEntry(@Nonnull V value, long expirationTimeMillis, long idleLifetimeMillis) {
             this.value = value;
             this.expirationTimeMillis = expirationTimeMillis;
+            this.idleLifetimeMillis = idleLifetimeMillis;
         }
 
         public V getValue() {
@@ -364,68 +731,189 @@ public class InmemoryCache<K, V> extends Cache<K, V> {
         public long getExpirationTimeMillis() {
             return expirationTimeMillis;
         }
+
+        private void markReferenced() {
+            if (!referenced) {
+                referenced = true;
+            }
+        }
+
+        private void markAccessed(long currentTimeMillis) {
+            markReferenced();
+            extendExpiration(currentTimeMillis);
+        }
+
+        /**
+         * Is called under section read lock. Concurrent readers may overwrite each other's expiration times,
+         * which differ by less than the expiration tick. Expiration time is not written if it would be
+         * extended by less than a tick.
+         */
+        private void extendExpiration(long currentTimeMillis) {
+            if (idleLifetimeMillis > 0L) {
+                long expirationTimeMillis = idleLifetimeMillis >= Long.MAX_VALUE - currentTimeMillis
+                        ? Long.MAX_VALUE
+                        : currentTimeMillis + idleLifetimeMillis;
+                if (expirationTimeMillis - this.expirationTimeMillis >= EXPIRATION_TICK_MILLIS) {
+                    this.expirationTimeMillis = expirationTimeMillis;
+                }
+            }
+        }
     }
 
-    @SuppressWarnings("PackageVisibleInnerClass")
-    static final class CacheEntryExpirationInfo<K> implements Comparable<CacheEntryExpirationInfo<K>> {
+    /**
+     * Entries of a section in the order of insertion, which account usage of the section and evict entries
+     * exceeding the budget. Eviction scans entries from the oldest one and removes expired entries and entries
+     * not read since the previous scan; read entries lose the mark and survive the scan.
+     * Reports removed entries to the removal notifier of the cache.
+     * Is modified under section write lock only.
+     */
+    private static final class SectionEntries<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
         private final String section;
-        private final K key;
-        private final long expirationTimeMillis;
-
-        private CacheEntryExpirationInfo(@Nonnull String section, @Nonnull K key, long expirationTimeMillis) {
+        private final SectionBudget budget;
+        @Nullable
+        private final ConcurrentInmemoryCache.Weigher<? super V> weigher;
+        private final RemovalNotifier<K, V> removalNotifier;
+
+        private volatile long entryCount;
+        private volatile long byteCount;
+        private volatile long evictedEntryCount;
+
+        private SectionEntries(@Nonnull String section, @Nonnull SectionBudget budget,
+                               @Nullable ConcurrentInmemoryCache.Weigher<? super V> weigher,
+                               @Nonnull RemovalNotifier<K, V> removalNotifier) {
             this.section = section;
-            this.key = key;
-            this.expirationTimeMillis = expirationTimeMillis;
+            this.budget = budget;
+            this.weigher = weigher;
+            this.removalNotifier = removalNotifier;
         }
 
-        public String getSection() {
-            return section;
+        /**
+         * Replaced entry is moved to the tail, so it is scanned last.
+         */
+        @Override
+        public CacheEntry<V> put(K key, CacheEntry<V> cacheEntry) {
+            CacheEntry<V> previousCacheEntry = super.remove(key);
+
+            cacheEntry.weight = weigher == null ? 0L : weigher.getWeight(cacheEntry.getValue());
+            super.put(key, cacheEntry);
+            byteCount += cacheEntry.weight - (previousCacheEntry == null ? 0L : previousCacheEntry.weight);
+
+            if (previousCacheEntry != null) {
+                notifyOfRemoval(key, previousCacheEntry, RemovalCause.REPLACED);
+            }
+
+            if (budget.isExceeded(size(), byteCount)) {
+                evict();
+            }
+
+            entryCount = size();
+            return previousCacheEntry;
         }
 
-        public K getKey() {
-            return key;
+        @Override
+        public CacheEntry<V> remove(Object key) {
+            return remove(key, RemovalCause.EXPLICIT);
         }
 
-        public long getExpirationTimeMillis() {
-            return expirationTimeMillis;
+        @SuppressWarnings("unchecked")
+        private CacheEntry<V> remove(Object key, RemovalCause cause) {
+            CacheEntry<V> cacheEntry = super.remove(key);
+            if (cacheEntry != null) {
+                byteCount -= cacheEntry.weight;
+                entryCount = size();
+                notifyOfRemoval((K) key, cacheEntry, cause);
+            }
+            return cacheEntry;
         }
 
         @Override
-        public int compareTo(CacheEntryExpirationInfo<K> o) {
-            if (expirationTimeMillis > o.expirationTimeMillis) {
-                return 1;
+        public void clear() {
+            if (removalNotifier.isActive()) {
+                for (Map.Entry<K, CacheEntry<V>> entry : entrySet()) {
+                    notifyOfRemoval(entry.getKey(), entry.getValue(), RemovalCause.CLEARED);
+                }
             }
 
-            if (expirationTimeMillis < o.expirationTimeMillis) {
-                return -1;
+            super.clear();
+            entryCount = 0L;
+            byteCount = 0L;
+        }
+
+        private void evict() {
+            long currentTimeMillis = System.currentTimeMillis();
+            long evictedCount = 0L;
+
+            // The second scan evicts entries whose marks have been cleared by the first one.
+            while (budget.isExceeded(size(), byteCount)) {
+                Iterator<Map.Entry<K, CacheEntry<V>>> iterator = entrySet().iterator();
+
+                while (iterator.hasNext() && budget.isExceeded(size(), byteCount)) {
+                    Map.Entry<K, CacheEntry<V>> entry = iterator.next();
+                    CacheEntry<V> cacheEntry = entry.getValue();
+                    if (cacheEntry.referenced && isActual(cacheEntry, currentTimeMillis)) {
+                        cacheEntry.referenced = false;
+                    } else {
+                        iterator.remove();
+                        byteCount -= cacheEntry.weight;
+                        ++evictedCount;
+                        notifyOfRemoval(entry.getKey(), cacheEntry, RemovalCause.EVICTED);
+                    }
+                }
             }
 
-            return 0;
+            evictedEntryCount += evictedCount;
         }
 
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) {
-                return true;
+        /**
+         * Explicitly removed or replaced entries which have expired before are reported as expired.
+         */
+        private void notifyOfRemoval(K key, CacheEntry<V> cacheEntry, RemovalCause cause) {
+            if (removalNotifier.isActive()) {
+                boolean expired = (cause == RemovalCause.EXPLICIT || cause == RemovalCause.REPLACED)
+                        && !isActual(cacheEntry, System.currentTimeMillis());
+                removalNotifier.notify(section, key, cacheEntry.getValue(), expired ? RemovalCause.EXPIRED : cause);
             }
+        }
 
-            if (o == null || getClass() != o.getClass()) {
-                return false;
-            }
+        @Nonnull
+        private SectionUsage getUsage() {
+            return new SectionUsage(entryCount, byteCount, evictedEntryCount, budget);
+        }
+    }
 
-            CacheEntryExpirationInfo cacheEntryExpirationInfo = (CacheEntryExpirationInfo) o;
+    @SuppressWarnings("PackageVisibleInnerClass")
+    static final class CacheEntryExpirationInfo<K> {
+        private final WeakReference<? extends InmemoryCache<K, ?>> cacheReference;
+        private final String section;
+        private final K key;
+        private final long expirationTimeMillis;
 
-            return section.equals(cacheEntryExpirationInfo.section)
-                    && key.equals(cacheEntryExpirationInfo.key)
-                    && expirationTimeMillis == cacheEntryExpirationInfo.expirationTimeMillis;
+        private CacheEntryExpirationInfo(@Nonnull WeakReference<? extends InmemoryCache<K, ?>> cacheReference,
+                                         @Nonnull String section, @Nonnull K key, long expirationTimeMillis) {
+            this.cacheReference = cacheReference;
+            this.section = section;
+            this.key = key;
+            this.expirationTimeMillis = expirationTimeMillis;
         }
 
-        @Override
-        public int hashCode() {
-            int result = Long.valueOf(expirationTimeMillis).hashCode();
-            result = 31 * result + section.hashCode();
-            result = 31 * result + key.hashCode();
-            return result;
+        /**
+         * @return cache of the entry or {@code null} if the cache has been garbage collected
+         */
+        @Nullable
+        public InmemoryCache<K, ?> getCache() {
+            return cacheReference.get();
+        }
+
+        public String getSection() {
+            return section;
+        }
+
+        public K getKey() {
+            return key;
+        }
+
+        public long getExpirationTimeMillis() {
+            return expirationTimeMillis;
         }
     }
 
@@ -0,0 +1,289 @@
+package com.codeforces.commons.cache;
+
+import com.codeforces.commons.cache.annotations.*;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Hand-written equivalent of the Guice proxy of {@link InmemoryCache}: each method annotated with
+ * {@link CacheSectionRead}, {@link CacheSectionWrite}, {@link CacheRead} or {@link CacheWrite} is overridden
+ * to hold the corresponding lock while the method of the superclass runs.
+ * <p/>
+ * New annotated methods of {@link InmemoryCache} should be overridden here as well.
+ */
+final class LockingInmemoryCache<K, V> extends InmemoryCache<K, V> {
+    @Override
+    public boolean contains(@Nonnull String section, @Nonnull K key) {
+        Lock lock = getSectionReadLock(section);
+        lock.lock();
+        try {
+            return super.contains(section, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull K key, @Nonnull V value) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.put(section, key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull K key, @Nonnull V value) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.putIfAbsent(section, key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public V get(@Nonnull String section, @Nonnull K key) {
+        Lock lock = getSectionReadLock(section);
+        lock.lock();
+        try {
+            return super.get(section, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    @Override
+    protected StoredValue<V> getStoredValue(@Nonnull String section, @Nonnull K key) {
+        Lock lock = getSectionReadLock(section);
+        lock.lock();
+        try {
+            return super.getStoredValue(section, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nonnull
+    @Override
+    protected V putLoadedValue(@Nonnull String section, @Nonnull K key, @Nonnull V value,
+                               boolean hasLifetime, long lifetimeMillis) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            return super.putLoadedValue(section, key, value, hasLifetime, lifetimeMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected boolean replace(@Nonnull String section, @Nonnull K key, @Nullable V expectedValue,
+                              @Nonnull V newValue, boolean hasLifetime, long lifetimeMillis) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            return super.replace(section, key, expectedValue, newValue, hasLifetime, lifetimeMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(@Nonnull String section, @Nonnull K key) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            return super.remove(section, key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nonnull
+    @Override
+    public Map<K, V> getAll(@Nonnull String section, @Nonnull Collection<K> keys) {
+        Lock lock = getSectionReadLock(section);
+        lock.lock();
+        try {
+            return super.getAll(section, keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<K, V> valueByKey) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.putAll(section, valueByKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<K, V> valueByKey, long lifetimeMillis) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.putAll(section, valueByKey, lifetimeMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<K> keys) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            return super.removeAll(section, keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clearSection(@Nonnull String section) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.clearSection(section);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    Map<String, Map<K, CacheEntry<V>>> detachCacheSections() {
+        Lock lock = getCacheEvent().getWriteLock();
+        lock.lock();
+        try {
+            return super.detachCacheSections();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void clearDetachedCacheSection(String section, Map<K, CacheEntry<V>> cacheEntryByKey) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.clearDetachedCacheSection(section, cacheEntryByKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    Map<K, CacheEntry<V>> getCacheSection(String section) {
+        Lock lock = getCacheEvent().getReadLock();
+        lock.lock();
+        try {
+            return super.getCacheSection(section);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nonnull
+    @Override
+    public SortedMap<String, SectionUsage> getSectionUsages() {
+        Lock lock = getCacheEvent().getReadLock();
+        lock.lock();
+        try {
+            return super.getSectionUsages();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    List<String> getSectionNames() {
+        Lock lock = getCacheEvent().getReadLock();
+        lock.lock();
+        try {
+            return super.getSectionNames();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    List<Map.Entry<K, CacheEntry<V>>> getActualCacheEntries(String section, long currentTimeMillis) {
+        Lock lock = getSectionReadLock(section);
+        lock.lock();
+        try {
+            return super.getActualCacheEntries(section, currentTimeMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    Map<K, CacheEntry<V>> createCacheSection(String section) {
+        Lock lock = getCacheEvent().getWriteLock();
+        lock.lock();
+        try {
+            return super.createCacheSection(section);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void addCacheEntryWithLifetime(String section, K key, V value, long lifetimeMillis) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.addCacheEntryWithLifetime(section, key, value, lifetimeMillis);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void addCacheEntryWithLifetimeIfAbsent(
+            String section, K key, V value, long lifetimeMillis, Map<K, CacheEntry<V>> cacheEntryByKey) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.addCacheEntryWithLifetimeIfAbsent(section, key, value, lifetimeMillis, cacheEntryByKey);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void removeCacheEntriesWithLifetimeIfNeeded(
+            String section, List<CacheEntryExpirationInfo<K>> expirationInfos) {
+        Lock lock = getSectionWriteLock(section);
+        lock.lock();
+        try {
+            super.removeCacheEntriesWithLifetimeIfNeeded(section, expirationInfos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Lock getSectionReadLock(String section) {
+        return getSectionEvent(section).getReadLock();
+    }
+
+    private Lock getSectionWriteLock(String section) {
+        return getSectionEvent(section).getWriteLock();
+    }
+}
@@ -0,0 +1,312 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * In-memory cache engine which keeps values in direct memory allocated by {@link OffHeapSlabAllocator}.
+ * Only the index of {@link ConcurrentInmemoryCache} with small value handles stays on the heap.
+ * <p/>
+ * The index is bounded by the occupied direct memory. If the allocator runs out of slabs before the bound
+ * is reached, the least valuable entries are evicted and the allocation is retried. If a value still
+ * can't be allocated (free chunks belong to other size classes), it is not stored and the previous value
+ * of the key is removed. Atomic replacements keep the previous value and fail with an exception instead.
+ * <p/>
+ * Removed values are copied to the heap for {@link RemovalListener removal listeners} before their memory
+ * is released, so listeners cost a copy of each removed value.
+ */
+final class OffHeapInmemoryCache extends Cache<String, byte[]> {
+    private static final int MAXIMAL_ALLOCATION_ATTEMPT_COUNT = 8;
+
+    private static final ConcurrentInmemoryCache.Weigher<OffHeapSlabAllocator.OffHeapValue> CHUNK_LENGTH_WEIGHER
+            = new ConcurrentInmemoryCache.Weigher<OffHeapSlabAllocator.OffHeapValue>() {
+        @Override
+        public long getWeight(@Nonnull OffHeapSlabAllocator.OffHeapValue value) {
+            return value.getChunkLength();
+        }
+    };
+
+    private final OffHeapSlabAllocator allocator;
+    private final RemovalNotifier<String, byte[]> removalNotifier = new RemovalNotifier<>();
+    private final ConcurrentInmemoryCache<String, OffHeapSlabAllocator.OffHeapValue> index;
+
+    OffHeapInmemoryCache(int concurrencyLevel, long maximumByteCount, long maximumSectionByteCount, int slabLength) {
+        this.allocator = new OffHeapSlabAllocator(maximumByteCount, slabLength);
+        this.index = ConcurrentInmemoryCache.newBoundedInstance(
+                concurrencyLevel, maximumByteCount, maximumSectionByteCount,
+                CHUNK_LENGTH_WEIGHER, new ReleasingRemovalHandler(removalNotifier)
+        );
+    }
+
+    @Nonnull
+    OffHeapStatistics getStatistics() {
+        return allocator.getStatistics();
+    }
+
+    @Override
+    public boolean validate() {
+        return index.validate();
+    }
+
+    @Override
+    public boolean contains(@Nonnull String section, @Nonnull String key) {
+        return index.contains(section, key);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        OffHeapSlabAllocator.OffHeapValue offHeapValue = allocate(section, key, value);
+        if (offHeapValue == null) {
+            index.remove(section, key);
+        } else {
+            index.put(section, key, offHeapValue);
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        OffHeapSlabAllocator.OffHeapValue offHeapValue = allocate(section, key, value);
+        if (offHeapValue == null) {
+            index.remove(section, key);
+        } else {
+            index.put(section, key, offHeapValue, lifetimeMillis);
+        }
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        putIfAbsent(section, key, value, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        if (index.contains(section, key)) {
+            return;
+        }
+
+        OffHeapSlabAllocator.OffHeapValue offHeapValue = allocate(section, key, value);
+        if (offHeapValue != null && !index.tryPutIfAbsent(section, key, offHeapValue, lifetimeMillis)) {
+            offHeapValue.release();
+        }
+    }
+
+    /**
+     * Copies value to the heap. Retries if the found value has been freed concurrently.
+     */
+    @Nullable
+    @Override
+    public byte[] get(@Nonnull String section, @Nonnull String key) {
+        while (true) {
+            OffHeapSlabAllocator.OffHeapValue offHeapValue = index.get(section, key);
+            if (offHeapValue == null) {
+                return null;
+            }
+
+            if (offHeapValue.retain()) {
+                try {
+                    return offHeapValue.read();
+                } finally {
+                    offHeapValue.release();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(@Nonnull String section, @Nonnull String key) {
+        return index.remove(section, key);
+    }
+
+    /**
+     * Compares values by contents, since each read copies the value to the heap.
+     *
+     * @throws IllegalStateException if the new value can't be allocated; the previous value is kept
+     */
+    @Override
+    protected boolean replace(@Nonnull String section, @Nonnull String key, @Nullable byte[] expectedValue,
+                              @Nonnull byte[] newValue, boolean hasLifetime, long lifetimeMillis) {
+        OffHeapSlabAllocator.OffHeapValue expectedOffHeapValue = null;
+
+        if (expectedValue != null) {
+            expectedOffHeapValue = index.get(section, key);
+            if (expectedOffHeapValue == null || !expectedOffHeapValue.retain()) {
+                return false;
+            }
+
+            try {
+                if (!Arrays.equals(expectedOffHeapValue.read(), expectedValue)) {
+                    return false;
+                }
+            } finally {
+                expectedOffHeapValue.release();
+            }
+        }
+
+        OffHeapSlabAllocator.OffHeapValue offHeapValue = allocate(section, key, newValue);
+        if (offHeapValue == null) {
+            throw new IllegalStateException(String.format(
+                    "Can't allocate %d bytes of direct memory for value (section='%s', key='%s').",
+                    newValue.length, section, key
+            ));
+        }
+
+        if (index.replace(section, key, expectedOffHeapValue, offHeapValue, hasLifetime, lifetimeMillis)) {
+            return true;
+        } else {
+            offHeapValue.release();
+            return false;
+        }
+    }
+
+    /**
+     * Fetches value handles from the index in a batch. Values freed concurrently are looked up again.
+     */
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        Map<String, byte[]> valueByKey = newValueByKeyMap(keys.size());
+
+        for (Map.Entry<String, OffHeapSlabAllocator.OffHeapValue> entry : index.getAll(section, keys).entrySet()) {
+            OffHeapSlabAllocator.OffHeapValue offHeapValue = entry.getValue();
+            byte[] value;
+
+            if (offHeapValue.retain()) {
+                try {
+                    value = offHeapValue.read();
+                } finally {
+                    offHeapValue.release();
+                }
+            } else {
+                value = get(section, entry.getKey());
+            }
+
+            if (value != null) {
+                valueByKey.put(entry.getKey(), value);
+            }
+        }
+
+        return valueByKey;
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        return index.removeAll(section, keys);
+    }
+
+    /**
+     * Copies values to the heap one by one. Values freed concurrently are skipped.
+     */
+    @Override
+    protected void visitStoredValues(@Nonnull final StoredValueVisitor<String, byte[]> visitor) throws IOException {
+        index.visitStoredValues(new StoredValueVisitor<String, OffHeapSlabAllocator.OffHeapValue>() {
+            @Override
+            public void visit(@Nonnull String section, @Nonnull String key,
+                              @Nonnull StoredValue<OffHeapSlabAllocator.OffHeapValue> storedValue)
+                    throws IOException {
+                OffHeapSlabAllocator.OffHeapValue offHeapValue = storedValue.getValue();
+                if (!offHeapValue.retain()) {
+                    return;
+                }
+
+                byte[] value;
+                try {
+                    value = offHeapValue.read();
+                } finally {
+                    offHeapValue.release();
+                }
+
+                visitor.visit(section, key, new StoredValue<>(value, storedValue.getExpirationTimeMillis()));
+            }
+        });
+    }
+
+    @Override
+    public void clearSection(@Nonnull String section) {
+        index.clearSection(section);
+    }
+
+    @Override
+    public void clear() {
+        index.clear();
+    }
+
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        removalNotifier.addListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        removalNotifier.removeListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return removalNotifier.getDroppedNotificationCount();
+    }
+
+    @Override
+    public void close() {
+        index.close();
+    }
+
+    @Nullable
+    private OffHeapSlabAllocator.OffHeapValue allocate(String section, String key, byte[] value) {
+        if (section == null) {
+            throw new IllegalArgumentException("Argument 'section' is 'null'.");
+        }
+
+        if (key == null) {
+            throw new IllegalArgumentException("Argument 'key' is 'null'.");
+        }
+
+        if (value == null) {
+            throw new IllegalArgumentException("Argument 'value' is 'null'.");
+        }
+
+        for (int attemptIndex = 0; attemptIndex < MAXIMAL_ALLOCATION_ATTEMPT_COUNT; ++attemptIndex) {
+            OffHeapSlabAllocator.OffHeapValue offHeapValue = allocator.allocate(value);
+            if (offHeapValue != null) {
+                return offHeapValue;
+            }
+
+            if (!index.evictWeight(Math.max(value.length, 1L))) {
+                break;
+            }
+        }
+
+        allocator.registerFailedAllocation();
+        return null;
+    }
+
+    /**
+     * Releases memory of removed values and reports them to listeners of the cache.
+     */
+    private static final class ReleasingRemovalHandler
+            implements ConcurrentInmemoryCache.RemovalHandler<String, OffHeapSlabAllocator.OffHeapValue> {
+        private final RemovalNotifier<String, byte[]> removalNotifier;
+
+        private ReleasingRemovalHandler(RemovalNotifier<String, byte[]> removalNotifier) {
+            this.removalNotifier = removalNotifier;
+        }
+
+        /**
+         * The index holds its own reference to the value until it is released here, so the value can be read.
+         */
+        @Override
+        public void onRemoval(@Nonnull String section, @Nonnull String key,
+                              @Nonnull OffHeapSlabAllocator.OffHeapValue value, @Nonnull RemovalCause cause) {
+            try {
+                if (removalNotifier.isActive()) {
+                    removalNotifier.notify(section, key, value.read(), cause);
+                }
+            } finally {
+                value.release();
+            }
+        }
+    }
+}
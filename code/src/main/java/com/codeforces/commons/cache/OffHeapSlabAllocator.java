@@ -0,0 +1,311 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Allocates chunks of direct memory for cached values.
+ * <p/>
+ * Memory is reserved in slabs of the fixed length. Each slab belongs to a size class and is divided into chunks
+ * of the same length, chunk lengths of neighbouring classes differ by {@link #CHUNK_LENGTH_FACTOR} times.
+ * Freed chunks are reused by the same size class, slabs are never returned to the operating system.
+ * Values which don't fit into the largest chunk get dedicated buffers.
+ */
+final class OffHeapSlabAllocator {
+    static final int DEFAULT_SLAB_LENGTH = 1024 * 1024;
+
+    private static final int MINIMAL_CHUNK_LENGTH = 64;
+    private static final double CHUNK_LENGTH_FACTOR = 1.25D;
+    private static final int CHUNK_ALIGNMENT = 8;
+
+    private final int slabLength;
+    private final long maximumByteCount;
+    private final SizeClass[] sizeClasses;
+    private final int[] chunkLengths;
+
+    private final AtomicLong reservedByteCount = new AtomicLong();
+    private final AtomicLong slabCount = new AtomicLong();
+    private final AtomicLong usedByteCount = new AtomicLong();
+    private final AtomicLong storedByteCount = new AtomicLong();
+    private final AtomicLong valueCount = new AtomicLong();
+    private final AtomicLong failedAllocationCount = new AtomicLong();
+
+    OffHeapSlabAllocator(long maximumByteCount, int slabLength) {
+        if (slabLength < MINIMAL_CHUNK_LENGTH) {
+            throw new IllegalArgumentException("Argument 'slabLength' should not be less than "
+                    + MINIMAL_CHUNK_LENGTH + '.');
+        }
+
+        if (maximumByteCount < slabLength) {
+            throw new IllegalArgumentException("Argument 'maximumByteCount' should not be less than slab length.");
+        }
+
+        this.slabLength = slabLength;
+        this.maximumByteCount = maximumByteCount;
+
+        int[] lengths = new int[64];
+        int sizeClassCount = 0;
+
+        for (long chunkLength = MINIMAL_CHUNK_LENGTH; chunkLength < slabLength; ) {
+            if (sizeClassCount == lengths.length) {
+                lengths = Arrays.copyOf(lengths, 2 * sizeClassCount);
+            }
+            lengths[sizeClassCount++] = (int) chunkLength;
+
+            chunkLength = (long) (chunkLength * CHUNK_LENGTH_FACTOR);
+            chunkLength = (chunkLength + CHUNK_ALIGNMENT - 1) / CHUNK_ALIGNMENT * CHUNK_ALIGNMENT;
+        }
+
+        if (sizeClassCount == lengths.length) {
+            lengths = Arrays.copyOf(lengths, sizeClassCount + 1);
+        }
+        lengths[sizeClassCount++] = slabLength;
+
+        this.chunkLengths = Arrays.copyOf(lengths, sizeClassCount);
+        this.sizeClasses = new SizeClass[sizeClassCount];
+        for (int sizeClassIndex = 0; sizeClassIndex < sizeClassCount; ++sizeClassIndex) {
+            sizeClasses[sizeClassIndex] = new SizeClass(chunkLengths[sizeClassIndex]);
+        }
+    }
+
+    /**
+     * Copies value into a chunk of direct memory.
+     *
+     * @return handle of the stored value with a single reference or {@code null} if there is no free memory
+     * @see #registerFailedAllocation()
+     */
+    @Nullable
+    OffHeapValue allocate(@Nonnull byte[] value) {
+        OffHeapValue offHeapValue;
+
+        if (value.length > slabLength) {
+            offHeapValue = reserve(value.length) ? new OffHeapValue(
+                    new Slab(this, ByteBuffer.allocateDirect(value.length), value.length, null), 0, value.length
+            ) : null;
+        } else {
+            int sizeClassIndex = Arrays.binarySearch(chunkLengths, value.length);
+            offHeapValue = sizeClasses[sizeClassIndex < 0 ? -sizeClassIndex - 1 : sizeClassIndex].allocate(
+                    value.length
+            );
+        }
+
+        if (offHeapValue == null) {
+            return null;
+        }
+
+        offHeapValue.write(value);
+        usedByteCount.addAndGet(offHeapValue.slab.chunkLength);
+        storedByteCount.addAndGet(value.length);
+        valueCount.incrementAndGet();
+        return offHeapValue;
+    }
+
+    /**
+     * Registers value which has not been stored because no memory could be allocated for it.
+     */
+    void registerFailedAllocation() {
+        failedAllocationCount.incrementAndGet();
+    }
+
+    @Nonnull
+    OffHeapStatistics getStatistics() {
+        return new OffHeapStatistics(
+                maximumByteCount, reservedByteCount.get(), slabCount.get(), usedByteCount.get(),
+                storedByteCount.get(), valueCount.get(), failedAllocationCount.get()
+        );
+    }
+
+    private boolean reserve(long byteCount) {
+        while (true) {
+            long reserved = reservedByteCount.get();
+            if (reserved + byteCount > maximumByteCount) {
+                return false;
+            }
+
+            if (reservedByteCount.compareAndSet(reserved, reserved + byteCount)) {
+                return true;
+            }
+        }
+    }
+
+    private void free(OffHeapValue offHeapValue) {
+        Slab slab = offHeapValue.slab;
+
+        usedByteCount.addAndGet(-slab.chunkLength);
+        storedByteCount.addAndGet(-offHeapValue.length);
+        valueCount.decrementAndGet();
+
+        if (slab.sizeClass == null) {
+            reservedByteCount.addAndGet(-slab.chunkLength);
+        } else {
+            slab.sizeClass.free(slab, offHeapValue.offset);
+        }
+    }
+
+    private final class SizeClass {
+        private final int chunkLength;
+        private final Lock lock = new ReentrantLock();
+
+        /**
+         * The newest slab of the class and offset of its first never used chunk.
+         */
+        private Slab currentSlab;
+        private int currentSlabOffset;
+
+        /**
+         * Stack of freed chunks.
+         */
+        private Slab[] freeChunkSlabs = new Slab[16];
+        private int[] freeChunkOffsets = new int[16];
+        private int freeChunkCount;
+
+        private SizeClass(int chunkLength) {
+            this.chunkLength = chunkLength;
+        }
+
+        @Nullable
+        private OffHeapValue allocate(int length) {
+            lock.lock();
+            try {
+                if (freeChunkCount > 0) {
+                    --freeChunkCount;
+                    Slab slab = freeChunkSlabs[freeChunkCount];
+                    freeChunkSlabs[freeChunkCount] = null;
+                    return new OffHeapValue(slab, freeChunkOffsets[freeChunkCount], length);
+                }
+
+                if (currentSlab == null || currentSlabOffset + chunkLength > slabLength) {
+                    if (!reserve(slabLength)) {
+                        return null;
+                    }
+
+                    currentSlab = new Slab(
+                            OffHeapSlabAllocator.this, ByteBuffer.allocateDirect(slabLength), chunkLength, this
+                    );
+                    currentSlabOffset = 0;
+                    slabCount.incrementAndGet();
+                }
+
+                OffHeapValue offHeapValue = new OffHeapValue(currentSlab, currentSlabOffset, length);
+                currentSlabOffset += chunkLength;
+                return offHeapValue;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void free(Slab slab, int offset) {
+            lock.lock();
+            try {
+                if (freeChunkCount == freeChunkSlabs.length) {
+                    freeChunkSlabs = Arrays.copyOf(freeChunkSlabs, 2 * freeChunkCount);
+                    freeChunkOffsets = Arrays.copyOf(freeChunkOffsets, 2 * freeChunkCount);
+                }
+
+                freeChunkSlabs[freeChunkCount] = slab;
+                freeChunkOffsets[freeChunkCount] = offset;
+                ++freeChunkCount;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class Slab {
+        private final OffHeapSlabAllocator allocator;
+        private final ByteBuffer buffer;
+        private final int chunkLength;
+
+        /**
+         * Size class of the slab or {@code null} if the slab is a dedicated buffer of the single value.
+         */
+        @Nullable
+        private final SizeClass sizeClass;
+
+        private Slab(OffHeapSlabAllocator allocator, ByteBuffer buffer, int chunkLength,
+                     @Nullable SizeClass sizeClass) {
+            this.allocator = allocator;
+            this.buffer = buffer;
+            this.chunkLength = chunkLength;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    /**
+     * Handle of the value stored in direct memory. This is the only on-heap object per value.
+     * <p/>
+     * The chunk is returned to the allocator when the last reference is released. The cache holds
+     * one reference while the value is stored, readers hold one more while copying the value,
+     * so a chunk is never reused under a reader.
+     */
+    static final class OffHeapValue {
+        private static final AtomicIntegerFieldUpdater<OffHeapValue> referenceCountUpdater
+                = AtomicIntegerFieldUpdater.newUpdater(OffHeapValue.class, "referenceCount");
+
+        private final Slab slab;
+        private final int offset;
+        private final int length;
+
+        @SuppressWarnings("unused")
+        private volatile int referenceCount = 1;
+
+        private OffHeapValue(Slab slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        int getChunkLength() {
+            return slab.chunkLength;
+        }
+
+        /**
+         * @return {@code true} iff the reference has been acquired, {@code false} if the value is already freed
+         */
+        boolean retain() {
+            while (true) {
+                int count = referenceCount;
+                if (count <= 0) {
+                    return false;
+                }
+
+                if (referenceCountUpdater.compareAndSet(this, count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            int count = referenceCountUpdater.decrementAndGet(this);
+            if (count == 0) {
+                slab.allocator.free(this);
+            } else if (count < 0) {
+                throw new IllegalStateException("Off-heap value is released more times than retained.");
+            }
+        }
+
+        /**
+         * Should be called by the holder of a reference.
+         */
+        @Nonnull
+        byte[] read() {
+            byte[] value = new byte[length];
+            ByteBuffer buffer = slab.buffer.duplicate();
+            buffer.position(offset);
+            buffer.get(value);
+            return value;
+        }
+
+        private void write(byte[] value) {
+            ByteBuffer buffer = slab.buffer.duplicate();
+            buffer.position(offset);
+            buffer.put(value);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.codeforces.commons.cache;
+
+/**
+ * Snapshot of direct memory usage of the off-heap {@link InmemoryByteCache}.
+ */
+public final class OffHeapStatistics {
+    private final long maximumByteCount;
+    private final long reservedByteCount;
+    private final long slabCount;
+    private final long usedByteCount;
+    private final long storedByteCount;
+    private final long valueCount;
+    private final long failedAllocationCount;
+
+    OffHeapStatistics(long maximumByteCount, long reservedByteCount, long slabCount, long usedByteCount,
+                      long storedByteCount, long valueCount, long failedAllocationCount) {
+        this.maximumByteCount = maximumByteCount;
+        this.reservedByteCount = reservedByteCount;
+        this.slabCount = slabCount;
+        this.usedByteCount = usedByteCount;
+        this.storedByteCount = storedByteCount;
+        this.valueCount = valueCount;
+        this.failedAllocationCount = failedAllocationCount;
+    }
+
+    /**
+     * @return maximal amount of direct memory the cache may reserve
+     */
+    public long getMaximumByteCount() {
+        return maximumByteCount;
+    }
+
+    /**
+     * @return amount of direct memory reserved by slabs and dedicated buffers of large values
+     */
+    public long getReservedByteCount() {
+        return reservedByteCount;
+    }
+
+    /**
+     * @return count of reserved slabs
+     */
+    public long getSlabCount() {
+        return slabCount;
+    }
+
+    /**
+     * @return total length of chunks occupied by values
+     */
+    public long getUsedByteCount() {
+        return usedByteCount;
+    }
+
+    /**
+     * @return total length of values, which is less than {@link #getUsedByteCount()} by the internal fragmentation
+     */
+    public long getStoredByteCount() {
+        return storedByteCount;
+    }
+
+    /**
+     * @return count of values stored off-heap
+     */
+    public long getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @return count of values which were not stored because of direct memory shortage
+     */
+    public long getFailedAllocationCount() {
+        return failedAllocationCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "OffHeapStatistics {maximumByteCount=%d, reservedByteCount=%d, slabCount=%d, usedByteCount=%d, "
+                        + "storedByteCount=%d, valueCount=%d, failedAllocationCount=%d}",
+                maximumByteCount, reservedByteCount, slabCount, usedByteCount,
+                storedByteCount, valueCount, failedAllocationCount
+        );
+    }
+}
@@ -0,0 +1,117 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Settings of refresh-ahead for values read by {@link Cache#get(String, Object, Cache.Loader, long)}.
+ * A value which has passed {@code refreshFraction} of its lifetime is returned as is, and its reload
+ * is started in background. If the value expires before the reload succeeds, it is still returned
+ * during {@code gracePeriodMillis} after the expiration, and each such read retries the reload.
+ * <p/>
+ * Reloads are executed by a bounded pool of daemon threads owned by the policy, so the policy may be
+ * shared by several caches. Reloads not fitting into the queue are skipped until the next read.
+ */
+public final class RefreshAheadPolicy {
+    public static final int DEFAULT_THREAD_COUNT = 2;
+    public static final int DEFAULT_MAXIMAL_QUEUE_LENGTH = 1000;
+
+    private static final AtomicLong policyIndex = new AtomicLong();
+
+    private final double refreshFraction;
+    private final long gracePeriodMillis;
+    private final ThreadPoolExecutor executor;
+
+    public RefreshAheadPolicy(double refreshFraction, long gracePeriodMillis) {
+        this(refreshFraction, gracePeriodMillis, DEFAULT_THREAD_COUNT, DEFAULT_MAXIMAL_QUEUE_LENGTH);
+    }
+
+    /**
+     * @param refreshFraction    fraction of the lifetime, after which the value is reloaded, in range {@code (0, 1)}
+     * @param gracePeriodMillis  time after the expiration, during which the stale value is returned
+     *                           if reloads fail, or {@code 0} to never return stale values
+     * @param threadCount        maximal count of concurrent reloads
+     * @param maximalQueueLength maximal count of reloads waiting for a thread
+     */
+    public RefreshAheadPolicy(double refreshFraction, long gracePeriodMillis, int threadCount,
+                              int maximalQueueLength) {
+        if (refreshFraction <= 0.0D || refreshFraction >= 1.0D) {
+            throw new IllegalArgumentException("Argument 'refreshFraction' should be in range (0, 1).");
+        }
+
+        if (gracePeriodMillis < 0L) {
+            throw new IllegalArgumentException("Argument 'gracePeriodMillis' should be non-negative.");
+        }
+
+        if (threadCount <= 0) {
+            throw new IllegalArgumentException("Argument 'threadCount' should be positive.");
+        }
+
+        if (maximalQueueLength <= 0) {
+            throw new IllegalArgumentException("Argument 'maximalQueueLength' should be positive.");
+        }
+
+        this.refreshFraction = refreshFraction;
+        this.gracePeriodMillis = gracePeriodMillis;
+
+        final long index = policyIndex.incrementAndGet();
+        this.executor = new ThreadPoolExecutor(
+                threadCount, threadCount, 1L, TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(maximalQueueLength),
+                new ThreadFactory() {
+                    private final AtomicLong threadIndex = new AtomicLong();
+
+                    @Nonnull
+                    @Override
+                    public Thread newThread(@Nonnull Runnable r) {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        thread.setName(RefreshAheadPolicy.class.getSimpleName() + '-' + index
+                                + "#RefreshThread-" + threadIndex.incrementAndGet());
+                        return thread;
+                    }
+                }
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public double getRefreshFraction() {
+        return refreshFraction;
+    }
+
+    public long getGracePeriodMillis() {
+        return gracePeriodMillis;
+    }
+
+    /**
+     * @return {@code true} iff the value expiring at {@code expirationTimeMillis} should be reloaded now
+     */
+    boolean isRefreshNeeded(long expirationTimeMillis, long lifetimeMillis, long currentTimeMillis) {
+        long refreshAheadMillis = (long) (lifetimeMillis * (1.0D - refreshFraction));
+        return currentTimeMillis >= expirationTimeMillis - refreshAheadMillis;
+    }
+
+    /**
+     * @return {@code true} iff the given time is after the expiration time, but within the grace period
+     */
+    boolean isInGracePeriod(long expirationTimeMillis, long currentTimeMillis) {
+        return currentTimeMillis > expirationTimeMillis
+                && currentTimeMillis - expirationTimeMillis <= gracePeriodMillis;
+    }
+
+    /**
+     * @return {@code false} iff the reload has been rejected since the queue is full
+     */
+    boolean execute(@Nonnull Runnable reload) {
+        try {
+            executor.execute(reload);
+            return true;
+        } catch (RejectedExecutionException ignored) {
+            return false;
+        }
+    }
+}
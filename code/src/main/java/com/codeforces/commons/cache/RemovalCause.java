@@ -0,0 +1,31 @@
+package com.codeforces.commons.cache;
+
+/**
+ * Reason of a value leaving the cache, reported by {@link RemovalNotification}.
+ */
+public enum RemovalCause {
+    /**
+     * Value has been removed by {@code remove} or {@code removeAll}.
+     */
+    EXPLICIT,
+
+    /**
+     * Value has been replaced by a new value of the same key.
+     */
+    REPLACED,
+
+    /**
+     * Value has expired. Expired values removed or replaced explicitly are reported as expired too.
+     */
+    EXPIRED,
+
+    /**
+     * Value has been evicted because the cache or its section has exceeded its size limit.
+     */
+    EVICTED,
+
+    /**
+     * Value has been removed by {@code clearSection} or {@code clear}.
+     */
+    CLEARED
+}
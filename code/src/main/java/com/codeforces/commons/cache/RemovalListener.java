@@ -0,0 +1,24 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+
+/**
+ * Is notified of values leaving the cache.
+ * <p/>
+ * Notifications are delivered asynchronously in batches by a shared pool of threads, never by the thread which
+ * has removed the value and never under locks of the cache. Batches of a cache are delivered one at a time
+ * in the order of removals. A slow listener delays notifications of other listeners of the same cache.
+ * <p/>
+ * Removing threads are never blocked by listeners, so if listeners don't keep up with removals, notifications
+ * beyond a bounded backlog are dropped. Dropped notifications are counted by
+ * {@link Cache#getDroppedRemovalNotificationCount()}.
+ *
+ * @see Cache#addRemovalListener(RemovalListener)
+ */
+public interface RemovalListener<K, V> {
+    /**
+     * @param notifications removed values in the order of removals
+     */
+    void onRemoval(@Nonnull List<RemovalNotification<K, V>> notifications);
+}
@@ -0,0 +1,45 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Value which has left the cache, passed to {@link RemovalListener}.
+ */
+public final class RemovalNotification<K, V> {
+    private final String section;
+    private final K key;
+    private final V value;
+    private final RemovalCause cause;
+
+    RemovalNotification(@Nonnull String section, @Nonnull K key, @Nonnull V value, @Nonnull RemovalCause cause) {
+        this.section = section;
+        this.key = key;
+        this.value = value;
+        this.cause = cause;
+    }
+
+    @Nonnull
+    public String getSection() {
+        return section;
+    }
+
+    @Nonnull
+    public K getKey() {
+        return key;
+    }
+
+    @Nonnull
+    public V getValue() {
+        return value;
+    }
+
+    @Nonnull
+    public RemovalCause getCause() {
+        return cause;
+    }
+
+    @Override
+    public String toString() {
+        return "RemovalNotification {section='" + section + "', key=" + key + ", cause=" + cause + '}';
+    }
+}
@@ -0,0 +1,172 @@
+package com.codeforces.commons.cache;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues notifications of removed values of a single cache and delivers them to {@link RemovalListener listeners}
+ * in batches by a thread pool shared by all caches. Each notifier has at most one dispatch task in the pool,
+ * so batches are delivered in the order of removals and a notifier with many removals doesn't block others.
+ * <p/>
+ * Queueing is cheap and never blocks, so it may be called under locks of the cache. For the same reason there is
+ * no backpressure: notifications exceeding {@link #MAXIMAL_PENDING_NOTIFICATION_COUNT} pending ones are dropped,
+ * reported to the log and counted by {@link #getDroppedNotificationCount()}. Doesn't reference the cache,
+ * so an unclosed cache can be finalized.
+ */
+final class RemovalNotifier<K, V> {
+    private static final Logger logger = Logger.getLogger(RemovalNotifier.class);
+
+    private static final int BATCH_SIZE = 256;
+    static final int MAXIMAL_PENDING_NOTIFICATION_COUNT = 65536;
+
+    private static final int DISPATCH_THREAD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final int MAXIMAL_DISPATCH_QUEUE_LENGTH = 1024;
+
+    private static final ThreadPoolExecutor executor = newExecutor();
+
+    private final List<RemovalListener<K, V>> listeners = new CopyOnWriteArrayList<>();
+
+    private final Queue<RemovalNotification<K, V>> pendingNotifications = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingNotificationCount = new AtomicInteger();
+    private final AtomicLong droppedNotificationCount = new AtomicLong();
+    private final AtomicLong totalDroppedNotificationCount = new AtomicLong();
+
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    void addListener(@Nonnull RemovalListener<K, V> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Argument 'listener' is 'null'.");
+        }
+
+        listeners.add(listener);
+    }
+
+    void removeListener(@Nonnull RemovalListener<K, V> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Argument 'listener' is 'null'.");
+        }
+
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return {@code true} iff there are listeners, so removals should be reported
+     */
+    boolean isActive() {
+        return !listeners.isEmpty();
+    }
+
+    void notify(@Nonnull String section, @Nonnull K key, @Nonnull V value, @Nonnull RemovalCause cause) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+
+        if (pendingNotificationCount.incrementAndGet() > MAXIMAL_PENDING_NOTIFICATION_COUNT) {
+            pendingNotificationCount.decrementAndGet();
+            droppedNotificationCount.incrementAndGet();
+            totalDroppedNotificationCount.incrementAndGet();
+            return;
+        }
+
+        pendingNotifications.add(new RemovalNotification<>(section, key, value, cause));
+        scheduleDispatch();
+    }
+
+    /**
+     * @return count of notifications dropped since the creation of the notifier
+     */
+    long getDroppedNotificationCount() {
+        return totalDroppedNotificationCount.get();
+    }
+
+    private void scheduleDispatch() {
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(dispatchTask);
+            } catch (RejectedExecutionException ignored) {
+                // Pending notifications will be dispatched after the next removal.
+                dispatchScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Delivers a single batch and schedules a new task for the rest, so notifiers sharing the pool take turns.
+     */
+    private void dispatch() {
+        try {
+            long droppedCount = droppedNotificationCount.getAndSet(0L);
+            if (droppedCount > 0L) {
+                logger.warn(droppedCount + " removal notifications have been dropped: too many pending notifications.");
+            }
+
+            List<RemovalNotification<K, V>> notifications = new ArrayList<>();
+            RemovalNotification<K, V> notification;
+            while (notifications.size() < BATCH_SIZE && (notification = pendingNotifications.poll()) != null) {
+                notifications.add(notification);
+            }
+            pendingNotificationCount.addAndGet(-notifications.size());
+
+            if (!notifications.isEmpty()) {
+                deliver(Collections.unmodifiableList(notifications));
+            }
+        } finally {
+            dispatchScheduled.set(false);
+        }
+
+        if (!pendingNotifications.isEmpty()) {
+            scheduleDispatch();
+        }
+    }
+
+    private void deliver(List<RemovalNotification<K, V>> notifications) {
+        for (RemovalListener<K, V> listener : listeners) {
+            try {
+                listener.onRemoval(notifications);
+            } catch (RuntimeException e) {
+                logger.error("Got unexpected exception while notifying " + listener + " of removals.", e);
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                DISPATCH_THREAD_COUNT, DISPATCH_THREAD_COUNT, 1L, TimeUnit.MINUTES,
+                new ArrayBlockingQueue<Runnable>(MAXIMAL_DISPATCH_QUEUE_LENGTH), new ThreadFactory() {
+            private final AtomicLong threadIndex = new AtomicLong();
+
+            @Nonnull
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName(RemovalNotifier.class.getSimpleName() + "#DispatchThread-"
+                        + threadIndex.incrementAndGet());
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+}
@@ -0,0 +1,56 @@
+package com.codeforces.commons.cache;
+
+/**
+ * Limits of the count and the total weight of values in a single section of {@link InmemoryCache}.
+ * When a section exceeds its budget, values of this section only are evicted.
+ */
+public final class SectionBudget {
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /**
+     * Budget which never causes eviction.
+     */
+    public static final SectionBudget UNLIMITED_BUDGET = new SectionBudget(UNLIMITED, UNLIMITED);
+
+    private final long maximalEntryCount;
+    private final long maximalByteCount;
+
+    /**
+     * @param maximalEntryCount maximal count of values in the section or {@link #UNLIMITED}
+     * @param maximalByteCount  maximal total weight of values in the section or {@link #UNLIMITED};
+     *                          values are weighed by the weigher of the cache
+     */
+    public SectionBudget(long maximalEntryCount, long maximalByteCount) {
+        if (maximalEntryCount <= 0L) {
+            throw new IllegalArgumentException("Argument 'maximalEntryCount' should be positive.");
+        }
+
+        if (maximalByteCount <= 0L) {
+            throw new IllegalArgumentException("Argument 'maximalByteCount' should be positive.");
+        }
+
+        this.maximalEntryCount = maximalEntryCount;
+        this.maximalByteCount = maximalByteCount;
+    }
+
+    public long getMaximalEntryCount() {
+        return maximalEntryCount;
+    }
+
+    public long getMaximalByteCount() {
+        return maximalByteCount;
+    }
+
+    boolean isExceeded(long entryCount, long byteCount) {
+        return entryCount > maximalEntryCount || byteCount > maximalByteCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "SectionBudget {maximalEntryCount=%s, maximalByteCount=%s}",
+                maximalEntryCount == UNLIMITED ? "unlimited" : Long.toString(maximalEntryCount),
+                maximalByteCount == UNLIMITED ? "unlimited" : Long.toString(maximalByteCount)
+        );
+    }
+}
@@ -0,0 +1,54 @@
+package com.codeforces.commons.cache;
+
+/**
+ * Snapshot of resources used by a single section of {@link InmemoryCache}.
+ */
+public final class SectionUsage {
+    private final long entryCount;
+    private final long byteCount;
+    private final long evictedEntryCount;
+    private final SectionBudget budget;
+
+    SectionUsage(long entryCount, long byteCount, long evictedEntryCount, SectionBudget budget) {
+        this.entryCount = entryCount;
+        this.byteCount = byteCount;
+        this.evictedEntryCount = evictedEntryCount;
+        this.budget = budget;
+    }
+
+    /**
+     * @return count of values including expired ones which have not been removed yet
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return total weight of values or {@code 0} if the cache has no weigher
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return count of values evicted since the section was created because the budget was exceeded
+     */
+    public long getEvictedEntryCount() {
+        return evictedEntryCount;
+    }
+
+    /**
+     * @return budget of the section
+     */
+    public SectionBudget getBudget() {
+        return budget;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "SectionUsage {entryCount=%d, byteCount=%d, evictedEntryCount=%d, budget=%s}",
+                entryCount, byteCount, evictedEntryCount, budget
+        );
+    }
+}
@@ -0,0 +1,1144 @@
+package com.codeforces.commons.cache;
+
+import com.codeforces.commons.io.FileUtil;
+import com.codeforces.commons.text.StringUtil;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Byte cache which stores values in large append-only memory-mapped segment files (Bitcask-style)
+ * and keeps an in-memory directory of keys pointing to the latest record of each key.
+ * <p/>
+ * Puts, removals and section clearings append records to the active segment, which is replaced by a new one
+ * when it is full. Each record carries a sequence number, so the latest record of a key wins regardless
+ * of the segment order. Full segments are immutable and get hint files listing their records without values,
+ * which allows to rebuild the key directory on startup without reading values.
+ * <p/>
+ * Background thread drops expired entries from the key directory and compacts immutable segments when
+ * the share of dead records (overwritten, removed or expired) in them exceeds the configured ratio.
+ * Compaction copies live records into new segments and deletes the old ones.
+ */
+public class SegmentLogByteCache extends ByteCache {
+    private static final Logger logger = Logger.getLogger(SegmentLogByteCache.class);
+
+    public static final int DEFAULT_MAXIMAL_SEGMENT_LENGTH = (int) (64L * FileUtil.BYTES_PER_MB);
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1L);
+    public static final double DEFAULT_COMPACTION_GARBAGE_RATIO = 0.5D;
+
+    private static final String SEGMENT_FILE_PREFIX = "segment-";
+    private static final String DATA_FILE_EXT = ".data";
+    private static final String HINT_FILE_EXT = ".hint";
+    private static final String TEMP_FILE_EXT = ".tmp";
+    private static final String COMPACTION_MANIFEST_FILE_NAME = "compaction.manifest";
+
+    private static final byte PUT_RECORD_TYPE = 1;
+    private static final byte REMOVE_RECORD_TYPE = 2;
+    private static final byte CLEAR_SECTION_RECORD_TYPE = 3;
+
+    /**
+     * Record layout: checksum (int), type (byte), sequence (long), expiration time (long),
+     * section length (unsigned short), key length (unsigned short), value length (int), section, key, value.
+     * The checksum covers all bytes of the record after itself.
+     */
+    private static final int RECORD_HEADER_LENGTH = 29;
+    private static final int BYTES_PER_CHECKSUM = Integer.SIZE / Byte.SIZE;
+    private static final int BYTES_PER_LONG = Long.SIZE / Byte.SIZE;
+    private static final int MAXIMAL_NAME_LENGTH = 0xFFFF;
+
+    private static final int HINT_FILE_MAGIC = 0x53474C48;
+
+    private static final ByteOrder CACHE_BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final Charset NAME_ENCODING = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final int maximalSegmentLength;
+    private final double compactionGarbageRatio;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, KeyDirectoryEntry>> keyDirectory
+            = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, Segment> segmentById = new ConcurrentHashMap<>();
+    private final AtomicLong lastSegmentId = new AtomicLong();
+
+    /**
+     * Lock order is: compaction lock, then write lock.
+     */
+    private final Lock compactionLock = new ReentrantLock();
+    private final Lock writeLock = new ReentrantLock();
+
+    /**
+     * Guarded by write lock.
+     */
+    private Segment activeSegment;
+    private long nextSequence;
+
+    private volatile boolean closed;
+
+    private final ScheduledExecutorService maintenanceService;
+
+    public SegmentLogByteCache(@Nonnull File directory) {
+        this(directory, DEFAULT_MAXIMAL_SEGMENT_LENGTH, DEFAULT_COMPACTION_INTERVAL_MILLIS,
+                DEFAULT_COMPACTION_GARBAGE_RATIO);
+    }
+
+    /**
+     * Opens cache in the directory and rebuilds key directory from the segments found in it.
+     *
+     * @param directory                directory to store segments in
+     * @param maximalSegmentLength     length of segment files, values which don't fit into a segment
+     *                                 get dedicated segments
+     * @param compactionIntervalMillis interval between checks of expired entries and dead records
+     * @param compactionGarbageRatio   share of dead records in immutable segments which triggers compaction
+     * @throws IllegalArgumentException if the directory can't be opened
+     */
+    public SegmentLogByteCache(@Nonnull File directory, int maximalSegmentLength, long compactionIntervalMillis,
+                               double compactionGarbageRatio) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Argument 'directory' is 'null'.");
+        }
+
+        if (maximalSegmentLength < RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Argument 'maximalSegmentLength' should not be less than "
+                    + RECORD_HEADER_LENGTH + '.');
+        }
+
+        if (compactionIntervalMillis < 1L) {
+            throw new IllegalArgumentException("Argument 'compactionIntervalMillis' should be positive.");
+        }
+
+        if (compactionGarbageRatio <= 0.0D || compactionGarbageRatio > 1.0D) {
+            throw new IllegalArgumentException("Argument 'compactionGarbageRatio' should be in range (0, 1].");
+        }
+
+        this.directory = directory;
+        this.maximalSegmentLength = maximalSegmentLength;
+        this.compactionGarbageRatio = compactionGarbageRatio;
+
+        List<Segment> segmentsWithoutHint;
+
+        try {
+            FileUtil.ensureDirectoryExists(directory);
+            finishCompaction();
+            segmentsWithoutHint = load();
+            activeSegment = createSegment(maximalSegmentLength);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't open cache in directory '" + directory + "'.", e);
+        }
+
+        maintenanceService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Nonnull
+            @Override
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setDaemon(true);
+                thread.setName(SegmentLogByteCache.class.getSimpleName() + '-' + getIndex() + "#MaintenanceThread");
+                return thread;
+            }
+        });
+
+        for (Segment segment : segmentsWithoutHint) {
+            scheduleHintFileWriting(segment);
+        }
+
+        maintenanceService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    removeExpiredEntries();
+                    if (isCompactionNeeded()) {
+                        compact();
+                    }
+                } catch (RuntimeException e) {
+                    logger.error("Got unexpected exception while maintaining cache in directory '"
+                            + SegmentLogByteCache.this.directory + "'.", e);
+                }
+            }
+        }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public final boolean validate() {
+        return !closed && directory.isDirectory();
+    }
+
+    @Override
+    public boolean contains(@Nonnull String section, @Nonnull String key) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+
+        KeyDirectoryEntry entry = getEntry(section, key);
+        return entry != null && !entry.isExpired(System.currentTimeMillis());
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        internalPut(section, key, value, Long.MAX_VALUE, true);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        internalPut(section, key, value, lifetimeMillis, true);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        internalPut(section, key, value, Long.MAX_VALUE, false);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        internalPut(section, key, value, lifetimeMillis, false);
+    }
+
+    private void internalPut(String section, String key, byte[] value, long lifetimeMillis, boolean overwrite) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+
+        if (value == null) {
+            throw new IllegalArgumentException(String.format(
+                    "Argument 'value' can't be 'null' (section='%s', key='%s').", section, key
+            ));
+        }
+
+        if (lifetimeMillis < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Argument 'lifetimeMillis' must be a positive long integer (section='%s', key='%s').", section, key
+            ));
+        }
+
+        long expirationTimeMillis = getExpirationTimeMillis(lifetimeMillis);
+
+        writeLock.lock();
+        try {
+            if (!overwrite) {
+                KeyDirectoryEntry existingEntry = getEntry(section, key);
+                if (existingEntry != null && !existingEntry.isExpired(System.currentTimeMillis())) {
+                    return;
+                }
+            }
+
+            KeyDirectoryEntry entry = append(PUT_RECORD_TYPE, section, key, value, expirationTimeMillis);
+            if (entry == null) {
+                return;
+            }
+
+            ConcurrentMap<String, KeyDirectoryEntry> sectionEntries = keyDirectory.get(section);
+            if (sectionEntries == null) {
+                sectionEntries = new ConcurrentHashMap<>();
+                keyDirectory.put(section, sectionEntries);
+            }
+
+            entry.segment.liveByteCount.addAndGet(entry.recordLength);
+
+            KeyDirectoryEntry previousEntry = sectionEntries.put(key, entry);
+            if (previousEntry != null) {
+                previousEntry.segment.liveByteCount.addAndGet(-previousEntry.recordLength);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Nullable
+    @Override
+    public byte[] get(@Nonnull String section, @Nonnull String key) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+
+        ConcurrentMap<String, KeyDirectoryEntry> sectionEntries = keyDirectory.get(section);
+        if (sectionEntries == null) {
+            return null;
+        }
+
+        KeyDirectoryEntry entry = sectionEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.isExpired(System.currentTimeMillis())) {
+            removeEntry(sectionEntries, key, entry);
+            return null;
+        }
+
+        try {
+            return readValue(entry);
+        } catch (IOException e) {
+            logger.error(String.format(
+                    "Got I/O-exception while reading value (section='%s', key='%s').", section, key
+            ), e);
+            removeEntry(sectionEntries, key, entry);
+            return null;
+        }
+    }
+
+    @Override
+    public boolean remove(@Nonnull String section, @Nonnull String key) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+
+        writeLock.lock();
+        try {
+            ConcurrentMap<String, KeyDirectoryEntry> sectionEntries = keyDirectory.get(section);
+            if (sectionEntries == null) {
+                return false;
+            }
+
+            KeyDirectoryEntry entry = sectionEntries.remove(key);
+            if (entry == null) {
+                return false;
+            }
+
+            entry.segment.liveByteCount.addAndGet(-entry.recordLength);
+            append(REMOVE_RECORD_TYPE, section, key, null, Long.MAX_VALUE);
+            return !entry.isExpired(System.currentTimeMillis());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Appends records of the batch holding the write lock, so they are not interleaved with other writes.
+     */
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        putAll(section, valueByKey, Long.MAX_VALUE);
+    }
+
+    /**
+     * Appends records of the batch holding the write lock, so they are not interleaved with other writes.
+     */
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        ensureCacheSectionName(section);
+        ensureValueByKey(valueByKey);
+        ensureCacheKeyNames(valueByKey.keySet());
+
+        writeLock.lock();
+        try {
+            for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+                internalPut(section, entry.getKey(), entry.getValue(), lifetimeMillis, true);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyNames(keys);
+
+        writeLock.lock();
+        try {
+            return super.removeAll(section, keys);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a single record and drops entries of the section from the key directory.
+     */
+    @Override
+    public void clearSection(@Nonnull String section) {
+        ensureCacheSectionName(section);
+
+        writeLock.lock();
+        try {
+            ConcurrentMap<String, KeyDirectoryEntry> sectionEntries = keyDirectory.remove(section);
+            if (sectionEntries == null) {
+                return;
+            }
+
+            append(CLEAR_SECTION_RECORD_TYPE, section, "", null, Long.MAX_VALUE);
+
+            for (KeyDirectoryEntry entry : sectionEntries.values()) {
+                entry.segment.liveByteCount.addAndGet(-entry.recordLength);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes all segments and starts a new one.
+     */
+    @Override
+    public void clear() {
+        compactionLock.lock();
+        try {
+            writeLock.lock();
+            try {
+                keyDirectory.clear();
+
+                for (Segment segment : segmentById.values()) {
+                    deleteSegment(segment);
+                }
+
+                try {
+                    activeSegment = createSegment(maximalSegmentLength);
+                } catch (IOException e) {
+                    logger.error("Got I/O-exception while creating segment in directory '" + directory + "'.", e);
+                    activeSegment = null;
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Copies live records of all immutable segments into new segments and deletes the old ones.
+     * Is called by the background thread when the share of dead records is high enough.
+     */
+    public void compact() {
+        compactionLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+
+            List<Segment> inputSegments = new ArrayList<>();
+
+            writeLock.lock();
+            try {
+                for (Segment segment : segmentById.values()) {
+                    if (segment != activeSegment) {
+                        inputSegments.add(segment);
+                    }
+                }
+            } finally {
+                writeLock.unlock();
+            }
+
+            if (inputSegments.isEmpty()) {
+                return;
+            }
+
+            CompactionWriter compactionWriter = new CompactionWriter();
+            for (Segment inputSegment : inputSegments) {
+                compactionWriter.inputSegment = inputSegment;
+                scanRecords(inputSegment, compactionWriter);
+            }
+
+            for (Segment outputSegment : compactionWriter.outputSegments) {
+                outputSegment.buffer.force();
+                writeHintFile(outputSegment);
+            }
+
+            File manifestFile = new File(directory, COMPACTION_MANIFEST_FILE_NAME);
+            StringBuilder manifest = new StringBuilder();
+            for (Segment inputSegment : inputSegments) {
+                manifest.append(inputSegment.id).append('\n');
+            }
+            writeFileAtomically(manifestFile, manifest.toString().getBytes(NAME_ENCODING));
+
+            for (Segment inputSegment : inputSegments) {
+                deleteSegment(inputSegment);
+            }
+
+            FileUtil.removeFile(manifestFile);
+
+            logger.info(String.format(
+                    "Compacted %d segments into %d segments in directory '%s'.",
+                    inputSegments.size(), compactionWriter.outputSegments.size(), directory
+            ));
+        } catch (IOException e) {
+            logger.error("Got I/O-exception while compacting segments in directory '" + directory + "'.", e);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Stops background thread and writes hint file of the active segment.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        maintenanceService.shutdown();
+
+        compactionLock.lock();
+        try {
+            writeLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+
+                if (activeSegment != null) {
+                    activeSegment.buffer.force();
+                    writeHintFile(activeSegment);
+                }
+            } catch (IOException e) {
+                logger.error("Got I/O-exception while closing cache in directory '" + directory + "'.", e);
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return StringUtil.toString(this, false, "directory", "maximalSegmentLength", "compactionGarbageRatio");
+    }
+
+    @Nullable
+    private KeyDirectoryEntry getEntry(String section, String key) {
+        ConcurrentMap<String, KeyDirectoryEntry> sectionEntries = keyDirectory.get(section);
+        return sectionEntries == null ? null : sectionEntries.get(key);
+    }
+
+    private static void removeEntry(
+            ConcurrentMap<String, KeyDirectoryEntry> sectionEntries, String key, KeyDirectoryEntry entry) {
+        if (sectionEntries.remove(key, entry)) {
+            entry.segment.liveByteCount.addAndGet(-entry.recordLength);
+        }
+    }
+
+    private static long getExpirationTimeMillis(long lifetimeMillis) {
+        if (lifetimeMillis == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+
+        long currentTimeMillis = System.currentTimeMillis();
+        return currentTimeMillis + lifetimeMillis <= currentTimeMillis
+                ? Long.MAX_VALUE
+                : currentTimeMillis + lifetimeMillis;
+    }
+
+    /**
+     * Appends record to the active segment. Should be called under write lock.
+     *
+     * @return key directory entry of the record or {@code null} if the record can't be written
+     */
+    @Nullable
+    private KeyDirectoryEntry append(
+            byte type, String section, String key, @Nullable byte[] value, long expirationTimeMillis) {
+        if (closed || activeSegment == null) {
+            logger.warn(String.format(
+                    "Can't write record (section='%s', key='%s') since cache is closed or broken.", section, key
+            ));
+            return null;
+        }
+
+        byte[] record = encodeRecord(type, nextSequence, expirationTimeMillis, section, key, value);
+
+        try {
+            if (activeSegment.length + record.length > activeSegment.buffer.capacity()) {
+                Segment fullSegment = activeSegment;
+                activeSegment = createSegment(Math.max(maximalSegmentLength, record.length));
+                fullSegment.buffer.force();
+                scheduleHintFileWriting(fullSegment);
+            }
+        } catch (IOException e) {
+            logger.error(String.format(
+                    "Got I/O-exception while creating segment for record (section='%s', key='%s').", section, key
+            ), e);
+            return null;
+        }
+
+        Segment segment = activeSegment;
+        int offset = segment.length;
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(offset);
+        buffer.put(record);
+        segment.length = offset + record.length;
+
+        return new KeyDirectoryEntry(segment, offset, record.length, expirationTimeMillis, nextSequence++);
+    }
+
+    private static byte[] encodeRecord(byte type, long sequence, long expirationTimeMillis,
+                                       String section, String key, @Nullable byte[] value) {
+        byte[] sectionBytes = section.getBytes(NAME_ENCODING);
+        byte[] keyBytes = key.getBytes(NAME_ENCODING);
+
+        if (sectionBytes.length > MAXIMAL_NAME_LENGTH || keyBytes.length > MAXIMAL_NAME_LENGTH) {
+            throw new IllegalArgumentException(String.format(
+                    "Section or key is too long (section='%s', key='%s').", section, key
+            ));
+        }
+
+        int valueLength = value == null ? 0 : value.length;
+        if ((long) RECORD_HEADER_LENGTH + sectionBytes.length + keyBytes.length + valueLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format(
+                    "Value is too long (section='%s', key='%s').", section, key
+            ));
+        }
+
+        byte[] record = new byte[RECORD_HEADER_LENGTH + sectionBytes.length + keyBytes.length + valueLength];
+        ByteBuffer buffer = ByteBuffer.wrap(record).order(CACHE_BYTE_ORDER);
+
+        buffer.putInt(0)
+                .put(type)
+                .putLong(sequence)
+                .putLong(expirationTimeMillis)
+                .putShort((short) sectionBytes.length)
+                .putShort((short) keyBytes.length)
+                .putInt(valueLength)
+                .put(sectionBytes)
+                .put(keyBytes);
+
+        if (value != null) {
+            buffer.put(value);
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(record, BYTES_PER_CHECKSUM, record.length - BYTES_PER_CHECKSUM);
+        buffer.putInt(0, (int) checksum.getValue());
+
+        return record;
+    }
+
+    private static byte[] readValue(KeyDirectoryEntry entry) throws IOException {
+        byte[] record = new byte[entry.recordLength];
+        ByteBuffer segmentBuffer = entry.segment.buffer.duplicate();
+        segmentBuffer.position(entry.offset);
+        segmentBuffer.get(record);
+
+        ByteBuffer buffer = ByteBuffer.wrap(record).order(CACHE_BYTE_ORDER);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(record, BYTES_PER_CHECKSUM, record.length - BYTES_PER_CHECKSUM);
+        if (buffer.getInt(0) != (int) checksum.getValue()) {
+            throw new IOException("Record checksum validation failed.");
+        }
+
+        buffer.position(RECORD_HEADER_LENGTH - 2 * BYTES_PER_CHECKSUM);
+        int sectionLength = buffer.getShort() & MAXIMAL_NAME_LENGTH;
+        int keyLength = buffer.getShort() & MAXIMAL_NAME_LENGTH;
+
+        return Arrays.copyOfRange(record, RECORD_HEADER_LENGTH + sectionLength + keyLength, record.length);
+    }
+
+    /**
+     * Reads records of the segment. Stops at the end of the segment or at the first invalid record,
+     * which is the end of data in the segment which was active before a crash.
+     *
+     * @return length of valid data in the segment
+     */
+    private static int scanRecords(Segment segment, RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate().order(CACHE_BYTE_ORDER);
+        int limit = segment.length >= 0 ? segment.length : buffer.capacity();
+        byte[] chunk = new byte[64 * 1024];
+        int offset = 0;
+
+        while (offset + RECORD_HEADER_LENGTH <= limit) {
+            buffer.position(offset);
+
+            int expectedChecksum = buffer.getInt();
+            byte type = buffer.get();
+            if (type != PUT_RECORD_TYPE && type != REMOVE_RECORD_TYPE && type != CLEAR_SECTION_RECORD_TYPE) {
+                break;
+            }
+
+            long sequence = buffer.getLong();
+            long expirationTimeMillis = buffer.getLong();
+            int sectionLength = buffer.getShort() & MAXIMAL_NAME_LENGTH;
+            int keyLength = buffer.getShort() & MAXIMAL_NAME_LENGTH;
+            int valueLength = buffer.getInt();
+
+            long recordLength = (long) RECORD_HEADER_LENGTH + sectionLength + keyLength + valueLength;
+            if (valueLength < 0 || offset + recordLength > limit) {
+                break;
+            }
+
+            CRC32 checksum = new CRC32();
+            buffer.position(offset + BYTES_PER_CHECKSUM);
+            for (int remaining = (int) recordLength - BYTES_PER_CHECKSUM; remaining > 0; ) {
+                int length = Math.min(remaining, chunk.length);
+                buffer.get(chunk, 0, length);
+                checksum.update(chunk, 0, length);
+                remaining -= length;
+            }
+
+            if (expectedChecksum != (int) checksum.getValue()) {
+                break;
+            }
+
+            byte[] sectionBytes = new byte[sectionLength];
+            byte[] keyBytes = new byte[keyLength];
+            buffer.position(offset + RECORD_HEADER_LENGTH);
+            buffer.get(sectionBytes);
+            buffer.get(keyBytes);
+
+            visitor.visit(
+                    type, sequence, expirationTimeMillis, offset, (int) recordLength,
+                    new String(sectionBytes, NAME_ENCODING), new String(keyBytes, NAME_ENCODING)
+            );
+
+            offset += (int) recordLength;
+        }
+
+        return offset;
+    }
+
+    private void scheduleHintFileWriting(final Segment segment) {
+        if (maintenanceService.isShutdown()) {
+            return;
+        }
+
+        maintenanceService.execute(new Runnable() {
+            @Override
+            public void run() {
+                compactionLock.lock();
+                try {
+                    if (segmentById.get(segment.id) == segment) {
+                        writeHintFile(segment);
+                    }
+                } catch (IOException e) {
+                    logger.error("Got I/O-exception while writing hint file '" + segment.hintFile + "'.", e);
+                } finally {
+                    compactionLock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Hint file layout: magic (int), segment length (int), records without values
+     * (type, sequence, expiration time, offset, record length, section, key), zero byte, checksum (long).
+     * Section and key are written as in data records: length (unsigned short) followed by UTF-8 bytes.
+     */
+    private static void writeHintFile(Segment segment) throws IOException {
+        ByteArrayOutputStream hintBytes = new ByteArrayOutputStream();
+        CheckedOutputStream checkedOutputStream = new CheckedOutputStream(hintBytes, new CRC32());
+        final DataOutputStream outputStream = new DataOutputStream(checkedOutputStream);
+
+        outputStream.writeInt(HINT_FILE_MAGIC);
+        outputStream.writeInt(segment.length);
+
+        scanRecords(segment, new RecordVisitor() {
+            @Override
+            public void visit(byte type, long sequence, long expirationTimeMillis, int offset, int recordLength,
+                              String section, String key) throws IOException {
+                outputStream.writeByte(type);
+                outputStream.writeLong(sequence);
+                outputStream.writeLong(expirationTimeMillis);
+                outputStream.writeInt(offset);
+                outputStream.writeInt(recordLength);
+                writeName(outputStream, section);
+                writeName(outputStream, key);
+            }
+        });
+
+        outputStream.writeByte(0);
+        outputStream.flush();
+        outputStream.writeLong(checkedOutputStream.getChecksum().getValue());
+        outputStream.close();
+
+        writeFileAtomically(segment.hintFile, hintBytes.toByteArray());
+    }
+
+    /**
+     * @return {@code true} iff records have been read from a valid hint file
+     */
+    private static boolean readHintFile(Segment segment, RecordVisitor visitor) throws IOException {
+        if (!segment.hintFile.isFile()) {
+            return false;
+        }
+
+        byte[] hintBytes = FileUtil.getBytes(segment.hintFile);
+        if (hintBytes.length < 2 * BYTES_PER_CHECKSUM + 1 + BYTES_PER_LONG) {
+            return false;
+        }
+
+        int checksumOffset = hintBytes.length - BYTES_PER_LONG;
+        CRC32 checksum = new CRC32();
+        checksum.update(hintBytes, 0, checksumOffset);
+        if (ByteBuffer.wrap(hintBytes, checksumOffset, BYTES_PER_LONG).getLong() != checksum.getValue()) {
+            logger.warn("Ignoring corrupted hint file '" + segment.hintFile + "'.");
+            return false;
+        }
+
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(hintBytes, 0, checksumOffset));
+        if (inputStream.readInt() != HINT_FILE_MAGIC) {
+            return false;
+        }
+
+        int segmentLength = inputStream.readInt();
+        if (segmentLength < 0 || segmentLength > segment.buffer.capacity()) {
+            return false;
+        }
+
+        byte type;
+        while ((type = inputStream.readByte()) != 0) {
+            long sequence = inputStream.readLong();
+            long expirationTimeMillis = inputStream.readLong();
+            int offset = inputStream.readInt();
+            int recordLength = inputStream.readInt();
+            visitor.visit(type, sequence, expirationTimeMillis, offset, recordLength,
+                    readName(inputStream), readName(inputStream));
+        }
+
+        segment.length = segmentLength;
+        return true;
+    }
+
+    /**
+     * Names are limited by {@link #MAXIMAL_NAME_LENGTH} bytes when records are written.
+     */
+    private static void writeName(DataOutputStream outputStream, String name) throws IOException {
+        byte[] nameBytes = name.getBytes(NAME_ENCODING);
+        outputStream.writeShort(nameBytes.length);
+        outputStream.write(nameBytes);
+    }
+
+    private static String readName(DataInputStream inputStream) throws IOException {
+        byte[] nameBytes = new byte[inputStream.readUnsignedShort()];
+        inputStream.readFully(nameBytes);
+        return new String(nameBytes, NAME_ENCODING);
+    }
+
+    private static void writeFileAtomically(File file, byte[] bytes) throws IOException {
+        File tempFile = new File(file.getPath() + TEMP_FILE_EXT);
+
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            outputStream.write(bytes);
+            outputStream.getFD().sync();
+        }
+
+        FileUtil.renameFile(tempFile, file, true);
+    }
+
+    /**
+     * Deletes input segments of the compaction which has been interrupted after all its output was written.
+     */
+    private void finishCompaction() throws IOException {
+        File manifestFile = new File(directory, COMPACTION_MANIFEST_FILE_NAME);
+        if (!manifestFile.isFile()) {
+            return;
+        }
+
+        for (String line : new String(FileUtil.getBytes(manifestFile), NAME_ENCODING).split("\n")) {
+            if (!line.isEmpty()) {
+                long segmentId = Long.parseLong(line.trim());
+                FileUtil.deleteTotally(getDataFile(segmentId));
+                FileUtil.deleteTotally(getHintFile(segmentId));
+            }
+        }
+
+        FileUtil.removeFile(manifestFile);
+    }
+
+    /**
+     * Loads all segments of the directory and fills the key directory.
+     *
+     * @return segments which have no valid hint files
+     */
+    private List<Segment> load() throws IOException {
+        final Map<String, Map<String, KeyDirectoryEntry>> latestEntries = new HashMap<>();
+        final Map<String, Long> clearSequenceBySection = new HashMap<>();
+        final AtomicLong maximalSequence = new AtomicLong(-1L);
+        List<Segment> segmentsWithoutHint = new ArrayList<>();
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Can't list files in directory '" + directory + "'.");
+        }
+
+        for (File file : files) {
+            String fileName = file.getName();
+
+            if (fileName.endsWith(TEMP_FILE_EXT)) {
+                FileUtil.deleteTotally(file);
+                continue;
+            }
+
+            if (!fileName.startsWith(SEGMENT_FILE_PREFIX) || !fileName.endsWith(DATA_FILE_EXT)) {
+                continue;
+            }
+
+            long segmentId;
+            try {
+                segmentId = Long.parseLong(fileName.substring(
+                        SEGMENT_FILE_PREFIX.length(), fileName.length() - DATA_FILE_EXT.length()
+                ));
+            } catch (NumberFormatException ignored) {
+                continue;
+            }
+
+            lastSegmentId.set(Math.max(lastSegmentId.get(), segmentId));
+
+            if (file.length() == 0L) {
+                FileUtil.deleteTotally(file);
+                FileUtil.deleteTotally(getHintFile(segmentId));
+                continue;
+            }
+
+            final Segment segment = openSegment(segmentId);
+
+            RecordVisitor visitor = new RecordVisitor() {
+                @Override
+                public void visit(byte type, long sequence, long expirationTimeMillis, int offset, int recordLength,
+                                  String section, String key) {
+                    if (sequence > maximalSequence.get()) {
+                        maximalSequence.set(sequence);
+                    }
+
+                    if (type == CLEAR_SECTION_RECORD_TYPE) {
+                        Long clearSequence = clearSequenceBySection.get(section);
+                        if (clearSequence == null || clearSequence < sequence) {
+                            clearSequenceBySection.put(section, sequence);
+                        }
+                        return;
+                    }
+
+                    Map<String, KeyDirectoryEntry> sectionEntries = latestEntries.get(section);
+                    if (sectionEntries == null) {
+                        sectionEntries = new HashMap<>();
+                        latestEntries.put(section, sectionEntries);
+                    }
+
+                    KeyDirectoryEntry entry = sectionEntries.get(key);
+                    if (entry == null || entry.sequence < sequence) {
+                        sectionEntries.put(key, new KeyDirectoryEntry(
+                                type == PUT_RECORD_TYPE ? segment : null,
+                                offset, recordLength, expirationTimeMillis, sequence
+                        ));
+                    }
+                }
+            };
+
+            if (!readHintFile(segment, visitor)) {
+                segment.length = -1;
+                segment.length = scanRecords(segment, visitor);
+                segmentsWithoutHint.add(segment);
+            }
+
+            segmentById.put(segmentId, segment);
+        }
+
+        long currentTimeMillis = System.currentTimeMillis();
+
+        for (Map.Entry<String, Map<String, KeyDirectoryEntry>> sectionEntry : latestEntries.entrySet()) {
+            String section = sectionEntry.getKey();
+            Long clearSequence = clearSequenceBySection.get(section);
+            ConcurrentMap<String, KeyDirectoryEntry> sectionEntries = new ConcurrentHashMap<>();
+
+            for (Map.Entry<String, KeyDirectoryEntry> keyEntry : sectionEntry.getValue().entrySet()) {
+                KeyDirectoryEntry entry = keyEntry.getValue();
+                if (entry.segment != null && (clearSequence == null || clearSequence < entry.sequence)
+                        && !entry.isExpired(currentTimeMillis)) {
+                    sectionEntries.put(keyEntry.getKey(), entry);
+                    entry.segment.liveByteCount.addAndGet(entry.recordLength);
+                }
+            }
+
+            if (!sectionEntries.isEmpty()) {
+                keyDirectory.put(section, sectionEntries);
+            }
+        }
+
+        nextSequence = maximalSequence.get() + 1L;
+        return segmentsWithoutHint;
+    }
+
+    private void removeExpiredEntries() {
+        long currentTimeMillis = System.currentTimeMillis();
+
+        for (ConcurrentMap<String, KeyDirectoryEntry> sectionEntries : keyDirectory.values()) {
+            for (Map.Entry<String, KeyDirectoryEntry> entry : sectionEntries.entrySet()) {
+                if (entry.getValue().isExpired(currentTimeMillis)) {
+                    removeEntry(sectionEntries, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private boolean isCompactionNeeded() {
+        long totalByteCount = 0L;
+        long liveByteCount = 0L;
+
+        writeLock.lock();
+        try {
+            for (Segment segment : segmentById.values()) {
+                if (segment != activeSegment) {
+                    totalByteCount += segment.length;
+                    liveByteCount += segment.liveByteCount.get();
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+
+        long garbageByteCount = totalByteCount - liveByteCount;
+        return garbageByteCount > 0L && garbageByteCount >= totalByteCount * compactionGarbageRatio;
+    }
+
+    private Segment createSegment(int capacity) throws IOException {
+        long segmentId = lastSegmentId.incrementAndGet();
+        File dataFile = getDataFile(segmentId);
+
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "rw")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L, capacity);
+        }
+
+        Segment segment = new Segment(segmentId, dataFile, getHintFile(segmentId), buffer);
+        segmentById.put(segmentId, segment);
+        return segment;
+    }
+
+    private Segment openSegment(long segmentId) throws IOException {
+        File dataFile = getDataFile(segmentId);
+
+        MappedByteBuffer buffer;
+        try (RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0L, file.length());
+        }
+
+        return new Segment(segmentId, dataFile, getHintFile(segmentId), buffer);
+    }
+
+    /**
+     * Removes segment files. Readers which have found entries of the segment still can read them
+     * since the file stays mapped until the buffer is collected.
+     */
+    private void deleteSegment(Segment segment) {
+        segmentById.remove(segment.id);
+
+        try {
+            FileUtil.deleteTotally(segment.hintFile);
+            FileUtil.deleteTotally(segment.dataFile);
+        } catch (IOException e) {
+            logger.error("Got I/O-exception while deleting segment '" + segment.dataFile + "'.", e);
+        }
+    }
+
+    private File getDataFile(long segmentId) {
+        return new File(directory, String.format("%s%019d%s", SEGMENT_FILE_PREFIX, segmentId, DATA_FILE_EXT));
+    }
+
+    private File getHintFile(long segmentId) {
+        return new File(directory, String.format("%s%019d%s", SEGMENT_FILE_PREFIX, segmentId, HINT_FILE_EXT));
+    }
+
+    private interface RecordVisitor {
+        void visit(byte type, long sequence, long expirationTimeMillis, int offset, int recordLength,
+                   String section, String key) throws IOException;
+    }
+
+    /**
+     * Copies records which are still referenced by the key directory into output segments.
+     */
+    private final class CompactionWriter implements RecordVisitor {
+        private final List<Segment> outputSegments = new ArrayList<>();
+        private Segment inputSegment;
+        private Segment outputSegment;
+
+        @Override
+        public void visit(byte type, long sequence, long expirationTimeMillis, int offset, int recordLength,
+                          String section, String key) throws IOException {
+            if (type != PUT_RECORD_TYPE) {
+                return;
+            }
+
+            ConcurrentMap<String, KeyDirectoryEntry> sectionEntries = keyDirectory.get(section);
+            if (sectionEntries == null) {
+                return;
+            }
+
+            KeyDirectoryEntry entry = sectionEntries.get(key);
+            if (entry == null || entry.segment != inputSegment || entry.offset != offset
+                    || entry.isExpired(System.currentTimeMillis())) {
+                return;
+            }
+
+            if (outputSegment == null || outputSegment.length + recordLength > outputSegment.buffer.capacity()) {
+                outputSegment = createSegment(Math.max(maximalSegmentLength, recordLength));
+                outputSegments.add(outputSegment);
+            }
+
+            byte[] record = new byte[recordLength];
+            ByteBuffer inputBuffer = entry.segment.buffer.duplicate();
+            inputBuffer.position(offset);
+            inputBuffer.get(record);
+
+            int outputOffset = outputSegment.length;
+            ByteBuffer outputBuffer = outputSegment.buffer.duplicate();
+            outputBuffer.position(outputOffset);
+            outputBuffer.put(record);
+            outputSegment.length = outputOffset + recordLength;
+
+            KeyDirectoryEntry newEntry = new KeyDirectoryEntry(
+                    outputSegment, outputOffset, recordLength, expirationTimeMillis, sequence
+            );
+
+            outputSegment.liveByteCount.addAndGet(recordLength);
+            if (!sectionEntries.replace(key, entry, newEntry)) {
+                outputSegment.liveByteCount.addAndGet(-recordLength);
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final File dataFile;
+        private final File hintFile;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Length of written data or {@code -1} if it is unknown yet.
+         */
+        private volatile int length;
+
+        /**
+         * Total length of records referenced by the key directory.
+         */
+        private final AtomicLong liveByteCount = new AtomicLong();
+
+        private Segment(long id, File dataFile, File hintFile, MappedByteBuffer buffer) {
+            this.id = id;
+            this.dataFile = dataFile;
+            this.hintFile = hintFile;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class KeyDirectoryEntry {
+        /**
+         * Segment of the record or {@code null} if the record is a removal mark (only while loading segments).
+         */
+        private final Segment segment;
+        private final int offset;
+        private final int recordLength;
+        private final long expirationTimeMillis;
+        private final long sequence;
+
+        private KeyDirectoryEntry(
+                Segment segment, int offset, int recordLength, long expirationTimeMillis, long sequence) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.expirationTimeMillis = expirationTimeMillis;
+            this.sequence = sequence;
+        }
+
+        private boolean isExpired(long currentTimeMillis) {
+            return currentTimeMillis > expirationTimeMillis;
+        }
+    }
+}
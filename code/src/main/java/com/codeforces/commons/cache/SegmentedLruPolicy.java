@@ -0,0 +1,158 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Weighted segmented LRU eviction policy. New elements are placed into the probation segment
+ * and are promoted to the protected segment on the second access, so a scan of one-time elements
+ * can't flush frequently used ones. All operations take constant time.
+ * <p/>
+ * The class is not thread-safe: callers must serialize access to the policy and to its nodes.
+ */
+final class SegmentedLruPolicy<E> {
+    private static final double PROTECTED_WEIGHT_FRACTION = 0.8D;
+
+    private final long maximumWeight;
+    private final long maximumProtectedWeight;
+
+    private final Node<E> probationHead = new Node<>(null, 0L);
+    private final Node<E> protectedHead = new Node<>(null, 0L);
+
+    private long weight;
+    private long protectedWeight;
+
+    SegmentedLruPolicy(long maximumWeight) {
+        if (maximumWeight < 1L) {
+            throw new IllegalArgumentException("Argument 'maximumWeight' should be positive.");
+        }
+
+        this.maximumWeight = maximumWeight;
+        this.maximumProtectedWeight = (long) (maximumWeight * PROTECTED_WEIGHT_FRACTION);
+    }
+
+    long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    long getWeight() {
+        return weight;
+    }
+
+    boolean isOverflowed() {
+        return weight > maximumWeight;
+    }
+
+    /**
+     * Links node as the most recently used one in the probation segment.
+     */
+    void add(@Nonnull Node<E> node) {
+        if (node.linked) {
+            throw new IllegalStateException("Node is already linked.");
+        }
+
+        linkLast(probationHead, node);
+        node.linked = true;
+        node.protectedSegment = false;
+        weight += node.weight;
+    }
+
+    /**
+     * Promotes node to the protected segment or moves it to the tail of the protected segment.
+     * Ignores nodes which are not linked to the policy.
+     */
+    void onAccess(@Nonnull Node<E> node) {
+        if (!node.linked) {
+            return;
+        }
+
+        unlink(node);
+
+        if (!node.protectedSegment) {
+            node.protectedSegment = true;
+            protectedWeight += node.weight;
+        }
+
+        linkLast(protectedHead, node);
+
+        while (protectedWeight > maximumProtectedWeight && protectedHead.next != protectedHead) {
+            Node<E> demotedNode = protectedHead.next;
+            unlink(demotedNode);
+            demotedNode.protectedSegment = false;
+            protectedWeight -= demotedNode.weight;
+            linkLast(probationHead, demotedNode);
+        }
+    }
+
+    /**
+     * Unlinks node from the policy. Ignores nodes which are not linked to the policy.
+     */
+    void remove(@Nonnull Node<E> node) {
+        if (!node.linked) {
+            return;
+        }
+
+        unlink(node);
+        node.linked = false;
+        weight -= node.weight;
+
+        if (node.protectedSegment) {
+            node.protectedSegment = false;
+            protectedWeight -= node.weight;
+        }
+    }
+
+    /**
+     * @return least recently used element of the probation segment or, if it is empty,
+     *         of the protected segment; {@code null} if the policy is empty
+     */
+    @Nullable
+    Node<E> getVictim() {
+        if (probationHead.next != probationHead) {
+            return probationHead.next;
+        }
+
+        if (protectedHead.next != protectedHead) {
+            return protectedHead.next;
+        }
+
+        return null;
+    }
+
+    private static <E> void linkLast(Node<E> head, Node<E> node) {
+        node.previous = head.previous;
+        node.next = head;
+        head.previous.next = node;
+        head.previous = node;
+    }
+
+    private static <E> void unlink(Node<E> node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = null;
+        node.next = null;
+    }
+
+    static final class Node<E> {
+        private final E element;
+        private final long weight;
+
+        private Node<E> previous = this;
+        private Node<E> next = this;
+        private boolean linked;
+        private boolean protectedSegment;
+
+        Node(@Nullable E element, long weight) {
+            this.element = element;
+            this.weight = weight;
+        }
+
+        E getElement() {
+            return element;
+        }
+
+        long getWeight() {
+            return weight;
+        }
+    }
+}
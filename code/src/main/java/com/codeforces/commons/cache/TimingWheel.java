@@ -0,0 +1,229 @@
+package com.codeforces.commons.cache;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hierarchical timing wheel. Schedules elements for expiration in constant time and passes expired elements
+ * to the handler in batches, one batch per tick.
+ * <p/>
+ * Scheduling threads only append elements to a lock-free queue, which is drained by the wheel thread on each tick.
+ * Each of {@link #LEVEL_COUNT} levels consists of {@link #BUCKET_COUNT} buckets, a bucket of level {@code L}
+ * covers {@code BUCKET_COUNT^L} ticks. Elements of a higher level bucket are cascaded to the lower levels
+ * when the wheel reaches the bucket. The wheel thread parks while there are no scheduled elements.
+ */
+final class TimingWheel<E> {
+    private static final Logger logger = Logger.getLogger(TimingWheel.class);
+
+    private static final int BUCKET_BIT_COUNT = 6;
+    private static final int BUCKET_COUNT = 1 << BUCKET_BIT_COUNT;
+    private static final int BUCKET_MASK = BUCKET_COUNT - 1;
+    private static final int LEVEL_COUNT = 5;
+
+    private final long tickMillis;
+    private final Handler<E> handler;
+
+    private final Queue<Timer<E>> scheduledTimers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Buckets and all other fields below are owned by the wheel thread.
+     */
+    @SuppressWarnings("unchecked")
+    private final Timer<E>[][] buckets = new Timer[LEVEL_COUNT][BUCKET_COUNT];
+    private Timer<E> overflowTimers;
+    private long timerCount;
+    private long currentTick;
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private volatile boolean idle;
+
+    private final Thread thread;
+
+    TimingWheel(@Nonnull String name, long tickMillis, @Nonnull Handler<E> handler) {
+        if (tickMillis < 1L) {
+            throw new IllegalArgumentException("Argument 'tickMillis' should be positive.");
+        }
+
+        this.tickMillis = tickMillis;
+        this.handler = handler;
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<E> expiredElements = new ArrayList<>();
+
+                while (!stopped.get()) {
+                    try {
+                        advance(expiredElements);
+                    } catch (RuntimeException e) {
+                        logger.error("Got unexpected exception while advancing timing wheel '" + getName() + "'.", e);
+                    }
+                }
+            }
+        }, name);
+        this.thread.setDaemon(true);
+    }
+
+    String getName() {
+        return thread.getName();
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        if (!stopped.getAndSet(true)) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Schedules element for expiration. The element is passed to the handler not earlier
+     * than {@code expirationTimeMillis} and, in the absence of long pauses, not later than one tick after it.
+     */
+    void schedule(@Nonnull E element, long expirationTimeMillis) {
+        long expirationTick = expirationTimeMillis / tickMillis;
+        if (expirationTick * tickMillis < expirationTimeMillis) {
+            ++expirationTick;
+        }
+
+        scheduledTimers.add(new Timer<>(element, expirationTick));
+
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void advance(List<E> expiredElements) {
+        drainScheduledTimers(expiredElements);
+
+        if (timerCount == 0L && expiredElements.isEmpty()) {
+            idle = true;
+            if (scheduledTimers.isEmpty() && !stopped.get()) {
+                LockSupport.park(this);
+            }
+            idle = false;
+            currentTick = Math.max(currentTick, System.currentTimeMillis() / tickMillis);
+            return;
+        }
+
+        long nowTick = System.currentTimeMillis() / tickMillis;
+
+        while (currentTick < nowTick) {
+            ++currentTick;
+            cascade(expiredElements);
+
+            Timer<E> timer = detachBucket(0, (int) (currentTick & BUCKET_MASK));
+            while (timer != null) {
+                Timer<E> nextTimer = timer.next;
+                --timerCount;
+                expiredElements.add(timer.element);
+                timer = nextTimer;
+            }
+        }
+
+        if (!expiredElements.isEmpty()) {
+            try {
+                handler.handle(expiredElements);
+            } finally {
+                expiredElements.clear();
+            }
+        }
+
+        long sleepMillis = (currentTick + 1L) * tickMillis - System.currentTimeMillis();
+        if (sleepMillis > 0L) {
+            LockSupport.parkNanos(this, sleepMillis * 1000000L);
+        }
+    }
+
+    private void drainScheduledTimers(List<E> expiredElements) {
+        Timer<E> timer;
+        while ((timer = scheduledTimers.poll()) != null) {
+            insert(timer, expiredElements);
+        }
+    }
+
+    /**
+     * Moves timers of the higher level buckets reached at the current tick to the lower levels.
+     */
+    private void cascade(List<E> expiredElements) {
+        for (int level = LEVEL_COUNT; level >= 1; --level) {
+            int shift = BUCKET_BIT_COUNT * level;
+            if ((currentTick & ((1L << shift) - 1L)) != 0L) {
+                continue;
+            }
+
+            Timer<E> timer;
+            if (level == LEVEL_COUNT) {
+                timer = overflowTimers;
+                overflowTimers = null;
+            } else {
+                timer = detachBucket(level, (int) ((currentTick >>> shift) & BUCKET_MASK));
+            }
+
+            while (timer != null) {
+                Timer<E> nextTimer = timer.next;
+                --timerCount;
+                insert(timer, expiredElements);
+                timer = nextTimer;
+            }
+        }
+    }
+
+    private void insert(Timer<E> timer, List<E> expiredElements) {
+        long delta = timer.expirationTick - currentTick;
+        if (delta <= 0L) {
+            expiredElements.add(timer.element);
+            return;
+        }
+
+        ++timerCount;
+
+        for (int level = 0; level < LEVEL_COUNT; ++level) {
+            if (delta >>> (BUCKET_BIT_COUNT * (level + 1)) == 0L) {
+                int bucketIndex = (int) ((timer.expirationTick >>> (BUCKET_BIT_COUNT * level)) & BUCKET_MASK);
+                timer.next = buckets[level][bucketIndex];
+                buckets[level][bucketIndex] = timer;
+                return;
+            }
+        }
+
+        timer.next = overflowTimers;
+        overflowTimers = timer;
+    }
+
+    private Timer<E> detachBucket(int level, int bucketIndex) {
+        Timer<E> timer = buckets[level][bucketIndex];
+        buckets[level][bucketIndex] = null;
+        return timer;
+    }
+
+    interface Handler<E> {
+        /**
+         * Handles elements expired at the same tick. Is called from the wheel thread.
+         *
+         * @param expiredElements expired elements, the list is reused after the method returns
+         */
+        void handle(@Nonnull List<E> expiredElements);
+    }
+
+    private static final class Timer<E> {
+        private final E element;
+        private final long expirationTick;
+        private Timer<E> next;
+
+        private Timer(E element, long expirationTick) {
+            this.element = element;
+            this.expirationTick = expirationTick;
+        }
+    }
+}
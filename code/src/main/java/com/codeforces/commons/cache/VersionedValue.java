@@ -0,0 +1,39 @@
+package com.codeforces.commons.cache;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Value of {@link ByteCache} with its version to be passed
+ * to {@link ByteCache#compareAndSet(String, String, long, byte[], long) compareAndSet(...)}.
+ */
+public final class VersionedValue {
+    private final byte[] value;
+    private final long version;
+
+    public VersionedValue(@Nonnull byte[] value, long version) {
+        if (value == null) {
+            throw new IllegalArgumentException("Argument 'value' is 'null'.");
+        }
+
+        if (version == ByteCache.NO_VERSION) {
+            throw new IllegalArgumentException("Argument 'version' can't be equal to ByteCache.NO_VERSION.");
+        }
+
+        this.value = value;
+        this.version = version;
+    }
+
+    @Nonnull
+    public byte[] getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("VersionedValue {length=%d, version=%016x}", value.length, version);
+    }
+}
@@ -1,20 +1,24 @@
 package com.codeforces.commons.cache.util;
 
 import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.RemovalListener;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Date;
+import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Writes values to the underlying cache in the background. Pending writes are kept in bounded queues,
+ * repeated writes of the same key are coalesced and flushed in batches. Writes are spread over
+ * writer lanes by hash of section and key, so writes of a key keep their order.
+ *
  * @author Maxim Shipko (sladethe@gmail.com)
  *         Date: 26.01.12
  */
-class AsynchronousByteCache extends ByteCache {
+public class AsynchronousByteCache extends ByteCache {
     private static final Logger logger = Logger.getLogger(AsynchronousByteCache.class);
 
     private static final int THREAD_COUNT = 2 * Runtime.getRuntime().availableProcessors();
@@ -42,28 +46,64 @@ class AsynchronousByteCache extends ByteCache {
         }
     });
 
-    private final ExecutorService executionService = Executors.newSingleThreadExecutor(new ThreadFactory() {
-        private final AtomicInteger threadIndex = new AtomicInteger();
+    private final WriteBehindQueue[] writeQueues;
+    private final Thread[] writerThreads;
 
-        @Nonnull
-        @Override
-        public Thread newThread(@Nonnull Runnable r) {
-            Thread thread = new Thread(r);
-            thread.setDaemon(true);
-            thread.setName(cache.getClass().getSimpleName()
-                    + '#' + AsynchronousByteCache.class.getSimpleName() + '-' + getIndex()
-                    + "#ExecutionThread-" + threadIndex.incrementAndGet()
+    /**
+     * Pending writes are not bounded, so no write is ever dropped (as before write-behind queues were bounded).
+     */
+    AsynchronousByteCache(ByteCache cache, long validationTimeoutMillis, long disableOnFailMillis) {
+        this(cache, validationTimeoutMillis, disableOnFailMillis, 1, Integer.MAX_VALUE,
+                Long.MAX_VALUE, WriteOverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Each key is served by one of {@code writerLaneCount} lanes (a queue and a writer thread),
+     * so writes of the same key are applied in order while writes of different keys go in parallel.
+     * Bounds of the pending writes are split evenly between lanes.
+     */
+    AsynchronousByteCache(ByteCache cache, long validationTimeoutMillis, long disableOnFailMillis,
+                          int writerLaneCount, int maximalPendingWriteCount, long maximalPendingByteCount,
+                          WriteOverflowPolicy overflowPolicy) {
+        ensureArguments(cache, validationTimeoutMillis, disableOnFailMillis);
+
+        if (writerLaneCount <= 0) {
+            throw new IllegalArgumentException("Argument 'writerLaneCount' should be positive.");
+        }
+
+        if (maximalPendingWriteCount < writerLaneCount) {
+            throw new IllegalArgumentException(
+                    "Argument 'maximalPendingWriteCount' should not be less than 'writerLaneCount'."
             );
-            return thread;
         }
-    });
 
-    AsynchronousByteCache(ByteCache cache, long validationTimeoutMillis, long disableOnFailMillis) {
-        ensureArguments(cache, validationTimeoutMillis, disableOnFailMillis);
+        if (maximalPendingByteCount < writerLaneCount) {
+            throw new IllegalArgumentException(
+                    "Argument 'maximalPendingByteCount' should not be less than 'writerLaneCount'."
+            );
+        }
 
         this.cache = cache;
         this.validationTimeoutMillis = validationTimeoutMillis;
         this.disableOnFailMillis = disableOnFailMillis;
+        this.writeQueues = new WriteBehindQueue[writerLaneCount];
+        this.writerThreads = new Thread[writerLaneCount];
+
+        for (int laneIndex = 0; laneIndex < writerLaneCount; ++laneIndex) {
+            writeQueues[laneIndex] = new WriteBehindQueue(
+                    maximalPendingWriteCount / writerLaneCount, maximalPendingByteCount / writerLaneCount,
+                    overflowPolicy
+            );
+
+            Thread writerThread = new Thread(new WriteBehindWriter(cache, writeQueues[laneIndex], false));
+            writerThread.setDaemon(true);
+            writerThread.setName(cache.getClass().getSimpleName()
+                    + '#' + AsynchronousByteCache.class.getSimpleName() + '-' + getIndex()
+                    + "#WriterThread-" + (laneIndex + 1)
+            );
+            writerThread.start();
+            writerThreads[laneIndex] = writerThread;
+        }
     }
 
     private static void ensureArguments(ByteCache cache, long validationTimeoutMillis, long disableOnFailMillis) {
@@ -128,45 +168,36 @@ class AsynchronousByteCache extends ByteCache {
     }
 
     @Override
-    public void put(@Nonnull final String section, @Nonnull final String key, @Nonnull final byte[] value) {
-        executionService.execute(new Runnable() {
-            @Override
-            public void run() {
-                cache.put(section, key, value);
-            }
-        });
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        enqueue(section, key, value, WriteBehindQueue.PendingWrite.UNDEFINED_LIFETIME, false);
     }
 
     @Override
-    public void put(@Nonnull final String section, @Nonnull final String key,
-                    @Nonnull final byte[] value, final long lifetimeMillis) {
-        executionService.execute(new Runnable() {
-            @Override
-            public void run() {
-                cache.put(section, key, value, lifetimeMillis);
-            }
-        });
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        ensureLifetime(lifetimeMillis);
+        enqueue(section, key, value, lifetimeMillis, false);
     }
 
     @Override
-    public void putIfAbsent(@Nonnull final String section, @Nonnull final String key, @Nonnull final byte[] value) {
-        executionService.execute(new Runnable() {
-            @Override
-            public void run() {
-                cache.putIfAbsent(section, key, value);
-            }
-        });
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        enqueue(section, key, value, WriteBehindQueue.PendingWrite.UNDEFINED_LIFETIME, true);
     }
 
     @Override
-    public void putIfAbsent(@Nonnull final String section, @Nonnull final String key,
-                            @Nonnull final byte[] value, final long lifetimeMillis) {
-        executionService.execute(new Runnable() {
-            @Override
-            public void run() {
-                cache.putIfAbsent(section, key, value, lifetimeMillis);
-            }
-        });
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key,
+                            @Nonnull byte[] value, long lifetimeMillis) {
+        ensureLifetime(lifetimeMillis);
+        enqueue(section, key, value, lifetimeMillis, true);
+    }
+
+    private void enqueue(String section, String key, byte[] value, long lifetimeMillis, boolean ifAbsent) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+        ensureValue(value);
+
+        getWriteQueue(section, key).offer(
+                new WriteBehindQueue.PendingWrite(section, key, value, lifetimeMillis, ifAbsent)
+        );
     }
 
     @Nullable
@@ -175,38 +206,162 @@ class AsynchronousByteCache extends ByteCache {
         return cache.get(section, key);
     }
 
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        return cache.getAll(section, keys);
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        enqueueAll(section, valueByKey, WriteBehindQueue.PendingWrite.UNDEFINED_LIFETIME);
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        ensureLifetime(lifetimeMillis);
+        enqueueAll(section, valueByKey, lifetimeMillis);
+    }
+
+    private void enqueueAll(String section, Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        ensureCacheSectionName(section);
+        ensureValueByKey(valueByKey);
+
+        for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            ensureCacheKeyName(entry.getKey());
+            ensureValue(entry.getValue());
+        }
+
+        for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            getWriteQueue(section, entry.getKey()).offer(new WriteBehindQueue.PendingWrite(
+                    section, entry.getKey(), entry.getValue(), lifetimeMillis, false
+            ));
+        }
+    }
+
+    private static void ensureValue(byte[] value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Argument 'value' is 'null'.");
+        }
+    }
+
+    private static void ensureLifetime(long lifetimeMillis) {
+        if (lifetimeMillis <= 0L) {
+            throw new IllegalArgumentException("Argument 'lifetimeMillis' should be positive.");
+        }
+    }
+
+    /**
+     * Cancels pending writes of the keys and removes values from the underlying cache.
+     */
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        int cancelledCount = 0;
+        for (String key : keys) {
+            if (getWriteQueue(section, key).cancel(section, key)) {
+                ++cancelledCount;
+            }
+        }
+
+        return Math.max(cancelledCount, cache.removeAll(section, keys));
+    }
+
+    /**
+     * Cancels a pending write of the key and removes value from the underlying cache.
+     */
     @Override
     public boolean remove(@Nonnull String section, @Nonnull String key) {
-        return cache.remove(section, key);
+        boolean cancelled = getWriteQueue(section, key).cancel(section, key);
+        return cache.remove(section, key) || cancelled;
     }
 
     @Override
     public void clearSection(@Nonnull String section) {
+        for (WriteBehindQueue writeQueue : writeQueues) {
+            writeQueue.cancelSection(section);
+        }
         cache.clearSection(section);
     }
 
     @Override
     public void clear() {
+        for (WriteBehindQueue writeQueue : writeQueues) {
+            writeQueue.cancelAll();
+        }
         cache.clear();
     }
 
+    /**
+     * Registers listener in the underlying cache. Pending writes cancelled or coalesced in the queue
+     * are not reported, since they haven't reached the underlying cache.
+     */
     @Override
-    public void close() {
-        cache.close();
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.addRemovalListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.removeRemovalListener(listener);
+    }
 
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return cache.getDroppedRemovalNotificationCount();
+    }
+
+    /**
+     * @return current state of the write-behind queues summed over all writer lanes
+     */
+    @Nonnull
+    public WriteBehindStatistics getWriteBehindStatistics() {
+        WriteBehindStatistics statistics = writeQueues[0].getStatistics();
+        for (int laneIndex = 1; laneIndex < writeQueues.length; ++laneIndex) {
+            statistics = statistics.add(writeQueues[laneIndex].getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Routes the key to its writer lane. All writes of the same key go through the same lane.
+     */
+    private WriteBehindQueue getWriteQueue(String section, String key) {
+        if (writeQueues.length == 1) {
+            return writeQueues[0];
+        }
+
+        int hash = 31 * section.hashCode() + key.hashCode();
+        hash ^= hash >>> 16;
+        return writeQueues[(hash & Integer.MAX_VALUE) % writeQueues.length];
+    }
+
+    /**
+     * Flushes pending writes and closes the underlying cache.
+     */
+    @Override
+    public void close() {
+        for (WriteBehindQueue writeQueue : writeQueues) {
+            writeQueue.close();
+        }
         validationService.shutdown();
-        executionService.shutdown();
 
-        try {
-            validationService.awaitTermination(30L, TimeUnit.SECONDS);
-        } catch (InterruptedException ignored) {
-            // No operations.
+        long joinDeadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30L);
+        for (Thread writerThread : writerThreads) {
+            try {
+                writerThread.join(Math.max(joinDeadline - System.currentTimeMillis(), 1L));
+            } catch (InterruptedException ignored) {
+                // No operations.
+            }
         }
 
         try {
-            executionService.awaitTermination(30L, TimeUnit.SECONDS);
+            validationService.awaitTermination(30L, TimeUnit.SECONDS);
         } catch (InterruptedException ignored) {
             // No operations.
         }
+
+        cache.close();
     }
 }
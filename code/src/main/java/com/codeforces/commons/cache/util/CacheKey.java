@@ -0,0 +1,45 @@
+package com.codeforces.commons.cache.util;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Pair of cache section and key to be used as a key of maps.
+ */
+final class CacheKey {
+    private final String section;
+    private final String key;
+
+    CacheKey(@Nonnull String section, @Nonnull String key) {
+        this.section = section;
+        this.key = key;
+    }
+
+    @Nonnull
+    String getSection() {
+        return section;
+    }
+
+    @Nonnull
+    String getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+
+        CacheKey cacheKey = (CacheKey) o;
+        return section.equals(cacheKey.section) && key.equals(cacheKey.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * section.hashCode() + key.hashCode();
+    }
+}
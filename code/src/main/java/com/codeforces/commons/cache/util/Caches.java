@@ -2,6 +2,8 @@ package com.codeforces.commons.cache.util;
 
 import com.codeforces.commons.cache.ByteCache;
 
+import java.util.Map;
+
 /**
  * @author Maxim Shipko (sladethe@gmail.com)
  *         Date: 16.02.11
@@ -11,6 +13,10 @@ public final class Caches {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Creates cache which writes values in the background. Pending writes are not bounded and are never dropped,
+     * use {@link #newAsynchronousByteCache(ByteCache, int, long, WriteOverflowPolicy)} to bound them.
+     */
     public static ByteCache newAsynchronousByteCache(ByteCache cache) {
         return new AsynchronousByteCache(cache, 0, 0);
     }
@@ -20,6 +26,51 @@ public final class Caches {
         return new AsynchronousByteCache(cache, validationTimeoutMillis, disableOnFailMillis);
     }
 
+    /**
+     * Creates cache which writes values in the background through the bounded write-behind queue.
+     *
+     * @param cache                    underlying cache
+     * @param maximalPendingWriteCount maximal count of writes waiting in the queue
+     * @param maximalPendingByteCount  maximal total length of values waiting in the queue
+     * @param overflowPolicy           defines what to do with a new write if the queue is full
+     * @return asynchronous cache exposing {@link AsynchronousByteCache#getWriteBehindStatistics() statistics}
+     */
+    public static AsynchronousByteCache newAsynchronousByteCache(
+            ByteCache cache, int maximalPendingWriteCount, long maximalPendingByteCount,
+            WriteOverflowPolicy overflowPolicy) {
+        return new AsynchronousByteCache(
+                cache, 0, 0, 1, maximalPendingWriteCount, maximalPendingByteCount, overflowPolicy
+        );
+    }
+
+    /**
+     * Creates cache which writes values in the background by {@code writerLaneCount} parallel writers.
+     * Writes of the same section and key always go through the same writer and keep their order.
+     *
+     * @param cache                    underlying cache
+     * @param writerLaneCount          count of parallel writers, each with its own part of the queue
+     * @param maximalPendingWriteCount maximal count of writes waiting in all lanes
+     * @param maximalPendingByteCount  maximal total length of values waiting in all lanes
+     * @param overflowPolicy           defines what to do with a new write if its lane is full
+     * @return asynchronous cache exposing {@link AsynchronousByteCache#getWriteBehindStatistics() statistics}
+     */
+    public static AsynchronousByteCache newAsynchronousByteCache(
+            ByteCache cache, int writerLaneCount, int maximalPendingWriteCount, long maximalPendingByteCount,
+            WriteOverflowPolicy overflowPolicy) {
+        return new AsynchronousByteCache(
+                cache, 0, 0, writerLaneCount, maximalPendingWriteCount, maximalPendingByteCount, overflowPolicy
+        );
+    }
+
+    public static AsynchronousByteCache newAsynchronousByteCache(
+            ByteCache cache, long validationTimeoutMillis, long disableOnFailMillis, int writerLaneCount,
+            int maximalPendingWriteCount, long maximalPendingByteCount, WriteOverflowPolicy overflowPolicy) {
+        return new AsynchronousByteCache(
+                cache, validationTimeoutMillis, disableOnFailMillis, writerLaneCount,
+                maximalPendingWriteCount, maximalPendingByteCount, overflowPolicy
+        );
+    }
+
     public static ByteCache newLocalAndRemoteByteCache(ByteCache localCache, ByteCache remoteCache) {
         return new LocalAndRemoteByteCache(localCache, remoteCache);
     }
@@ -33,7 +84,92 @@ public final class Caches {
         return new LocalAndRemoteByteCache(localCache, remoteCache, localCacheOptional, remoteCacheOptional);
     }
 
+    /**
+     * Creates cache which reads values from the local cache and falls back to the remote cache on a miss.
+     * Concurrent misses of the same key share one remote fetch.
+     *
+     * @param missLifetimeMillis time to remember that a key is absent in the remote cache
+     *                           or {@code 0} to disable negative caching
+     */
+    public static ByteCache newLocalAndRemoteByteCache(
+            ByteCache localCache, ByteCache remoteCache, boolean localCacheOptional, boolean remoteCacheOptional,
+            long missLifetimeMillis) {
+        return new LocalAndRemoteByteCache(
+                localCache, remoteCache, localCacheOptional, remoteCacheOptional, missLifetimeMillis
+        );
+    }
+
+    /**
+     * Creates cache which writes values to the local cache synchronously and replicates them to the remote cache
+     * in the background. Pending remote writes are coalesced per key, written in batches and retried with
+     * exponential backoff.
+     *
+     * @param missLifetimeMillis       time to remember that a key is absent in the remote cache
+     *                                 or {@code 0} to disable negative caching
+     * @param maximalPendingWriteCount maximal count of remote writes waiting for replication
+     * @param maximalPendingByteCount  maximal total length of values waiting for replication
+     * @param overflowPolicy           defines what to do with a new write if the replication backlog is full
+     * @return cache exposing {@link LocalAndRemoteByteCache#getReplicationStatistics() replication statistics}
+     */
+    public static LocalAndRemoteByteCache newWriteBehindLocalAndRemoteByteCache(
+            ByteCache localCache, ByteCache remoteCache, boolean localCacheOptional, boolean remoteCacheOptional,
+            long missLifetimeMillis, int maximalPendingWriteCount, long maximalPendingByteCount,
+            WriteOverflowPolicy overflowPolicy) {
+        return new LocalAndRemoteByteCache(
+                localCache, remoteCache, localCacheOptional, remoteCacheOptional, missLifetimeMillis,
+                new WriteBehindQueue(maximalPendingWriteCount, maximalPendingByteCount, overflowPolicy)
+        );
+    }
+
+    /**
+     * Creates cache which accumulates increments of counters in memory and adds them to the counters
+     * of the given cache once per flush interval.
+     *
+     * @param flushIntervalMillis delay between flushes of counters
+     * @see ByteCache#incrementAndGet(String, String, long, long)
+     */
+    public static ByteCache newCountingByteCache(ByteCache cache, long flushIntervalMillis) {
+        return new CountingByteCache(cache, flushIntervalMillis);
+    }
+
     public static ByteCache newLoggingByteCache(ByteCache cache) {
         return LoggingByteCache.newInstance(cache);
     }
+
+    public static ByteCache newLoggingByteCache(ByteCache cache, long slowThresholdMillis, double samplingRate) {
+        return LoggingByteCache.newInstance(cache, slowThresholdMillis, samplingRate);
+    }
+
+    /**
+     * Creates cache which spreads values across the given caches by consistent hashing of section and key.
+     *
+     * @param cacheByShardName caches by unique shard names, which define positions of shards on the hash ring
+     * @return sharded cache
+     */
+    public static ShardedByteCache newShardedByteCache(Map<String, ByteCache> cacheByShardName) {
+        return new ShardedByteCache(cacheByShardName, ShardedByteCache.DEFAULT_VIRTUAL_NODE_COUNT, false, 0L);
+    }
+
+    /**
+     * Creates cache which spreads values across the given caches by consistent hashing of section and key.
+     *
+     * @param cacheByShardName         caches by unique shard names, which define positions of shards on the ring
+     * @param virtualNodeCount         count of ring positions of each shard, more positions give more even spread
+     * @param routeAroundInvalidShards {@code true} to serve keys of shards failing {@link ByteCache#validate()}
+     *                                 by the next valid shards on the ring, shards are cleared when they become
+     *                                 valid again
+     * @param validationIntervalMillis delay between validations of shards
+     * @return sharded cache
+     */
+    public static ShardedByteCache newShardedByteCache(
+            Map<String, ByteCache> cacheByShardName, int virtualNodeCount, boolean routeAroundInvalidShards,
+            long validationIntervalMillis) {
+        return new ShardedByteCache(
+                cacheByShardName, virtualNodeCount, routeAroundInvalidShards, validationIntervalMillis
+        );
+    }
+
+    public static InstrumentedByteCache newInstrumentedByteCache(ByteCache cache, String name) {
+        return new InstrumentedByteCache(cache, name);
+    }
 }
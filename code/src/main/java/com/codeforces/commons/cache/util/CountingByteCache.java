@@ -0,0 +1,388 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.RemovalListener;
+import com.codeforces.commons.cache.VersionedValue;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Accumulates increments of counters in striped in-memory cells and adds them to the counters of the underlying
+ * cache by periodic flushes, so increments of a hot counter neither contend nor cost a cache write each.
+ * All increments of a counter made during the flush interval are written by a single
+ * {@link ByteCache#incrementAndGet(String, String, long, long)} of the underlying cache.
+ * <p/>
+ * The value of an active counter is its value read from the underlying cache by the last flush plus later local
+ * increments, so increments made by other processes become visible after flushes. Counters which have not been
+ * incremented during a flush interval are forgotten and read from the underlying cache again on demand.
+ * Lifetimes of counters should be longer than the flush interval.
+ * <p/>
+ * Other operations are passed to the underlying cache. Counters should be modified by counter operations only,
+ * except for removal.
+ */
+class CountingByteCache extends ByteCache {
+    private static final Logger logger = Logger.getLogger(CountingByteCache.class);
+
+    private final ByteCache cache;
+    private final ConcurrentMap<CacheKey, Counter> counterByKey = new ConcurrentHashMap<>();
+    private final Flusher flusher;
+
+    CountingByteCache(@Nonnull ByteCache cache, long flushIntervalMillis) {
+        if (cache == null) {
+            throw new IllegalArgumentException("Argument 'cache' is 'null'.");
+        }
+
+        if (flushIntervalMillis <= 0L) {
+            throw new IllegalArgumentException("Argument 'flushIntervalMillis' should be positive.");
+        }
+
+        this.cache = cache;
+        this.flusher = new Flusher(
+                CountingByteCache.class.getSimpleName() + '-' + getIndex() + "#FlushThread",
+                cache, counterByKey, flushIntervalMillis
+        );
+        this.flusher.start();
+    }
+
+    /**
+     * Adds {@code delta} to the local cells of the counter. Reads the counter from the underlying cache
+     * if the counter is not active.
+     */
+    @Override
+    public long incrementAndGet(@Nonnull String section, @Nonnull String key, long delta, long lifetimeMillis) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+
+        if (lifetimeMillis <= 0L) {
+            throw new IllegalArgumentException("Argument 'lifetimeMillis' should be positive.");
+        }
+
+        Counter counter = counterByKey.get(new CacheKey(section, key));
+        if (counter == null) {
+            counter = activateCounter(section, key, lifetimeMillis);
+        } else if (counter.lifetimeMillis != lifetimeMillis) {
+            counter.lifetimeMillis = lifetimeMillis;
+        }
+
+        counter.increments.add(delta);
+
+        // The flusher may have forgotten the counter after its last flush, so the increment is flushed here.
+        if (counter.retired) {
+            flushQuietly(cache, counter);
+        }
+
+        return counter.get();
+    }
+
+    @Override
+    public long getCounter(@Nonnull String section, @Nonnull String key) {
+        Counter counter = counterByKey.get(new CacheKey(section, key));
+        return counter == null ? cache.getCounter(section, key) : counter.get();
+    }
+
+    private Counter activateCounter(String section, String key, long lifetimeMillis) {
+        CacheKey cacheKey = new CacheKey(section, key);
+        Counter counter = new Counter(cacheKey, cache.getCounter(section, key), lifetimeMillis);
+        Counter existingCounter = counterByKey.putIfAbsent(cacheKey, counter);
+        return existingCounter == null ? counter : existingCounter;
+    }
+
+    /**
+     * Forgets the counter dropping its unflushed increments.
+     */
+    private void discardCounter(CacheKey cacheKey) {
+        Counter counter = counterByKey.remove(cacheKey);
+        if (counter != null) {
+            counter.discard();
+        }
+    }
+
+    @Override
+    public boolean validate() {
+        return cache.validate();
+    }
+
+    @Override
+    public boolean contains(@Nonnull String section, @Nonnull String key) {
+        return counterByKey.containsKey(new CacheKey(section, key)) || cache.contains(section, key);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        cache.put(section, key, value);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        cache.put(section, key, value, lifetimeMillis);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        cache.putIfAbsent(section, key, value);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        cache.putIfAbsent(section, key, value, lifetimeMillis);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        cache.put(section, key, inputStream, length);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        cache.put(section, key, inputStream, length, lifetimeMillis);
+    }
+
+    @Nullable
+    @Override
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        return cache.openStream(section, key);
+    }
+
+    @Override
+    public long transferTo(@Nonnull String section, @Nonnull String key, @Nonnull WritableByteChannel channel)
+            throws IOException {
+        return cache.transferTo(section, key, channel);
+    }
+
+    @Nullable
+    @Override
+    public byte[] get(@Nonnull String section, @Nonnull String key) {
+        return cache.get(section, key);
+    }
+
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        return cache.getWithVersion(section, key);
+    }
+
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        return cache.compareAndSet(section, key, expectedVersion, newValue, lifetimeMillis);
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        return cache.getAll(section, keys);
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        cache.putAll(section, valueByKey);
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        cache.putAll(section, valueByKey, lifetimeMillis);
+    }
+
+    @Override
+    public boolean remove(@Nonnull String section, @Nonnull String key) {
+        discardCounter(new CacheKey(section, key));
+        return cache.remove(section, key);
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        for (String key : keys) {
+            discardCounter(new CacheKey(section, key));
+        }
+        return cache.removeAll(section, keys);
+    }
+
+    @Override
+    public void clearSection(@Nonnull String section) {
+        for (CacheKey cacheKey : counterByKey.keySet()) {
+            if (cacheKey.getSection().equals(section)) {
+                discardCounter(cacheKey);
+            }
+        }
+        cache.clearSection(section);
+    }
+
+    @Override
+    public void clear() {
+        for (CacheKey cacheKey : counterByKey.keySet()) {
+            discardCounter(cacheKey);
+        }
+        cache.clear();
+    }
+
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.addRemovalListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.removeRemovalListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return cache.getDroppedRemovalNotificationCount();
+    }
+
+    /**
+     * Flushes all counters before closing the underlying cache.
+     */
+    @Override
+    public void close() {
+        flusher.stop();
+        for (Counter counter : counterByKey.values()) {
+            flushQuietly(cache, counter);
+        }
+        cache.close();
+    }
+
+    @Override
+    public String toString() {
+        return CountingByteCache.class.getSimpleName() + " {cache=" + cache + '}';
+    }
+
+    private static boolean flushQuietly(ByteCache cache, Counter counter) {
+        try {
+            return counter.flush(cache);
+        } catch (RuntimeException e) {
+            logger.error(String.format(
+                    "Can't flush counter (section='%s', key='%s') to %s.",
+                    counter.cacheKey.getSection(), counter.cacheKey.getKey(), cache.getClass().getSimpleName()
+            ), e);
+            return true;
+        }
+    }
+
+    private static final class Counter {
+        private final CacheKey cacheKey;
+        private final StripedLong increments = new StripedLong();
+
+        /**
+         * Value of the counter in the underlying cache minus the local increments included into it.
+         */
+        private volatile long base;
+
+        /**
+         * Guarded by the monitor of the counter.
+         */
+        private long flushedIncrementSum;
+
+        private volatile long lifetimeMillis;
+
+        /**
+         * Is set when the counter is removed from the map, so late increments are flushed by incrementing threads.
+         */
+        private volatile boolean retired;
+
+        private Counter(CacheKey cacheKey, long base, long lifetimeMillis) {
+            this.cacheKey = cacheKey;
+            this.base = base;
+            this.lifetimeMillis = lifetimeMillis;
+        }
+
+        private long get() {
+            return base + increments.get();
+        }
+
+        /**
+         * @return {@code false} iff the counter has not been incremented since the previous flush
+         */
+        private synchronized boolean flush(ByteCache cache) {
+            long incrementSum = increments.get();
+            long delta = incrementSum - flushedIncrementSum;
+            if (delta == 0L) {
+                return false;
+            }
+
+            long value = cache.incrementAndGet(cacheKey.getSection(), cacheKey.getKey(), delta, lifetimeMillis);
+            flushedIncrementSum = incrementSum;
+            base = value - incrementSum;
+            return true;
+        }
+
+        private synchronized void discard() {
+            retired = true;
+            flushedIncrementSum = increments.get();
+        }
+    }
+
+    /**
+     * Flushes counters periodically and forgets idle ones. Doesn't reference the cache itself,
+     * so an unclosed cache can be finalized.
+     */
+    private static final class Flusher implements Runnable {
+        private final ByteCache cache;
+        private final ConcurrentMap<CacheKey, Counter> counterByKey;
+        private final long flushIntervalMillis;
+        private final Thread thread;
+
+        private volatile boolean stopped;
+
+        private Flusher(String name, ByteCache cache, ConcurrentMap<CacheKey, Counter> counterByKey,
+                        long flushIntervalMillis) {
+            this.cache = cache;
+            this.counterByKey = counterByKey;
+            this.flushIntervalMillis = flushIntervalMillis;
+
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void stop() {
+            stopped = true;
+            thread.interrupt();
+
+            try {
+                thread.join();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    Thread.sleep(flushIntervalMillis);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+
+                for (Counter counter : counterByKey.values()) {
+                    if (stopped) {
+                        return;
+                    }
+
+                    if (!flushQuietly(cache, counter)) {
+                        counter.retired = true;
+                        counterByKey.remove(counter.cacheKey, counter);
+                        flushQuietly(cache, counter);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.RemovalListener;
+import com.codeforces.commons.cache.VersionedValue;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects per-section counters of hits, misses, puts, removes and transferred bytes and per-operation
+ * latency histograms of the underlying cache. Recording takes a few atomic increments without locks,
+ * so the decorator can stay enabled in production. Collected values are polled by
+ * {@link #getStatistics()} or {@link #getAndResetStatistics()}.
+ */
+public class InstrumentedByteCache extends ByteCache {
+    private static final int HIT_COUNTER = 0;
+    private static final int MISS_COUNTER = 1;
+    private static final int PUT_COUNTER = 2;
+    private static final int REMOVE_COUNTER = 3;
+    private static final int READ_BYTE_COUNTER = 4;
+    private static final int WRITTEN_BYTE_COUNTER = 5;
+
+    private final ByteCache cache;
+    private final String name;
+
+    private final ConcurrentMap<String, StripedCounters> countersBySection = new ConcurrentHashMap<>();
+    private final Map<Operation, LatencyHistogram> histogramByOperation = new EnumMap<>(Operation.class);
+
+    InstrumentedByteCache(@Nonnull ByteCache cache, @Nonnull String name) {
+        if (cache == null) {
+            throw new IllegalArgumentException("Argument 'cache' is 'null'.");
+        }
+
+        if (name == null) {
+            throw new IllegalArgumentException("Argument 'name' is 'null'.");
+        }
+
+        this.cache = cache;
+        this.name = name;
+
+        for (Operation operation : Operation.values()) {
+            histogramByOperation.put(operation, new LatencyHistogram());
+        }
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public boolean validate() {
+        return cache.validate();
+    }
+
+    @Override
+    public boolean contains(@Nonnull String section, @Nonnull String key) {
+        long startNanos = System.nanoTime();
+        try {
+            boolean result = cache.contains(section, key);
+            getCounters(section).increment(result ? HIT_COUNTER : MISS_COUNTER);
+            return result;
+        } finally {
+            record(Operation.CONTAINS, startNanos);
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        long startNanos = System.nanoTime();
+        try {
+            cache.put(section, key, value);
+            registerPut(section, value.length);
+        } finally {
+            record(Operation.PUT, startNanos);
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        long startNanos = System.nanoTime();
+        try {
+            cache.put(section, key, value, lifetimeMillis);
+            registerPut(section, value.length);
+        } finally {
+            record(Operation.PUT, startNanos);
+        }
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        long startNanos = System.nanoTime();
+        try {
+            cache.putIfAbsent(section, key, value);
+            registerPut(section, value.length);
+        } finally {
+            record(Operation.PUT_IF_ABSENT, startNanos);
+        }
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        long startNanos = System.nanoTime();
+        try {
+            cache.putIfAbsent(section, key, value, lifetimeMillis);
+            registerPut(section, value.length);
+        } finally {
+            record(Operation.PUT_IF_ABSENT, startNanos);
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            cache.put(section, key, inputStream, length);
+            registerPut(section, length);
+        } finally {
+            record(Operation.PUT, startNanos);
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            cache.put(section, key, inputStream, length, lifetimeMillis);
+            registerPut(section, length);
+        } finally {
+            record(Operation.PUT, startNanos);
+        }
+    }
+
+    /**
+     * Bytes read from the returned stream are not counted.
+     */
+    @Nullable
+    @Override
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        long startNanos = System.nanoTime();
+        try {
+            InputStream inputStream = cache.openStream(section, key);
+            getCounters(section).increment(inputStream == null ? MISS_COUNTER : HIT_COUNTER);
+            return inputStream;
+        } finally {
+            record(Operation.OPEN_STREAM, startNanos);
+        }
+    }
+
+    @Override
+    public long transferTo(@Nonnull String section, @Nonnull String key, @Nonnull WritableByteChannel channel)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            long byteCount = cache.transferTo(section, key, channel);
+            registerRead(section, byteCount);
+            return byteCount;
+        } finally {
+            record(Operation.TRANSFER_TO, startNanos);
+        }
+    }
+
+    @Nullable
+    @Override
+    public byte[] get(@Nonnull String section, @Nonnull String key) {
+        long startNanos = System.nanoTime();
+        try {
+            byte[] value = cache.get(section, key);
+            registerRead(section, value == null ? -1L : value.length);
+            return value;
+        } finally {
+            record(Operation.GET, startNanos);
+        }
+    }
+
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        long startNanos = System.nanoTime();
+        try {
+            VersionedValue versionedValue = cache.getWithVersion(section, key);
+            registerRead(section, versionedValue == null ? -1L : versionedValue.getValue().length);
+            return versionedValue;
+        } finally {
+            record(Operation.GET_WITH_VERSION, startNanos);
+        }
+    }
+
+    /**
+     * Only successful operations are counted as puts.
+     */
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        long startNanos = System.nanoTime();
+        try {
+            boolean stored = cache.compareAndSet(section, key, expectedVersion, newValue, lifetimeMillis);
+            if (stored) {
+                registerPut(section, newValue.length);
+            }
+            return stored;
+        } finally {
+            record(Operation.COMPARE_AND_SET, startNanos);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        long startNanos = System.nanoTime();
+        try {
+            Map<String, byte[]> valueByKey = cache.getAll(section, keys);
+
+            long readByteCount = 0L;
+            for (byte[] value : valueByKey.values()) {
+                readByteCount += value.length;
+            }
+
+            StripedCounters counters = getCounters(section);
+            counters.add(HIT_COUNTER, valueByKey.size());
+            counters.add(MISS_COUNTER, keys.size() - valueByKey.size());
+            counters.add(READ_BYTE_COUNTER, readByteCount);
+            return valueByKey;
+        } finally {
+            record(Operation.GET_ALL, startNanos);
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        long startNanos = System.nanoTime();
+        try {
+            cache.putAll(section, valueByKey);
+            registerPutAll(section, valueByKey);
+        } finally {
+            record(Operation.PUT_ALL, startNanos);
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        long startNanos = System.nanoTime();
+        try {
+            cache.putAll(section, valueByKey, lifetimeMillis);
+            registerPutAll(section, valueByKey);
+        } finally {
+            record(Operation.PUT_ALL, startNanos);
+        }
+    }
+
+    @Override
+    public boolean remove(@Nonnull String section, @Nonnull String key) {
+        long startNanos = System.nanoTime();
+        try {
+            boolean result = cache.remove(section, key);
+            getCounters(section).increment(REMOVE_COUNTER);
+            return result;
+        } finally {
+            record(Operation.REMOVE, startNanos);
+        }
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        long startNanos = System.nanoTime();
+        try {
+            int removedCount = cache.removeAll(section, keys);
+            getCounters(section).add(REMOVE_COUNTER, keys.size());
+            return removedCount;
+        } finally {
+            record(Operation.REMOVE_ALL, startNanos);
+        }
+    }
+
+    @Override
+    public long incrementAndGet(@Nonnull String section, @Nonnull String key, long delta, long lifetimeMillis) {
+        long startNanos = System.nanoTime();
+        try {
+            return cache.incrementAndGet(section, key, delta, lifetimeMillis);
+        } finally {
+            record(Operation.INCREMENT_AND_GET, startNanos);
+        }
+    }
+
+    @Override
+    public long getCounter(@Nonnull String section, @Nonnull String key) {
+        long startNanos = System.nanoTime();
+        try {
+            return cache.getCounter(section, key);
+        } finally {
+            record(Operation.GET_COUNTER, startNanos);
+        }
+    }
+
+    @Override
+    public void clearSection(@Nonnull String section) {
+        cache.clearSection(section);
+    }
+
+    @Override
+    public void clear() {
+        cache.clear();
+    }
+
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.addRemovalListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.removeRemovalListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return cache.getDroppedRemovalNotificationCount();
+    }
+
+    @Override
+    public void close() {
+        cache.close();
+    }
+
+    /**
+     * @return current values of counters and histograms
+     */
+    @Nonnull
+    public InstrumentedCacheStatistics getStatistics() {
+        return internalGetStatistics(false);
+    }
+
+    /**
+     * Returns current values of counters and histograms and starts collecting from zero. Operations
+     * completed concurrently with the call are counted either in the returned or in the next snapshot.
+     *
+     * @return current values of counters and histograms
+     */
+    @Nonnull
+    public InstrumentedCacheStatistics getAndResetStatistics() {
+        return internalGetStatistics(true);
+    }
+
+    private InstrumentedCacheStatistics internalGetStatistics(boolean reset) {
+        Map<String, SectionStatistics> statisticsBySection = new TreeMap<>();
+        SectionStatistics totalStatistics = new SectionStatistics(0L, 0L, 0L, 0L, 0L, 0L);
+
+        for (Map.Entry<String, StripedCounters> entry : countersBySection.entrySet()) {
+            SectionStatistics sectionStatistics = getSectionStatistics(entry.getValue(), reset);
+            statisticsBySection.put(entry.getKey(), sectionStatistics);
+            totalStatistics = totalStatistics.add(sectionStatistics);
+        }
+
+        Map<Operation, LatencyStatistics> latencyStatisticsByOperation = new EnumMap<>(Operation.class);
+        for (Map.Entry<Operation, LatencyHistogram> entry : histogramByOperation.entrySet()) {
+            latencyStatisticsByOperation.put(entry.getKey(), entry.getValue().getStatistics(reset));
+        }
+
+        return new InstrumentedCacheStatistics(
+                name, System.currentTimeMillis(), statisticsBySection, totalStatistics, latencyStatisticsByOperation
+        );
+    }
+
+    private static SectionStatistics getSectionStatistics(StripedCounters counters, boolean reset) {
+        if (reset) {
+            return new SectionStatistics(
+                    counters.getAndReset(HIT_COUNTER), counters.getAndReset(MISS_COUNTER),
+                    counters.getAndReset(PUT_COUNTER), counters.getAndReset(REMOVE_COUNTER),
+                    counters.getAndReset(READ_BYTE_COUNTER), counters.getAndReset(WRITTEN_BYTE_COUNTER)
+            );
+        } else {
+            return new SectionStatistics(
+                    counters.get(HIT_COUNTER), counters.get(MISS_COUNTER),
+                    counters.get(PUT_COUNTER), counters.get(REMOVE_COUNTER),
+                    counters.get(READ_BYTE_COUNTER), counters.get(WRITTEN_BYTE_COUNTER)
+            );
+        }
+    }
+
+    private StripedCounters getCounters(String section) {
+        StripedCounters counters = countersBySection.get(section);
+        if (counters == null) {
+            StripedCounters newCounters = new StripedCounters();
+            counters = countersBySection.putIfAbsent(section, newCounters);
+            if (counters == null) {
+                counters = newCounters;
+            }
+        }
+        return counters;
+    }
+
+    private void registerRead(String section, long byteCount) {
+        StripedCounters counters = getCounters(section);
+        if (byteCount < 0L) {
+            counters.increment(MISS_COUNTER);
+        } else {
+            counters.increment(HIT_COUNTER);
+            counters.add(READ_BYTE_COUNTER, byteCount);
+        }
+    }
+
+    private void registerPut(String section, long byteCount) {
+        StripedCounters counters = getCounters(section);
+        counters.increment(PUT_COUNTER);
+        counters.add(WRITTEN_BYTE_COUNTER, byteCount);
+    }
+
+    private void registerPutAll(String section, Map<String, byte[]> valueByKey) {
+        long writtenByteCount = 0L;
+        for (byte[] value : valueByKey.values()) {
+            writtenByteCount += value.length;
+        }
+
+        StripedCounters counters = getCounters(section);
+        counters.add(PUT_COUNTER, valueByKey.size());
+        counters.add(WRITTEN_BYTE_COUNTER, writtenByteCount);
+    }
+
+    private void record(Operation operation, long startNanos) {
+        histogramByOperation.get(operation).record(System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public String toString() {
+        return InstrumentedByteCache.class.getSimpleName() + " {name='" + name + "'}";
+    }
+
+    /**
+     * Cache operations with separate latency histograms.
+     */
+    public enum Operation {
+        CONTAINS,
+        GET,
+        GET_ALL,
+        GET_WITH_VERSION,
+        OPEN_STREAM,
+        TRANSFER_TO,
+        PUT,
+        PUT_IF_ABSENT,
+        COMPARE_AND_SET,
+        PUT_ALL,
+        REMOVE,
+        REMOVE_ALL,
+        INCREMENT_AND_GET,
+        GET_COUNTER
+    }
+}
@@ -0,0 +1,85 @@
+package com.codeforces.commons.cache.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Snapshot of counters and latency histograms collected by {@link InstrumentedByteCache}.
+ */
+public final class InstrumentedCacheStatistics {
+    private final String name;
+    private final long timeMillis;
+    private final Map<String, SectionStatistics> statisticsBySection;
+    private final SectionStatistics totalStatistics;
+    private final Map<InstrumentedByteCache.Operation, LatencyStatistics> latencyStatisticsByOperation;
+
+    InstrumentedCacheStatistics(
+            String name, long timeMillis, Map<String, SectionStatistics> statisticsBySection,
+            SectionStatistics totalStatistics,
+            Map<InstrumentedByteCache.Operation, LatencyStatistics> latencyStatisticsByOperation) {
+        this.name = name;
+        this.timeMillis = timeMillis;
+        this.statisticsBySection = Collections.unmodifiableMap(statisticsBySection);
+        this.totalStatistics = totalStatistics;
+        this.latencyStatisticsByOperation = Collections.unmodifiableMap(latencyStatisticsByOperation);
+    }
+
+    /**
+     * @return name of the instrumented cache
+     */
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return time of the snapshot
+     */
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * @return counters of sections ordered by section name
+     */
+    @Nonnull
+    public Map<String, SectionStatistics> getStatisticsBySection() {
+        return statisticsBySection;
+    }
+
+    /**
+     * @return counters of the section or {@code null} if there were no operations with the section
+     */
+    @Nullable
+    public SectionStatistics getSectionStatistics(@Nonnull String section) {
+        return statisticsBySection.get(section);
+    }
+
+    /**
+     * @return counters summed over all sections
+     */
+    @Nonnull
+    public SectionStatistics getTotalStatistics() {
+        return totalStatistics;
+    }
+
+    @Nonnull
+    public Map<InstrumentedByteCache.Operation, LatencyStatistics> getLatencyStatisticsByOperation() {
+        return latencyStatisticsByOperation;
+    }
+
+    @Nonnull
+    public LatencyStatistics getLatencyStatistics(@Nonnull InstrumentedByteCache.Operation operation) {
+        return latencyStatisticsByOperation.get(operation);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "InstrumentedCacheStatistics {name='%s', totalStatistics=%s, latencyStatisticsByOperation=%s}",
+                name, totalStatistics, latencyStatisticsByOperation
+        );
+    }
+}
@@ -0,0 +1,111 @@
+package com.codeforces.commons.cache.util;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with log-linear buckets (like HdrHistogram): durations
+ * below {@code 2^LINEAR_BUCKET_BITS} are counted exactly, each further power of two is split into
+ * {@code 2^(LINEAR_BUCKET_BITS - 1)} equal buckets, so the relative error of reported values is below 3.2%.
+ * <p/>
+ * Like {@code java.util.concurrent.atomic.LongAdder}, buckets are counted in a shared array until an update
+ * of it fails because of contention. Then the stripe of the updating thread gets its own array of buckets,
+ * so only contended histograms pay for striping.
+ */
+final class LatencyHistogram {
+    static final int LINEAR_BUCKET_BITS = 6;
+    static final int LINEAR_BUCKET_COUNT = 1 << LINEAR_BUCKET_BITS;
+    static final int SUB_BUCKET_BITS = LINEAR_BUCKET_BITS - 1;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = LINEAR_BUCKET_COUNT + (Long.SIZE - 1 - LINEAR_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private static final int TOTAL_NANOS_COUNTER = 0;
+
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicReferenceArray<AtomicLongArray> stripeBucketCounts
+            = new AtomicReferenceArray<>(StripedCounters.STRIPE_COUNT);
+    private final StripedCounters counters = new StripedCounters();
+    private final AtomicLong maximalNanos = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0L) {
+            nanos = 0L;
+        }
+
+        incrementBucketCount(getBucketIndex(nanos));
+        counters.add(TOTAL_NANOS_COUNTER, nanos);
+
+        // The maximum rarely changes, so a plain read usually saves the write to the shared cache line.
+        long currentMaximalNanos = maximalNanos.get();
+        while (nanos > currentMaximalNanos && !maximalNanos.compareAndSet(currentMaximalNanos, nanos)) {
+            currentMaximalNanos = maximalNanos.get();
+        }
+    }
+
+    private void incrementBucketCount(int bucketIndex) {
+        int stripeIndex = StripedCounters.getStripeIndex();
+        AtomicLongArray counts = stripeBucketCounts.get(stripeIndex);
+
+        if (counts == null) {
+            long count = bucketCounts.get(bucketIndex);
+            if (bucketCounts.compareAndSet(bucketIndex, count, count + 1L)) {
+                return;
+            }
+
+            stripeBucketCounts.compareAndSet(stripeIndex, null, new AtomicLongArray(BUCKET_COUNT));
+            counts = stripeBucketCounts.get(stripeIndex);
+        }
+
+        counts.getAndIncrement(bucketIndex);
+    }
+
+    @Nonnull
+    LatencyStatistics getStatistics(boolean reset) {
+        long[] counts = new long[BUCKET_COUNT];
+        addBucketCounts(counts, bucketCounts, reset);
+
+        for (int stripeIndex = 0; stripeIndex < StripedCounters.STRIPE_COUNT; ++stripeIndex) {
+            AtomicLongArray stripeCounts = stripeBucketCounts.get(stripeIndex);
+            if (stripeCounts != null) {
+                addBucketCounts(counts, stripeCounts, reset);
+            }
+        }
+
+        long totalNanos = reset ? counters.getAndReset(TOTAL_NANOS_COUNTER) : counters.get(TOTAL_NANOS_COUNTER);
+        long maximum = reset ? maximalNanos.getAndSet(0L) : maximalNanos.get();
+
+        return new LatencyStatistics(counts, totalNanos, maximum);
+    }
+
+    private static void addBucketCounts(long[] counts, AtomicLongArray addedCounts, boolean reset) {
+        for (int bucketIndex = 0; bucketIndex < BUCKET_COUNT; ++bucketIndex) {
+            counts[bucketIndex] += reset ? addedCounts.getAndSet(bucketIndex, 0L) : addedCounts.get(bucketIndex);
+        }
+    }
+
+    static int getBucketIndex(long nanos) {
+        if (nanos < LINEAR_BUCKET_COUNT) {
+            return (int) nanos;
+        }
+
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+        int subBucketIndex = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return LINEAR_BUCKET_COUNT + (exponent - LINEAR_BUCKET_BITS) * SUB_BUCKET_COUNT + subBucketIndex;
+    }
+
+    /**
+     * @return the greatest duration counted by the bucket
+     */
+    static long getBucketUpperBound(int bucketIndex) {
+        if (bucketIndex < LINEAR_BUCKET_COUNT) {
+            return bucketIndex;
+        }
+
+        int exponent = LINEAR_BUCKET_BITS + (bucketIndex - LINEAR_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        long subBucketIndex = (bucketIndex - LINEAR_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long subBucketLength = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucketIndex + 1L) * subBucketLength - 1L;
+    }
+}
@@ -0,0 +1,88 @@
+package com.codeforces.commons.cache.util;
+
+/**
+ * Snapshot of the latency histogram of a cache operation. Percentiles are reported as the greatest value
+ * of the histogram bucket, which is greater than the exact value by less than 3.2%.
+ */
+public final class LatencyStatistics {
+    private final long[] bucketCounts;
+    private final long count;
+    private final long totalNanos;
+    private final long maximalNanos;
+
+    LatencyStatistics(long[] bucketCounts, long totalNanos, long maximalNanos) {
+        long count = 0L;
+        for (long bucketCount : bucketCounts) {
+            count += bucketCount;
+        }
+
+        this.bucketCounts = bucketCounts;
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maximalNanos = maximalNanos;
+    }
+
+    /**
+     * @return count of recorded operations
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return total duration of recorded operations
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return mean duration of recorded operations or {@code 0} if there are no operations
+     */
+    public long getMeanNanos() {
+        return count == 0L ? 0L : totalNanos / count;
+    }
+
+    /**
+     * @return exact maximal duration of recorded operations
+     */
+    public long getMaximalNanos() {
+        return maximalNanos;
+    }
+
+    /**
+     * @param percentile percentile in range {@code (0, 100]}, for example {@code 99.9}
+     * @return duration which is not exceeded by the given percentage of operations
+     * or {@code 0} if there are no operations
+     */
+    public long getPercentileNanos(double percentile) {
+        if (percentile <= 0.0D || percentile > 100.0D) {
+            throw new IllegalArgumentException("Argument 'percentile' should be in range (0, 100].");
+        }
+
+        if (count == 0L) {
+            return 0L;
+        }
+
+        long targetCount = Math.max((long) Math.ceil(count * percentile / 100.0D), 1L);
+        long accumulatedCount = 0L;
+
+        for (int bucketIndex = 0; bucketIndex < bucketCounts.length; ++bucketIndex) {
+            accumulatedCount += bucketCounts[bucketIndex];
+            if (accumulatedCount >= targetCount) {
+                return Math.min(LatencyHistogram.getBucketUpperBound(bucketIndex), maximalNanos);
+            }
+        }
+
+        return maximalNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "LatencyStatistics {count=%d, meanNanos=%d, p50Nanos=%d, p99Nanos=%d, p999Nanos=%d, maximalNanos=%d}",
+                count, getMeanNanos(), getPercentileNanos(50.0D), getPercentileNanos(99.0D),
+                getPercentileNanos(99.9D), maximalNanos
+        );
+    }
+}
@@ -1,33 +1,103 @@
 package com.codeforces.commons.cache.util;
 
 import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.ConcurrentInmemoryCache;
+import com.codeforces.commons.cache.RemovalListener;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Reads values from the local cache and falls back to the remote cache on a miss. Concurrent misses of
+ * the same key share one remote fetch. Remote misses can be remembered for a short time (negative caching),
+ * so absent keys don't hit the remote cache on each request. Remembered misses are forgotten on writes
+ * through this cache, but not on writes to the remote cache made by other clients.
+ * <p/>
+ * Writes go to the local cache and then to the remote cache. In the write-behind mode remote writes are
+ * queued in a bounded backlog, coalesced per key and replicated in batches by a background thread, which
+ * retries failed writes with exponential backoff. Until replicated, a value evicted from the local cache
+ * may be read from the remote cache in its previous state.
+ *
  * @author Maxim Shipko (sladethe@gmail.com)
  *         Date: 14.02.11
  */
-class LocalAndRemoteByteCache extends ByteCache {
+public class LocalAndRemoteByteCache extends ByteCache {
+    private static final long MAXIMAL_MISS_COUNT = 100000L;
+
     private final ByteCache localCache;
     private final ByteCache remoteCache;
     private final boolean localCacheOptional;
     private final boolean remoteCacheOptional;
 
+    private final ConcurrentMap<CacheKey, RemoteFetch> remoteFetchByKey = new ConcurrentHashMap<>();
+
+    private final long missLifetimeMillis;
+    @Nullable
+    private final ConcurrentInmemoryCache<String, Boolean> missCache;
+
+    @Nullable
+    private final WriteBehindQueue replicationQueue;
+    @Nullable
+    private final Thread replicationThread;
+
     LocalAndRemoteByteCache(ByteCache localCache, ByteCache remoteCache) {
         this(localCache, remoteCache, false, false);
     }
 
     LocalAndRemoteByteCache(
             ByteCache localCache, ByteCache remoteCache, boolean localCacheOptional, boolean remoteCacheOptional) {
+        this(localCache, remoteCache, localCacheOptional, remoteCacheOptional, 0L);
+    }
+
+    /**
+     * @param missLifetimeMillis time to remember remote misses or {@code 0} to disable negative caching
+     */
+    LocalAndRemoteByteCache(ByteCache localCache, ByteCache remoteCache,
+                            boolean localCacheOptional, boolean remoteCacheOptional, long missLifetimeMillis) {
+        this(localCache, remoteCache, localCacheOptional, remoteCacheOptional, missLifetimeMillis, null);
+    }
+
+    /**
+     * @param missLifetimeMillis time to remember remote misses or {@code 0} to disable negative caching
+     * @param replicationQueue   backlog of remote writes to enable the write-behind mode or {@code null}
+     *                           to write to the remote cache synchronously
+     */
+    LocalAndRemoteByteCache(ByteCache localCache, ByteCache remoteCache,
+                            boolean localCacheOptional, boolean remoteCacheOptional, long missLifetimeMillis,
+                            @Nullable WriteBehindQueue replicationQueue) {
+        if (missLifetimeMillis < 0L) {
+            throw new IllegalArgumentException("Argument 'missLifetimeMillis' is less than zero.");
+        }
+
         this.localCache = localCache;
         this.remoteCache = remoteCache;
         this.localCacheOptional = localCacheOptional;
         this.remoteCacheOptional = remoteCacheOptional;
+        this.missLifetimeMillis = missLifetimeMillis;
+        this.missCache = missLifetimeMillis == 0L ? null : ConcurrentInmemoryCache.<String, Boolean>newBoundedInstance(
+                MAXIMAL_MISS_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT, null
+        );
         if (!validate()) {
             throw new IllegalArgumentException("Can't validate cache.");
         }
+
+        if (replicationQueue == null || remoteCache == null) {
+            this.replicationQueue = null;
+            this.replicationThread = null;
+        } else {
+            this.replicationQueue = replicationQueue;
+            this.replicationThread = new Thread(new WriteBehindWriter(remoteCache, replicationQueue, true));
+            replicationThread.setDaemon(true);
+            replicationThread.setName(LocalAndRemoteByteCache.class.getSimpleName() + '-' + getIndex()
+                    + "#ReplicationThread");
+            replicationThread.start();
+        }
     }
 
     @Override
@@ -42,17 +112,7 @@ class LocalAndRemoteByteCache extends ByteCache {
     @Override
     public boolean contains(@Nonnull String section, @Nonnull String key) {
         boolean localResult = internalContains(localCache, section, key, localCacheOptional);
-        if (localResult) {
-            return true;
-        } else {
-            byte[] remoteValue = internalGet(remoteCache, section, key, remoteCacheOptional);
-            if (remoteValue == null) {
-                return false;
-            } else {
-                internalPut(localCache, section, key, remoteValue, localCacheOptional);
-                return true;
-            }
-        }
+        return localResult || fetchRemote(section, key) != null;
     }
 
     private static boolean internalContains(ByteCache cache, String section, String key, boolean optional) {
@@ -75,8 +135,13 @@ class LocalAndRemoteByteCache extends ByteCache {
 
     @Override
     public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        forgetMiss(section, key);
         internalPut(localCache, section, key, value, localCacheOptional);
-        internalPut(remoteCache, section, key, value, remoteCacheOptional);
+        if (replicationQueue == null) {
+            internalPut(remoteCache, section, key, value, remoteCacheOptional);
+        } else {
+            replicate(section, key, value, WriteBehindQueue.PendingWrite.UNDEFINED_LIFETIME, false);
+        }
     }
 
     private static void internalPut(ByteCache cache, String section, String key, byte[] value, boolean optional) {
@@ -95,8 +160,13 @@ class LocalAndRemoteByteCache extends ByteCache {
 
     @Override
     public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        forgetMiss(section, key);
         internalPut(localCache, section, key, value, localCacheOptional, lifetimeMillis);
-        internalPut(remoteCache, section, key, value, remoteCacheOptional, lifetimeMillis);
+        if (replicationQueue == null) {
+            internalPut(remoteCache, section, key, value, remoteCacheOptional, lifetimeMillis);
+        } else {
+            replicate(section, key, value, lifetimeMillis, false);
+        }
     }
 
     private static void internalPut(
@@ -116,8 +186,13 @@ class LocalAndRemoteByteCache extends ByteCache {
 
     @Override
     public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        forgetMiss(section, key);
         internalPutIfAbsent(localCache, section, key, value, localCacheOptional);
-        internalPutIfAbsent(remoteCache, section, key, value, remoteCacheOptional);
+        if (replicationQueue == null) {
+            internalPutIfAbsent(remoteCache, section, key, value, remoteCacheOptional);
+        } else {
+            replicate(section, key, value, WriteBehindQueue.PendingWrite.UNDEFINED_LIFETIME, true);
+        }
     }
 
     private static void internalPutIfAbsent(ByteCache cache, String section, String key, byte[] value, boolean optional) {
@@ -136,8 +211,33 @@ class LocalAndRemoteByteCache extends ByteCache {
 
     @Override
     public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        forgetMiss(section, key);
         internalPutIfAbsent(localCache, section, key, value, localCacheOptional, lifetimeMillis);
-        internalPutIfAbsent(remoteCache, section, key, value, remoteCacheOptional, lifetimeMillis);
+        if (replicationQueue == null) {
+            internalPutIfAbsent(remoteCache, section, key, value, remoteCacheOptional, lifetimeMillis);
+        } else {
+            replicate(section, key, value, lifetimeMillis, true);
+        }
+    }
+
+    /**
+     * Enqueues the remote write. A write rejected by the full backlog is ignored if the remote cache is optional.
+     */
+    private void replicate(String section, String key, byte[] value, long lifetimeMillis, boolean ifAbsent) {
+        ensureCacheSectionName(section);
+        ensureCacheKeyName(key);
+
+        if (value == null) {
+            throw new IllegalArgumentException("Argument 'value' is 'null'.");
+        }
+
+        try {
+            replicationQueue.offer(new WriteBehindQueue.PendingWrite(section, key, value, lifetimeMillis, ifAbsent));
+        } catch (RejectedExecutionException e) {
+            if (!remoteCacheOptional) {
+                throw e;
+            }
+        }
     }
 
     private static void internalPutIfAbsent(
@@ -160,14 +260,62 @@ class LocalAndRemoteByteCache extends ByteCache {
     public byte[] get(@Nonnull String section, @Nonnull
     String key) {
         byte[] localValue = internalGet(localCache, section, key, localCacheOptional);
-        if (localValue == null) {
+        return localValue == null ? fetchRemote(section, key) : localValue;
+    }
+
+    /**
+     * Gets value from the remote cache and stores it in the local cache. Only one thread fetches the key
+     * at a time, other threads wait for its result.
+     */
+    @Nullable
+    private byte[] fetchRemote(String section, String key) {
+        if (isRememberedMiss(section, key)) {
+            return null;
+        }
+
+        CacheKey cacheKey = new CacheKey(section, key);
+        RemoteFetch remoteFetch = new RemoteFetch();
+        RemoteFetch concurrentRemoteFetch = remoteFetchByKey.putIfAbsent(cacheKey, remoteFetch);
+        if (concurrentRemoteFetch != null) {
+            return concurrentRemoteFetch.awaitValue();
+        }
+
+        try {
             byte[] remoteValue = internalGet(remoteCache, section, key, remoteCacheOptional);
-            if (remoteValue != null) {
+            if (remoteValue == null) {
+                rememberMiss(section, key);
+            } else {
                 internalPut(localCache, section, key, remoteValue, localCacheOptional);
             }
+            remoteFetch.complete(remoteValue, null);
             return remoteValue;
-        } else {
-            return localValue;
+        } catch (RuntimeException e) {
+            remoteFetch.complete(null, e);
+            throw e;
+        } finally {
+            remoteFetchByKey.remove(cacheKey, remoteFetch);
+        }
+    }
+
+    private boolean isRememberedMiss(String section, String key) {
+        return missCache != null && missCache.get(section, key) != null;
+    }
+
+    private void rememberMiss(String section, String key) {
+        if (missCache != null) {
+            missCache.put(section, key, Boolean.TRUE, missLifetimeMillis);
+        }
+    }
+
+    private void forgetMiss(String section, String key) {
+        if (missCache != null) {
+            missCache.remove(section, key);
+        }
+    }
+
+    private void forgetMisses(String section, Collection<String> keys) {
+        if (missCache != null) {
+            missCache.removeAll(section, keys);
         }
     }
 
@@ -190,8 +338,170 @@ class LocalAndRemoteByteCache extends ByteCache {
         }
     }
 
+    /**
+     * Gets the batch from the local cache and only missed values from the remote cache,
+     * then stores fetched remote values in the local cache.
+     */
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        Map<String, byte[]> localValueByKey = internalGetAll(localCache, section, keys, localCacheOptional);
+
+        List<String> missedKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (!localValueByKey.containsKey(key) && !isRememberedMiss(section, key)) {
+                missedKeys.add(key);
+            }
+        }
+
+        if (missedKeys.isEmpty()) {
+            return localValueByKey;
+        }
+
+        Map<String, byte[]> remoteValueByKey = internalGetAll(remoteCache, section, missedKeys, remoteCacheOptional);
+        if (missCache != null) {
+            for (String key : missedKeys) {
+                if (!remoteValueByKey.containsKey(key)) {
+                    rememberMiss(section, key);
+                }
+            }
+        }
+
+        if (remoteValueByKey.isEmpty()) {
+            return localValueByKey;
+        }
+
+        internalPutAll(localCache, section, remoteValueByKey, localCacheOptional);
+
+        Map<String, byte[]> valueByKey = newValueByKeyMap(keys.size());
+        for (String key : keys) {
+            byte[] value = localValueByKey.get(key);
+            if (value == null) {
+                value = remoteValueByKey.get(key);
+            }
+            if (value != null) {
+                valueByKey.put(key, value);
+            }
+        }
+        return valueByKey;
+    }
+
+    private static Map<String, byte[]> internalGetAll(
+            ByteCache cache, String section, Collection<String> keys, boolean optional) {
+        try {
+            if (cache != null) {
+                return cache.getAll(section, keys);
+            } else if (optional) {
+                return Collections.emptyMap();
+            } else {
+                throw new IllegalStateException("ByteCache is invalid.");
+            }
+        } catch (RuntimeException e) {
+            if (optional) {
+                return Collections.emptyMap();
+            } else {
+                throw new IllegalStateException("ByteCache is invalid.", e);
+            }
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        forgetMisses(section, valueByKey.keySet());
+        internalPutAll(localCache, section, valueByKey, localCacheOptional);
+        if (replicationQueue == null) {
+            internalPutAll(remoteCache, section, valueByKey, remoteCacheOptional);
+        } else {
+            for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+                replicate(section, entry.getKey(), entry.getValue(),
+                        WriteBehindQueue.PendingWrite.UNDEFINED_LIFETIME, false);
+            }
+        }
+    }
+
+    private static void internalPutAll(
+            ByteCache cache, String section, Map<String, byte[]> valueByKey, boolean optional) {
+        try {
+            if (cache != null) {
+                cache.putAll(section, valueByKey);
+            } else if (!optional) {
+                throw new IllegalStateException("ByteCache is invalid.");
+            }
+        } catch (RuntimeException e) {
+            if (!optional) {
+                throw new IllegalStateException("ByteCache is invalid.", e);
+            }
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        forgetMisses(section, valueByKey.keySet());
+        internalPutAll(localCache, section, valueByKey, localCacheOptional, lifetimeMillis);
+        if (replicationQueue == null) {
+            internalPutAll(remoteCache, section, valueByKey, remoteCacheOptional, lifetimeMillis);
+        } else {
+            for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+                replicate(section, entry.getKey(), entry.getValue(), lifetimeMillis, false);
+            }
+        }
+    }
+
+    private static void internalPutAll(
+            ByteCache cache, String section, Map<String, byte[]> valueByKey, boolean optional, long lifetimeMillis) {
+        try {
+            if (cache != null) {
+                cache.putAll(section, valueByKey, lifetimeMillis);
+            } else if (!optional) {
+                throw new IllegalStateException("ByteCache is invalid.");
+            }
+        } catch (RuntimeException e) {
+            if (!optional) {
+                throw new IllegalStateException("ByteCache is invalid.", e);
+            }
+        }
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        if (replicationQueue != null) {
+            ensureKeys(keys);
+            for (String key : keys) {
+                replicationQueue.cancel(section, key);
+            }
+        }
+
+        int remoteRemovedCount = internalRemoveAll(remoteCache, section, keys, remoteCacheOptional);
+        int localRemovedCount = internalRemoveAll(localCache, section, keys, localCacheOptional);
+        return Math.max(localRemovedCount, remoteRemovedCount);
+    }
+
+    private static int internalRemoveAll(ByteCache cache, String section, Collection<String> keys, boolean optional) {
+        try {
+            if (cache != null) {
+                return cache.removeAll(section, keys);
+            } else if (optional) {
+                return 0;
+            } else {
+                throw new IllegalStateException("ByteCache is invalid.");
+            }
+        } catch (RuntimeException e) {
+            if (optional) {
+                return 0;
+            } else {
+                throw new IllegalStateException("ByteCache is invalid.", e);
+            }
+        }
+    }
+
     @Override
     public boolean remove(@Nonnull String section, @Nonnull String key) {
+        if (replicationQueue != null) {
+            replicationQueue.cancel(section, key);
+        }
+
         boolean remoteResult = internalRemove(remoteCache, section, key, remoteCacheOptional);
         boolean localResult = internalRemove(localCache, section, key, localCacheOptional);
         return localResult || remoteResult;
@@ -217,19 +527,116 @@ class LocalAndRemoteByteCache extends ByteCache {
 
     @Override
     public void clearSection(@Nonnull String section) {
+        if (replicationQueue != null) {
+            replicationQueue.cancelSection(section);
+        }
+
         remoteCache.clearSection(section);
         localCache.clearSection(section);
     }
 
     @Override
     public void clear() {
+        if (replicationQueue != null) {
+            replicationQueue.cancelAll();
+        }
+
         remoteCache.clear();
         localCache.clear();
     }
 
+    /**
+     * Registers listener in the remote cache, which holds the values of record. Values leaving the local cache
+     * only are not reported, since they are still available from the remote cache.
+     */
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        remoteCache.addRemovalListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        remoteCache.removeRemovalListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return remoteCache.getDroppedRemovalNotificationCount();
+    }
+
     @Override
     public void close() {
+        if (replicationQueue != null) {
+            replicationQueue.close();
+
+            if (!joinReplicationThread(TimeUnit.SECONDS.toMillis(30L))) {
+                replicationThread.interrupt();
+                joinReplicationThread(TimeUnit.SECONDS.toMillis(1L));
+            }
+        }
+
         remoteCache.close();
         localCache.close();
+
+        if (missCache != null) {
+            missCache.close();
+        }
+    }
+
+    private boolean joinReplicationThread(long timeoutMillis) {
+        try {
+            replicationThread.join(timeoutMillis);
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+
+        return !replicationThread.isAlive();
+    }
+
+    /**
+     * @return state of the replication backlog or {@code null} if remote writes are synchronous
+     */
+    @Nullable
+    public WriteBehindStatistics getReplicationStatistics() {
+        return replicationQueue == null ? null : replicationQueue.getStatistics();
+    }
+
+    /**
+     * Result of the remote fetch shared by concurrent readers of the same key.
+     */
+    private static final class RemoteFetch {
+        private final CountDownLatch completionLatch = new CountDownLatch(1);
+        private volatile byte[] value;
+        private volatile RuntimeException exception;
+
+        private void complete(@Nullable byte[] value, @Nullable RuntimeException exception) {
+            this.value = value;
+            this.exception = exception;
+            completionLatch.countDown();
+        }
+
+        @Nullable
+        private byte[] awaitValue() {
+            boolean interrupted = false;
+
+            while (true) {
+                try {
+                    completionLatch.await();
+                    break;
+                } catch (InterruptedException ignored) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (exception != null) {
+                throw new IllegalStateException("Can't fetch value from remote cache.", exception);
+            }
+
+            return value;
+        }
     }
 }
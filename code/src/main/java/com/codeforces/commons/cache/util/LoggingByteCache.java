@@ -1,6 +1,8 @@
 package com.codeforces.commons.cache.util;
 
 import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.RemovalListener;
+import com.codeforces.commons.cache.VersionedValue;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.matcher.Matchers;
@@ -11,23 +13,47 @@ import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
 import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.nio.channels.Channel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.annotation.ElementType.METHOD;
 import static java.lang.annotation.RetentionPolicy.RUNTIME;
 
 /**
+ * By default logs start and finish of each operation on the calling thread. In the selective mode
+ * (see {@link #newInstance(ByteCache, long, double)}) logs only failed operations, operations slower than
+ * the threshold and a random sample of other operations. Messages of the selective mode are rendered and
+ * written by a background appender thread, so cache callers never wait for logging.
+ *
  * @author Maxim Shipko (sladethe@gmail.com)
  *         Date: 02.11.13
  */
 class LoggingByteCache extends ByteCache {
     private static final Logger logger = Logger.getLogger(LoggingByteCache.class);
 
+    private static final int MAXIMAL_PENDING_RECORD_COUNT = 10000;
+
     private ByteCache cache;
 
+    private long slowThresholdNanos;
+    private double samplingRate;
+
+    @Nullable
+    private LogAppender appender;
+
     @LogPerformance
     @Override
     public boolean validate() {
@@ -52,6 +78,20 @@ class LoggingByteCache extends ByteCache {
         cache.put(section, key, value, lifetimeMillis);
     }
 
+    @LogPerformance
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        cache.put(section, key, inputStream, length);
+    }
+
+    @LogPerformance
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        cache.put(section, key, inputStream, length, lifetimeMillis);
+    }
+
     @LogPerformance
     @Override
     public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
@@ -71,6 +111,71 @@ class LoggingByteCache extends ByteCache {
         return cache.get(section, key);
     }
 
+    @LogPerformance
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        return cache.getWithVersion(section, key);
+    }
+
+    @LogPerformance
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        return cache.compareAndSet(section, key, expectedVersion, newValue, lifetimeMillis);
+    }
+
+    @LogPerformance
+    @Override
+    public long incrementAndGet(@Nonnull String section, @Nonnull String key, long delta, long lifetimeMillis) {
+        return cache.incrementAndGet(section, key, delta, lifetimeMillis);
+    }
+
+    @LogPerformance
+    @Override
+    public long getCounter(@Nonnull String section, @Nonnull String key) {
+        return cache.getCounter(section, key);
+    }
+
+    @LogPerformance
+    @Nullable
+    @Override
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        return cache.openStream(section, key);
+    }
+
+    @LogPerformance
+    @Override
+    public long transferTo(@Nonnull String section, @Nonnull String key, @Nonnull WritableByteChannel channel)
+            throws IOException {
+        return cache.transferTo(section, key, channel);
+    }
+
+    @LogPerformance
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        return cache.getAll(section, keys);
+    }
+
+    @LogPerformance
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        cache.putAll(section, valueByKey);
+    }
+
+    @LogPerformance
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        cache.putAll(section, valueByKey, lifetimeMillis);
+    }
+
+    @LogPerformance
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        return cache.removeAll(section, keys);
+    }
+
     @LogPerformance
     @Override
     public boolean remove(@Nonnull String section, @Nonnull String key) {
@@ -89,10 +194,31 @@ class LoggingByteCache extends ByteCache {
         cache.clear();
     }
 
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.addRemovalListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        cache.removeRemovalListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return cache.getDroppedRemovalNotificationCount();
+    }
+
     @LogPerformance
     @Override
     public void close() {
-        cache.close();
+        try {
+            cache.close();
+        } finally {
+            if (appender != null) {
+                appender.close();
+            }
+        }
     }
 
     static LoggingByteCache newInstance(ByteCache cache) {
@@ -102,6 +228,32 @@ class LoggingByteCache extends ByteCache {
         return loggingByteCache;
     }
 
+    /**
+     * @param cache              cache to log
+     * @param slowThresholdMillis operations lasting this time or longer are always logged,
+     *                           use {@code Long.MAX_VALUE} to log only failed and sampled operations
+     * @param samplingRate       fraction of other successful operations to log, in range {@code [0, 1]}
+     * @return new logging cache in the selective mode
+     */
+    static LoggingByteCache newInstance(ByteCache cache, long slowThresholdMillis, double samplingRate) {
+        if (slowThresholdMillis < 0L) {
+            throw new IllegalArgumentException("Argument 'slowThresholdMillis' should be non-negative.");
+        }
+
+        if (samplingRate < 0.0D || samplingRate > 1.0D) {
+            throw new IllegalArgumentException("Argument 'samplingRate' should be in range [0, 1].");
+        }
+
+        LoggingByteCache loggingByteCache = newInstance(cache);
+        loggingByteCache.slowThresholdNanos = slowThresholdMillis >= TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE)
+                ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+        loggingByteCache.samplingRate = samplingRate;
+        loggingByteCache.appender = new LogAppender(
+                LoggingByteCache.class.getSimpleName() + '-' + loggingByteCache.getIndex() + "#AppenderThread"
+        );
+        return loggingByteCache;
+    }
+
     @SuppressWarnings({"AccessingNonPublicFieldOfAnotherObject", "ObjectToString", "OverlyLongMethod"})
     private static final class LoggingByteCacheModule extends AbstractModule {
         @Override
@@ -112,32 +264,16 @@ class LoggingByteCache extends ByteCache {
                         @Override
                         public Object invoke(MethodInvocation invocation) throws Throwable {
                             LoggingByteCache loggingByteCache = (LoggingByteCache) invocation.getThis();
+                            LogAppender appender = loggingByteCache.appender;
+                            if (appender != null) {
+                                return invokeSelectively(loggingByteCache, appender, invocation);
+                            }
+
                             String internalCacheAsString = String.valueOf(loggingByteCache.cache);
 
                             Method method = invocation.getMethod();
-                            Class<?>[] parameterClasses = method.getParameterTypes();
-                            Object[] parameters = invocation.getArguments();
-                            int parameterCount = parameterClasses.length;
-
-                            StringBuilder methodStringBuilder = new StringBuilder()
-                                    .append(method.getReturnType().getSimpleName())
-                                    .append(' ').append(method.getName()).append('(');
-                            StringBuilder parametersStringBuilder = new StringBuilder("(");
-
-                            for (int parameterIndex = 0; parameterIndex < parameterCount; ++parameterIndex) {
-                                if (parameterIndex > 0) {
-                                    methodStringBuilder.append(", ");
-                                    parametersStringBuilder.append(", ");
-                                }
-
-                                methodStringBuilder.append(parameterClasses[parameterIndex].getSimpleName());
-                                parametersStringBuilder.append(toSimpleString(parameters[parameterIndex]));
-                            }
-                            methodStringBuilder.append(')');
-                            parametersStringBuilder.append(')');
-
-                            String methodAsString = methodStringBuilder.toString();
-                            String parametersAsString = parametersStringBuilder.toString();
+                            String methodAsString = toMethodString(method);
+                            String parametersAsString = toParametersString(invocation.getArguments());
 
                             logger.info(String.format(
                                     "%s: started to invoke '%s' with parameters %s.",
@@ -183,24 +319,34 @@ class LoggingByteCache extends ByteCache {
                             }
                         }
 
-                        private String toSimpleString(Object o) {
-                            if (o == null) {
-                                return "null";
+                        private Object invokeSelectively(
+                                LoggingByteCache loggingByteCache, LogAppender appender,
+                                MethodInvocation invocation) throws Throwable {
+                            Object result = null;
+                            Throwable exception = null;
+                            long startTimeNanos = System.nanoTime();
+
+                            try {
+                                result = invocation.proceed();
+                            } catch (Throwable e) {
+                                exception = e;
+                            }
+
+                            long durationNanos = System.nanoTime() - startTimeNanos;
+                            boolean slow = durationNanos >= loggingByteCache.slowThresholdNanos;
+
+                            if (exception != null || slow || loggingByteCache.samplingRate > 0.0D
+                                    && ThreadLocalRandom.current().nextDouble() < loggingByteCache.samplingRate) {
+                                appender.append(new OperationRecord(
+                                        loggingByteCache.cache, invocation.getMethod(),
+                                        invocation.getArguments(), result, exception, durationNanos, slow
+                                ));
                             }
 
-                            Class<?> objectClass = o.getClass();
-
-                            if (objectClass == Void.class || objectClass == void.class) {
-                                return "void";
-                            } else if (objectClass.isArray() && objectClass.getComponentType() == byte.class) {
-                                return "byte[" + Array.getLength(o) + ']';
-                            } else if (objectClass == String.class) {
-                                return '\'' + (String) o + '\'';
-                            } else if (objectClass == boolean.class || objectClass == long.class
-                                    || objectClass == Boolean.class || objectClass == Long.class) {
-                                return String.valueOf(o);
+                            if (exception == null) {
+                                return result;
                             } else {
-                                throw new IllegalArgumentException("Unexpected object: '" + o + "'.");
+                                throw exception;
                             }
                         }
                     }
@@ -208,6 +354,187 @@ class LoggingByteCache extends ByteCache {
         }
     }
 
+    private static String toMethodString(Method method) {
+        StringBuilder methodStringBuilder = new StringBuilder()
+                .append(method.getReturnType().getSimpleName())
+                .append(' ').append(method.getName()).append('(');
+
+        Class<?>[] parameterClasses = method.getParameterTypes();
+        for (int parameterIndex = 0; parameterIndex < parameterClasses.length; ++parameterIndex) {
+            if (parameterIndex > 0) {
+                methodStringBuilder.append(", ");
+            }
+            methodStringBuilder.append(parameterClasses[parameterIndex].getSimpleName());
+        }
+
+        return methodStringBuilder.append(')').toString();
+    }
+
+    private static String toParametersString(Object[] parameters) {
+        StringBuilder parametersStringBuilder = new StringBuilder("(");
+
+        for (int parameterIndex = 0; parameterIndex < parameters.length; ++parameterIndex) {
+            if (parameterIndex > 0) {
+                parametersStringBuilder.append(", ");
+            }
+            parametersStringBuilder.append(toSimpleString(parameters[parameterIndex]));
+        }
+
+        return parametersStringBuilder.append(')').toString();
+    }
+
+    private static String toSimpleString(Object o) {
+        if (o == null) {
+            return "null";
+        }
+
+        Class<?> objectClass = o.getClass();
+
+        if (objectClass == Void.class || objectClass == void.class) {
+            return "void";
+        } else if (objectClass.isArray() && objectClass.getComponentType() == byte.class) {
+            return "byte[" + Array.getLength(o) + ']';
+        } else if (objectClass == String.class) {
+            return '\'' + (String) o + '\'';
+        } else if (objectClass == boolean.class || objectClass == long.class
+                || objectClass == Boolean.class || objectClass == Long.class
+                || objectClass == Integer.class) {
+            return String.valueOf(o);
+        } else if (o instanceof Collection) {
+            return objectClass.getSimpleName() + '[' + ((Collection) o).size() + ']';
+        } else if (o instanceof Map) {
+            return objectClass.getSimpleName() + '[' + ((Map) o).size() + ']';
+        } else if (o instanceof VersionedValue) {
+            VersionedValue versionedValue = (VersionedValue) o;
+            return String.format(
+                    "byte[%d] of version %016x", versionedValue.getValue().length, versionedValue.getVersion()
+            );
+        } else if (o instanceof InputStream || o instanceof Channel) {
+            return objectClass.getSimpleName();
+        } else {
+            throw new IllegalArgumentException("Unexpected object: '" + o + "'.");
+        }
+    }
+
+    /**
+     * Operation selected for logging. Parameters and result are described by short strings on creation,
+     * so queued records don't retain values, maps and streams passed to the operation. The rest of the message
+     * is rendered by the appender thread.
+     */
+    private static final class OperationRecord {
+        private final ByteCache cache;
+        private final Method method;
+        private final String parametersAsString;
+        @Nullable
+        private final String resultAsString;
+        @Nullable
+        private final Throwable exception;
+        private final long durationNanos;
+        private final boolean slow;
+
+        private OperationRecord(ByteCache cache, Method method, Object[] parameters, @Nullable Object result,
+                                @Nullable Throwable exception, long durationNanos, boolean slow) {
+            this.cache = cache;
+            this.method = method;
+            this.parametersAsString = toParametersString(parameters);
+            this.resultAsString = exception == null && method.getReturnType() != void.class
+                    ? toSimpleString(result) : null;
+            this.exception = exception;
+            this.durationNanos = durationNanos;
+            this.slow = slow;
+        }
+
+        private String render() {
+            String prefix = String.format(
+                    "%s: %s '%s' with parameters %s in %d ms.",
+                    cache, slow ? "slowly invoked" : "invoked", toMethodString(method), parametersAsString,
+                    TimeUnit.NANOSECONDS.toMillis(durationNanos)
+            );
+
+            if (exception != null) {
+                return prefix + " Method threw an exception: " + ExceptionUtils.getStackTrace(exception);
+            } else if (resultAsString == null) {
+                return prefix;
+            } else {
+                return prefix + " Result is: " + resultAsString + '.';
+            }
+        }
+    }
+
+    /**
+     * Renders and writes records on a daemon thread. Records offered while the queue is full are dropped
+     * and counted, records offered after {@link #close()} are written on the calling thread.
+     */
+    private static final class LogAppender implements Runnable {
+        private final BlockingQueue<OperationRecord> records
+                = new ArrayBlockingQueue<>(MAXIMAL_PENDING_RECORD_COUNT);
+        private final AtomicLong droppedCount = new AtomicLong();
+        private final Thread thread;
+
+        private volatile boolean closed;
+
+        private LogAppender(String threadName) {
+            thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.setName(threadName);
+            thread.start();
+        }
+
+        private void append(OperationRecord record) {
+            if (closed) {
+                write(record);
+            } else if (!records.offer(record)) {
+                droppedCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed || !records.isEmpty()) {
+                OperationRecord record;
+                try {
+                    record = records.poll(100L, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ignored) {
+                    // Is interrupted by close() to write the remaining records without waiting for the poll.
+                    continue;
+                }
+
+                if (record != null) {
+                    write(record);
+                }
+
+                long currentDroppedCount = droppedCount.getAndSet(0L);
+                if (currentDroppedCount > 0L) {
+                    logger.warn(String.format("Dropped %d log records since the queue is full.", currentDroppedCount));
+                }
+            }
+        }
+
+        private static void write(OperationRecord record) {
+            try {
+                if (record.exception == null) {
+                    logger.info(record.render());
+                } else {
+                    logger.warn(record.render());
+                }
+            } catch (RuntimeException e) {
+                logger.error("Can't write log record.", e);
+            }
+        }
+
+        private void close() {
+            closed = true;
+            thread.interrupt();
+
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5L));
+            } catch (InterruptedException ignored) {
+                thread.interrupt();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     @Target({METHOD})
     @Retention(RUNTIME)
     public @interface LogPerformance {
@@ -0,0 +1,93 @@
+package com.codeforces.commons.cache.util;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Snapshot of operation counters of a cache section collected by {@link InstrumentedByteCache}.
+ */
+public final class SectionStatistics {
+    private final long hitCount;
+    private final long missCount;
+    private final long putCount;
+    private final long removeCount;
+    private final long readByteCount;
+    private final long writtenByteCount;
+
+    SectionStatistics(long hitCount, long missCount, long putCount, long removeCount,
+                      long readByteCount, long writtenByteCount) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.putCount = putCount;
+        this.removeCount = removeCount;
+        this.readByteCount = readByteCount;
+        this.writtenByteCount = writtenByteCount;
+    }
+
+    @Nonnull
+    SectionStatistics add(@Nonnull SectionStatistics statistics) {
+        return new SectionStatistics(
+                hitCount + statistics.hitCount, missCount + statistics.missCount,
+                putCount + statistics.putCount, removeCount + statistics.removeCount,
+                readByteCount + statistics.readByteCount, writtenByteCount + statistics.writtenByteCount
+        );
+    }
+
+    /**
+     * @return count of keys found by reading operations
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return count of keys not found by reading operations
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return ratio of hits to all lookups or {@code 0} if there are no lookups
+     */
+    public double getHitRatio() {
+        long lookupCount = hitCount + missCount;
+        return lookupCount == 0L ? 0.0D : (double) hitCount / lookupCount;
+    }
+
+    /**
+     * @return count of values passed to writing operations
+     */
+    public long getPutCount() {
+        return putCount;
+    }
+
+    /**
+     * @return count of keys passed to removing operations
+     */
+    public long getRemoveCount() {
+        return removeCount;
+    }
+
+    /**
+     * @return total length of values returned from the cache (bytes out)
+     */
+    public long getReadByteCount() {
+        return readByteCount;
+    }
+
+    /**
+     * @return total length of values passed to the cache (bytes in)
+     */
+    public long getWrittenByteCount() {
+        return writtenByteCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "SectionStatistics {hitCount=%d, missCount=%d, putCount=%d, removeCount=%d, "
+                        + "readByteCount=%d, writtenByteCount=%d}",
+                hitCount, missCount, putCount, removeCount, readByteCount, writtenByteCount
+        );
+    }
+}
@@ -0,0 +1,652 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.RemovalListener;
+import com.codeforces.commons.cache.VersionedValue;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Spreads values across several underlying caches (shards) by consistent hashing of section and key.
+ * Each shard is placed on the hash ring as {@code virtualNodeCount} virtual nodes derived from the shard name,
+ * so adding or removing a shard moves only the keys of the ring segments it gains or loses.
+ * <p/>
+ * If routing around invalid shards is enabled, a background thread validates shards periodically, and keys
+ * of an invalid shard are served by the next valid shard on the ring until the shard becomes valid again.
+ * This trades consistency for availability:
+ * <ul>
+ * <li>a shard which has become valid again is cleared before it serves its keys, so values written, replaced
+ * or removed during the outage are not shadowed by values stored before it, but the values of all its other keys
+ * are lost as well;</li>
+ * <li>values written to the next shard during the outage are not removed after it and are served again
+ * if the shard becomes invalid once more before they expire or are evicted.</li>
+ * </ul>
+ */
+public class ShardedByteCache extends ByteCache {
+    private static final Logger logger = Logger.getLogger(ShardedByteCache.class);
+
+    public static final int DEFAULT_VIRTUAL_NODE_COUNT = 160;
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10L);
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final int virtualNodeCount;
+    private final boolean routeAroundInvalidShards;
+
+    private final AtomicReference<Ring> ring = new AtomicReference<>();
+    private final Object ringMonitor = new Object();
+
+    /**
+     * Guarded by {@link #ringMonitor}.
+     */
+    private final List<RemovalListener<String, byte[]>> removalListeners = new ArrayList<>();
+
+    @Nullable
+    private final ShardValidator validator;
+
+    ShardedByteCache(@Nonnull Map<String, ByteCache> cacheByShardName, int virtualNodeCount,
+                     boolean routeAroundInvalidShards, long validationIntervalMillis) {
+        if (cacheByShardName == null) {
+            throw new IllegalArgumentException("Argument 'cacheByShardName' is 'null'.");
+        }
+
+        if (cacheByShardName.isEmpty()) {
+            throw new IllegalArgumentException("Argument 'cacheByShardName' is empty.");
+        }
+
+        if (virtualNodeCount <= 0) {
+            throw new IllegalArgumentException("Argument 'virtualNodeCount' should be positive.");
+        }
+
+        if (routeAroundInvalidShards && validationIntervalMillis <= 0L) {
+            throw new IllegalArgumentException("Argument 'validationIntervalMillis' should be positive.");
+        }
+
+        List<Shard> shards = new ArrayList<>(cacheByShardName.size());
+        for (Map.Entry<String, ByteCache> entry : cacheByShardName.entrySet()) {
+            shards.add(newShard(entry.getKey(), entry.getValue()));
+        }
+
+        this.virtualNodeCount = virtualNodeCount;
+        this.routeAroundInvalidShards = routeAroundInvalidShards;
+        this.ring.set(new Ring(shards, virtualNodeCount));
+
+        if (routeAroundInvalidShards) {
+            this.validator = new ShardValidator(
+                    ShardedByteCache.class.getSimpleName() + '-' + getIndex() + "#ValidationThread",
+                    ring, validationIntervalMillis
+            );
+            this.validator.start();
+        } else {
+            this.validator = null;
+        }
+    }
+
+    /**
+     * Adds the shard to the ring. Only keys of the ring segments taken by the new shard are moved to it,
+     * their values stored in other shards become unreachable.
+     *
+     * @param shardName unique name of the shard defining its position on the ring
+     * @param cache     cache of the shard
+     * @throws IllegalArgumentException      if the shard with the same name exists
+     * @throws UnsupportedOperationException if removal listeners are registered and the cache doesn't report
+     *                                       removals
+     */
+    public void addShard(@Nonnull String shardName, @Nonnull ByteCache cache) {
+        Shard newShard = newShard(shardName, cache);
+
+        synchronized (ringMonitor) {
+            List<Shard> shards = new ArrayList<>(ring.get().shards);
+            for (Shard shard : shards) {
+                if (shard.name.equals(shardName)) {
+                    throw new IllegalArgumentException("Shard '" + shardName + "' already exists.");
+                }
+            }
+
+            for (RemovalListener<String, byte[]> listener : removalListeners) {
+                cache.addRemovalListener(listener);
+            }
+
+            shards.add(newShard);
+            ring.set(new Ring(shards, virtualNodeCount));
+        }
+    }
+
+    /**
+     * Removes the shard from the ring. Keys of the shard are moved to the neighbouring shards.
+     * The cache of the shard is not closed.
+     *
+     * @param shardName name of the shard
+     * @return cache of the removed shard or {@code null} if there is no such shard
+     * @throws IllegalStateException if the shard is the last one
+     */
+    @Nullable
+    public ByteCache removeShard(@Nonnull String shardName) {
+        synchronized (ringMonitor) {
+            List<Shard> shards = new ArrayList<>(ring.get().shards);
+
+            for (Iterator<Shard> shardIterator = shards.iterator(); shardIterator.hasNext(); ) {
+                Shard shard = shardIterator.next();
+                if (shard.name.equals(shardName)) {
+                    if (shards.size() == 1) {
+                        throw new IllegalStateException("Can't remove the last shard '" + shardName + "'.");
+                    }
+
+                    shardIterator.remove();
+                    ring.set(new Ring(shards, virtualNodeCount));
+
+                    for (RemovalListener<String, byte[]> listener : removalListeners) {
+                        shard.cache.removeRemovalListener(listener);
+                    }
+                    return shard.cache;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * @return names of shards in the order of addition
+     */
+    @Nonnull
+    public List<String> getShardNames() {
+        List<Shard> shards = ring.get().shards;
+        List<String> shardNames = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            shardNames.add(shard.name);
+        }
+        return shardNames;
+    }
+
+    /**
+     * @return name of the shard currently serving the key
+     */
+    @Nonnull
+    public String getShardName(@Nonnull String section, @Nonnull String key) {
+        return getShard(section, key).name;
+    }
+
+    /**
+     * Validates shards and updates routing: keys of invalid shards are served by the next valid shards on the ring,
+     * shards which have become valid again are cleared and serve their keys. Is called periodically by
+     * the background thread. Does nothing if routing around invalid shards is disabled.
+     */
+    public void updateRouting() {
+        if (routeAroundInvalidShards) {
+            for (Shard shard : ring.get().shards) {
+                updateValidity(shard);
+            }
+        }
+    }
+
+    /**
+     * Doesn't change routing, see {@link #updateRouting()}.
+     *
+     * @return {@code true} iff all shards are valid or, if routing around invalid shards is enabled,
+     * at least one shard is valid
+     */
+    @Override
+    public boolean validate() {
+        boolean allValid = true;
+        boolean anyValid = false;
+
+        for (Shard shard : ring.get().shards) {
+            boolean valid = isValid(shard);
+            allValid &= valid;
+            anyValid |= valid;
+        }
+
+        return routeAroundInvalidShards ? anyValid : allValid;
+    }
+
+    @Override
+    public boolean contains(@Nonnull String section, @Nonnull String key) {
+        return getShard(section, key).cache.contains(section, key);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        getShard(section, key).cache.put(section, key, value);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        getShard(section, key).cache.put(section, key, value, lifetimeMillis);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+        getShard(section, key).cache.putIfAbsent(section, key, value);
+    }
+
+    @Override
+    public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+        getShard(section, key).cache.putIfAbsent(section, key, value, lifetimeMillis);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        getShard(section, key).cache.put(section, key, inputStream, length);
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        getShard(section, key).cache.put(section, key, inputStream, length, lifetimeMillis);
+    }
+
+    @Nullable
+    @Override
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        return getShard(section, key).cache.openStream(section, key);
+    }
+
+    @Override
+    public long transferTo(@Nonnull String section, @Nonnull String key, @Nonnull WritableByteChannel channel)
+            throws IOException {
+        return getShard(section, key).cache.transferTo(section, key, channel);
+    }
+
+    @Nullable
+    @Override
+    public byte[] get(@Nonnull String section, @Nonnull String key) {
+        return getShard(section, key).cache.get(section, key);
+    }
+
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        return getShard(section, key).cache.getWithVersion(section, key);
+    }
+
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        return getShard(section, key).cache.compareAndSet(section, key, expectedVersion, newValue, lifetimeMillis);
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        Map<Shard, List<String>> keysByShard = groupKeysByShard(section, keys);
+        if (keysByShard.size() == 1) {
+            Map.Entry<Shard, List<String>> entry = keysByShard.entrySet().iterator().next();
+            return entry.getKey().cache.getAll(section, entry.getValue());
+        }
+
+        Map<String, byte[]> shardValueByKey = new HashMap<>();
+        for (Map.Entry<Shard, List<String>> entry : keysByShard.entrySet()) {
+            shardValueByKey.putAll(entry.getKey().cache.getAll(section, entry.getValue()));
+        }
+
+        Map<String, byte[]> valueByKey = newValueByKeyMap(keys.size());
+        for (String key : keys) {
+            byte[] value = shardValueByKey.get(key);
+            if (value != null) {
+                valueByKey.put(key, value);
+            }
+        }
+        return valueByKey;
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        ensureValueByKey(valueByKey);
+
+        for (Map.Entry<Shard, Map<String, byte[]>> entry : groupValuesByShard(section, valueByKey).entrySet()) {
+            entry.getKey().cache.putAll(section, entry.getValue());
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        ensureValueByKey(valueByKey);
+
+        for (Map.Entry<Shard, Map<String, byte[]>> entry : groupValuesByShard(section, valueByKey).entrySet()) {
+            entry.getKey().cache.putAll(section, entry.getValue(), lifetimeMillis);
+        }
+    }
+
+    @Override
+    public boolean remove(@Nonnull String section, @Nonnull String key) {
+        return getShard(section, key).cache.remove(section, key);
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        ensureKeys(keys);
+
+        int removedCount = 0;
+        for (Map.Entry<Shard, List<String>> entry : groupKeysByShard(section, keys).entrySet()) {
+            removedCount += entry.getKey().cache.removeAll(section, entry.getValue());
+        }
+        return removedCount;
+    }
+
+    @Override
+    public void clearSection(@Nonnull String section) {
+        for (Shard shard : ring.get().shards) {
+            shard.cache.clearSection(section);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (Shard shard : ring.get().shards) {
+            shard.cache.clear();
+        }
+    }
+
+    /**
+     * Registers listener in the caches of all shards, including shards added later.
+     *
+     * @throws UnsupportedOperationException if the cache of a shard doesn't report removals
+     */
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Argument 'listener' is 'null'.");
+        }
+
+        synchronized (ringMonitor) {
+            List<Shard> shards = ring.get().shards;
+            for (int shardIndex = 0; shardIndex < shards.size(); ++shardIndex) {
+                try {
+                    shards.get(shardIndex).cache.addRemovalListener(listener);
+                } catch (RuntimeException e) {
+                    for (int registeredShardIndex = 0; registeredShardIndex < shardIndex; ++registeredShardIndex) {
+                        shards.get(registeredShardIndex).cache.removeRemovalListener(listener);
+                    }
+                    throw e;
+                }
+            }
+
+            removalListeners.add(listener);
+        }
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Argument 'listener' is 'null'.");
+        }
+
+        synchronized (ringMonitor) {
+            if (removalListeners.remove(listener)) {
+                for (Shard shard : ring.get().shards) {
+                    shard.cache.removeRemovalListener(listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return sum of counts of the current shards
+     */
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        long droppedCount = 0L;
+        for (Shard shard : ring.get().shards) {
+            droppedCount += shard.cache.getDroppedRemovalNotificationCount();
+        }
+        return droppedCount;
+    }
+
+    @Override
+    public void close() {
+        if (validator != null) {
+            validator.stop();
+        }
+
+        for (Shard shard : ring.get().shards) {
+            shard.cache.close();
+        }
+    }
+
+    @Nonnull
+    private Shard getShard(@Nonnull String section, @Nonnull String key) {
+        return ring.get().getShard(getHash(section, key), routeAroundInvalidShards);
+    }
+
+    @Nonnull
+    private Map<Shard, List<String>> groupKeysByShard(@Nonnull String section, @Nonnull Collection<String> keys) {
+        Ring currentRing = ring.get();
+        Map<Shard, List<String>> keysByShard = new LinkedHashMap<>();
+
+        for (String key : keys) {
+            Shard shard = currentRing.getShard(getHash(section, key), routeAroundInvalidShards);
+            List<String> shardKeys = keysByShard.get(shard);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<>();
+                keysByShard.put(shard, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+
+        return keysByShard;
+    }
+
+    @Nonnull
+    private Map<Shard, Map<String, byte[]>> groupValuesByShard(
+            @Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        Ring currentRing = ring.get();
+        Map<Shard, Map<String, byte[]>> valuesByShard = new LinkedHashMap<>();
+
+        for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            Shard shard = currentRing.getShard(getHash(section, entry.getKey()), routeAroundInvalidShards);
+            Map<String, byte[]> shardValueByKey = valuesByShard.get(shard);
+            if (shardValueByKey == null) {
+                shardValueByKey = new LinkedHashMap<>();
+                valuesByShard.put(shard, shardValueByKey);
+            }
+            shardValueByKey.put(entry.getKey(), entry.getValue());
+        }
+
+        return valuesByShard;
+    }
+
+    private static long getHash(@Nonnull String section, @Nonnull String key) {
+        return HASH_FUNCTION.newHasher()
+                .putString(section, Charsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(key, Charsets.UTF_8)
+                .hash().asLong();
+    }
+
+    private static boolean isValid(@Nonnull Shard shard) {
+        try {
+            return shard.cache.validate();
+        } catch (RuntimeException e) {
+            logger.warn("Can't validate shard '" + shard.name + "'.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Clears the shard which has become valid before routing keys to it. The shard stays invalid
+     * if it can't be cleared.
+     */
+    private static void updateValidity(@Nonnull Shard shard) {
+        synchronized (shard) {
+            boolean valid = isValid(shard);
+            if (shard.valid == valid) {
+                return;
+            }
+
+            if (valid) {
+                try {
+                    shard.cache.clear();
+                } catch (RuntimeException e) {
+                    logger.warn("Can't clear shard '" + shard.name + "' which has become valid.", e);
+                    return;
+                }
+            }
+
+            shard.valid = valid;
+            logger.info("Shard '" + shard.name + "' has become " + (valid ? "valid and is cleared." : "invalid."));
+        }
+    }
+
+    @Nonnull
+    private static Shard newShard(@Nonnull String shardName, @Nonnull ByteCache cache) {
+        if (shardName == null) {
+            throw new IllegalArgumentException("Argument 'shardName' is 'null'.");
+        }
+
+        if (cache == null) {
+            throw new IllegalArgumentException("Argument 'cache' is 'null'.");
+        }
+
+        return new Shard(shardName, cache);
+    }
+
+    @Override
+    public String toString() {
+        return ShardedByteCache.class.getSimpleName() + " {shardNames=" + getShardNames() + '}';
+    }
+
+    private static final class Shard {
+        private final String name;
+        private final ByteCache cache;
+
+        /**
+         * Is {@code true} iff keys of the shard are routed to it. Is changed only by
+         * {@link #updateValidity(Shard)} under the monitor of the shard.
+         */
+        private volatile boolean valid = true;
+
+        private Shard(String name, ByteCache cache) {
+            this.name = name;
+            this.cache = cache;
+        }
+    }
+
+    /**
+     * Immutable hash ring. Virtual nodes are sorted by their hashes, each key belongs to the first virtual node
+     * with the hash not less than the hash of the key, wrapping around the end of the ring.
+     */
+    private static final class Ring {
+        private final List<Shard> shards;
+        private final long[] nodeHashes;
+        private final Shard[] nodeShards;
+
+        private Ring(List<Shard> shards, int virtualNodeCount) {
+            this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+
+            int nodeCount = shards.size() * virtualNodeCount;
+            long[] hashes = new long[nodeCount];
+            Map<Long, Shard> shardByHash = new HashMap<>(nodeCount * 2);
+
+            int nodeIndex = 0;
+            for (Shard shard : shards) {
+                for (int virtualNodeIndex = 0; virtualNodeIndex < virtualNodeCount; ++virtualNodeIndex) {
+                    long hash = getHash(shard.name, Integer.toString(virtualNodeIndex));
+                    Shard collidingShard = shardByHash.get(hash);
+
+                    // On the unlikely collision the node belongs to the shard with the lesser name.
+                    if (collidingShard == null || shard.name.compareTo(collidingShard.name) < 0) {
+                        shardByHash.put(hash, shard);
+                    }
+                    if (collidingShard == null) {
+                        hashes[nodeIndex++] = hash;
+                    }
+                }
+            }
+
+            this.nodeHashes = Arrays.copyOf(hashes, nodeIndex);
+            Arrays.sort(this.nodeHashes);
+
+            this.nodeShards = new Shard[nodeHashes.length];
+            for (int i = 0; i < nodeHashes.length; ++i) {
+                nodeShards[i] = shardByHash.get(nodeHashes[i]);
+            }
+        }
+
+        @Nonnull
+        private Shard getShard(long hash, boolean skipInvalidShards) {
+            int nodeIndex = Arrays.binarySearch(nodeHashes, hash);
+            if (nodeIndex < 0) {
+                nodeIndex = -nodeIndex - 1;
+            }
+            if (nodeIndex == nodeHashes.length) {
+                nodeIndex = 0;
+            }
+
+            Shard shard = nodeShards[nodeIndex];
+            if (!skipInvalidShards || shard.valid) {
+                return shard;
+            }
+
+            for (int step = 1; step < nodeShards.length; ++step) {
+                Shard nextShard = nodeShards[(nodeIndex + step) % nodeShards.length];
+                if (nextShard.valid) {
+                    return nextShard;
+                }
+            }
+
+            // All shards are invalid, there is no better choice than the own shard of the key.
+            return shard;
+        }
+    }
+
+    /**
+     * Updates validity of shards periodically. Doesn't reference the cache itself, so an unclosed cache can be finalized.
+     */
+    private static final class ShardValidator implements Runnable {
+        private final AtomicReference<Ring> ring;
+        private final long validationIntervalMillis;
+        private final Thread thread;
+
+        private volatile boolean stopped;
+
+        private ShardValidator(String name, AtomicReference<Ring> ring, long validationIntervalMillis) {
+            this.ring = ring;
+            this.validationIntervalMillis = validationIntervalMillis;
+
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        private void start() {
+            thread.start();
+        }
+
+        private void stop() {
+            stopped = true;
+            thread.interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                for (Shard shard : ring.get().shards) {
+                    if (stopped) {
+                        return;
+                    }
+                    updateValidity(shard);
+                }
+
+                try {
+                    Thread.sleep(validationIntervalMillis);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1,10 +1,18 @@
 package com.codeforces.commons.cache.util;
 
 import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.RemovalListener;
+import com.codeforces.commons.cache.VersionedValue;
 import org.apache.log4j.Logger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 
 class SilentByteCache extends ByteCache {
     private static final Logger logger = Logger.getLogger(SilentByteCache.class);
@@ -67,6 +75,30 @@ class SilentByteCache extends ByteCache {
         }
     }
 
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length)
+            throws IOException {
+        try {
+            byteCache.put(section, key, inputStream, length);
+        } catch (RuntimeException e) {
+            if (logErrors) {
+                logger.warn(String.format("Can't execute put('%s', '%s', length=%d).", section, key, length), e);
+            }
+        }
+    }
+
+    @Override
+    public void put(@Nonnull String section, @Nonnull String key, @Nonnull InputStream inputStream, long length,
+                    long lifetimeMillis) throws IOException {
+        try {
+            byteCache.put(section, key, inputStream, length, lifetimeMillis);
+        } catch (RuntimeException e) {
+            if (logErrors) {
+                logger.warn(String.format("Can't execute put('%s', '%s', length=%d, %d).", section, key, length, lifetimeMillis), e);
+            }
+        }
+    }
+
     @Override
     public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
         try {
@@ -103,6 +135,92 @@ class SilentByteCache extends ByteCache {
         return null;
     }
 
+    @Nullable
+    @Override
+    public InputStream openStream(@Nonnull String section, @Nonnull String key) {
+        try {
+            return byteCache.openStream(section, key);
+        } catch (RuntimeException e) {
+            if (logErrors) {
+                logger.warn(String.format("Can't execute openStream('%s', '%s').", section, key), e);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public long transferTo(@Nonnull String section, @Nonnull String key, @Nonnull WritableByteChannel channel)
+            throws IOException {
+        try {
+            return byteCache.transferTo(section, key, channel);
+        } catch (RuntimeException e) {
+            if (logErrors) {
+                logger.warn(String.format("Can't execute transferTo('%s', '%s').", section, key), e);
+            }
+        }
+
+        return -1L;
+    }
+
+    @Nonnull
+    @Override
+    public Map<String, byte[]> getAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        try {
+            return byteCache.getAll(section, keys);
+        } catch (RuntimeException e) {
+            if (logErrors) {
+                logger.warn(String.format("Can't execute getAll('%s', count=%d).", section, keys.size()), e);
+            }
+        }
+
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+        try {
+            byteCache.putAll(section, valueByKey);
+        } catch (RuntimeException e) {
+            if (logErrors) {
+                logger.warn(String.format("Can't execute putAll('%s', count=%d).", section, valueByKey.size()), e);
+            }
+        }
+    }
+
+    @Override
+    public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey, long lifetimeMillis) {
+        try {
+            byteCache.putAll(section, valueByKey, lifetimeMillis);
+        } catch (RuntimeException e) {
+            if (logErrors) {
+                logger.warn(String.format(
+                        "Can't execute putAll('%s', count=%d, %d).", section, valueByKey.size(), lifetimeMillis
+                ), e);
+            }
+        }
+    }
+
+    /**
+     * Failures are not suppressed: a missing value would make the caller store the value anew.
+     */
+    @Nullable
+    @Override
+    public VersionedValue getWithVersion(@Nonnull String section, @Nonnull String key) {
+        return byteCache.getWithVersion(section, key);
+    }
+
+    @Override
+    public boolean compareAndSet(@Nonnull String section, @Nonnull String key, long expectedVersion,
+                                 @Nonnull byte[] newValue, long lifetimeMillis) {
+        return byteCache.compareAndSet(section, key, expectedVersion, newValue, lifetimeMillis);
+    }
+
+    @Override
+    public int removeAll(@Nonnull String section, @Nonnull Collection<String> keys) {
+        return byteCache.removeAll(section, keys);
+    }
+
     @Override
     public boolean remove(@Nonnull String section, @Nonnull String key) {
         return byteCache.remove(section, key);
@@ -118,6 +236,21 @@ class SilentByteCache extends ByteCache {
         byteCache.clear();
     }
 
+    @Override
+    public void addRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        byteCache.addRemovalListener(listener);
+    }
+
+    @Override
+    public void removeRemovalListener(@Nonnull RemovalListener<String, byte[]> listener) {
+        byteCache.removeRemovalListener(listener);
+    }
+
+    @Override
+    public long getDroppedRemovalNotificationCount() {
+        return byteCache.getDroppedRemovalNotificationCount();
+    }
+
     @Override
     public void close() {
         try {
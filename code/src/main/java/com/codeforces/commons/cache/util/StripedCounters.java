@@ -0,0 +1,62 @@
+package com.codeforces.commons.cache.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Group of up to {@link #MAXIMAL_COUNTER_COUNT} long counters, which are updated without locks and scale with
+ * the number of updating threads. Each thread updates the stripe selected by its identifier. Stripes are
+ * separated by a cache line of padding, so threads updating different stripes never share a cache line.
+ * Readers sum the stripes, so a read is not an atomic snapshot of all counters.
+ */
+final class StripedCounters {
+    static final int MAXIMAL_COUNTER_COUNT = 8;
+
+    static final int STRIPE_COUNT = Integer.highestOneBit(
+            Math.min(Math.max(2 * Runtime.getRuntime().availableProcessors() - 1, 1), 32)
+    ) << 1;
+
+    /**
+     * Count of longs in a cache line. Counters of a stripe are followed by as many unused cells.
+     */
+    private static final int PADDING_LENGTH = 8;
+    private static final int STRIPE_LENGTH = MAXIMAL_COUNTER_COUNT + PADDING_LENGTH;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPE_COUNT * STRIPE_LENGTH);
+
+    void increment(int counterIndex) {
+        cells.getAndIncrement(getStripeOffset() + counterIndex);
+    }
+
+    void add(int counterIndex, long delta) {
+        cells.getAndAdd(getStripeOffset() + counterIndex, delta);
+    }
+
+    long get(int counterIndex) {
+        long sum = 0L;
+        for (int stripeIndex = 0; stripeIndex < STRIPE_COUNT; ++stripeIndex) {
+            sum += cells.get(stripeIndex * STRIPE_LENGTH + counterIndex);
+        }
+        return sum;
+    }
+
+    long getAndReset(int counterIndex) {
+        long sum = 0L;
+        for (int stripeIndex = 0; stripeIndex < STRIPE_COUNT; ++stripeIndex) {
+            sum += cells.getAndSet(stripeIndex * STRIPE_LENGTH + counterIndex, 0L);
+        }
+        return sum;
+    }
+
+    private static int getStripeOffset() {
+        return getStripeIndex() * STRIPE_LENGTH;
+    }
+
+    /**
+     * @return index of the stripe updated by the current thread
+     */
+    static int getStripeIndex() {
+        long threadId = Thread.currentThread().getId();
+        int hash = (int) (threadId * 0x9E3779B97F4A7C15L >>> 32);
+        return hash & (STRIPE_COUNT - 1);
+    }
+}
@@ -0,0 +1,51 @@
+package com.codeforces.commons.cache.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Single long counter, which is updated without locks like {@code java.util.concurrent.atomic.LongAdder}.
+ * Uncontended updates go to one atomic base value, stripes are allocated after the first failed update of the base,
+ * so a counter which is never contended costs no more than {@link AtomicLong}. Stripes are
+ * {@link #STRIPE_LENGTH} longs apart to keep them in different cache lines. Readers sum the base and the stripes.
+ */
+final class StripedLong {
+    static final int STRIPE_LENGTH = 8;
+
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray cells;
+
+    void add(long delta) {
+        AtomicLongArray cells = this.cells;
+
+        if (cells == null) {
+            long value = base.get();
+            if (base.compareAndSet(value, value + delta)) {
+                return;
+            }
+            cells = getOrCreateCells();
+        }
+
+        cells.getAndAdd(StripedCounters.getStripeIndex() * STRIPE_LENGTH, delta);
+    }
+
+    long get() {
+        long sum = base.get();
+
+        AtomicLongArray cells = this.cells;
+        if (cells != null) {
+            for (int stripeIndex = 0; stripeIndex < StripedCounters.STRIPE_COUNT; ++stripeIndex) {
+                sum += cells.get(stripeIndex * STRIPE_LENGTH);
+            }
+        }
+
+        return sum;
+    }
+
+    private synchronized AtomicLongArray getOrCreateCells() {
+        if (cells == null) {
+            cells = new AtomicLongArray(StripedCounters.STRIPE_COUNT * STRIPE_LENGTH);
+        }
+        return cells;
+    }
+}
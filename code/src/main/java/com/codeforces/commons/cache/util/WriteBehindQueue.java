@@ -0,0 +1,331 @@
+package com.codeforces.commons.cache.util;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of pending cache writes. Writes to the same section and key are coalesced, so the queue
+ * holds at most one write per key. The queue is bounded both by count of writes and by total length of values,
+ * a new write which doesn't fit is handled according to {@link WriteOverflowPolicy}.
+ */
+final class WriteBehindQueue {
+    private final int maximalWriteCount;
+    private final long maximalByteCount;
+    private final WriteOverflowPolicy overflowPolicy;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notEmptyCondition = lock.newCondition();
+    private final Condition notFullCondition = lock.newCondition();
+
+    private final LinkedHashMap<CacheKey, PendingWrite> pendingWriteByKey = new LinkedHashMap<>();
+    private long pendingByteCount;
+    private boolean closed;
+
+    /**
+     * Enqueue time of the oldest taken write which is not completed yet or {@code 0}.
+     */
+    private long oldestTakenWriteTimeMillis;
+
+    private long coalescedCount;
+    private long droppedCount;
+    private long rejectedCount;
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+
+    WriteBehindQueue(int maximalWriteCount, long maximalByteCount, @Nonnull WriteOverflowPolicy overflowPolicy) {
+        if (maximalWriteCount <= 0) {
+            throw new IllegalArgumentException("Argument 'maximalWriteCount' should be positive.");
+        }
+
+        if (maximalByteCount <= 0L) {
+            throw new IllegalArgumentException("Argument 'maximalByteCount' should be positive.");
+        }
+
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Argument 'overflowPolicy' is 'null'.");
+        }
+
+        this.maximalWriteCount = maximalWriteCount;
+        this.maximalByteCount = maximalByteCount;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Enqueues the write. A plain put replaces a pending write of the same key, a put-if-absent is merged
+     * into a pending write of the same key.
+     *
+     * @throws RejectedExecutionException if the queue is closed or if it is full and the overflow policy
+     *                                    is {@link WriteOverflowPolicy#FAIL_FAST}
+     */
+    void offer(@Nonnull PendingWrite write) {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new RejectedExecutionException("Write-behind queue is closed.");
+            }
+
+            CacheKey cacheKey = new CacheKey(write.section, write.key);
+            boolean coalesced = pendingWriteByKey.containsKey(cacheKey);
+            boolean enqueued = coalesce(cacheKey, write) && ensureCapacity(write.value.length);
+
+            // The same key may be enqueued by another writer while this one is blocked.
+            if (enqueued && overflowPolicy == WriteOverflowPolicy.BLOCK) {
+                coalesced |= pendingWriteByKey.containsKey(cacheKey);
+                enqueued = coalesce(cacheKey, write);
+            }
+
+            // Each offered write is counted once, even if it is coalesced both before and after blocking.
+            if (coalesced) {
+                ++coalescedCount;
+            }
+
+            if (enqueued) {
+                pendingWriteByKey.put(cacheKey, write);
+                pendingByteCount += write.value.length;
+                notEmptyCondition.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a pending write of the same key unless the new write is a put-if-absent.
+     *
+     * @return {@code true} iff the new write should be enqueued
+     */
+    private boolean coalesce(CacheKey cacheKey, PendingWrite write) {
+        PendingWrite pendingWrite = pendingWriteByKey.get(cacheKey);
+        if (pendingWrite == null) {
+            return true;
+        }
+
+        if (write.ifAbsent) {
+            return false;
+        }
+
+        unlink(cacheKey, pendingWrite);
+        return true;
+    }
+
+    /**
+     * Frees space for a value of the given length. A single value longer than the byte limit is accepted
+     * by an empty queue.
+     *
+     * @return {@code true} iff the write should be enqueued
+     */
+    private boolean ensureCapacity(int valueLength) {
+        while (!pendingWriteByKey.isEmpty() && (pendingWriteByKey.size() >= maximalWriteCount
+                || pendingByteCount + valueLength > maximalByteCount)) {
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    Iterator<Map.Entry<CacheKey, PendingWrite>> iterator = pendingWriteByKey.entrySet().iterator();
+                    pendingByteCount -= iterator.next().getValue().value.length;
+                    iterator.remove();
+                    ++droppedCount;
+                    break;
+                case BLOCK:
+                    try {
+                        notFullCondition.await();
+                    } catch (InterruptedException ignored) {
+                        Thread.currentThread().interrupt();
+                        ++droppedCount;
+                        return false;
+                    }
+
+                    if (closed) {
+                        throw new RejectedExecutionException("Write-behind queue is closed.");
+                    }
+                    break;
+                case FAIL_FAST:
+                    ++rejectedCount;
+                    throw new RejectedExecutionException(String.format(
+                            "Write-behind queue is full (pendingWriteCount=%d, pendingByteCount=%d).",
+                            pendingWriteByKey.size(), pendingByteCount
+                    ));
+                default:
+                    throw new IllegalArgumentException("Unsupported overflow policy: " + overflowPolicy + '.');
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Waits for pending writes and removes up to {@code maximalCount} oldest of them from the queue.
+     * Taken writes are considered in progress until {@link #completeTaken()}.
+     *
+     * @return oldest pending writes or empty list if the queue is closed and all writes are taken
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Nonnull
+    List<PendingWrite> take(int maximalCount) throws InterruptedException {
+        lock.lock();
+        try {
+            while (pendingWriteByKey.isEmpty()) {
+                if (closed) {
+                    return Collections.emptyList();
+                }
+                notEmptyCondition.await();
+            }
+
+            List<PendingWrite> writes = new ArrayList<>(Math.min(maximalCount, pendingWriteByKey.size()));
+            Iterator<PendingWrite> iterator = pendingWriteByKey.values().iterator();
+
+            while (iterator.hasNext() && writes.size() < maximalCount) {
+                PendingWrite write = iterator.next();
+                iterator.remove();
+                pendingByteCount -= write.value.length;
+                writes.add(write);
+            }
+
+            if (oldestTakenWriteTimeMillis == 0L) {
+                oldestTakenWriteTimeMillis = writes.get(0).enqueueTimeMillis;
+            }
+
+            notFullCondition.signalAll();
+            return writes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return {@code true} iff a pending write of the key has been cancelled
+     */
+    boolean cancel(@Nonnull String section, @Nonnull String key) {
+        lock.lock();
+        try {
+            CacheKey cacheKey = new CacheKey(section, key);
+            PendingWrite pendingWrite = pendingWriteByKey.get(cacheKey);
+            if (pendingWrite == null) {
+                return false;
+            }
+
+            unlink(cacheKey, pendingWrite);
+            notFullCondition.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void cancelSection(@Nonnull String section) {
+        lock.lock();
+        try {
+            Iterator<PendingWrite> iterator = pendingWriteByKey.values().iterator();
+            while (iterator.hasNext()) {
+                PendingWrite write = iterator.next();
+                if (write.section.equals(section)) {
+                    iterator.remove();
+                    pendingByteCount -= write.value.length;
+                }
+            }
+            notFullCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void cancelAll() {
+        lock.lock();
+        try {
+            pendingWriteByKey.clear();
+            pendingByteCount = 0L;
+            notFullCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rejects new writes. Pending writes can be taken until the queue is empty.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmptyCondition.signalAll();
+            notFullCondition.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void completeTaken() {
+        lock.lock();
+        try {
+            oldestTakenWriteTimeMillis = 0L;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void registerWritten(int count) {
+        writtenCount.addAndGet(count);
+    }
+
+    void registerFailed(int count) {
+        failedCount.addAndGet(count);
+    }
+
+    void registerRetried(int count) {
+        retriedCount.addAndGet(count);
+    }
+
+    @Nonnull
+    WriteBehindStatistics getStatistics() {
+        lock.lock();
+        try {
+            long oldestWriteTimeMillis = oldestTakenWriteTimeMillis;
+            if (oldestWriteTimeMillis == 0L && !pendingWriteByKey.isEmpty()) {
+                oldestWriteTimeMillis = pendingWriteByKey.values().iterator().next().enqueueTimeMillis;
+            }
+
+            long lagMillis = oldestWriteTimeMillis == 0L
+                    ? 0L
+                    : Math.max(System.currentTimeMillis() - oldestWriteTimeMillis, 0L);
+
+            return new WriteBehindStatistics(
+                    pendingWriteByKey.size(), pendingByteCount, writtenCount.get(), coalescedCount,
+                    droppedCount, rejectedCount, failedCount.get(), retriedCount.get(), lagMillis
+            );
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void unlink(CacheKey cacheKey, PendingWrite pendingWrite) {
+        pendingWriteByKey.remove(cacheKey);
+        pendingByteCount -= pendingWrite.value.length;
+    }
+
+    static final class PendingWrite {
+        static final long UNDEFINED_LIFETIME = -1L;
+
+        final String section;
+        final String key;
+        final byte[] value;
+        final long lifetimeMillis;
+        final boolean ifAbsent;
+        final long enqueueTimeMillis = System.currentTimeMillis();
+
+        PendingWrite(String section, String key, byte[] value, long lifetimeMillis, boolean ifAbsent) {
+            this.section = section;
+            this.key = key;
+            this.value = value;
+            this.lifetimeMillis = lifetimeMillis;
+            this.ifAbsent = ifAbsent;
+        }
+
+        boolean hasLifetime() {
+            return lifetimeMillis != UNDEFINED_LIFETIME;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.codeforces.commons.cache.util;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Snapshot of the write-behind queue state of {@link AsynchronousByteCache}
+ * or of the replication backlog of {@link LocalAndRemoteByteCache}.
+ */
+public final class WriteBehindStatistics {
+    private final long pendingWriteCount;
+    private final long pendingByteCount;
+    private final long writtenCount;
+    private final long coalescedCount;
+    private final long droppedCount;
+    private final long rejectedCount;
+    private final long failedCount;
+    private final long retriedCount;
+    private final long lagMillis;
+
+    WriteBehindStatistics(long pendingWriteCount, long pendingByteCount, long writtenCount, long coalescedCount,
+                          long droppedCount, long rejectedCount, long failedCount, long retriedCount,
+                          long lagMillis) {
+        this.pendingWriteCount = pendingWriteCount;
+        this.pendingByteCount = pendingByteCount;
+        this.writtenCount = writtenCount;
+        this.coalescedCount = coalescedCount;
+        this.droppedCount = droppedCount;
+        this.rejectedCount = rejectedCount;
+        this.failedCount = failedCount;
+        this.retriedCount = retriedCount;
+        this.lagMillis = lagMillis;
+    }
+
+    @Nonnull
+    WriteBehindStatistics add(@Nonnull WriteBehindStatistics statistics) {
+        return new WriteBehindStatistics(
+                pendingWriteCount + statistics.pendingWriteCount, pendingByteCount + statistics.pendingByteCount,
+                writtenCount + statistics.writtenCount, coalescedCount + statistics.coalescedCount,
+                droppedCount + statistics.droppedCount, rejectedCount + statistics.rejectedCount,
+                failedCount + statistics.failedCount, retriedCount + statistics.retriedCount,
+                Math.max(lagMillis, statistics.lagMillis)
+        );
+    }
+
+    /**
+     * @return count of writes waiting in the queue (queue depth)
+     */
+    public long getPendingWriteCount() {
+        return pendingWriteCount;
+    }
+
+    /**
+     * @return total length of values waiting in the queue
+     */
+    public long getPendingByteCount() {
+        return pendingByteCount;
+    }
+
+    /**
+     * @return count of writes passed to the underlying cache
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * @return count of writes superseded by (or merged into) a pending write of the same section and key
+     */
+    public long getCoalescedCount() {
+        return coalescedCount;
+    }
+
+    /**
+     * @return count of pending writes discarded by {@link WriteOverflowPolicy#DROP_OLDEST}
+     * or by interruption of a blocked writer
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * @return count of writes rejected by {@link WriteOverflowPolicy#FAIL_FAST}
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * @return count of writes failed in the underlying cache
+     */
+    public long getFailedCount() {
+        return failedCount;
+    }
+
+    /**
+     * @return count of failed write attempts which have been retried
+     */
+    public long getRetriedCount() {
+        return retriedCount;
+    }
+
+    /**
+     * @return age of the oldest write not yet passed to the underlying cache or {@code 0} if there is no such write
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "WriteBehindStatistics {pendingWriteCount=%d, pendingByteCount=%d, writtenCount=%d, "
+                        + "coalescedCount=%d, droppedCount=%d, rejectedCount=%d, failedCount=%d, "
+                        + "retriedCount=%d, lagMillis=%d}",
+                pendingWriteCount, pendingByteCount, writtenCount,
+                coalescedCount, droppedCount, rejectedCount, failedCount, retriedCount, lagMillis
+        );
+    }
+}
@@ -0,0 +1,152 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import org.apache.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes pending writes from the queue and passes them to the cache. Consecutive plain puts
+ * to the same section with the same lifetime are written by a single {@code putAll}.
+ * Stops when the queue is closed and empty or when the thread is interrupted.
+ */
+final class WriteBehindWriter implements Runnable {
+    private static final Logger logger = Logger.getLogger(WriteBehindWriter.class);
+
+    private static final int MAXIMAL_BATCH_SIZE = 100;
+
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 100L;
+    private static final long MAXIMAL_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30L);
+
+    private final ByteCache cache;
+    private final WriteBehindQueue writeQueue;
+    private final boolean retryFailedWrites;
+
+    /**
+     * @param retryFailedWrites {@code true} to retry failed writes with exponential backoff until success
+     *                          or interruption, {@code false} to drop them
+     */
+    WriteBehindWriter(ByteCache cache, WriteBehindQueue writeQueue, boolean retryFailedWrites) {
+        this.cache = cache;
+        this.writeQueue = writeQueue;
+        this.retryFailedWrites = retryFailedWrites;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            List<WriteBehindQueue.PendingWrite> writes;
+            try {
+                writes = writeQueue.take(MAXIMAL_BATCH_SIZE);
+            } catch (InterruptedException ignored) {
+                return;
+            }
+
+            if (writes.isEmpty()) {
+                return;
+            }
+
+            try {
+                write(writes);
+            } finally {
+                writeQueue.completeTaken();
+            }
+        }
+    }
+
+    private void write(List<WriteBehindQueue.PendingWrite> writes) {
+        int writeCount = writes.size();
+        int groupStart = 0;
+
+        while (groupStart < writeCount) {
+            WriteBehindQueue.PendingWrite firstWrite = writes.get(groupStart);
+            int groupEnd = groupStart + 1;
+
+            if (!firstWrite.ifAbsent) {
+                while (groupEnd < writeCount && isSameGroup(firstWrite, writes.get(groupEnd))) {
+                    ++groupEnd;
+                }
+            }
+
+            writeGroupWithRetries(writes.subList(groupStart, groupEnd));
+            groupStart = groupEnd;
+        }
+    }
+
+    private void writeGroupWithRetries(List<WriteBehindQueue.PendingWrite> group) {
+        long retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+
+        while (true) {
+            try {
+                writeGroup(group);
+                writeQueue.registerWritten(group.size());
+                return;
+            } catch (RuntimeException e) {
+                if (!retryFailedWrites || Thread.currentThread().isInterrupted()) {
+                    writeQueue.registerFailed(group.size());
+                    logger.error(String.format(
+                            "Can't write %d value(s) to section '%s' of %s.",
+                            group.size(), group.get(0).section, cache.getClass().getSimpleName()
+                    ), e);
+                    return;
+                }
+
+                writeQueue.registerRetried(group.size());
+                logger.warn(String.format(
+                        "Can't write %d value(s) to section '%s' of %s, will retry in %d ms.",
+                        group.size(), group.get(0).section, cache.getClass().getSimpleName(), retryDelayMillis
+                ), e);
+            }
+
+            try {
+                Thread.sleep(retryDelayMillis);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+
+            retryDelayMillis = Math.min(2L * retryDelayMillis, MAXIMAL_RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private static boolean isSameGroup(WriteBehindQueue.PendingWrite firstWrite,
+                                       WriteBehindQueue.PendingWrite write) {
+        return !write.ifAbsent && write.lifetimeMillis == firstWrite.lifetimeMillis
+                && write.section.equals(firstWrite.section);
+    }
+
+    private void writeGroup(List<WriteBehindQueue.PendingWrite> group) {
+        WriteBehindQueue.PendingWrite firstWrite = group.get(0);
+
+        if (group.size() == 1) {
+            if (firstWrite.ifAbsent) {
+                if (firstWrite.hasLifetime()) {
+                    cache.putIfAbsent(firstWrite.section, firstWrite.key, firstWrite.value,
+                            firstWrite.lifetimeMillis);
+                } else {
+                    cache.putIfAbsent(firstWrite.section, firstWrite.key, firstWrite.value);
+                }
+            } else {
+                if (firstWrite.hasLifetime()) {
+                    cache.put(firstWrite.section, firstWrite.key, firstWrite.value, firstWrite.lifetimeMillis);
+                } else {
+                    cache.put(firstWrite.section, firstWrite.key, firstWrite.value);
+                }
+            }
+            return;
+        }
+
+        Map<String, byte[]> valueByKey = new LinkedHashMap<>(group.size());
+        for (WriteBehindQueue.PendingWrite write : group) {
+            valueByKey.put(write.key, write.value);
+        }
+
+        if (firstWrite.hasLifetime()) {
+            cache.putAll(firstWrite.section, valueByKey, firstWrite.lifetimeMillis);
+        } else {
+            cache.putAll(firstWrite.section, valueByKey);
+        }
+    }
+}
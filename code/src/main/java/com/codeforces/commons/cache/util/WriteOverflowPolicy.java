@@ -0,0 +1,21 @@
+package com.codeforces.commons.cache.util;
+
+/**
+ * Defines what a write-behind cache does with a new write if its queue of pending writes is full.
+ */
+public enum WriteOverflowPolicy {
+    /**
+     * Discards the oldest pending writes to free space for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Blocks the writing thread until pending writes are flushed. An interrupted writer discards its write.
+     */
+    BLOCK,
+
+    /**
+     * Rejects the new write with {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    FAIL_FAST
+}
@@ -1,12 +1,17 @@
 package com.codeforces.commons.cache;
 
+import com.codeforces.commons.io.FileUtil;
 import com.codeforces.commons.math.RandomUtil;
 import com.codeforces.commons.process.ThreadUtil;
 import org.junit.Assert;
 
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Maxim Shipko (sladethe@gmail.com)
@@ -33,6 +38,318 @@ final class CacheTestUtil {
         Assert.assertNull("Value is not 'null' after removal.", cache.get(section, key));
     }
 
+    public static void checkBatchOperations(ByteCache cache, String section, int keyCount, int valueLength) {
+        Map<String, byte[]> valueByKey = new LinkedHashMap<>();
+        for (int keyIndex = keyCount - 1; keyIndex >= 0; --keyIndex) {
+            valueByKey.put("key" + keyIndex, RandomUtil.getRandomBytes(valueLength));
+        }
+
+        cache.putAll(section, valueByKey);
+
+        List<String> keys = new ArrayList<>(valueByKey.keySet());
+        keys.add(keys.size() / 2, "absentKey");
+
+        Map<String, byte[]> restoredValueByKey = cache.getAll(section, keys);
+        Assert.assertEquals("Unexpected restored key order.",
+                new ArrayList<>(valueByKey.keySet()), new ArrayList<>(restoredValueByKey.keySet()));
+        for (Map.Entry<String, byte[]> entry : valueByKey.entrySet()) {
+            Assert.assertTrue(
+                    "Restored value does not equal to original value (batch).",
+                    Arrays.equals(entry.getValue(), restoredValueByKey.get(entry.getKey()))
+            );
+        }
+
+        Assert.assertTrue("Batch of absent keys is not empty.",
+                cache.getAll(section, Collections.singletonList("absentKey")).isEmpty());
+
+        Assert.assertEquals("Unexpected removed value count.", keyCount, cache.removeAll(section, keys));
+        Assert.assertTrue("Values are not removed (batch).", cache.getAll(section, keys).isEmpty());
+        Assert.assertEquals("Unexpected removed value count after removal.", 0, cache.removeAll(section, keys));
+    }
+
+    /**
+     * Checks refresh-ahead of the cache having policy with refresh fraction {@code 0.5}
+     * and grace period of {@code 1000} ms.
+     */
+    public static void checkRefreshAhead(ByteCache cache) {
+        final long lifetimeMillis = 400L;
+        final AtomicInteger loadCount = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean();
+
+        Cache.Loader<byte[]> loader = new Cache.Loader<byte[]>() {
+            @Override
+            public byte[] load() {
+                if (failing.get()) {
+                    throw new IllegalStateException("Can't load value.");
+                }
+                return new byte[]{(byte) loadCount.incrementAndGet()};
+            }
+        };
+
+        Assert.assertArrayEquals("Value is not loaded.", new byte[]{1}, cache.get("s", "k", loader, lifetimeMillis));
+        Assert.assertArrayEquals("Fresh value is reloaded.", new byte[]{1},
+                cache.get("s", "k", loader, lifetimeMillis));
+        Assert.assertEquals("Fresh value is reloaded.", 1, loadCount.get());
+
+        ThreadUtil.sleep(lifetimeMillis * 3L / 4L);
+        Assert.assertArrayEquals("Current value is not returned.", new byte[]{1},
+                cache.get("s", "k", loader, lifetimeMillis));
+
+        for (int attemptIndex = 0; attemptIndex < 100 && !Arrays.equals(new byte[]{2}, cache.get("s", "k"));
+             ++attemptIndex) {
+            ThreadUtil.sleep(10L);
+        }
+        Assert.assertArrayEquals("Value is not reloaded ahead.", new byte[]{2}, cache.get("s", "k"));
+
+        failing.set(true);
+        ThreadUtil.sleep(lifetimeMillis + 100L);
+        Assert.assertNull("Expired value is returned by plain get.", cache.get("s", "k"));
+        Assert.assertArrayEquals("Stale value is not returned during grace period.", new byte[]{2},
+                cache.get("s", "k", loader, lifetimeMillis));
+
+        ThreadUtil.sleep(1100L);
+        try {
+            cache.get("s", "k", loader, lifetimeMillis);
+            Assert.fail("Stale value is returned after grace period.");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("Can't load value.", e.getMessage());
+        }
+
+        failing.set(false);
+        Assert.assertArrayEquals("Value is not loaded after failure.", new byte[]{3},
+                cache.get("s", "k", loader, lifetimeMillis));
+    }
+
+    /**
+     * Checks versioned reads and compare-and-set, then increments a counter by concurrent
+     * optimistic read-modify-write loops and checks that no increment is lost.
+     */
+    public static void checkCompareAndSet(final ByteCache cache, int threadCount, final int incrementCount)
+            throws InterruptedException {
+        Assert.assertNull("Versioned value of absent key is not 'null'.", cache.getWithVersion("s", "k"));
+        Assert.assertTrue("Value is not stored for absent key.",
+                cache.compareAndSet("s", "k", ByteCache.NO_VERSION, new byte[]{1}, Long.MAX_VALUE));
+        Assert.assertFalse("Value is stored for present key.",
+                cache.compareAndSet("s", "k", ByteCache.NO_VERSION, new byte[]{2}, Long.MAX_VALUE));
+
+        VersionedValue versionedValue = cache.getWithVersion("s", "k");
+        Assert.assertNotNull("Versioned value is 'null'.", versionedValue);
+        Assert.assertArrayEquals("Unexpected versioned value.", new byte[]{1}, versionedValue.getValue());
+
+        Assert.assertTrue("Value of expected version is not replaced.",
+                cache.compareAndSet("s", "k", versionedValue.getVersion(), new byte[]{3}, Long.MAX_VALUE));
+        Assert.assertFalse("Value of outdated version is replaced.",
+                cache.compareAndSet("s", "k", versionedValue.getVersion(), new byte[]{4}, Long.MAX_VALUE));
+        Assert.assertArrayEquals("Unexpected value after compare-and-set.", new byte[]{3}, cache.get("s", "k"));
+
+        cache.put("s", "k", new byte[]{1});
+        Assert.assertEquals("Equal values have different versions.",
+                versionedValue.getVersion(), cache.getWithVersion("s", "k").getVersion());
+        cache.remove("s", "k");
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+        for (int threadIndex = 0; threadIndex < threadCount; ++threadIndex) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int incrementIndex = 0; incrementIndex < incrementCount; ++incrementIndex) {
+                        while (true) {
+                            VersionedValue counter = cache.getWithVersion("s", "counter");
+                            int count = counter == null ? 0 : Integer.parseInt(new String(counter.getValue()));
+                            long version = counter == null ? ByteCache.NO_VERSION : counter.getVersion();
+
+                            if (cache.compareAndSet("s", "counter", version,
+                                    Integer.toString(count + 1).getBytes(), Long.MAX_VALUE)) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        executorService.shutdown();
+        Assert.assertTrue("Increments are not finished.", executorService.awaitTermination(1L, TimeUnit.MINUTES));
+        Assert.assertEquals("Increments are lost.",
+                Integer.toString(threadCount * incrementCount), cache.getString("s", "counter"));
+    }
+
+    /**
+     * Checks notifications of each removal cause. Sections of the cache should be limited by two values.
+     */
+    public static void checkRemovalNotifications(ByteCache cache) throws InterruptedException {
+        final Thread testThread = Thread.currentThread();
+        final BlockingQueue<RemovalNotification<String, byte[]>> notifications = new LinkedBlockingQueue<>();
+        final AtomicBoolean notifiedInRemovingThread = new AtomicBoolean();
+
+        RemovalListener<String, byte[]> listener = new RemovalListener<String, byte[]>() {
+            @Override
+            public void onRemoval(@Nonnull List<RemovalNotification<String, byte[]>> batch) {
+                if (Thread.currentThread() == testThread) {
+                    notifiedInRemovingThread.set(true);
+                }
+                notifications.addAll(batch);
+            }
+        };
+        cache.addRemovalListener(listener);
+
+        cache.put("s", "k1", new byte[]{1});
+        cache.put("s", "k1", new byte[]{2});
+        checkRemovalNotification(notifications, "s", "k1", new byte[]{1}, RemovalCause.REPLACED);
+
+        cache.remove("s", "k1");
+        checkRemovalNotification(notifications, "s", "k1", new byte[]{2}, RemovalCause.EXPLICIT);
+
+        cache.put("s", "k2", new byte[]{3}, 50L);
+        checkRemovalNotification(notifications, "s", "k2", new byte[]{3}, RemovalCause.EXPIRED);
+
+        cache.put("s", "k3", new byte[]{4});
+        cache.put("s", "k4", new byte[]{5});
+        cache.clearSection("s");
+        Set<String> clearedKeys = new HashSet<>();
+        for (int notificationIndex = 0; notificationIndex < 2; ++notificationIndex) {
+            RemovalNotification<String, byte[]> notification = notifications.poll(5L, TimeUnit.SECONDS);
+            Assert.assertNotNull("Removal of cleared value is not notified.", notification);
+            Assert.assertEquals("Unexpected removal cause.", RemovalCause.CLEARED, notification.getCause());
+            clearedKeys.add(notification.getKey());
+        }
+        Assert.assertEquals("Unexpected cleared keys.", new HashSet<>(Arrays.asList("k3", "k4")), clearedKeys);
+
+        cache.put("t", "k5", new byte[]{6});
+        cache.clear();
+        checkRemovalNotification(notifications, "t", "k5", new byte[]{6}, RemovalCause.CLEARED);
+
+        cache.put("u", "k6", new byte[]{7});
+        cache.put("u", "k7", new byte[]{8});
+        cache.put("u", "k8", new byte[]{9});
+        RemovalNotification<String, byte[]> notification = notifications.poll(5L, TimeUnit.SECONDS);
+        Assert.assertNotNull("Eviction is not notified.", notification);
+        Assert.assertEquals("Unexpected removal cause.", RemovalCause.EVICTED, notification.getCause());
+
+        cache.removeRemovalListener(listener);
+        cache.remove("u", "k8");
+        Assert.assertNull("Removal is notified to unregistered listener.",
+                notifications.poll(100L, TimeUnit.MILLISECONDS));
+        Assert.assertFalse("Listener is notified by removing thread.", notifiedInRemovingThread.get());
+
+        checkBatchingOfRemovalNotifications(cache);
+    }
+
+    /**
+     * Blocks delivery of the first batch, so the following removals are queued and should be delivered together.
+     */
+    private static void checkBatchingOfRemovalNotifications(ByteCache cache) throws InterruptedException {
+        final CountDownLatch deliveryLatch = new CountDownLatch(1);
+        final AtomicInteger batchCount = new AtomicInteger();
+        final AtomicInteger notificationCount = new AtomicInteger();
+
+        RemovalListener<String, byte[]> listener = new RemovalListener<String, byte[]>() {
+            @Override
+            public void onRemoval(@Nonnull List<RemovalNotification<String, byte[]>> batch) {
+                try {
+                    deliveryLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                batchCount.incrementAndGet();
+                notificationCount.addAndGet(batch.size());
+            }
+        };
+        cache.addRemovalListener(listener);
+
+        try {
+            int removalCount = 100;
+            for (int removalIndex = 0; removalIndex <= removalCount; ++removalIndex) {
+                cache.put("v", "k", new byte[]{(byte) removalIndex});
+            }
+            deliveryLatch.countDown();
+
+            for (int attemptIndex = 0; attemptIndex < 500 && notificationCount.get() < removalCount; ++attemptIndex) {
+                ThreadUtil.sleep(10L);
+            }
+            Assert.assertEquals("Removals are not notified.", removalCount, notificationCount.get());
+            Assert.assertTrue("Removals are not batched: " + batchCount.get() + " batches.",
+                    batchCount.get() < removalCount / 10);
+        } finally {
+            deliveryLatch.countDown();
+            cache.removeRemovalListener(listener);
+        }
+    }
+
+    private static void checkRemovalNotification(
+            BlockingQueue<RemovalNotification<String, byte[]>> notifications, String section, String key,
+            byte[] value, RemovalCause cause) throws InterruptedException {
+        RemovalNotification<String, byte[]> notification = notifications.poll(5L, TimeUnit.SECONDS);
+        Assert.assertNotNull("Removal of " + cause + " value is not notified.", notification);
+        Assert.assertEquals("Unexpected section of removed value.", section, notification.getSection());
+        Assert.assertEquals("Unexpected key of removed value.", key, notification.getKey());
+        Assert.assertArrayEquals("Unexpected removed value.", value, notification.getValue());
+        Assert.assertEquals("Unexpected removal cause.", cause, notification.getCause());
+    }
+
+    /**
+     * Stores values into the source cache, closes it writing the snapshot and loads the snapshot
+     * into the target cache. Both caches are closed.
+     */
+    public static void checkSnapshots(InmemoryByteCache sourceCache, InmemoryByteCache targetCache)
+            throws IOException {
+        File directory = FileUtil.createTemporaryDirectory("cache-snapshot");
+
+        try {
+            File file = new File(directory, "snapshot.bin");
+            sourceCache.enableSnapshots(file, 0L);
+
+            Map<String, byte[]> valueByPath = new HashMap<>();
+            for (int sectionIndex = 0; sectionIndex < 10; ++sectionIndex) {
+                for (int keyIndex = 0; keyIndex < 500; ++keyIndex) {
+                    String section = "section" + sectionIndex;
+                    String key = "key" + keyIndex;
+                    byte[] value = RandomUtil.getRandomBytes(keyIndex);
+
+                    if (keyIndex % 3 == 0) {
+                        sourceCache.put(section, key, value);
+                        valueByPath.put(section + '/' + key, value);
+                    } else if (keyIndex % 3 == 1) {
+                        sourceCache.put(section, key, value, TimeUnit.HOURS.toMillis(1L));
+                        valueByPath.put(section + '/' + key, value);
+                    } else {
+                        sourceCache.put(section, key, value, 300L);
+                    }
+                }
+            }
+
+            sourceCache.close();
+            Assert.assertTrue("Snapshot is not written on close.", file.isFile());
+
+            ThreadUtil.sleep(500L);
+            targetCache.put("section0", "key0", new byte[]{1});
+
+            Assert.assertEquals("Unexpected count of actual values in snapshot.",
+                    valueByPath.size(), targetCache.readSnapshot(file, 4));
+            Assert.assertArrayEquals("Value stored before loading is replaced.",
+                    new byte[]{1}, targetCache.get("section0", "key0"));
+
+            for (int sectionIndex = 0; sectionIndex < 10; ++sectionIndex) {
+                for (int keyIndex = 1; keyIndex < 500; ++keyIndex) {
+                    String section = "section" + sectionIndex;
+                    String key = "key" + keyIndex;
+                    byte[] value = valueByPath.get(section + '/' + key);
+
+                    if (value == null) {
+                        Assert.assertNull("Expired value is loaded.", targetCache.get(section, key));
+                    } else {
+                        Assert.assertArrayEquals("Loaded value does not equal to original value.",
+                                value, targetCache.get(section, key));
+                    }
+                }
+            }
+        } finally {
+            targetCache.close();
+            FileUtil.deleteTotally(directory);
+        }
+    }
+
     public static void checkStoringOneValueWithLifetime(ByteCache cache, CachePath cachePath, int valueLength,
                                                         long valueLifetimeMillis, long valueCheckIntervalMillis) {
         String section = cachePath.getSection();
@@ -0,0 +1,187 @@
+package com.codeforces.commons.cache;
+
+import com.codeforces.commons.io.FileUtil;
+import com.codeforces.commons.math.RandomUtil;
+import com.codeforces.commons.process.ThreadUtil;
+import com.google.common.primitives.Ints;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings({"JUnitTestMethodWithNoAssertions", "ThrowableResultOfMethodCallIgnored", "ErrorNotRethrown"})
+public class ConcurrentInmemoryCacheTest extends TestCase {
+    private static final int VALUE_LENGTH = Ints.checkedCast(FileUtil.BYTES_PER_KB);
+
+    public void testBatchOperations() throws Exception {
+        InmemoryByteCache cache = new InmemoryByteCache(ConcurrentInmemoryCache.<String, byte[]>newInstance());
+        CacheTestUtil.checkBatchOperations(cache, "section", 100, VALUE_LENGTH);
+        cache.close();
+    }
+
+    public void testSnapshots() throws Exception {
+        CacheTestUtil.checkSnapshots(
+                new InmemoryByteCache(ConcurrentInmemoryCache.<String, byte[]>newInstance()),
+                new InmemoryByteCache(ConcurrentInmemoryCache.<String, byte[]>newInstance())
+        );
+    }
+
+    public void testCompareAndSet() throws Exception {
+        InmemoryByteCache cache = new InmemoryByteCache(ConcurrentInmemoryCache.<String, byte[]>newInstance());
+        CacheTestUtil.checkCompareAndSet(cache, 8, 500);
+        cache.close();
+    }
+
+    public void testRemovalNotifications() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newCountBoundedInstance(
+                ConcurrentInmemoryCache.UNLIMITED_WEIGHT, 2L
+        );
+        CacheTestUtil.checkRemovalNotifications(cache);
+        cache.close();
+    }
+
+    public void testDroppedRemovalNotificationsAreCounted() throws Exception {
+        InmemoryByteCache cache = new InmemoryByteCache(ConcurrentInmemoryCache.<String, byte[]>newInstance());
+        final CountDownLatch listenerLatch = new CountDownLatch(1);
+
+        try {
+            cache.addRemovalListener(new RemovalListener<String, byte[]>() {
+                @Override
+                public void onRemoval(@Nonnull List<RemovalNotification<String, byte[]>> notifications) {
+                    try {
+                        listenerLatch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+
+            int removalCount = RemovalNotifier.MAXIMAL_PENDING_NOTIFICATION_COUNT + 10000;
+            for (int removalIndex = 0; removalIndex <= removalCount; ++removalIndex) {
+                cache.put("section", "key", new byte[]{(byte) removalIndex});
+            }
+
+            assertTrue("Dropped notifications are not counted.", cache.getDroppedRemovalNotificationCount() > 0L);
+        } finally {
+            listenerLatch.countDown();
+            cache.close();
+        }
+    }
+
+    public void testReplacedValuesWithLifetimeAreNotRetained() throws Exception {
+        ConcurrentInmemoryCache<String, byte[]> cache = ConcurrentInmemoryCache.newInstance();
+
+        try {
+            byte[] value = new byte[VALUE_LENGTH];
+            WeakReference<byte[]> valueReference = new WeakReference<>(value);
+            cache.put("section", "key", value, TimeUnit.HOURS.toMillis(1L));
+            cache.put("section", "key", new byte[VALUE_LENGTH], TimeUnit.HOURS.toMillis(1L));
+            value = null;
+
+            for (int attemptIndex = 0; attemptIndex < 100 && valueReference.get() != null; ++attemptIndex) {
+                System.gc();
+                ThreadUtil.sleep(10L);
+            }
+            assertNull("Replaced value is retained until its expiration.", valueReference.get());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testUnclosedCachesAreNotRetained() throws Exception {
+        ConcurrentInmemoryCache<String, byte[]> cache = ConcurrentInmemoryCache.newInstance();
+        WeakReference<ConcurrentInmemoryCache<String, byte[]>> cacheReference = new WeakReference<>(cache);
+        cache.put("section", "key", new byte[VALUE_LENGTH], TimeUnit.HOURS.toMillis(1L));
+        cache = null;
+
+        for (int attemptIndex = 0; attemptIndex < 100 && cacheReference.get() != null; ++attemptIndex) {
+            System.gc();
+            ThreadUtil.sleep(10L);
+        }
+        assertNull("Unclosed cache is retained by scheduled expirations.", cacheReference.get());
+    }
+
+    public void testCountBoundedEviction() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newCountBoundedInstance(100L, 30L);
+
+        try {
+            byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+
+            for (int keyIndex = 0; keyIndex < 200; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, value);
+            }
+            assertEquals("Unexpected count of values in section.", 30, countValues(cache, 1, 200));
+
+            cache.clear();
+
+            for (int sectionIndex = 0; sectionIndex < 10; ++sectionIndex) {
+                for (int keyIndex = 0; keyIndex < 30; ++keyIndex) {
+                    cache.put("section" + sectionIndex, "key" + keyIndex, value);
+                }
+            }
+            assertEquals("Unexpected count of values in cache.", 100, countValues(cache, 10, 30));
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testSizeBoundedEviction() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newSizeBoundedInstance(
+                16L * VALUE_LENGTH, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            for (int keyIndex = 0; keyIndex < 64; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH));
+            }
+
+            assertEquals("Unexpected count of values in cache.", 16, countValues(cache, 1, 64));
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testScanResistantEviction() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newCountBoundedInstance(
+                100L, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+
+            for (int keyIndex = 0; keyIndex < 50; ++keyIndex) {
+                cache.put("section", "hot" + keyIndex, value);
+                assertNotNull("Hot value is 'null' just after storing.", cache.get("section", "hot" + keyIndex));
+            }
+
+            for (int keyIndex = 0; keyIndex < 1000; ++keyIndex) {
+                cache.put("section", "scanned" + keyIndex, value);
+            }
+
+            for (int keyIndex = 0; keyIndex < 50; ++keyIndex) {
+                assertNotNull("Hot value has been evicted by scan.", cache.get("section", "hot" + keyIndex));
+            }
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static int countValues(ByteCache cache, int sectionCount, int keyPerSectionCount) {
+        int valueCount = 0;
+
+        for (int sectionIndex = 0; sectionIndex < sectionCount; ++sectionIndex) {
+            String section = sectionCount == 1 ? "section" : "section" + sectionIndex;
+
+            for (int keyIndex = 0; keyIndex < keyPerSectionCount; ++keyIndex) {
+                if (cache.contains(section, "key" + keyIndex)) {
+                    ++valueCount;
+                }
+            }
+        }
+
+        return valueCount;
+    }
+}
@@ -1,12 +1,22 @@
 package com.codeforces.commons.cache;
 
+import com.codeforces.commons.compress.ZipUtil;
 import com.codeforces.commons.io.FileUtil;
+import com.codeforces.commons.math.RandomUtil;
 import com.codeforces.commons.process.ThreadUtil;
 import com.google.common.primitives.Ints;
 import junit.framework.TestCase;
+import org.apache.commons.codec.digest.DigestUtils;
 
-import java.io.File;
-import java.io.IOException;
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -209,6 +219,276 @@ public class FileSystemByteCacheTest extends TestCase {
         }
     }
 
+    public void testSweepingOfExpiredValues() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            ByteCache cache = new FileSystemByteCache(tempDir, true, true, 100L, FileSystemByteCache.UNLIMITED_BYTE_COUNT,
+                    FileSystemByteCache.DEFAULT_MAXIMAL_SWEPT_FILE_COUNT_PER_SECOND);
+
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                cache.put("section" + keyIndex % 3, "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH), 200L);
+            }
+            cache.put("section0", "eternalKey", RandomUtil.getRandomBytes(VALUE_LENGTH));
+            assertEquals("Unexpected count of storage files.", 101, getStorageFileCount(tempDir));
+
+            ThreadUtil.sleep(1000L);
+
+            assertEquals("Expired values are not swept.", 1, getStorageFileCount(tempDir));
+            assertNotNull("Eternal value is swept.", cache.get("section0", "eternalKey"));
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testByteCountLimit() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            long maximalByteCount = 64L * FileUtil.BYTES_PER_KB;
+            ByteCache cache = new FileSystemByteCache(tempDir, false, true, TimeUnit.HOURS.toMillis(1L),
+                    maximalByteCount, FileSystemByteCache.DEFAULT_MAXIMAL_SWEPT_FILE_COUNT_PER_SECOND);
+
+            for (int keyIndex = 0; keyIndex < 256; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH));
+            }
+
+            for (int attemptIndex = 0; attemptIndex < 50 && getStorageByteCount(tempDir) > maximalByteCount;
+                 ++attemptIndex) {
+                ThreadUtil.sleep(100L);
+            }
+
+            long storageByteCount = getStorageByteCount(tempDir);
+            assertTrue("Byte count limit is exceeded: " + storageByteCount + '.', storageByteCount <= maximalByteCount);
+            assertNotNull("The latest value is evicted.", cache.get("section", "key255"));
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testReadingOfLegacyFormat() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+            byte[] hash = DigestUtils.sha1(value);
+            byte[] legacyBytes = ByteBuffer.allocate(4 + hash.length + 8 + value.length)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .putInt(hash.length).put(hash).putLong(Long.MAX_VALUE).put(value)
+                    .array();
+
+            FileUtil.writeFile(new File(tempDir, "section/key/key"), legacyBytes);
+            FileUtil.writeFile(new File(tempDir, "section/key/keyCompressed"),
+                    ZipUtil.compress(legacyBytes, ZipUtil.MAXIMAL_COMPRESSION_LEVEL));
+
+            ByteCache cache = new FileSystemByteCache(tempDir, false);
+            assertTrue("Legacy value is not read.", Arrays.equals(value, cache.get("section", "key")));
+            cache.close();
+
+            cache = new FileSystemByteCache(tempDir, true);
+            assertTrue("Legacy compressed value is not read.",
+                    Arrays.equals(value, cache.get("section", "keyCompressed")));
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testSweeperIsStartedOnlyIfConfigured() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            FileSystemByteCache cache = new FileSystemByteCache(tempDir, true);
+            assertFalse("Sweeper is started by default.", hasSweeperThread(cache));
+            cache.put("section", "key", new byte[]{1}, 50L);
+            ThreadUtil.sleep(100L);
+            assertNull("Expired value is returned.", cache.get("section", "key"));
+            assertFalse("Expired value is not removed on read.", cache.contains("section", "key"));
+            cache.close();
+
+            cache = new FileSystemByteCache(tempDir, true, true, TimeUnit.HOURS.toMillis(1L),
+                    FileSystemByteCache.UNLIMITED_BYTE_COUNT,
+                    FileSystemByteCache.DEFAULT_MAXIMAL_SWEPT_FILE_COUNT_PER_SECOND);
+            assertTrue("Configured sweeper is not started.", hasSweeperThread(cache));
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testRefreshAhead() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            ByteCache cache = new FileSystemByteCache(tempDir, true, true,
+                    FileSystemByteCache.DEFAULT_SWEEP_INTERVAL_MILLIS, FileSystemByteCache.UNLIMITED_BYTE_COUNT,
+                    FileSystemByteCache.DEFAULT_MAXIMAL_SWEPT_FILE_COUNT_PER_SECOND,
+                    new RefreshAheadPolicy(0.5D, 1000L));
+            CacheTestUtil.checkRefreshAhead(cache);
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testBatchOperations() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            ByteCache cache = new FileSystemByteCache(tempDir, true);
+            CacheTestUtil.checkBatchOperations(cache, "section", 100, VALUE_LENGTH);
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testCompareAndSet() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            ByteCache cache = new FileSystemByteCache(tempDir, true);
+            CacheTestUtil.checkCompareAndSet(cache, 4, 100);
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testStreamingOfLargeValues() throws Exception {
+        internalTestStreamingOfLargeValues(true);
+        internalTestStreamingOfLargeValues(false);
+    }
+
+    private static void internalTestStreamingOfLargeValues(boolean useCompression) throws IOException {
+        File tempDir = FileUtil.createTemporaryDirectory("file-system-cache");
+        try {
+            ByteCache cache = new FileSystemByteCache(tempDir, useCompression);
+            long length = 16L * FileUtil.BYTES_PER_MB + 17L;
+            byte[] expectedHash = DigestUtils.sha1(new GeneratedInputStream(length));
+
+            cache.put("section", "key", new GeneratedInputStream(length), length, TimeUnit.HOURS.toMillis(1L));
+
+            try (InputStream inputStream = cache.openStream("section", "key")) {
+                assertNotNull("Value stream is not opened.", inputStream);
+                assertTrue("Streamed value differs.", Arrays.equals(expectedHash, DigestUtils.sha1(inputStream)));
+            }
+
+            File transferFile = new File(tempDir, "transferred");
+            try (FileOutputStream outputStream = new FileOutputStream(transferFile)) {
+                assertEquals("Unexpected transferred byte count.",
+                        length, cache.transferTo("section", "key", outputStream.getChannel()));
+            }
+            try (InputStream inputStream = new FileInputStream(transferFile)) {
+                assertTrue("Transferred value differs.", Arrays.equals(expectedHash, DigestUtils.sha1(inputStream)));
+            }
+            FileUtil.deleteTotally(transferFile);
+
+            byte[] smallValue = RandomUtil.getRandomBytes(VALUE_LENGTH);
+            cache.put("section", "smallKey", new ByteArrayInputStream(smallValue), smallValue.length);
+            assertTrue("Small value differs.", Arrays.equals(smallValue, cache.get("section", "smallKey")));
+
+            try {
+                cache.put("section", "shortKey", new ByteArrayInputStream(smallValue), smallValue.length + 1L);
+                fail("Value shorter than declared is stored.");
+            } catch (EOFException ignored) {
+                // Expected.
+            }
+            assertNull("Value shorter than declared is stored.", cache.get("section", "shortKey"));
+
+            // Damage the last byte of the value.
+            File storageFile = new File(tempDir, "section/key/key");
+            try (FileChannel channel = new RandomAccessFile(storageFile, "rw").getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate(1);
+                long position = channel.size() - 21L;
+                channel.read(buffer, position);
+                buffer.put(0, (byte) (buffer.get(0) ^ 1));
+                buffer.rewind();
+                channel.write(buffer, position);
+            }
+
+            try (InputStream inputStream = cache.openStream("section", "key")) {
+                assertNotNull("Value stream is not opened.", inputStream);
+                DigestUtils.sha1(inputStream);
+                fail("Damaged value is read.");
+            } catch (IOException ignored) {
+                // Expected.
+            }
+
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    private static int getStorageFileCount(File directory) {
+        int count = 0;
+        for (File file : listStorageFiles(directory)) {
+            if (file.isFile()) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private static long getStorageByteCount(File directory) {
+        long byteCount = 0L;
+        for (File file : listStorageFiles(directory)) {
+            byteCount += file.length();
+        }
+        return byteCount;
+    }
+
+    private static List<File> listStorageFiles(File directory) {
+        List<File> files = new ArrayList<>();
+        for (File sectionDirectory : directory.listFiles()) {
+            if (".tmp".equals(sectionDirectory.getName())) {
+                continue;
+            }
+            for (File groupDirectory : sectionDirectory.listFiles()) {
+                files.addAll(Arrays.asList(groupDirectory.listFiles()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Stream of pseudo-random bytes, which doesn't keep its content in memory.
+     */
+    private static final class GeneratedInputStream extends InputStream {
+        private final Random random = new Random(12345L);
+        private final byte[] chunk = new byte[4096];
+        private long remainingLength;
+        private int chunkOffset = chunk.length;
+
+        private GeneratedInputStream(long length) {
+            this.remainingLength = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] bytes = new byte[1];
+            return read(bytes, 0, 1) == -1 ? -1 : bytes[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@Nonnull byte[] bytes, int offset, int length) {
+            if (remainingLength == 0L) {
+                return -1;
+            }
+
+            if (chunkOffset == chunk.length) {
+                random.nextBytes(chunk);
+                // Make data compressible.
+                for (int i = 0; i < chunk.length; i += 2) {
+                    chunk[i] = 0;
+                }
+                chunkOffset = 0;
+            }
+
+            int readByteCount = (int) Math.min(Math.min(length, chunk.length - chunkOffset), remainingLength);
+            System.arraycopy(chunk, chunkOffset, bytes, offset, readByteCount);
+            chunkOffset += readByteCount;
+            remainingLength -= readByteCount;
+            return readByteCount;
+        }
+    }
+
     private static void checkStoringOneValue(ByteCache cache, CachePath cachePath) {
         CacheTestUtil.checkStoringOneValue(cache, cachePath, VALUE_LENGTH);
     }
@@ -223,4 +503,14 @@ public class FileSystemByteCacheTest extends TestCase {
     private static BlockingQueue<CachePath> getCachePaths() {
         return CacheTestUtil.getCachePaths(KEY_PER_SECTION_COUNT, KEY_PER_SECTION_COUNT, TOTAL_KEY_COUNT);
     }
+
+    private static boolean hasSweeperThread(FileSystemByteCache cache) {
+        String threadName = FileSystemByteCache.class.getSimpleName() + '-' + cache.getIndex() + "#SweeperThread";
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (threadName.equals(thread.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
@@ -1,11 +1,23 @@
 package com.codeforces.commons.cache;
 
 import com.codeforces.commons.io.FileUtil;
+import com.codeforces.commons.math.RandomUtil;
 import com.codeforces.commons.process.ThreadUtil;
 import com.google.common.primitives.Ints;
+import com.codeforces.commons.cache.annotations.CacheRead;
+import com.codeforces.commons.cache.annotations.CacheSectionRead;
+import com.codeforces.commons.cache.annotations.CacheSectionWrite;
+import com.codeforces.commons.cache.annotations.CacheWrite;
 import junit.framework.TestCase;
 
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.SortedMap;
+
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -44,6 +56,168 @@ public class InmemoryCacheTest extends TestCase {
         });
     }
 
+    public void testBatchOperations() throws Exception {
+        InmemoryByteCache cache = new InmemoryByteCache(InmemoryCache.<String, byte[]>newInstance());
+        CacheTestUtil.checkBatchOperations(cache, "section", 100, VALUE_LENGTH);
+        cache.close();
+    }
+
+    public void testRefreshAhead() throws Exception {
+        InmemoryByteCache cache = new InmemoryByteCache(
+                InmemoryCache.<String, byte[]>newInstance(new RefreshAheadPolicy(0.5D, 1000L))
+        );
+        CacheTestUtil.checkRefreshAhead(cache);
+        cache.close();
+    }
+
+    public void testSnapshots() throws Exception {
+        CacheTestUtil.checkSnapshots(
+                new InmemoryByteCache(InmemoryCache.<String, byte[]>newInstance()),
+                new InmemoryByteCache(InmemoryCache.<String, byte[]>newInstance())
+        );
+    }
+
+    public void testCompareAndSet() throws Exception {
+        InmemoryByteCache cache = new InmemoryByteCache(InmemoryCache.<String, byte[]>newInstance());
+        CacheTestUtil.checkCompareAndSet(cache, 8, 500);
+        cache.close();
+    }
+
+    public void testStoringOfValuesFromStream() throws Exception {
+        InmemoryByteCache[] caches = {
+                new InmemoryByteCache(InmemoryCache.<String, byte[]>newInstance()),
+                InmemoryByteCache.newSectionBoundedInstance(
+                        new SectionBudget(100L, SectionBudget.UNLIMITED), Collections.<String, SectionBudget>emptyMap()
+                ),
+                InmemoryByteCache.newAccessExpiringInstance(Collections.singletonMap("section", 300L))
+        };
+
+        for (InmemoryByteCache cache : caches) {
+            try {
+                byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+                cache.put("section", "key", new ByteArrayInputStream(value), value.length);
+                cache.put("anotherSection", "key", new ByteArrayInputStream(value), value.length);
+
+                assertTrue("Value put from stream is not stored.",
+                        Arrays.equals(value, cache.get("section", "key")));
+                assertTrue("Value put from stream is not stored.",
+                        Arrays.equals(value, cache.get("anotherSection", "key")));
+            } finally {
+                cache.close();
+            }
+        }
+    }
+
+    public void testRemovalNotifications() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newSectionBoundedInstance(
+                new SectionBudget(2L, SectionBudget.UNLIMITED), Collections.<String, SectionBudget>emptyMap()
+        );
+        CacheTestUtil.checkRemovalNotifications(cache);
+        cache.close();
+    }
+
+    public void testSectionBudgets() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newSectionBoundedInstance(
+                new SectionBudget(100L, SectionBudget.UNLIMITED),
+                Collections.singletonMap("noisy", new SectionBudget(SectionBudget.UNLIMITED, 10000L))
+        );
+
+        try {
+            for (int keyIndex = 0; keyIndex < 50; ++keyIndex) {
+                cache.put("quiet", "key" + keyIndex, new byte[10]);
+            }
+
+            for (int keyIndex = 0; keyIndex < 1000; ++keyIndex) {
+                cache.put("noisy", "key" + keyIndex, new byte[100]);
+                assertNotNull("Hot value is evicted.", cache.get("noisy", "key0"));
+            }
+
+            for (int keyIndex = 0; keyIndex < 150; ++keyIndex) {
+                cache.put("bounded", "key" + keyIndex, new byte[10]);
+            }
+
+            SortedMap<String, SectionUsage> usageBySection = cache.getSectionUsages();
+            assertNotNull("Section usages are absent.", usageBySection);
+
+            SectionUsage quietUsage = usageBySection.get("quiet");
+            assertEquals("Values of quiet section are evicted.", 50L, quietUsage.getEntryCount());
+            assertEquals("Unexpected byte count of quiet section.", 500L, quietUsage.getByteCount());
+            assertEquals("Values of quiet section are evicted.", 0L, quietUsage.getEvictedEntryCount());
+            for (int keyIndex = 0; keyIndex < 50; ++keyIndex) {
+                assertNotNull("Value of quiet section is evicted.", cache.get("quiet", "key" + keyIndex));
+            }
+
+            SectionUsage noisyUsage = usageBySection.get("noisy");
+            assertEquals("Unexpected byte count of noisy section.", 10000L, noisyUsage.getByteCount());
+            assertEquals("Unexpected entry count of noisy section.", 100L, noisyUsage.getEntryCount());
+            assertEquals("Unexpected evicted count of noisy section.", 900L, noisyUsage.getEvictedEntryCount());
+            assertNull("Old value of noisy section is not evicted.", cache.get("noisy", "key1"));
+            assertNotNull("New value of noisy section is evicted.", cache.get("noisy", "key999"));
+
+            SectionUsage boundedUsage = usageBySection.get("bounded");
+            assertEquals("Unexpected entry count of bounded section.", 100L, boundedUsage.getEntryCount());
+            assertNull("Old value of bounded section is not evicted.", cache.get("bounded", "key0"));
+
+            cache.remove("bounded", "key149");
+            cache.clearSection("noisy");
+            usageBySection = cache.getSectionUsages();
+            assertEquals("Unexpected entry count after removal.", 99L, usageBySection.get("bounded").getEntryCount());
+            assertEquals("Unexpected byte count after clearing.", 0L, usageBySection.get("noisy").getByteCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testAccessExpiration() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newAccessExpiringInstance(
+                Collections.singletonMap("sessions", 300L)
+        );
+
+        try {
+            cache.put("sessions", "read", new byte[VALUE_LENGTH]);
+            cache.put("sessions", "idle", new byte[VALUE_LENGTH]);
+            cache.put("sessions", "explicit", new byte[VALUE_LENGTH], 200L);
+            cache.put("fixed", "read", new byte[VALUE_LENGTH], 300L);
+
+            for (int readIndex = 0; readIndex < 10; ++readIndex) {
+                ThreadUtil.sleep(100L);
+                assertNotNull("Read value of access expiring section is expired.", cache.get("sessions", "read"));
+                assertNotNull("Value with explicit lifetime is expired.", cache.get("sessions", "explicit"));
+                if (readIndex < 2) {
+                    assertNotNull("Value of fixed section is expired too early.", cache.get("fixed", "read"));
+                }
+            }
+
+            assertNull("Idle value of access expiring section is not expired.", cache.get("sessions", "idle"));
+            assertNull("Value of fixed section is not expired.", cache.get("fixed", "read"));
+
+            ThreadUtil.sleep(400L);
+            assertNull("Value is not expired after reads are stopped.", cache.get("sessions", "read"));
+            assertNull("Value with explicit lifetime is not expired.", cache.get("sessions", "explicit"));
+
+            assertEquals("Expired values are not removed.", 0L,
+                    cache.getSectionUsages().get("sessions").getEntryCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testLockingOfAllAnnotatedMethods() throws Exception {
+        for (Method method : InmemoryCache.class.getDeclaredMethods()) {
+            if (method.isAnnotationPresent(CacheSectionRead.class)
+                    || method.isAnnotationPresent(CacheSectionWrite.class)
+                    || method.isAnnotationPresent(CacheRead.class)
+                    || method.isAnnotationPresent(CacheWrite.class)) {
+                try {
+                    LockingInmemoryCache.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+                } catch (NoSuchMethodException ignored) {
+                    fail("Method '" + method + "' is not overridden by " + LockingInmemoryCache.class.getSimpleName()
+                            + '.');
+                }
+            }
+        }
+    }
+
     public void testConcurrentStoringOfValues() throws Exception {
         final InmemoryByteCache cache = new InmemoryByteCache();
         final BlockingQueue<CachePath> cachePaths = getCachePaths();
@@ -162,6 +336,85 @@ public class InmemoryCacheTest extends TestCase {
         }
     }
 
+    public void testConcurrentLoadingOfValues() throws Exception {
+        final InmemoryCache<String, String> cache = InmemoryCache.newInstance();
+        final AtomicInteger loadCount = new AtomicInteger();
+        final CountDownLatch loadLatch = new CountDownLatch(1);
+        final Cache.Loader<String> loader = new Cache.Loader<String>() {
+            @Override
+            public String load() {
+                loadCount.incrementAndGet();
+                try {
+                    loadLatch.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return "value";
+            }
+        };
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        final AtomicInteger loadedValueCount = new AtomicInteger();
+
+        for (int threadIndex = 0; threadIndex < THREAD_COUNT; ++threadIndex) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if ("value".equals(cache.get("section", "key", loader, VALUE_LIFETIME_MILLIS))) {
+                        loadedValueCount.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        ThreadUtil.sleep(VALUE_CHECK_INTERVAL_MILLIS);
+        loadLatch.countDown();
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(10L, TimeUnit.SECONDS));
+
+        assertEquals(1, loadCount.get());
+        assertEquals(THREAD_COUNT, loadedValueCount.get());
+        assertEquals("value", cache.get("section", "key"));
+
+        ThreadUtil.sleep(2L * VALUE_LIFETIME_MILLIS);
+        assertNull(cache.get("section", "key"));
+        assertEquals("value", cache.get("section", "key", loader));
+        assertEquals(2, loadCount.get());
+
+        cache.close();
+    }
+
+    public void testFailedLoadingOfValues() throws Exception {
+        InmemoryCache<String, String> cache = InmemoryCache.newInstance();
+        final AtomicInteger loadCount = new AtomicInteger();
+
+        Cache.Loader<String> failingLoader = new Cache.Loader<String>() {
+            @Override
+            public String load() {
+                loadCount.incrementAndGet();
+                throw new IllegalStateException("Can't load value.");
+            }
+        };
+
+        for (int attemptIndex = 0; attemptIndex < 2; ++attemptIndex) {
+            try {
+                cache.get("section", "key", failingLoader);
+                fail("Loader exception should be thrown.");
+            } catch (IllegalStateException e) {
+                assertEquals("Can't load value.", e.getMessage());
+            }
+        }
+
+        assertEquals(2, loadCount.get());
+        assertFalse(cache.contains("section", "key"));
+
+        cache.put("section", "key", "stored");
+        assertEquals("stored", cache.get("section", "key", failingLoader));
+        assertEquals(2, loadCount.get());
+
+        cache.close();
+    }
+
     private static void checkStoringOneValue(ByteCache cache, CachePath cachePath) {
         CacheTestUtil.checkStoringOneValue(cache, cachePath, VALUE_LENGTH);
     }
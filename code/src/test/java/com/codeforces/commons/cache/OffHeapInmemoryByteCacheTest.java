@@ -0,0 +1,271 @@
+package com.codeforces.commons.cache;
+
+import com.codeforces.commons.io.FileUtil;
+import com.codeforces.commons.math.RandomUtil;
+import com.codeforces.commons.process.ThreadUtil;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class OffHeapInmemoryByteCacheTest extends TestCase {
+    private static final long MAXIMUM_BYTE_COUNT = 16L * FileUtil.BYTES_PER_MB;
+    private static final int THREAD_COUNT = 4 * Runtime.getRuntime().availableProcessors();
+
+    public void testStoringOfValues() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            int[] valueLengths = {0, 1, 63, 64, 65, 1000, 4096, 100000, (int) FileUtil.BYTES_PER_MB,
+                    (int) (3L * FileUtil.BYTES_PER_MB / 2L)};
+            long storedByteCount = 0L;
+
+            for (int valueLength : valueLengths) {
+                byte[] value = RandomUtil.getRandomBytes(valueLength);
+                cache.put("section", "key" + valueLength, value);
+                assertTrue("Value of length " + valueLength + " is not restored.",
+                        Arrays.equals(value, cache.get("section", "key" + valueLength)));
+                storedByteCount += valueLength;
+            }
+
+            OffHeapStatistics statistics = cache.getOffHeapStatistics();
+            assertNotNull("Off-heap statistics is absent.", statistics);
+            assertEquals("Unexpected count of values.", valueLengths.length, statistics.getValueCount());
+            assertEquals("Unexpected stored byte count.", storedByteCount, statistics.getStoredByteCount());
+            assertTrue("Used byte count is less than stored byte count.",
+                    statistics.getUsedByteCount() >= statistics.getStoredByteCount());
+            assertTrue("Reserved byte count exceeds maximum.",
+                    statistics.getReservedByteCount() <= MAXIMUM_BYTE_COUNT);
+
+            assertTrue("Value is not removed.", cache.remove("section", "key1000"));
+            assertNull("Removed value is returned.", cache.get("section", "key1000"));
+            assertEquals("Unexpected count of values after removal.",
+                    valueLengths.length - 1, cache.getOffHeapStatistics().getValueCount());
+
+            cache.put("anotherSection", "key", RandomUtil.getRandomBytes(100));
+            cache.clearSection("section");
+            assertNull("Value of cleared section is returned.", cache.get("section", "key64"));
+            assertNotNull("Value of another section is removed.", cache.get("anotherSection", "key"));
+            assertEquals("Unexpected count of values after section clearing.",
+                    1L, cache.getOffHeapStatistics().getValueCount());
+            assertEquals("Memory of large value is not released.",
+                    cache.getOffHeapStatistics().getSlabCount() * OffHeapSlabAllocator.DEFAULT_SLAB_LENGTH,
+                    cache.getOffHeapStatistics().getReservedByteCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testStoringOfValuesWithLifetime() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(1000), 200L);
+            }
+            assertEquals("Unexpected count of values.", 100L, cache.getOffHeapStatistics().getValueCount());
+
+            ThreadUtil.sleep(500L);
+
+            assertNull("Expired value is returned.", cache.get("section", "key0"));
+            assertEquals("Memory of expired values is not released.",
+                    0L, cache.getOffHeapStatistics().getUsedByteCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testBatchOperations() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            CacheTestUtil.checkBatchOperations(cache, "section", 100, 1000);
+            assertEquals("Memory of removed values is not released.",
+                    0L, cache.getOffHeapStatistics().getUsedByteCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testCompareAndSet() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            CacheTestUtil.checkCompareAndSet(cache, 8, 500);
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Sections are limited by two chunks of the smallest size class.
+     */
+    public void testRemovalNotifications() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(MAXIMUM_BYTE_COUNT, 128L);
+
+        try {
+            CacheTestUtil.checkRemovalNotifications(cache);
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testSnapshots() throws Exception {
+        CacheTestUtil.checkSnapshots(
+                InmemoryByteCache.newOffHeapInstance(MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT),
+                InmemoryByteCache.newOffHeapInstance(MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT)
+        );
+    }
+
+    public void testReuseOfChunks() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            for (int iteration = 0; iteration < 100000; ++iteration) {
+                cache.put("section", "key" + iteration % 10, RandomUtil.getRandomBytes(1000));
+            }
+
+            assertEquals("Unexpected count of values.", 10L, cache.getOffHeapStatistics().getValueCount());
+            assertEquals("Freed chunks are not reused.", 1L, cache.getOffHeapStatistics().getSlabCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testEvictionOnMemoryShortage() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            int valueLength = (int) FileUtil.BYTES_PER_KB;
+            int keyCount = (int) (4L * MAXIMUM_BYTE_COUNT / valueLength);
+
+            for (int keyIndex = 0; keyIndex < keyCount; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(valueLength));
+            }
+
+            OffHeapStatistics statistics = cache.getOffHeapStatistics();
+            assertTrue("Reserved byte count exceeds maximum.",
+                    statistics.getReservedByteCount() <= MAXIMUM_BYTE_COUNT);
+            assertTrue("Too few values are stored.", statistics.getValueCount() > keyCount / 8);
+            assertNotNull("The latest value is evicted.", cache.get("section", "key" + (keyCount - 1)));
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * The only slab is occupied by the size class of filler values, so values of other size classes can't be
+     * allocated.
+     */
+    public void testCompareAndSetOnMemoryShortage() throws Exception {
+        InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                OffHeapSlabAllocator.DEFAULT_SLAB_LENGTH, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+
+        try {
+            for (int keyIndex = 0; keyIndex < 1000; ++keyIndex) {
+                cache.put("section", "filler" + keyIndex, RandomUtil.getRandomBytes(100));
+            }
+
+            byte[] value = RandomUtil.getRandomBytes(100);
+            cache.put("section", "key", value);
+            VersionedValue versionedValue = cache.getWithVersion("section", "key");
+            assertNotNull("Value is not stored.", versionedValue);
+
+            try {
+                cache.compareAndSet(
+                        "section", "key", versionedValue.getVersion(), RandomUtil.getRandomBytes(1000), Long.MAX_VALUE
+                );
+                fail("Compare-and-set has succeeded without memory for the new value.");
+            } catch (IllegalStateException ignored) {
+                // No operations.
+            }
+            assertTrue("Previous value is not kept.", Arrays.equals(value, cache.get("section", "key")));
+
+            try {
+                cache.incrementAndGet("section", "counter", 1L, Long.MAX_VALUE);
+                fail("Increment has succeeded without memory for the counter.");
+            } catch (IllegalStateException ignored) {
+                // No operations.
+            }
+            assertNull("Counter is stored without memory for it.", cache.get("section", "counter"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testConcurrentReadsAndWrites() throws Exception {
+        final InmemoryByteCache cache = InmemoryByteCache.newOffHeapInstance(
+                MAXIMUM_BYTE_COUNT, ConcurrentInmemoryCache.UNLIMITED_WEIGHT
+        );
+        final AtomicReference<Throwable> throwable = new AtomicReference<>();
+
+        try {
+            ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+
+            for (int threadIndex = 0; threadIndex < THREAD_COUNT; ++threadIndex) {
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+                        try {
+                            for (int iteration = 0; iteration < 50000; ++iteration) {
+                                String key = "key" + random.nextInt(100);
+
+                                if (random.nextInt(4) == 0) {
+                                    byte[] value = new byte[random.nextInt(2000)];
+                                    Arrays.fill(value, (byte) value.length);
+                                    cache.put("section", key, value);
+                                } else if (random.nextInt(20) == 0) {
+                                    cache.remove("section", key);
+                                } else {
+                                    byte[] value = cache.get("section", key);
+                                    if (value == null) {
+                                        continue;
+                                    }
+
+                                    for (byte b : value) {
+                                        if (b != (byte) value.length) {
+                                            throw new AssertionError("Value is corrupted.");
+                                        }
+                                    }
+                                }
+                            }
+                        } catch (Throwable t) {
+                            throwable.set(t);
+                        }
+                    }
+                });
+            }
+
+            executorService.shutdown();
+            assertTrue("Threads have not finished.", executorService.awaitTermination(1L, TimeUnit.MINUTES));
+
+            if (throwable.get() != null) {
+                throw new AssertionError("Got unexpected exception in thread pool.", throwable.get());
+            }
+
+            cache.clear();
+            assertEquals("Memory is not released after clearing.", 0L, cache.getOffHeapStatistics().getUsedByteCount());
+        } finally {
+            cache.close();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.codeforces.commons.cache;
+
+import com.codeforces.commons.io.FileUtil;
+import com.codeforces.commons.math.RandomUtil;
+import com.codeforces.commons.process.ThreadUtil;
+import com.google.common.primitives.Ints;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SegmentLogByteCacheTest extends TestCase {
+    private static final int SEGMENT_LENGTH = Ints.checkedCast(64L * FileUtil.BYTES_PER_KB);
+    private static final long COMPACTION_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1L);
+
+    private static final int SECTION_COUNT = 15;
+    private static final int KEY_PER_SECTION_COUNT = 50;
+    private static final int TOTAL_KEY_COUNT = SECTION_COUNT * KEY_PER_SECTION_COUNT;
+
+    private static final int VALUE_LENGTH = Ints.checkedCast(FileUtil.BYTES_PER_KB) / 2;
+
+    public void testStoringOfValues() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("segment-log-cache");
+        try {
+            final SegmentLogByteCache cache = newCache(tempDir);
+            final BlockingQueue<CachePath> cachePaths = CacheTestUtil.getCachePaths(
+                    SECTION_COUNT, KEY_PER_SECTION_COUNT, TOTAL_KEY_COUNT
+            );
+
+            CacheTestUtil.determineOperationTime("testStoringOfValues", new Runnable() {
+                @Override
+                public void run() {
+                    for (int pathIndex = 0; pathIndex < TOTAL_KEY_COUNT; ++pathIndex) {
+                        CacheTestUtil.checkStoringOneValue(cache, cachePaths.poll(), VALUE_LENGTH);
+                    }
+                }
+            });
+
+            CachePath cachePath = new CachePath("testStoringOfLargeValues", "value");
+            CacheTestUtil.checkStoringOneValue(cache, cachePath, 4 * SEGMENT_LENGTH);
+
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testConcurrentStoringOfValues() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("segment-log-cache");
+        try {
+            final SegmentLogByteCache cache = newCache(tempDir);
+            final BlockingQueue<CachePath> cachePaths = CacheTestUtil.getCachePaths(
+                    SECTION_COUNT, KEY_PER_SECTION_COUNT, TOTAL_KEY_COUNT
+            );
+            final AtomicReference<Throwable> throwable = new AtomicReference<>();
+
+            ExecutorService executorService = Executors.newFixedThreadPool(8);
+
+            for (int threadIndex = 0; threadIndex < 8; ++threadIndex) {
+                executorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            CachePath cachePath;
+                            while ((cachePath = cachePaths.poll()) != null) {
+                                CacheTestUtil.checkStoringOneValue(cache, cachePath, VALUE_LENGTH);
+                            }
+                        } catch (Throwable t) {
+                            throwable.set(t);
+                        }
+                    }
+                });
+            }
+
+            executorService.shutdown();
+            assertTrue("Threads have not finished.", executorService.awaitTermination(1L, TimeUnit.MINUTES));
+
+            if (throwable.get() != null) {
+                throw new AssertionError("Got unexpected exception in thread pool.", throwable.get());
+            }
+
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testStoringOfValuesWithLifetime() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("segment-log-cache");
+        try {
+            SegmentLogByteCache cache = newCache(tempDir);
+            CacheTestUtil.checkStoringOneValueWithLifetime(
+                    cache, new CachePath("section", "key"), VALUE_LENGTH, 500L, 250L
+            );
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testBatchOperations() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("segment-log-cache");
+        try {
+            SegmentLogByteCache cache = newCache(tempDir);
+            CacheTestUtil.checkBatchOperations(cache, "section", 100, VALUE_LENGTH);
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testRecovery() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("segment-log-cache");
+        try {
+            SegmentLogByteCache cache = newCache(tempDir);
+            byte[][] values = fillCache(cache);
+            cache.close();
+
+            cache = newCache(tempDir);
+            checkRecoveredValues(cache, values);
+            cache.close();
+
+            // Key directory should be rebuilt from data files if hint files are lost.
+            for (File hintFile : tempDir.listFiles(new SuffixFilter(".hint"))) {
+                FileUtil.removeFile(hintFile);
+            }
+
+            cache = newCache(tempDir);
+            checkRecoveredValues(cache, values);
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    /**
+     * Keys of the maximal length allowed in records, 65535 bytes, should be written to hint files as well.
+     */
+    public void testRecoveryOfLongKeysFromHintFiles() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("segment-log-cache");
+        try {
+            char[] keyChars = new char[0xFFFF];
+            Arrays.fill(keyChars, 'k');
+            String key = new String(keyChars);
+            byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+
+            SegmentLogByteCache cache = new SegmentLogByteCache(tempDir);
+            cache.put("section", key, value);
+            cache.close();
+
+            assertEquals("Hint file is not written.", tempDir.listFiles(new SuffixFilter(".data")).length,
+                    tempDir.listFiles(new SuffixFilter(".hint")).length);
+
+            cache = new SegmentLogByteCache(tempDir);
+            assertTrue("Value of long key is not recovered.", Arrays.equals(value, cache.get("section", key)));
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    public void testCompaction() throws Exception {
+        File tempDir = FileUtil.createTemporaryDirectory("segment-log-cache");
+        try {
+            SegmentLogByteCache cache = newCache(tempDir);
+            byte[][] values = fillCache(cache);
+
+            for (int iteration = 0; iteration < 10; ++iteration) {
+                for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                    if (values[keyIndex] != null) {
+                        cache.put("section" + keyIndex % 3, "key" + keyIndex, values[keyIndex]);
+                    }
+                }
+            }
+
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                cache.put("expiring", "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH), 100L);
+            }
+
+            int segmentCountBefore = tempDir.listFiles(new SuffixFilter(".data")).length;
+            ThreadUtil.sleep(200L);
+            cache.compact();
+            int segmentCountAfter = tempDir.listFiles(new SuffixFilter(".data")).length;
+
+            assertTrue(String.format(
+                    "Compaction hasn't decreased segment count (before=%d, after=%d).",
+                    segmentCountBefore, segmentCountAfter
+            ), segmentCountAfter < segmentCountBefore);
+
+            checkRecoveredValues(cache, values);
+            cache.close();
+
+            cache = newCache(tempDir);
+            checkRecoveredValues(cache, values);
+            assertNull("Expired value is restored.", cache.get("expiring", "key0"));
+            cache.close();
+        } finally {
+            FileUtil.deleteTotally(tempDir);
+        }
+    }
+
+    private static SegmentLogByteCache newCache(File directory) {
+        return new SegmentLogByteCache(directory, SEGMENT_LENGTH, COMPACTION_INTERVAL_MILLIS, 0.5D);
+    }
+
+    /**
+     * Stores 100 values in 3 sections, removes each 5th value and clears the last section.
+     */
+    private static byte[][] fillCache(ByteCache cache) {
+        byte[][] values = new byte[100][];
+
+        for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+            values[keyIndex] = RandomUtil.getRandomBytes(VALUE_LENGTH + keyIndex);
+            cache.put("section" + keyIndex % 3, "key" + keyIndex, values[keyIndex]);
+        }
+
+        for (int keyIndex = 0; keyIndex < 100; keyIndex += 5) {
+            cache.remove("section" + keyIndex % 3, "key" + keyIndex);
+            values[keyIndex] = null;
+        }
+
+        cache.clearSection("section2");
+        for (int keyIndex = 2; keyIndex < 100; keyIndex += 3) {
+            values[keyIndex] = null;
+        }
+
+        return values;
+    }
+
+    private static void checkRecoveredValues(ByteCache cache, byte[][] values) {
+        for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+            byte[] value = cache.get("section" + keyIndex % 3, "key" + keyIndex);
+            if (values[keyIndex] == null) {
+                assertNull("Removed value is restored (key" + keyIndex + ").", value);
+            } else {
+                assertTrue("Value is not restored (key" + keyIndex + ").", Arrays.equals(values[keyIndex], value));
+            }
+        }
+    }
+
+    private static final class SuffixFilter implements FilenameFilter {
+        private final String suffix;
+
+        private SuffixFilter(String suffix) {
+            this.suffix = suffix;
+        }
+
+        @Override
+        public boolean accept(File directory, String name) {
+            return name.endsWith(suffix);
+        }
+    }
+}
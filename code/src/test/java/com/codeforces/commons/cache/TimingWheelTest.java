@@ -0,0 +1,98 @@
+package com.codeforces.commons.cache;
+
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TimingWheelTest extends TestCase {
+    private static final long TICK_MILLIS = 10L;
+    private static final long MAXIMAL_DELAY_MILLIS = 250L;
+
+    public void testExpirationTimes() throws Exception {
+        final int elementCount = 1000;
+        final ConcurrentMap<Long, Long> expirationTimeByScheduledTime = new ConcurrentHashMap<>();
+        final AtomicInteger earlyExpirationCount = new AtomicInteger();
+        final CountDownLatch expirationLatch = new CountDownLatch(elementCount);
+
+        TimingWheel<Long> timingWheel = new TimingWheel<>("testExpirationTimes", TICK_MILLIS,
+                new TimingWheel.Handler<Long>() {
+                    @Override
+                    public void handle(@Nonnull List<Long> expiredElements) {
+                        long currentTimeMillis = System.currentTimeMillis();
+
+                        for (Long expirationTimeMillis : expiredElements) {
+                            if (currentTimeMillis < expirationTimeMillis) {
+                                earlyExpirationCount.incrementAndGet();
+                            }
+                            expirationTimeByScheduledTime.put(expirationTimeMillis, currentTimeMillis);
+                            expirationLatch.countDown();
+                        }
+                    }
+                }
+        );
+
+        timingWheel.start();
+
+        try {
+            long startTimeMillis = System.currentTimeMillis();
+
+            // Delays up to 5 seconds hit three lowest levels of the wheel.
+            for (int elementIndex = 0; elementIndex < elementCount; ++elementIndex) {
+                timingWheel.schedule(startTimeMillis + elementIndex * 5L, startTimeMillis + elementIndex * 5L);
+            }
+
+            assertTrue("Not all elements expired.", expirationLatch.await(
+                    elementCount * 5L + MAXIMAL_DELAY_MILLIS, TimeUnit.MILLISECONDS
+            ));
+            assertEquals("Some elements expired too early.", 0, earlyExpirationCount.get());
+
+            for (ConcurrentMap.Entry<Long, Long> entry : expirationTimeByScheduledTime.entrySet()) {
+                long delayMillis = entry.getValue() - entry.getKey();
+                assertTrue("Element expired too late (delay is " + delayMillis + " ms).",
+                        delayMillis <= MAXIMAL_DELAY_MILLIS);
+            }
+        } finally {
+            timingWheel.stop();
+        }
+    }
+
+    public void testFarFutureElements() throws Exception {
+        final AtomicInteger expiredElementCount = new AtomicInteger();
+        final CountDownLatch nearExpirationLatch = new CountDownLatch(1);
+
+        TimingWheel<String> timingWheel = new TimingWheel<>("testFarFutureElements", TICK_MILLIS,
+                new TimingWheel.Handler<String>() {
+                    @Override
+                    public void handle(@Nonnull List<String> expiredElements) {
+                        for (String element : expiredElements) {
+                            expiredElementCount.incrementAndGet();
+                            if ("near".equals(element)) {
+                                nearExpirationLatch.countDown();
+                            }
+                        }
+                    }
+                }
+        );
+
+        timingWheel.start();
+
+        try {
+            long currentTimeMillis = System.currentTimeMillis();
+            timingWheel.schedule("hour", currentTimeMillis + TimeUnit.HOURS.toMillis(1L));
+            timingWheel.schedule("year", currentTimeMillis + TimeUnit.DAYS.toMillis(365L));
+            timingWheel.schedule("near", currentTimeMillis + 100L);
+
+            assertTrue("Near element has not expired.", nearExpirationLatch.await(1L, TimeUnit.SECONDS));
+            Thread.sleep(500L);
+            assertEquals("Far future elements have expired.", 1, expiredElementCount.get());
+        } finally {
+            timingWheel.stop();
+        }
+    }
+}
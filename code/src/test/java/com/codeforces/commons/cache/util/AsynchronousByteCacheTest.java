@@ -0,0 +1,302 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.math.RandomUtil;
+import com.codeforces.commons.process.ThreadUtil;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AsynchronousByteCacheTest extends TestCase {
+    private static final int MAXIMAL_PENDING_WRITE_COUNT = 10;
+    private static final long MAXIMAL_PENDING_BYTE_COUNT = 1000000L;
+    private static final int VALUE_LENGTH = 100;
+
+    public void testCoalescingOfWrites() throws Exception {
+        GatedByteCache gatedCache = new GatedByteCache();
+        AsynchronousByteCache cache = newCache(gatedCache, WriteOverflowPolicy.FAIL_FAST);
+
+        try {
+            blockWriter(cache, gatedCache);
+
+            byte[] value = null;
+            for (int iteration = 0; iteration < 100; ++iteration) {
+                value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+                cache.put("section", "key", value);
+            }
+            cache.putIfAbsent("section", "key", RandomUtil.getRandomBytes(VALUE_LENGTH));
+
+            WriteBehindStatistics statistics = cache.getWriteBehindStatistics();
+            assertEquals("Unexpected pending write count.", 1L, statistics.getPendingWriteCount());
+            assertEquals("Unexpected pending byte count.", VALUE_LENGTH, statistics.getPendingByteCount());
+            assertEquals("Unexpected coalesced write count.", 100L, statistics.getCoalescedCount());
+
+            gatedCache.open();
+            awaitWrittenCount(cache, 2L);
+
+            assertTrue("The latest value is not written.", Arrays.equals(value, gatedCache.get("section", "key")));
+        } finally {
+            gatedCache.open();
+            cache.close();
+        }
+    }
+
+    public void testDroppingOfOldestWrites() throws Exception {
+        GatedByteCache gatedCache = new GatedByteCache();
+        AsynchronousByteCache cache = newCache(gatedCache, WriteOverflowPolicy.DROP_OLDEST);
+
+        try {
+            blockWriter(cache, gatedCache);
+
+            for (int keyIndex = 0; keyIndex < 3 * MAXIMAL_PENDING_WRITE_COUNT; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH));
+            }
+
+            WriteBehindStatistics statistics = cache.getWriteBehindStatistics();
+            assertEquals("Unexpected pending write count.",
+                    MAXIMAL_PENDING_WRITE_COUNT, statistics.getPendingWriteCount());
+            assertEquals("Unexpected dropped write count.",
+                    2L * MAXIMAL_PENDING_WRITE_COUNT, statistics.getDroppedCount());
+
+            gatedCache.open();
+            awaitWrittenCount(cache, MAXIMAL_PENDING_WRITE_COUNT + 1L);
+
+            assertNull("Dropped value is written.", gatedCache.get("section", "key0"));
+            assertNotNull("The latest value is not written.",
+                    gatedCache.get("section", "key" + (3 * MAXIMAL_PENDING_WRITE_COUNT - 1)));
+            assertTrue("Pending writes are not flushed in batches.", gatedCache.batchCount > 0);
+        } finally {
+            gatedCache.open();
+            cache.close();
+        }
+    }
+
+    public void testRejectionOfWrites() throws Exception {
+        GatedByteCache gatedCache = new GatedByteCache();
+        AsynchronousByteCache cache = newCache(gatedCache, WriteOverflowPolicy.FAIL_FAST);
+
+        try {
+            blockWriter(cache, gatedCache);
+
+            for (int keyIndex = 0; keyIndex < MAXIMAL_PENDING_WRITE_COUNT; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH));
+            }
+
+            try {
+                cache.put("section", "extraKey", RandomUtil.getRandomBytes(VALUE_LENGTH));
+                fail("Write to the full queue is accepted.");
+            } catch (RejectedExecutionException ignored) {
+                // Expected.
+            }
+
+            // Rewriting of a pending key doesn't need additional space.
+            cache.put("section", "key0", RandomUtil.getRandomBytes(VALUE_LENGTH));
+
+            assertEquals("Unexpected rejected write count.", 1L, cache.getWriteBehindStatistics().getRejectedCount());
+        } finally {
+            gatedCache.open();
+            cache.close();
+        }
+    }
+
+    public void testBlockingOfWrites() throws Exception {
+        GatedByteCache gatedCache = new GatedByteCache();
+        final AsynchronousByteCache cache = newCache(gatedCache, WriteOverflowPolicy.BLOCK);
+
+        try {
+            blockWriter(cache, gatedCache);
+
+            for (int keyIndex = 0; keyIndex < MAXIMAL_PENDING_WRITE_COUNT; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH));
+            }
+
+            Thread writingThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    cache.put("section", "extraKey", RandomUtil.getRandomBytes(VALUE_LENGTH));
+                }
+            });
+            writingThread.start();
+
+            writingThread.join(200L);
+            assertTrue("Write to the full queue is not blocked.", writingThread.isAlive());
+
+            gatedCache.open();
+            writingThread.join(TimeUnit.SECONDS.toMillis(10L));
+            assertFalse("Blocked write is not completed.", writingThread.isAlive());
+
+            awaitWrittenCount(cache, MAXIMAL_PENDING_WRITE_COUNT + 2L);
+            assertNotNull("Blocked write is lost.", gatedCache.get("section", "extraKey"));
+        } finally {
+            gatedCache.open();
+            cache.close();
+        }
+    }
+
+    public void testLegacyCacheDoesNotDropWrites() throws Exception {
+        GatedByteCache gatedCache = new GatedByteCache();
+        AsynchronousByteCache cache = (AsynchronousByteCache) Caches.newAsynchronousByteCache(gatedCache);
+
+        try {
+            blockWriter(cache, gatedCache);
+
+            int keyCount = 20000;
+            for (int keyIndex = 0; keyIndex < keyCount; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(10));
+            }
+
+            assertEquals("Unexpected dropped write count.", 0L, cache.getWriteBehindStatistics().getDroppedCount());
+
+            gatedCache.open();
+            awaitWrittenCount(cache, keyCount + 1L);
+            assertNotNull("The first value is not written.", gatedCache.get("section", "key0"));
+        } finally {
+            gatedCache.open();
+            cache.close();
+        }
+    }
+
+    public void testCancellationOfPendingWrites() throws Exception {
+        GatedByteCache gatedCache = new GatedByteCache();
+        AsynchronousByteCache cache = newCache(gatedCache, WriteOverflowPolicy.FAIL_FAST);
+
+        try {
+            blockWriter(cache, gatedCache);
+
+            cache.put("section", "key", RandomUtil.getRandomBytes(VALUE_LENGTH));
+            cache.put("anotherSection", "key", RandomUtil.getRandomBytes(VALUE_LENGTH));
+            assertTrue("Pending write is not removed.", cache.remove("section", "key"));
+
+            cache.clearSection("anotherSection");
+            assertEquals("Pending writes are not cancelled.",
+                    0L, cache.getWriteBehindStatistics().getPendingWriteCount());
+
+            gatedCache.open();
+            awaitWrittenCount(cache, 1L);
+
+            assertNull("Removed value is written.", gatedCache.get("section", "key"));
+            assertNull("Value of cleared section is written.", gatedCache.get("anotherSection", "key"));
+        } finally {
+            gatedCache.open();
+            cache.close();
+        }
+    }
+
+    public void testParallelWritingByLanes() throws Exception {
+        GatedByteCache gatedCache = new GatedByteCache();
+        AsynchronousByteCache cache = Caches.newAsynchronousByteCache(
+                gatedCache, 4, 1000, MAXIMAL_PENDING_BYTE_COUNT, WriteOverflowPolicy.BLOCK
+        );
+
+        try {
+            blockWriter(cache, gatedCache);
+
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                cache.put("section", "key" + keyIndex, RandomUtil.getRandomBytes(VALUE_LENGTH));
+            }
+
+            // Lanes other than the blocked one keep writing.
+            awaitWrittenCount(cache, 10L);
+            assertTrue("Writes of the blocked lane are not pending.",
+                    cache.getWriteBehindStatistics().getPendingWriteCount() > 0L);
+
+            gatedCache.open();
+            awaitWrittenCount(cache, 101L);
+
+            byte[] value = null;
+            for (int iteration = 0; iteration < 1000; ++iteration) {
+                value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+                cache.put("section", "orderedKey", value);
+            }
+
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10L);
+            while (!Arrays.equals(value, gatedCache.get("section", "orderedKey"))) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("The latest value of the key is not written.");
+                }
+                ThreadUtil.sleep(10L);
+            }
+        } finally {
+            gatedCache.open();
+            cache.close();
+        }
+    }
+
+    private static AsynchronousByteCache newCache(GatedByteCache gatedCache, WriteOverflowPolicy overflowPolicy) {
+        return Caches.newAsynchronousByteCache(
+                gatedCache, MAXIMAL_PENDING_WRITE_COUNT, MAXIMAL_PENDING_BYTE_COUNT, overflowPolicy
+        );
+    }
+
+    /**
+     * Makes the writer thread of the blocking key to wait for the gate inside the underlying cache.
+     */
+    private static void blockWriter(AsynchronousByteCache cache, GatedByteCache gatedCache)
+            throws InterruptedException {
+        cache.put("blockingSection", "blockingKey", RandomUtil.getRandomBytes(VALUE_LENGTH));
+        assertTrue("Writer has not started.", gatedCache.enteredLatch.await(10L, TimeUnit.SECONDS));
+    }
+
+    private static void awaitWrittenCount(AsynchronousByteCache cache, long writtenCount) {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10L);
+        while (cache.getWriteBehindStatistics().getWrittenCount() < writtenCount) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Pending writes are not flushed: " + cache.getWriteBehindStatistics() + '.');
+            }
+            ThreadUtil.sleep(10L);
+        }
+    }
+
+    private static final class GatedByteCache extends InmemoryByteCache {
+        private final CountDownLatch enteredLatch = new CountDownLatch(1);
+        private final CountDownLatch gateLatch = new CountDownLatch(1);
+        private volatile int batchCount;
+
+        private void open() {
+            gateLatch.countDown();
+        }
+
+        private void awaitGate(String section) {
+            if (!"blockingSection".equals(section)) {
+                return;
+            }
+
+            enteredLatch.countDown();
+            try {
+                gateLatch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+            awaitGate(section);
+            super.put(section, key, value);
+        }
+
+        @Override
+        public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value, long lifetimeMillis) {
+            awaitGate(section);
+            super.put(section, key, value, lifetimeMillis);
+        }
+
+        @Override
+        public void putIfAbsent(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+            awaitGate(section);
+            super.putIfAbsent(section, key, value);
+        }
+
+        @Override
+        public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+            awaitGate(section);
+            ++batchCount;
+            super.putAll(section, valueByKey);
+        }
+    }
+}
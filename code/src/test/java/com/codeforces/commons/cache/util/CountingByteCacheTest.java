@@ -0,0 +1,100 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.process.ThreadUtil;
+import junit.framework.TestCase;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class CountingByteCacheTest extends TestCase {
+    private static final int THREAD_COUNT = 8;
+    private static final int INCREMENT_COUNT = 100000;
+
+    public void testIncrementsOfStoredCounters() throws Exception {
+        ByteCache cache = new InmemoryByteCache();
+
+        try {
+            assertEquals(0L, cache.getCounter("s", "k"));
+            assertEquals(2L, cache.incrementAndGet("s", "k", 2L, Long.MAX_VALUE));
+            assertEquals(-1L, cache.incrementAndGet("s", "k", -3L, Long.MAX_VALUE));
+            assertEquals("-1", cache.getString("s", "k"));
+
+            cache.putString("s", "k", "40");
+            assertEquals(42L, cache.incrementAndGet("s", "k", 2L, Long.MAX_VALUE));
+
+            cache.putString("s", "notCounter", "abc");
+            try {
+                cache.incrementAndGet("s", "notCounter", 1L, Long.MAX_VALUE);
+                fail("Value which is not a counter is incremented.");
+            } catch (IllegalStateException ignored) {
+                // No operations.
+            }
+
+            assertEquals(1L, cache.incrementAndGet("s", "expiring", 1L, 100L));
+            ThreadUtil.sleep(200L);
+            assertEquals(0L, cache.getCounter("s", "expiring"));
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testBatchingOfIncrements() throws Exception {
+        InstrumentedByteCache storedCache = Caches.newInstrumentedByteCache(new InmemoryByteCache(), "stored");
+        ByteCache cache = Caches.newCountingByteCache(storedCache, 50L);
+
+        assertEquals(5L, cache.incrementAndGet("s", "k", 5L, Long.MAX_VALUE));
+        assertEquals(5L, cache.getCounter("s", "k"));
+
+        incrementConcurrently(cache, "s", "k");
+
+        long expectedCount = 5L + THREAD_COUNT * INCREMENT_COUNT;
+        assertEquals(expectedCount, cache.getCounter("s", "k"));
+
+        // Increments made by other clients of the stored cache become visible after a flush.
+        storedCache.incrementAndGet("s", "k", 10L, Long.MAX_VALUE);
+        for (int attemptIndex = 0; attemptIndex < 100 && cache.getCounter("s", "k") != expectedCount + 10L;
+             ++attemptIndex) {
+            cache.incrementAndGet("s", "k", 0L, Long.MAX_VALUE);
+            ThreadUtil.sleep(10L);
+        }
+        assertEquals(expectedCount + 10L, cache.getCounter("s", "k"));
+
+        long writeCount = storedCache.getStatistics()
+                .getLatencyStatistics(InstrumentedByteCache.Operation.COMPARE_AND_SET).getCount();
+        assertTrue("Increments are not batched: " + writeCount + " writes.", writeCount < INCREMENT_COUNT / 10);
+
+        assertEquals(0L, cache.incrementAndGet("s", "other", 0L, Long.MAX_VALUE));
+        assertTrue(cache.remove("s", "k"));
+        assertEquals(1L, cache.incrementAndGet("s", "k", 1L, Long.MAX_VALUE));
+
+        cache.close();
+        assertEquals("Counter is not flushed on close.", 1L, storedCache.getCounter("s", "k"));
+
+        ByteCache uncountedCache = new InmemoryByteCache();
+        incrementConcurrently(uncountedCache, "s", "k");
+        assertEquals(THREAD_COUNT * INCREMENT_COUNT, uncountedCache.getCounter("s", "k"));
+        uncountedCache.close();
+    }
+
+    private static void incrementConcurrently(final ByteCache cache, final String section, final String key)
+            throws InterruptedException {
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        for (int threadIndex = 0; threadIndex < THREAD_COUNT; ++threadIndex) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int incrementIndex = 0; incrementIndex < INCREMENT_COUNT; ++incrementIndex) {
+                        cache.incrementAndGet(section, key, 1L, Long.MAX_VALUE);
+                    }
+                }
+            });
+        }
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(1L, TimeUnit.MINUTES));
+    }
+}
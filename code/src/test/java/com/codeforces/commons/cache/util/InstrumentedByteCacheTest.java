@@ -0,0 +1,166 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.math.RandomUtil;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+public class InstrumentedByteCacheTest extends TestCase {
+    private static final int VALUE_LENGTH = 100;
+
+    public void testSectionCounters() throws Exception {
+        InstrumentedByteCache cache = Caches.newInstrumentedByteCache(new InmemoryByteCache(), "test");
+
+        try {
+            cache.put("s1", "k1", RandomUtil.getRandomBytes(VALUE_LENGTH));
+            cache.putIfAbsent("s1", "k2", RandomUtil.getRandomBytes(VALUE_LENGTH));
+
+            Map<String, byte[]> valueByKey = new HashMap<>();
+            valueByKey.put("k3", RandomUtil.getRandomBytes(VALUE_LENGTH));
+            valueByKey.put("k4", RandomUtil.getRandomBytes(VALUE_LENGTH));
+            cache.putAll("s2", valueByKey);
+
+            assertNotNull(cache.get("s1", "k1"));
+            assertNull(cache.get("s1", "absent"));
+            assertTrue(cache.contains("s1", "k2"));
+            assertEquals(2, cache.getAll("s2", Arrays.asList("k3", "k4", "absent")).size());
+            assertTrue(cache.remove("s2", "k3"));
+
+            InstrumentedCacheStatistics statistics = cache.getStatistics();
+            assertEquals("test", statistics.getName());
+            assertEquals(Arrays.asList("s1", "s2"), Arrays.asList(
+                    statistics.getStatisticsBySection().keySet().toArray(new String[2])
+            ));
+
+            SectionStatistics s1 = statistics.getSectionStatistics("s1");
+            assertNotNull(s1);
+            assertEquals(2L, s1.getHitCount());
+            assertEquals(1L, s1.getMissCount());
+            assertEquals(2L, s1.getPutCount());
+            assertEquals(0L, s1.getRemoveCount());
+            assertEquals(VALUE_LENGTH, s1.getReadByteCount());
+            assertEquals(2L * VALUE_LENGTH, s1.getWrittenByteCount());
+
+            SectionStatistics s2 = statistics.getSectionStatistics("s2");
+            assertNotNull(s2);
+            assertEquals(2L, s2.getHitCount());
+            assertEquals(1L, s2.getMissCount());
+            assertEquals(2L, s2.getPutCount());
+            assertEquals(1L, s2.getRemoveCount());
+            assertEquals(2L * VALUE_LENGTH, s2.getReadByteCount());
+            assertEquals(2L * VALUE_LENGTH, s2.getWrittenByteCount());
+
+            SectionStatistics total = statistics.getTotalStatistics();
+            assertEquals(4L, total.getHitCount());
+            assertEquals(2L, total.getMissCount());
+            assertEquals(4L, total.getPutCount());
+            assertEquals(4L * VALUE_LENGTH, total.getWrittenByteCount());
+            assertEquals(4.0D / 6.0D, total.getHitRatio(), 1.0E-9D);
+
+            assertEquals(2L, statistics.getLatencyStatistics(InstrumentedByteCache.Operation.GET).getCount());
+            assertEquals(1L, statistics.getLatencyStatistics(InstrumentedByteCache.Operation.PUT).getCount());
+            assertEquals(0L, statistics.getLatencyStatistics(InstrumentedByteCache.Operation.REMOVE_ALL).getCount());
+
+            InstrumentedCacheStatistics resetStatistics = cache.getAndResetStatistics();
+            assertEquals(4L, resetStatistics.getTotalStatistics().getHitCount());
+
+            statistics = cache.getStatistics();
+            assertEquals(0L, statistics.getTotalStatistics().getHitCount());
+            assertEquals(0L, statistics.getTotalStatistics().getWrittenByteCount());
+            assertEquals(0L, statistics.getLatencyStatistics(InstrumentedByteCache.Operation.GET).getCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testCounterOperations() throws Exception {
+        InstrumentedByteCache cache = Caches.newInstrumentedByteCache(new InmemoryByteCache(), "test");
+
+        try {
+            assertEquals(3L, cache.incrementAndGet("s1", "counter", 3L, 1000L));
+            assertEquals(5L, cache.incrementAndGet("s1", "counter", 2L, 1000L));
+            assertEquals(5L, cache.getCounter("s1", "counter"));
+
+            InstrumentedCacheStatistics statistics = cache.getStatistics();
+            assertEquals(2L, statistics.getLatencyStatistics(
+                    InstrumentedByteCache.Operation.INCREMENT_AND_GET
+            ).getCount());
+            assertEquals(1L, statistics.getLatencyStatistics(InstrumentedByteCache.Operation.GET_COUNTER).getCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testConcurrentCounting() throws Exception {
+        final InstrumentedByteCache cache = Caches.newInstrumentedByteCache(new InmemoryByteCache(), "test");
+        final int threadCount = 8;
+        final int operationCount = 10000;
+        final byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+        final CountDownLatch latch = new CountDownLatch(threadCount);
+
+        try {
+            for (int threadIndex = 0; threadIndex < threadCount; ++threadIndex) {
+                final String key = "key" + threadIndex;
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int operationIndex = 0; operationIndex < operationCount; ++operationIndex) {
+                                cache.put("section", key, value);
+                                cache.get("section", key);
+                            }
+                        } finally {
+                            latch.countDown();
+                        }
+                    }
+                }).start();
+            }
+
+            latch.await();
+
+            InstrumentedCacheStatistics statistics = cache.getStatistics();
+            long expectedCount = (long) threadCount * operationCount;
+            assertEquals(expectedCount, statistics.getTotalStatistics().getPutCount());
+            assertEquals(expectedCount, statistics.getTotalStatistics().getHitCount());
+            assertEquals(expectedCount * VALUE_LENGTH, statistics.getTotalStatistics().getReadByteCount());
+            assertEquals(
+                    expectedCount, statistics.getLatencyStatistics(InstrumentedByteCache.Operation.GET).getCount()
+            );
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testLatencyPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1L; nanos <= 100000L; ++nanos) {
+            histogram.record(nanos * 1000L);
+        }
+
+        LatencyStatistics statistics = histogram.getStatistics(false);
+        assertEquals(100000L, statistics.getCount());
+        assertEquals(100000000L, statistics.getMaximalNanos());
+        assertEquals(100000000L, statistics.getPercentileNanos(100.0D));
+
+        assertPercentile(50000000L, statistics.getPercentileNanos(50.0D));
+        assertPercentile(99000000L, statistics.getPercentileNanos(99.0D));
+        assertPercentile(99900000L, statistics.getPercentileNanos(99.9D));
+
+        for (long nanos = 0L; nanos < 10000000L; nanos = nanos * 3L + 1L) {
+            int bucketIndex = LatencyHistogram.getBucketIndex(nanos);
+            assertTrue(bucketIndex < LatencyHistogram.BUCKET_COUNT);
+            assertTrue(LatencyHistogram.getBucketUpperBound(bucketIndex) >= nanos);
+            assertTrue(bucketIndex == 0 || LatencyHistogram.getBucketUpperBound(bucketIndex - 1) < nanos);
+        }
+        assertTrue(LatencyHistogram.getBucketIndex(Long.MAX_VALUE) < LatencyHistogram.BUCKET_COUNT);
+    }
+
+    private static void assertPercentile(long expectedNanos, long actualNanos) {
+        assertTrue("Percentile " + actualNanos + " is less than " + expectedNanos + '.', actualNanos >= expectedNanos);
+        assertTrue("Percentile " + actualNanos + " is too large.", actualNanos <= expectedNanos * 1.032D);
+    }
+}
@@ -0,0 +1,166 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.math.RandomUtil;
+import com.codeforces.commons.process.ThreadUtil;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LocalAndRemoteByteCacheTest extends TestCase {
+    private static final int THREAD_COUNT = 16;
+    private static final int VALUE_LENGTH = 100;
+
+    public void testCoalescingOfRemoteFetches() throws Exception {
+        SlowByteCache remoteCache = new SlowByteCache();
+        final byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+        remoteCache.put("section", "key", value);
+
+        final ByteCache cache = Caches.newLocalAndRemoteByteCache(new InmemoryByteCache(), remoteCache);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicReference<Throwable> throwable = new AtomicReference<>();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
+
+        for (int threadIndex = 0; threadIndex < THREAD_COUNT; ++threadIndex) {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        if (!Arrays.equals(value, cache.get("section", "key"))) {
+                            throw new AssertionError("Unexpected value.");
+                        }
+                    } catch (Throwable t) {
+                        throwable.set(t);
+                    }
+                }
+            });
+        }
+
+        startLatch.countDown();
+        executorService.shutdown();
+        assertTrue("Threads have not finished.", executorService.awaitTermination(1L, TimeUnit.MINUTES));
+
+        if (throwable.get() != null) {
+            throw new AssertionError("Got unexpected exception in thread pool.", throwable.get());
+        }
+
+        assertEquals("Concurrent misses are not coalesced.", 1, remoteCache.getCount.get());
+        cache.close();
+    }
+
+    public void testRememberingOfRemoteMisses() throws Exception {
+        SlowByteCache remoteCache = new SlowByteCache();
+        ByteCache cache = Caches.newLocalAndRemoteByteCache(new InmemoryByteCache(), remoteCache, false, false, 500L);
+
+        assertNull("Absent value is returned.", cache.get("section", "key"));
+        assertFalse("Absent value is found.", cache.contains("section", "key"));
+        assertTrue("Absent values are returned.", cache.getAll("section", Arrays.asList("key")).isEmpty());
+        assertEquals("Remote miss is not remembered.", 1, remoteCache.getCount.get());
+
+        byte[] value = RandomUtil.getRandomBytes(VALUE_LENGTH);
+        cache.put("section", "key", value);
+        cache.remove("section", "key");
+        remoteCache.put("section", "key", value);
+        assertTrue("Remote miss is not forgotten after writing.", Arrays.equals(value, cache.get("section", "key")));
+
+        assertNull("Absent value is returned.", cache.get("section", "anotherKey"));
+        remoteCache.put("section", "anotherKey", value);
+        assertNull("Remote miss is not remembered.", cache.get("section", "anotherKey"));
+
+        ThreadUtil.sleep(1000L);
+        assertTrue("Remote miss is not expired.", Arrays.equals(value, cache.get("section", "anotherKey")));
+
+        cache.close();
+    }
+
+    public void testWriteBehindReplication() throws Exception {
+        FlakyByteCache remoteCache = new FlakyByteCache(2);
+        LocalAndRemoteByteCache cache = Caches.newWriteBehindLocalAndRemoteByteCache(
+                new InmemoryByteCache(), remoteCache, false, false, 0L, 1000, 1000000L, WriteOverflowPolicy.BLOCK
+        );
+
+        byte[][] values = new byte[10][];
+        for (int keyIndex = 0; keyIndex < values.length; ++keyIndex) {
+            for (int iteration = 0; iteration < 10; ++iteration) {
+                values[keyIndex] = RandomUtil.getRandomBytes(VALUE_LENGTH);
+                cache.put("section", "key" + keyIndex, values[keyIndex]);
+            }
+            assertTrue("Value is not written locally.",
+                    Arrays.equals(values[keyIndex], cache.get("section", "key" + keyIndex)));
+        }
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10L);
+        while (cache.getReplicationStatistics().getPendingWriteCount() > 0L
+                || cache.getReplicationStatistics().getLagMillis() > 0L) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Values are not replicated: " + cache.getReplicationStatistics() + '.');
+            }
+            ThreadUtil.sleep(10L);
+        }
+
+        for (int keyIndex = 0; keyIndex < values.length; ++keyIndex) {
+            assertTrue("Value is not replicated.",
+                    Arrays.equals(values[keyIndex], remoteCache.get("section", "key" + keyIndex)));
+        }
+
+        WriteBehindStatistics statistics = cache.getReplicationStatistics();
+        assertTrue("Failed writes are not retried.", statistics.getRetriedCount() > 0L);
+        assertEquals("Unexpected failed write count.", 0L, statistics.getFailedCount());
+        assertTrue("Writes are not coalesced.", statistics.getWrittenCount() < 100L);
+
+        cache.close();
+    }
+
+    /**
+     * Counts reads and makes them slow enough to overlap.
+     */
+    private static final class SlowByteCache extends InmemoryByteCache {
+        private final AtomicInteger getCount = new AtomicInteger();
+
+        @Nullable
+        @Override
+        public byte[] get(@Nonnull String section, @Nonnull String key) {
+            getCount.incrementAndGet();
+            ThreadUtil.sleep(200L);
+            return super.get(section, key);
+        }
+    }
+
+    /**
+     * Fails the first writes.
+     */
+    private static final class FlakyByteCache extends InmemoryByteCache {
+        private final AtomicInteger remainingFailureCount;
+
+        private FlakyByteCache(int failureCount) {
+            this.remainingFailureCount = new AtomicInteger(failureCount);
+        }
+
+        private void maybeFail() {
+            if (remainingFailureCount.getAndDecrement() > 0) {
+                throw new IllegalStateException("Remote cache is unavailable.");
+            }
+        }
+
+        @Override
+        public void put(@Nonnull String section, @Nonnull String key, @Nonnull byte[] value) {
+            maybeFail();
+            super.put(section, key, value);
+        }
+
+        @Override
+        public void putAll(@Nonnull String section, @Nonnull Map<String, byte[]> valueByKey) {
+            maybeFail();
+            super.putAll(section, valueByKey);
+        }
+    }
+}
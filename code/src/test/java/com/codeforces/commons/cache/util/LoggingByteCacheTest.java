@@ -0,0 +1,160 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.cache.VersionedValue;
+import com.codeforces.commons.math.RandomUtil;
+import com.codeforces.commons.process.ThreadUtil;
+import junit.framework.TestCase;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class LoggingByteCacheTest extends TestCase {
+    private final Logger logger = Logger.getLogger(LoggingByteCache.class);
+    private final CapturingAppender appender = new CapturingAppender();
+    private Level previousLevel;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        previousLevel = logger.getLevel();
+        logger.setLevel(Level.INFO);
+        logger.addAppender(appender);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        logger.removeAppender(appender);
+        logger.setLevel(previousLevel);
+        super.tearDown();
+    }
+
+    public void testOnlySlowOperationsAreLogged() throws Exception {
+        ByteCache slowCache = new SlowByteCache();
+        ByteCache cache = Caches.newLoggingByteCache(slowCache, 100L, 0.0D);
+
+        try {
+            for (int operationIndex = 0; operationIndex < 100; ++operationIndex) {
+                cache.put("section", "key" + operationIndex, RandomUtil.getRandomBytes(10));
+                cache.get("section", "key" + operationIndex);
+            }
+            cache.get("section", "slow");
+        } finally {
+            cache.close();
+        }
+
+        List<String> messages = appender.getMessages(slowCache);
+        assertEquals("Unexpected messages: " + messages + '.', 1, messages.size());
+        assertTrue(messages.get(0).contains("slowly invoked 'byte[] get(String, String)'"));
+        assertTrue(messages.get(0).contains("('section', 'slow')"));
+    }
+
+    public void testSampledOperationsAreLogged() throws Exception {
+        ByteCache internalCache = new InmemoryByteCache();
+        ByteCache cache = Caches.newLoggingByteCache(internalCache, Long.MAX_VALUE, 1.0D);
+
+        try {
+            for (int operationIndex = 0; operationIndex < 10; ++operationIndex) {
+                cache.contains("section", "key" + operationIndex);
+            }
+        } finally {
+            cache.close();
+        }
+
+        assertEquals(11, appender.getMessages(internalCache).size());
+    }
+
+    public void testFailedOperationsAreLogged() throws Exception {
+        ByteCache slowCache = new SlowByteCache();
+        ByteCache cache = Caches.newLoggingByteCache(slowCache, Long.MAX_VALUE, 0.0D);
+
+        try {
+            cache.get("section", "failing");
+            fail("Operation should fail.");
+        } catch (IllegalStateException ignored) {
+            // No operations.
+        } finally {
+            cache.close();
+        }
+
+        List<String> messages = appender.getMessages(slowCache);
+        assertEquals("Unexpected messages: " + messages + '.', 1, messages.size());
+        assertTrue(messages.get(0).contains("Method threw an exception"));
+    }
+
+    public void testVersionedValuesAndCountersAreLogged() throws Exception {
+        ByteCache internalCache = new InmemoryByteCache();
+        ByteCache cache = Caches.newLoggingByteCache(internalCache);
+
+        try {
+            cache.put("section", "key", new byte[]{1, 2, 3});
+            VersionedValue versionedValue = cache.getWithVersion("section", "key");
+            assertNotNull(versionedValue);
+            assertTrue(cache.compareAndSet("section", "key", versionedValue.getVersion(), new byte[]{4}, 1000L));
+
+            assertEquals(5L, cache.incrementAndGet("section", "counter", 5L, 1000L));
+            assertEquals(5L, cache.getCounter("section", "counter"));
+        } finally {
+            cache.close();
+        }
+
+        String messages = appender.getMessages(internalCache).toString();
+        assertTrue("Versioned value is not logged: " + messages + '.',
+                messages.contains("Result is: byte[3] of version"));
+        assertTrue("Counter is not logged: " + messages + '.', messages.contains(
+                "finished to invoke 'long incrementAndGet(String, String, long, long)'"
+        ));
+    }
+
+    private static final class CapturingAppender extends AppenderSkeleton {
+        private final List<String> messages = new CopyOnWriteArrayList<>();
+
+        @Override
+        protected void append(LoggingEvent event) {
+            messages.add(event.getRenderedMessage());
+        }
+
+        /**
+         * Skips messages of caches of other tests, which are logged when the caches are finalized.
+         */
+        private List<String> getMessages(ByteCache internalCache) {
+            List<String> cacheMessages = new ArrayList<>();
+            for (String message : messages) {
+                if (message.startsWith(internalCache + ": ")) {
+                    cacheMessages.add(message);
+                }
+            }
+            return cacheMessages;
+        }
+
+        @Override
+        public void close() {
+            // No operations.
+        }
+
+        @Override
+        public boolean requiresLayout() {
+            return false;
+        }
+    }
+
+    private static final class SlowByteCache extends InmemoryByteCache {
+        @Nullable
+        @Override
+        public byte[] get(String section, String key) {
+            if ("slow".equals(key)) {
+                ThreadUtil.sleep(200L);
+            } else if ("failing".equals(key)) {
+                throw new IllegalStateException("Can't get value.");
+            }
+            return super.get(section, key);
+        }
+    }
+}
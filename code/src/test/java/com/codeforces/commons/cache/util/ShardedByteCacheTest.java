@@ -0,0 +1,222 @@
+package com.codeforces.commons.cache.util;
+
+import com.codeforces.commons.cache.ByteCache;
+import com.codeforces.commons.cache.InmemoryByteCache;
+import com.codeforces.commons.cache.RemovalCause;
+import com.codeforces.commons.cache.RemovalListener;
+import com.codeforces.commons.cache.RemovalNotification;
+import com.codeforces.commons.process.ThreadUtil;
+import junit.framework.TestCase;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ShardedByteCacheTest extends TestCase {
+    private static final int SHARD_COUNT = 4;
+    private static final int KEY_COUNT = 10000;
+
+    public void testValuesAreSpreadEvenly() throws Exception {
+        ShardedByteCache cache = Caches.newShardedByteCache(newCacheByShardName(SHARD_COUNT));
+
+        try {
+            Map<String, Integer> keyCountByShardName = new HashMap<>();
+            for (int keyIndex = 0; keyIndex < KEY_COUNT; ++keyIndex) {
+                String shardName = cache.getShardName("section", "key" + keyIndex);
+                Integer keyCount = keyCountByShardName.get(shardName);
+                keyCountByShardName.put(shardName, keyCount == null ? 1 : keyCount + 1);
+            }
+
+            assertEquals(SHARD_COUNT, keyCountByShardName.size());
+            for (Map.Entry<String, Integer> entry : keyCountByShardName.entrySet()) {
+                assertTrue(
+                        "Shard '" + entry.getKey() + "' has unexpected key count " + entry.getValue() + '.',
+                        entry.getValue() > KEY_COUNT / SHARD_COUNT / 2
+                                && entry.getValue() < KEY_COUNT / SHARD_COUNT * 2
+                );
+            }
+
+            Map<String, byte[]> valueByKey = new LinkedHashMap<>();
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                valueByKey.put("key" + keyIndex, new byte[]{(byte) keyIndex});
+            }
+            cache.putAll("section", valueByKey);
+
+            Map<String, byte[]> gotValueByKey = cache.getAll("section", valueByKey.keySet());
+            assertEquals(new ArrayList<>(valueByKey.keySet()), new ArrayList<>(gotValueByKey.keySet()));
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                assertTrue(Arrays.equals(valueByKey.get("key" + keyIndex), cache.get("section", "key" + keyIndex)));
+            }
+
+            assertEquals(100, cache.removeAll("section", valueByKey.keySet()));
+            assertTrue(cache.getAll("section", valueByKey.keySet()).isEmpty());
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testRemovalListenersAreRegisteredInAllShards() throws Exception {
+        ShardedByteCache cache = Caches.newShardedByteCache(newCacheByShardName(SHARD_COUNT));
+
+        try {
+            final BlockingQueue<RemovalNotification<String, byte[]>> notifications = new LinkedBlockingQueue<>();
+            cache.addRemovalListener(new RemovalListener<String, byte[]>() {
+                @Override
+                public void onRemoval(@Nonnull List<RemovalNotification<String, byte[]>> batch) {
+                    notifications.addAll(batch);
+                }
+            });
+            cache.addShard("shard" + SHARD_COUNT, new InmemoryByteCache());
+
+            Set<String> keys = new HashSet<>();
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                keys.add("key" + keyIndex);
+                cache.put("section", "key" + keyIndex, new byte[]{(byte) keyIndex});
+            }
+            assertEquals(100, cache.removeAll("section", keys));
+
+            Set<String> removedKeys = new HashSet<>();
+            for (int keyIndex = 0; keyIndex < 100; ++keyIndex) {
+                RemovalNotification<String, byte[]> notification = notifications.poll(5L, TimeUnit.SECONDS);
+                assertNotNull("Removal is not notified.", notification);
+                assertEquals(RemovalCause.EXPLICIT, notification.getCause());
+                removedKeys.add(notification.getKey());
+            }
+            assertEquals(keys, removedKeys);
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testAddingAndRemovingOfShardMovesFewKeys() throws Exception {
+        ShardedByteCache cache = Caches.newShardedByteCache(newCacheByShardName(SHARD_COUNT));
+
+        try {
+            Map<String, String> shardNameByKey = getShardNameByKey(cache);
+
+            cache.addShard("shard" + SHARD_COUNT, new InmemoryByteCache());
+            Map<String, String> newShardNameByKey = getShardNameByKey(cache);
+
+            int movedKeyCount = 0;
+            for (Map.Entry<String, String> entry : newShardNameByKey.entrySet()) {
+                if (!entry.getValue().equals(shardNameByKey.get(entry.getKey()))) {
+                    assertEquals("shard" + SHARD_COUNT, entry.getValue());
+                    ++movedKeyCount;
+                }
+            }
+            assertTrue(
+                    "Unexpected moved key count " + movedKeyCount + '.',
+                    movedKeyCount > KEY_COUNT / (SHARD_COUNT + 1) / 2
+                            && movedKeyCount < KEY_COUNT / (SHARD_COUNT + 1) * 2
+            );
+
+            assertNotNull(cache.removeShard("shard" + SHARD_COUNT));
+            assertEquals(shardNameByKey, getShardNameByKey(cache));
+            assertNull(cache.removeShard("shard" + SHARD_COUNT));
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testRoutingAroundInvalidShard() throws Exception {
+        Map<String, ByteCache> cacheByShardName = newCacheByShardName(SHARD_COUNT - 1);
+        FailingByteCache failingCache = new FailingByteCache();
+        cacheByShardName.put("failing", failingCache);
+
+        ShardedByteCache cache = Caches.newShardedByteCache(
+                cacheByShardName, ShardedByteCache.DEFAULT_VIRTUAL_NODE_COUNT, true, 50L
+        );
+
+        try {
+            String key = getKeyOfShard(cache, "failing");
+            String removedKey = getKeyOfShard(cache, "failing", key);
+            cache.put("section", key, new byte[]{1});
+            cache.put("section", removedKey, new byte[]{1});
+            assertNotNull(failingCache.get("section", key));
+
+            failingCache.valid = false;
+            ThreadUtil.sleep(500L);
+
+            assertFalse("failing".equals(cache.getShardName("section", key)));
+            assertNull(cache.get("section", key));
+            cache.put("section", key, new byte[]{2});
+            assertTrue(Arrays.equals(new byte[]{2}, cache.get("section", key)));
+            assertFalse(cache.remove("section", removedKey));
+            assertTrue(cache.validate());
+
+            failingCache.valid = true;
+            ThreadUtil.sleep(500L);
+
+            assertEquals("failing", cache.getShardName("section", key));
+            assertNull("Value stored before the outage is served.", cache.get("section", key));
+            assertNull("Value removed during the outage is served.", cache.get("section", removedKey));
+        } finally {
+            cache.close();
+        }
+    }
+
+    public void testValidationDoesNotChangeRouting() throws Exception {
+        Map<String, ByteCache> cacheByShardName = newCacheByShardName(SHARD_COUNT - 1);
+        FailingByteCache failingCache = new FailingByteCache();
+        cacheByShardName.put("failing", failingCache);
+
+        ShardedByteCache cache = Caches.newShardedByteCache(
+                cacheByShardName, ShardedByteCache.DEFAULT_VIRTUAL_NODE_COUNT, true, TimeUnit.HOURS.toMillis(1L)
+        );
+
+        try {
+            String key = getKeyOfShard(cache, "failing");
+            // Lets the background thread finish its first validation.
+            ThreadUtil.sleep(100L);
+            failingCache.valid = false;
+
+            assertTrue(cache.validate());
+            assertEquals("Routing is changed by validation.", "failing", cache.getShardName("section", key));
+
+            cache.updateRouting();
+            assertFalse("Invalid shard is not routed around.", "failing".equals(cache.getShardName("section", key)));
+        } finally {
+            cache.close();
+        }
+    }
+
+    private static Map<String, ByteCache> newCacheByShardName(int shardCount) {
+        Map<String, ByteCache> cacheByShardName = new LinkedHashMap<>();
+        for (int shardIndex = 0; shardIndex < shardCount; ++shardIndex) {
+            cacheByShardName.put("shard" + shardIndex, new InmemoryByteCache());
+        }
+        return cacheByShardName;
+    }
+
+    private static Map<String, String> getShardNameByKey(ShardedByteCache cache) {
+        Map<String, String> shardNameByKey = new HashMap<>();
+        for (int keyIndex = 0; keyIndex < KEY_COUNT; ++keyIndex) {
+            shardNameByKey.put("key" + keyIndex, cache.getShardName("section", "key" + keyIndex));
+        }
+        return shardNameByKey;
+    }
+
+    private static String getKeyOfShard(ShardedByteCache cache, String shardName, String... excludedKeys) {
+        for (int keyIndex = 0; ; ++keyIndex) {
+            String key = "key" + keyIndex;
+            if (shardName.equals(cache.getShardName("section", key)) && !Arrays.asList(excludedKeys).contains(key)) {
+                return key;
+            }
+        }
+    }
+
+    private static final class FailingByteCache extends SilentByteCache {
+        private volatile boolean valid = true;
+
+        private FailingByteCache() {
+            super(new InmemoryByteCache());
+        }
+
+        @Override
+        public boolean validate() {
+            return valid;
+        }
+    }
+}